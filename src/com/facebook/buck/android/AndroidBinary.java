@@ -52,7 +52,6 @@ import com.facebook.buck.step.fs.MkdirStep;
 import com.facebook.buck.util.AndroidPlatformTarget;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.ProjectFilesystem;
-import com.facebook.buck.zip.RepackZipEntriesStep;
 import com.facebook.buck.zip.ZipDirectoryWithMaxDeflateStep;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
@@ -451,7 +450,6 @@ public class AndroidBinary extends AbstractBuildRule implements
     ImmutableList.Builder<Step> steps = ImmutableList.builder();
 
     // Create the .dex files if we aren't doing pre-dexing.
-    Path signedApkPath = getSignedApkPath();
     DexFilesInfo dexFilesInfo = addFinalDxSteps(
         context,
         enhancementResult.getFilteredResourcesProvider().getResDirectories(),
@@ -502,38 +500,23 @@ public class AndroidBinary extends AbstractBuildRule implements
       zipFiles.add(pathToStringAssetsZip);
     }
 
+    // The APK is signed and aligned as it is written, and resources.arsc is compressed as it is
+    // copied from the resource APK, if it should be.
+    Path apkPath = getApkPath();
     ApkBuilderStep apkBuilderCommand = new ApkBuilderStep(
         enhancementResult.getAaptPackageResources().getResourceApkPath(),
-        getSignedApkPath(),
+        apkPath,
         dexFilesInfo.primaryDexPath,
         nativeLibraryAsAssetDirectories,
         nativeLibraryDirectories,
         zipFiles.build(),
         packageableCollection.pathsToThirdPartyJars,
+        isCompressResources() ? ImmutableSet.of("resources.arsc") : ImmutableSet.<String>of(),
         keystore.getPathToStore(),
         keystore.getPathToPropertiesFile(),
         /* debugMode */ false);
     steps.add(apkBuilderCommand);
 
-
-    Path apkToAlign;
-    // Optionally, compress the resources file in the .apk.
-    if (this.isCompressResources()) {
-      Path compressedApkPath = getCompressedResourcesApkPath();
-      apkToAlign = compressedApkPath;
-      RepackZipEntriesStep arscComp = new RepackZipEntriesStep(
-          signedApkPath,
-          compressedApkPath,
-          ImmutableSet.of("resources.arsc"));
-      steps.add(arscComp);
-    } else {
-      apkToAlign = signedApkPath;
-    }
-
-    Path apkPath = getApkPath();
-    ZipalignStep zipalign = new ZipalignStep(apkToAlign, apkPath);
-    steps.add(zipalign);
-
     // Inform the user where the APK can be found.
     EchoStep success = new EchoStep(
         String.format("built APK for %s at %s",
@@ -741,16 +724,6 @@ public class AndroidBinary extends AbstractBuildRule implements
     return BuildTargets.getGenPath(getBuildTarget(), "%s.unsigned.apk").toString();
   }
 
-  /** The APK at this path will be signed, but not zipaligned. */
-  private Path getSignedApkPath() {
-    return Paths.get(getUnsignedApkPath().replaceAll("\\.unsigned\\.apk$", ".signed.apk"));
-  }
-
-  /** The APK at this path will have compressed resources, but will not be zipaligned. */
-  private Path getCompressedResourcesApkPath() {
-    return Paths.get(getUnsignedApkPath().replaceAll("\\.unsigned\\.apk$", ".compressed.apk"));
-  }
-
   private Path getBinPath(String format) {
     return BuildTargets.getBinPath(getBuildTarget(), format);
   }
@@ -902,7 +875,15 @@ public class AndroidBinary extends AbstractBuildRule implements
           proguardFullConfigFile,
           proguardMappingFile,
           dexSplitMode,
-          zipSplitReportDir);
+          zipSplitReportDir,
+          // Unlike the directories above, these are never cleaned, so later builds can use them.
+          Optional.of(getBinPath("__%s_dalvik_stats_cache__").resolve("stats.bin")),
+          // Keeping classes in the same secondary dexes between builds means that only the ones
+          // with changed classes need dx again, at the price of less tightly packed dexes, which
+          // only development builds are willing to pay.
+          PackageType.RELEASE.equals(packageType) ?
+              Optional.<Path>absent() :
+              Optional.of(getBinPath("__%s_dalvik_stats_cache__").resolve("assignment.txt")));
       steps.add(splitZipCommand);
 
       // Add the secondary dex directory that has yet to be created, but will be by the
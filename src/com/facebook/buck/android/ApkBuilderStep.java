@@ -16,15 +16,11 @@
 
 package com.facebook.buck.android;
 
-import com.android.sdklib.build.ApkBuilder;
-import com.android.sdklib.build.ApkCreationException;
-import com.android.sdklib.build.DuplicateFileException;
-import com.android.sdklib.build.SealedApkException;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
-import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.KeystoreProperties;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -32,10 +28,8 @@ import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
 import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyStore;
@@ -48,10 +42,14 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Merges resources into a final APK.  This code is based off of the now deprecated apkbuilder tool:
  * https://android.googlesource.com/platform/sdk/+/fd30096196e3747986bdf8a95cc7713dd6e0b239%5E/sdkmanager/libs/sdklib/src/main/java/com/android/sdklib/build/ApkBuilderMain.java
+ * <p>
+ * The APK is written by {@link ApkWriter}, which copies the entries of the zips it is given without
+ * recompressing them, and signs and aligns the APK as it writes it, so it needs no zipalign.
  */
 public class ApkBuilderStep implements Step {
 
@@ -68,6 +66,7 @@ public class ApkBuilderStep implements Step {
   private final ImmutableSet<Path> nativeLibraryDirectories;
   private final ImmutableSet<Path> zipFiles;
   private final ImmutableSet<Path> jarFilesThatMayContainResources;
+  private final ImmutableSet<String> entriesToCompress;
   private final Path pathToKeystore;
   private final Path pathToKeystorePropertiesFile;
   private final boolean debugMode;
@@ -80,6 +79,8 @@ public class ApkBuilderStep implements Step {
    * @param assetDirectories List of paths to assets to be included in the apk.
    * @param nativeLibraryDirectories List of paths to native directories.
    * @param zipFiles List of paths to zipfiles to be included into the apk.
+   * @param entriesToCompress Entries of the zips that are compressed even if they are stored in
+   *     the zip, such as {@code resources.arsc}.
    * @param debugMode Whether or not to run ApkBuilder with debug mode turned on.
    * @param pathToKeystore Path to the keystore used to sign the APK.
    * @param pathToKeystorePropertiesFile Path to a {@code .properties} file that contains
@@ -93,6 +94,7 @@ public class ApkBuilderStep implements Step {
       ImmutableSet<Path> nativeLibraryDirectories,
       ImmutableSet<Path> zipFiles,
       ImmutableSet<Path> jarFilesThatMayContainResources,
+      ImmutableSet<String> entriesToCompress,
       Path pathToKeystore,
       Path pathToKeystorePropertiesFile,
       boolean debugMode) {
@@ -104,6 +106,7 @@ public class ApkBuilderStep implements Step {
     this.jarFilesThatMayContainResources =
         Preconditions.checkNotNull(jarFilesThatMayContainResources);
     this.zipFiles = Preconditions.checkNotNull(zipFiles);
+    this.entriesToCompress = Preconditions.checkNotNull(entriesToCompress);
     this.pathToKeystore = Preconditions.checkNotNull(pathToKeystore);
     this.pathToKeystorePropertiesFile = Preconditions.checkNotNull(pathToKeystorePropertiesFile);
     this.debugMode = debugMode;
@@ -111,55 +114,52 @@ public class ApkBuilderStep implements Step {
 
   @Override
   public int execute(ExecutionContext context) {
-    PrintStream output = null;
-    if (context.getVerbosity().shouldUseVerbosityFlagIfAvailable()) {
-      output = context.getStdOut();
-    }
-
     ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    ExecutorService executor = MoreExecutors.newMultiThreadExecutor(
+        "apk-writer",
+        Runtime.getRuntime().availableProcessors());
     try {
       PrivateKeyAndCertificate privateKeyAndCertificate = createKeystoreProperties(context);
-      ApkBuilder builder = new ApkBuilder(
+      try (ApkWriter apk = new ApkWriter(
           projectFilesystem.getFileForRelativePath(pathToOutputApkFile),
-          projectFilesystem.getFileForRelativePath(resourceApk),
-          projectFilesystem.getFileForRelativePath(dexFile),
-          privateKeyAndCertificate.privateKey,
-          privateKeyAndCertificate.certificate,
-          output);
-      builder.setDebugMode(debugMode);
-      for (Path nativeLibraryDirectory : nativeLibraryDirectories) {
-        builder.addNativeLibraries(
-            projectFilesystem.getFileForRelativePath(nativeLibraryDirectory));
-      }
-      for (Path assetDirectory : assetDirectories) {
-        builder.addSourceFolder(projectFilesystem.getFileForRelativePath(assetDirectory));
-      }
-      for (Path zipFile : zipFiles) {
-        // TODO(natthu): Skipping silently is bad. These should really be assertions.
-        if (projectFilesystem.exists(zipFile) && projectFilesystem.isFile(zipFile)) {
-          builder.addZipFile(projectFilesystem.getFileForRelativePath(zipFile));
+          new ApkSigner(privateKeyAndCertificate.privateKey, privateKeyAndCertificate.certificate),
+          executor,
+          entriesToCompress)) {
+        apk.addZipFile(
+            projectFilesystem.getFileForRelativePath(resourceApk),
+            /* isJavaResources */ false);
+        apk.addFile(projectFilesystem.getFileForRelativePath(dexFile), "classes.dex");
+        for (Path nativeLibraryDirectory : nativeLibraryDirectories) {
+          apk.addNativeLibraries(
+              projectFilesystem.getFileForRelativePath(nativeLibraryDirectory),
+              debugMode);
+        }
+        for (Path assetDirectory : assetDirectories) {
+          apk.addSourceFolder(projectFilesystem.getFileForRelativePath(assetDirectory));
+        }
+        for (Path zipFile : zipFiles) {
+          // TODO(natthu): Skipping silently is bad. These should really be assertions.
+          if (projectFilesystem.exists(zipFile) && projectFilesystem.isFile(zipFile)) {
+            apk.addZipFile(
+                projectFilesystem.getFileForRelativePath(zipFile),
+                /* isJavaResources */ false);
+          }
+        }
+        for (Path jarFileThatMayContainResources : jarFilesThatMayContainResources) {
+          apk.addZipFile(
+              projectFilesystem.getFileForRelativePath(jarFileThatMayContainResources),
+              /* isJavaResources */ true);
         }
       }
-      for (Path jarFileThatMayContainResources : jarFilesThatMayContainResources) {
-        File jarFile  = projectFilesystem.getFileForRelativePath(jarFileThatMayContainResources);
-        builder.addResourcesFromJar(jarFile);
-      }
-
-      // Build the APK
-      builder.sealApk();
-    } catch (ApkCreationException
-        | CertificateException
+    } catch (CertificateException
         | IOException
         | KeyStoreException
         | NoSuchAlgorithmException
-        | SealedApkException
         | UnrecoverableKeyException e) {
       context.logError(e, "Error when creating APK at: %s.", pathToOutputApkFile);
       return 1;
-    } catch (DuplicateFileException e) {
-      throw new HumanReadableException(
-          String.format("Found duplicate file for APK: %1$s\nOrigin 1: %2$s\nOrigin 2: %3$s",
-              e.getArchivePath(), e.getFile1(), e.getFile2()));
+    } finally {
+      executor.shutdownNow();
     }
     return 0;
   }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+
+/**
+ * Creates the files that sign an APK as {@code jarsigner} does, from the SHA-1 digests of its
+ * entries, so that the entries can be digested as they are written instead of being read again
+ * once the APK is complete. The files are the same as the ones that
+ * {@link com.android.sdklib.internal.build.SignedJarBuilder} writes: a manifest with the digest of
+ * each entry, a signature file with the digest of each section of the manifest, and a PKCS #7
+ * signature block that signs the signature file.
+ */
+class ApkSigner {
+
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String SIGNATURE_FILE_NAME = "META-INF/CERT.SF";
+  private static final String SIGNATURE_BLOCK_PREFIX = "META-INF/CERT.";
+  private static final String CREATED_BY = "Created-By: 1.0 (Android)";
+  /** The longest line that a manifest may have, excluding its line break. */
+  private static final int MAX_LINE_LENGTH = 72;
+
+  private static final int DER_INTEGER = 0x02;
+  private static final int DER_OCTET_STRING = 0x04;
+  private static final int DER_NULL = 0x05;
+  private static final int DER_OBJECT_IDENTIFIER = 0x06;
+  private static final int DER_SEQUENCE = 0x30;
+  private static final int DER_SET = 0x31;
+  private static final int DER_CONTEXT_SPECIFIC_0 = 0xa0;
+
+  private static final String SIGNED_DATA_OID = "1.2.840.113549.1.7.2";
+  private static final String DATA_OID = "1.2.840.113549.1.7.1";
+  private static final String SHA1_OID = "1.3.14.3.2.26";
+  private static final ImmutableMap<String, String> ENCRYPTION_OIDS_BY_KEY_ALGORITHM =
+      ImmutableMap.of(
+          "RSA", "1.2.840.113549.1.1.1",
+          "DSA", "1.2.840.10040.4.1",
+          "EC", "1.2.840.10045.2.1");
+  /** JCA names of the SHA-1 signature algorithm for each type of key. */
+  private static final ImmutableMap<String, String> SIGNATURE_ALGORITHMS_BY_KEY_ALGORITHM =
+      ImmutableMap.of(
+          "RSA", "SHA1withRSA",
+          "DSA", "SHA1withDSA",
+          "EC", "SHA1withECDSA");
+
+  private final PrivateKey privateKey;
+  private final X509Certificate certificate;
+
+  ApkSigner(PrivateKey privateKey, X509Certificate certificate) {
+    this.privateKey = Preconditions.checkNotNull(privateKey);
+    this.certificate = Preconditions.checkNotNull(certificate);
+  }
+
+  /**
+   * @param digests the SHA-1 digest of the uncompressed data of each entry, by entry name, in the
+   *     order that the entries should be listed in.
+   * @return the contents of the files that sign the APK, by entry name.
+   */
+  ImmutableMap<String, byte[]> createSignatureFiles(Map<String, HashCode> digests)
+      throws GeneralSecurityException {
+    String keyAlgorithm = privateKey.getAlgorithm();
+    String encryptionOid = ENCRYPTION_OIDS_BY_KEY_ALGORITHM.get(keyAlgorithm);
+    if (encryptionOid == null) {
+      throw new GeneralSecurityException("Cannot sign APKs with a key of type " + keyAlgorithm);
+    }
+
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeSection(manifest, "Manifest-Version: 1.0", CREATED_BY);
+    ByteArrayOutputStream signatureFileEntries = new ByteArrayOutputStream();
+    for (Map.Entry<String, HashCode> digest : digests.entrySet()) {
+      byte[] section = createSection(
+          "Name: " + digest.getKey(),
+          "SHA1-Digest: " + BaseEncoding.base64().encode(digest.getValue().asBytes()));
+      manifest.write(section, 0, section.length);
+      writeSection(
+          signatureFileEntries,
+          "Name: " + digest.getKey(),
+          "SHA1-Digest: " + base64Sha1(section));
+    }
+    byte[] manifestBytes = manifest.toByteArray();
+
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    writeSection(
+        signatureFile,
+        "Signature-Version: 1.0",
+        CREATED_BY,
+        "SHA1-Digest-Manifest: " + base64Sha1(manifestBytes));
+    byte[] signatureFileBytes = Bytes.concat(
+        signatureFile.toByteArray(),
+        signatureFileEntries.toByteArray());
+
+    Signature signature =
+        Signature.getInstance(SIGNATURE_ALGORITHMS_BY_KEY_ALGORITHM.get(keyAlgorithm));
+    signature.initSign(privateKey);
+    signature.update(signatureFileBytes);
+
+    return ImmutableMap.of(
+        MANIFEST_NAME, manifestBytes,
+        SIGNATURE_FILE_NAME, signatureFileBytes,
+        SIGNATURE_BLOCK_PREFIX + keyAlgorithm,
+        createSignatureBlock(encryptionOid, signature.sign()));
+  }
+
+  private static String base64Sha1(byte[] bytes) {
+    return BaseEncoding.base64().encode(Hashing.sha1().hashBytes(bytes).asBytes());
+  }
+
+  private static void writeSection(ByteArrayOutputStream out, String... lines) {
+    byte[] section = createSection(lines);
+    out.write(section, 0, section.length);
+  }
+
+  /**
+   * @return the lines, each wrapped as the jar specification requires, followed by the blank line
+   *     that ends a section.
+   */
+  private static byte[] createSection(String... lines) {
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    for (String line : lines) {
+      byte[] bytes = line.getBytes(Charsets.UTF_8);
+      int start = 0;
+      int maxLength = MAX_LINE_LENGTH;
+      while (bytes.length - start > maxLength) {
+        int end = start + maxLength;
+        // Do not split a character that takes several bytes between two lines.
+        while ((bytes[end] & 0xc0) == 0x80) {
+          end--;
+        }
+        section.write(bytes, start, end - start);
+        section.write('\r');
+        section.write('\n');
+        section.write(' ');
+        start = end;
+        // Continuation lines start with a space, which counts towards their length.
+        maxLength = MAX_LINE_LENGTH - 1;
+      }
+      section.write(bytes, start, bytes.length - start);
+      section.write('\r');
+      section.write('\n');
+    }
+    section.write('\r');
+    section.write('\n');
+    return section.toByteArray();
+  }
+
+  /**
+   * Encodes the PKCS #7 {@code SignedData} that holds the signature of the signature file and the
+   * certificate to check it with. The signature file itself is not included.
+   */
+  private byte[] createSignatureBlock(String encryptionOid, byte[] signature)
+      throws GeneralSecurityException {
+    byte[] sha1AlgorithmIdentifier = der(DER_SEQUENCE, oid(SHA1_OID), der(DER_NULL));
+    // RSA keys have NULL parameters, and DSA and EC keys have none.
+    byte[] encryptionAlgorithmIdentifier = encryptionOid.equals(
+        ENCRYPTION_OIDS_BY_KEY_ALGORITHM.get("RSA")) ?
+        der(DER_SEQUENCE, oid(encryptionOid), der(DER_NULL)) :
+        der(DER_SEQUENCE, oid(encryptionOid));
+
+    byte[] signerInfo = der(DER_SEQUENCE,
+        integer(1),
+        der(DER_SEQUENCE,
+            certificate.getIssuerX500Principal().getEncoded(),
+            der(DER_INTEGER, certificate.getSerialNumber().toByteArray())),
+        sha1AlgorithmIdentifier,
+        encryptionAlgorithmIdentifier,
+        der(DER_OCTET_STRING, signature));
+
+    byte[] signedData = der(DER_SEQUENCE,
+        integer(1),
+        der(DER_SET, sha1AlgorithmIdentifier),
+        der(DER_SEQUENCE, oid(DATA_OID)),
+        der(DER_CONTEXT_SPECIFIC_0, certificate.getEncoded()),
+        der(DER_SET, signerInfo));
+
+    return der(DER_SEQUENCE, oid(SIGNED_DATA_OID), der(DER_CONTEXT_SPECIFIC_0, signedData));
+  }
+
+  private static byte[] integer(int value) {
+    Preconditions.checkArgument(value >= 0 && value < 0x80);
+    return der(DER_INTEGER, new byte[] {(byte) value});
+  }
+
+  private static byte[] oid(String oid) {
+    String[] components = oid.split("\\.");
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    encoded.write(Integer.parseInt(components[0]) * 40 + Integer.parseInt(components[1]));
+    for (int i = 2; i < components.length; i++) {
+      long component = Long.parseLong(components[i]);
+      // Base 128, most significant group first, with the top bit set on all groups but the last.
+      int shift = 63 - Long.numberOfLeadingZeros(component | 1);
+      shift -= shift % 7;
+      for (; shift > 0; shift -= 7) {
+        encoded.write((int) (0x80 | ((component >> shift) & 0x7f)));
+      }
+      encoded.write((int) (component & 0x7f));
+    }
+    return der(DER_OBJECT_IDENTIFIER, encoded.toByteArray());
+  }
+
+  /**
+   * @return the DER encoding of a value with the given {@code tag}, whose contents are the
+   *     concatenation of {@code contents}.
+   */
+  private static byte[] der(int tag, byte[]... contents) {
+    byte[] value = Bytes.concat(contents);
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(value.length + 6);
+    encoded.write(tag);
+    if (value.length < 0x80) {
+      encoded.write(value.length);
+    } else {
+      int lengthBytes = 4 - Integer.numberOfLeadingZeros(value.length) / 8;
+      encoded.write(0x80 | lengthBytes);
+      for (int i = lengthBytes - 1; i >= 0; i--) {
+        encoded.write(value.length >> (i * 8));
+      }
+    }
+    encoded.write(value, 0, value.length);
+    return encoded.toByteArray();
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.android.sdklib.build.ApkBuilder;
+import com.android.sdklib.build.ApkCreationException;
+import com.facebook.buck.timing.DefaultClock;
+import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.RawZipFile;
+import com.facebook.buck.zip.ZipAssembler;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes a signed and aligned APK in a single pass, as {@link ApkBuilder} followed by zipalign
+ * would. Entries of the zips that are added are copied as they are, still compressed, so only the
+ * files that are added and the entries whose compression changes are deflated. The SHA-1 digest of
+ * each entry, which the signature is made of, is computed on the executor while entries are
+ * written, and the files that sign the APK are written last, as {@link ApkBuilder} does.
+ */
+class ApkWriter implements Closeable {
+
+  /** How many entries may be compressed ahead of the one being written. */
+  private static final int MAX_PENDING_ENTRIES = 64;
+
+  /** The alignment of the data of stored entries, as {@code zipalign 4} does. */
+  private static final int STORED_ENTRY_ALIGNMENT = 4;
+
+  private static final String META_INF = "META-INF/";
+
+  private final ZipAssembler apk;
+  private final ApkSigner signer;
+  private final ExecutorService executor;
+  private final ImmutableSet<String> entriesToCompress;
+  private final Map<String, Future<HashCode>> digests = Maps.newLinkedHashMap();
+  private final Map<String, File> origins = Maps.newHashMap();
+  /** Input zips, whose entries are copied when their turn comes to be written. */
+  private final List<Closeable> inputs = Lists.newArrayList();
+
+  /**
+   * @param executor compresses and digests entries. Its tasks never block.
+   * @param entriesToCompress entries of the added zips that are deflated even if they are stored.
+   */
+  ApkWriter(
+      File apkFile,
+      ApkSigner signer,
+      ExecutorService executor,
+      ImmutableSet<String> entriesToCompress) throws IOException {
+    this.signer = Preconditions.checkNotNull(signer);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.entriesToCompress = Preconditions.checkNotNull(entriesToCompress);
+    this.apk = new ZipAssembler(
+        new DefaultClock(),
+        new BufferedOutputStream(new FileOutputStream(apkFile)),
+        executor,
+        MAX_PENDING_ENTRIES,
+        STORED_ENTRY_ALIGNMENT);
+  }
+
+  /**
+   * Adds {@code file} as the entry {@code name}, compressed at the highest level.
+   */
+  void addFile(File file, String name) throws IOException {
+    checkForDuplicate(name, file);
+    CustomZipEntry entry = new CustomZipEntry(name);
+    entry.setCompressionLevel(Deflater.BEST_COMPRESSION);
+    entry.setTime(file.lastModified());
+    ByteSource contents = Files.asByteSource(file);
+    apk.addEntry(entry, contents);
+    digests.put(name, digest(contents));
+  }
+
+  /**
+   * Adds the entries of {@code zipFile}, except for directories and whatever is in
+   * {@code META-INF}, which would belong to the signature of the zip.
+   *
+   * @param isJavaResources whether {@code zipFile} is a jar, whose classes and source control
+   *     files are not packaged.
+   */
+  void addZipFile(File zipFile, boolean isJavaResources) throws IOException {
+    Optional<RawZipFile> rawZip = RawZipFile.open(zipFile.toPath());
+    if (!rawZip.isPresent()) {
+      addUnsupportedZipFile(zipFile, isJavaResources);
+      return;
+    }
+
+    final RawZipFile zip = rawZip.get();
+    inputs.add(zip);
+    for (final RawZipFile.Entry rawEntry : zip.getEntries()) {
+      String name = rawEntry.getName();
+      if (!shouldPackage(name, rawEntry.isDirectory(), isJavaResources)) {
+        continue;
+      }
+      checkForDuplicate(name, zipFile);
+
+      ByteSource contents = new ByteSource() {
+        @Override
+        public InputStream openStream() throws IOException {
+          return zip.getInputStream(rawEntry);
+        }
+      };
+      if (rawEntry.getMethod() == ZipEntry.STORED && entriesToCompress.contains(name)) {
+        CustomZipEntry entry = new CustomZipEntry(name);
+        entry.setCompressionLevel(Deflater.BEST_COMPRESSION);
+        entry.setTime(rawEntry.getTime());
+        apk.addEntry(entry, contents);
+      } else {
+        apk.addRawEntry(zip, rawEntry);
+      }
+      digests.put(name, digest(contents));
+    }
+  }
+
+  /**
+   * Reads a zip that {@link RawZipFile} cannot, decompressing each entry so that it is compressed
+   * again for the APK.
+   */
+  private void addUnsupportedZipFile(File zipFile, boolean isJavaResources) throws IOException {
+    try (ZipFile zip = new ZipFile(zipFile)) {
+      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+        ZipEntry zipEntry = entries.nextElement();
+        String name = zipEntry.getName();
+        if (!shouldPackage(name, zipEntry.isDirectory(), isJavaResources)) {
+          continue;
+        }
+        checkForDuplicate(name, zipFile);
+
+        CustomZipEntry entry = new CustomZipEntry(name);
+        entry.setCompressionLevel(
+            zipEntry.getMethod() == ZipEntry.STORED && !entriesToCompress.contains(name) ?
+                Deflater.NO_COMPRESSION :
+                Deflater.BEST_COMPRESSION);
+        entry.setTime(zipEntry.getTime());
+        // The zip is closed before its entries are compressed, so read them now.
+        ByteSource contents;
+        try (InputStream stream = zip.getInputStream(zipEntry)) {
+          contents = ByteSource.wrap(ByteStreams.toByteArray(stream));
+        }
+        apk.addEntry(entry, contents);
+        digests.put(name, digest(contents));
+      }
+    }
+  }
+
+  /**
+   * Adds the files in {@code directory} and its subdirectories, named by their path relative to
+   * it, leaving out the ones that {@link ApkBuilder#addSourceFolder(File)} would.
+   */
+  void addSourceFolder(File directory) throws IOException {
+    addSourceFolder(directory, "");
+  }
+
+  private void addSourceFolder(File directory, String prefix) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException(directory + " is not a folder");
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isDirectory()) {
+        if (ApkBuilder.checkFolderForPackaging(name)) {
+          addSourceFolder(file, prefix + name + "/");
+        }
+      } else if (ApkBuilder.checkFileForPackaging(name)) {
+        addFile(file, prefix + name);
+      }
+    }
+  }
+
+  /**
+   * Adds the native libraries in the ABI subdirectories of {@code directory} under {@code lib/}.
+   *
+   * @param debugMode whether {@code gdbserver} is packaged as well.
+   */
+  void addNativeLibraries(File directory, boolean debugMode) throws IOException {
+    List<ApkBuilder.FileEntry> nativeFiles;
+    try {
+      nativeFiles = ApkBuilder.getNativeFiles(directory, debugMode);
+    } catch (ApkCreationException e) {
+      throw new IOException(e);
+    }
+    for (ApkBuilder.FileEntry nativeFile : nativeFiles) {
+      addFile(nativeFile.mFile, nativeFile.mPath);
+    }
+  }
+
+  /**
+   * Writes the files that sign the APK, which must come after every other entry.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      Map<String, HashCode> entryDigests = Maps.newLinkedHashMap();
+      for (Map.Entry<String, Future<HashCode>> digest : digests.entrySet()) {
+        entryDigests.put(digest.getKey(), getUninterruptibly(digest.getValue()));
+      }
+      Map<String, byte[]> signatureFiles;
+      try {
+        signatureFiles = signer.createSignatureFiles(entryDigests);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Cannot sign the APK.", e);
+      }
+      for (Map.Entry<String, byte[]> signatureFile : signatureFiles.entrySet()) {
+        CustomZipEntry entry = new CustomZipEntry(signatureFile.getKey());
+        entry.setCompressionLevel(Deflater.BEST_COMPRESSION);
+        apk.addEntry(entry, ByteSource.wrap(signatureFile.getValue()));
+      }
+      apk.close();
+    } finally {
+      // Should signing fail, the output still needs closing.
+      Closeables.close(apk, /* swallowIOException */ true);
+      for (Future<HashCode> digest : digests.values()) {
+        digest.cancel(/* mayInterruptIfRunning */ false);
+      }
+      for (Closeable input : inputs) {
+        Closeables.close(input, /* swallowIOException */ true);
+      }
+    }
+  }
+
+  private Future<HashCode> digest(final ByteSource contents) {
+    return executor.submit(new Callable<HashCode>() {
+      @Override
+      public HashCode call() throws IOException {
+        return contents.hash(Hashing.sha1());
+      }
+    });
+  }
+
+  private static HashCode getUninterruptibly(Future<HashCode> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while digesting an APK entry.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void checkForDuplicate(String name, File origin) {
+    File existing = origins.put(name, origin);
+    if (existing != null) {
+      throw new HumanReadableException(
+          String.format("Found duplicate file for APK: %1$s\nOrigin 1: %2$s\nOrigin 2: %3$s",
+              name, existing, origin));
+    }
+  }
+
+  private static boolean shouldPackage(String name, boolean isDirectory, boolean isJavaResources) {
+    if (isDirectory || name.startsWith(META_INF)) {
+      return false;
+    }
+    if (!isJavaResources) {
+      return true;
+    }
+    // Mirrors the filter that ApkBuilder applies to the resources of jars.
+    String[] segments = name.split("/");
+    for (int i = 0; i < segments.length - 1; i++) {
+      if (!ApkBuilder.checkFolderForPackaging(segments[i])) {
+        return false;
+      }
+    }
+    return ApkBuilder.checkFileForPackaging(segments[segments.length - 1]);
+  }
+}
@@ -19,30 +19,40 @@ package com.facebook.buck.android;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.util.ProjectFilesystem;
-import com.facebook.buck.util.XmlDomParser;
+import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * This {@link Step} takes in a {@link FilterResourcesStep} that provides a list of string resource
  * files (strings.xml), groups them by locales, and for each locale generates a file with all the
@@ -92,6 +102,13 @@ public class CompileStringsStep implements Step {
   static final Pattern R_DOT_TXT_STRING_RESOURCE_PATTERN = Pattern.compile(
       "^int (string|plurals|array) (\\w+) 0x([0-9a-f]+)$");
 
+  /**
+   * Like {@link com.facebook.buck.util.XmlDomParser}, this is not namespace aware, so that an
+   * element such as {@code <xliff:g>} is never mistaken for one of the resource elements. Factories
+   * are not guaranteed to be thread-safe, so readers are created while holding its lock.
+   */
+  private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
   private final ImmutableSet<Path> filteredStringFiles;
   private final Path rDotJavaSrcDir;
   private final Path destinationDir;
@@ -131,14 +148,16 @@ public class CompileStringsStep implements Step {
     }
 
     ImmutableMultimap<String, Path> filesByLocale = groupFilesByLocale(filteredStringFiles);
-    Map<String, StringResources> resourcesByLocale = Maps.newHashMap();
-    for (String locale : filesByLocale.keySet()) {
-      try {
-        resourcesByLocale.put(locale, compileStringFiles(filesystem, filesByLocale.get(locale)));
-      } catch (IOException e) {
-        context.logError(e, "Error parsing string file for locale: %s", locale);
-        return 1;
-      }
+    Map<String, StringResources> resourcesByLocale;
+    try {
+      resourcesByLocale = compileStringFilesByLocale(filesystem, filesByLocale);
+    } catch (LocaleException e) {
+      context.logError(e.getCause(), "Error parsing string file for locale: %s", e.locale);
+      return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      context.logError(e, "Interrupted while parsing string files.");
+      return 1;
     }
 
     // Merge region specific locale resources with the corresponding base locale resources.
@@ -235,6 +254,44 @@ public class CompileStringsStep implements Step {
     }
   }
 
+  /**
+   * Compiles the string files of each locale concurrently. The files of a locale are streamed one
+   * after another, in order, so a locale only ever holds the resources it has found so far.
+   */
+  private Map<String, StringResources> compileStringFilesByLocale(
+      final ProjectFilesystem filesystem,
+      final ImmutableMultimap<String, Path> filesByLocale)
+      throws LocaleException, InterruptedException {
+    Map<String, Future<StringResources>> compilations = Maps.newLinkedHashMap();
+    ExecutorService executor = MoreExecutors.newMultiThreadExecutor(
+        "compile-strings",
+        Math.max(1, Math.min(
+            filesByLocale.keySet().size(),
+            Runtime.getRuntime().availableProcessors())));
+    try {
+      for (final String locale : filesByLocale.keySet()) {
+        compilations.put(locale, executor.submit(new Callable<StringResources>() {
+          @Override
+          public StringResources call() throws IOException {
+            return compileStringFiles(filesystem, filesByLocale.get(locale));
+          }
+        }));
+      }
+
+      Map<String, StringResources> resourcesByLocale = Maps.newHashMap();
+      for (Map.Entry<String, Future<StringResources>> compilation : compilations.entrySet()) {
+        try {
+          resourcesByLocale.put(compilation.getKey(), compilation.getValue().get());
+        } catch (ExecutionException e) {
+          throw new LocaleException(compilation.getKey(), e.getCause());
+        }
+      }
+      return resourcesByLocale;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private StringResources compileStringFiles(
       ProjectFilesystem filesystem,
       Collection<Path> filepaths) throws IOException {
@@ -243,101 +300,154 @@ public class CompileStringsStep implements Step {
     TreeMultimap<Integer, String> arraysMap = TreeMultimap.create();
 
     for (Path stringFilePath : filepaths) {
-      Document dom = XmlDomParser.parse(filesystem.getFileForRelativePath(stringFilePath));
-
-      NodeList stringNodes = dom.getElementsByTagName("string");
-      scrapeStringNodes(stringNodes, stringsMap);
-
-      NodeList pluralNodes = dom.getElementsByTagName("plurals");
-      scrapePluralsNodes(pluralNodes, pluralsMap);
-
-      NodeList arrayNodes = dom.getElementsByTagName("string-array");
-      scrapeStringArrayNodes(arrayNodes, arraysMap);
+      try (InputStream stream = new BufferedInputStream(
+          new FileInputStream(filesystem.getFileForRelativePath(stringFilePath)))) {
+        scrapeResources(stream, stringsMap, pluralsMap, arraysMap);
+      }
     }
 
     return new StringResources(stringsMap, pluralsMap, arraysMap);
   }
 
-
   /**
-   * Scrapes string resource names and values from the list of xml nodes passed and populates
-   * {@code stringsMap}, ignoring resource names that are already present in the map.
+   * Streams the {@code <string>}, {@code <plurals>} and {@code <string-array>} elements of a
+   * strings.xml file into the maps passed, ignoring resource names that R.txt does not contain, or
+   * that are already present in the maps. The value of a resource is all of the text inside its
+   * element, including that of nested elements such as {@code <xliff:g>}.
    *
-   * @param stringNodes A list of {@code <string></string>} nodes.
-   * @param stringsMap Map from string resource name to its value.
+   * @param stringsMap Map from string resource id to its value.
+   * @param pluralsMap Map from plurals resource id to its value for each quantity.
+   * @param arraysMap Multimap from string array resource id to its values.
    */
   @VisibleForTesting
-  void scrapeStringNodes(NodeList stringNodes, Map<Integer, String> stringsMap) {
-    for (int i = 0; i < stringNodes.getLength(); ++i) {
-      Node node = stringNodes.item(i);
-      String resourceName = node.getAttributes().getNamedItem("name").getNodeValue();
-      if (!resourceNameToIdMap.containsKey(resourceName)) {
-        continue;
-      }
-      int resourceId = resourceNameToIdMap.get(resourceName);
-      // Ignore a resource if it has already been found.
-      if (!stringsMap.containsKey(resourceId)) {
-        stringsMap.put(resourceId, node.getTextContent());
+  void scrapeResources(
+      InputStream xml,
+      Map<Integer, String> stringsMap,
+      Map<Integer, ImmutableMap<String, String>> pluralsMap,
+      Multimap<Integer, String> arraysMap) throws IOException {
+    XMLStreamReader reader;
+    try {
+      synchronized (XML_INPUT_FACTORY) {
+        reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
       }
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
     }
-  }
-
-  /**
-   * Similar to {@code scrapeStringNodes}, but for plurals nodes.
-   */
-  @VisibleForTesting
-  void scrapePluralsNodes(
-      NodeList pluralNodes,
-      Map<Integer, ImmutableMap<String, String>> pluralsMap) {
-
-    for (int i = 0; i < pluralNodes.getLength(); ++i) {
-      Node node = pluralNodes.item(i);
-      String resourceName = node.getAttributes().getNamedItem("name").getNodeValue();
-      if (!resourceNameToIdMap.containsKey(resourceName)) {
-        continue;
-      }
-      int resourceId = resourceNameToIdMap.get(resourceName);
 
-      // Ignore a resource if it has already been found.
-      if (pluralsMap.containsKey(resourceId)) {
-        continue;
+    try {
+      // How deep in the document we are, and how deep the element of the resource is.
+      int depth = 0;
+      int resourceDepth = 0;
+
+      // The resource whose element we are in, if any, and the values found in it so far.
+      Integer resourceId = null;
+      String resourceType = null;
+      ImmutableMap.Builder<String, String> quantityToString = null;
+      List<String> arrayValues = null;
+
+      // The text of the string or item element we are in, if any, and how deep that element is.
+      StringBuilder text = null;
+      String quantity = null;
+      int textDepth = 0;
+
+      while (reader.hasNext()) {
+        switch (reader.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            String elementName = reader.getLocalName();
+            if (text != null) {
+              // The text of nested elements is part of the value.
+              break;
+            }
+            if (resourceType == null) {
+              Optional<Integer> id = getResourceId(reader.getAttributeValue(null, "name"));
+              if (elementName.equals("string")) {
+                if (id.isPresent() && !stringsMap.containsKey(id.get())) {
+                  resourceId = id.get();
+                  resourceType = elementName;
+                  resourceDepth = depth;
+                  text = new StringBuilder();
+                  textDepth = depth;
+                }
+              } else if (elementName.equals("plurals")) {
+                if (id.isPresent() && !pluralsMap.containsKey(id.get())) {
+                  resourceId = id.get();
+                  resourceType = elementName;
+                  resourceDepth = depth;
+                  quantityToString = ImmutableMap.builder();
+                }
+              } else if (elementName.equals("string-array")) {
+                if (id.isPresent() && !arraysMap.containsKey(id.get())) {
+                  resourceId = id.get();
+                  resourceType = elementName;
+                  resourceDepth = depth;
+                  arrayValues = Lists.newArrayList();
+                }
+              }
+            } else if (elementName.equals("item")) {
+              quantity = reader.getAttributeValue(null, "quantity");
+              text = new StringBuilder();
+              textDepth = depth;
+            }
+            break;
+
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            if (text != null) {
+              text.append(reader.getText());
+            }
+            break;
+
+          case XMLStreamConstants.END_ELEMENT:
+            depth--;
+            if (text != null) {
+              if (depth >= textDepth) {
+                break;
+              }
+              if (resourceType.equals("string")) {
+                stringsMap.put(resourceId, text.toString());
+                resourceType = null;
+              } else if (resourceType.equals("plurals")) {
+                quantityToString.put(quantity, text.toString());
+              } else {
+                arrayValues.add(text.toString());
+              }
+              text = null;
+            } else if (resourceType != null && depth < resourceDepth) {
+              if (resourceType.equals("plurals")) {
+                pluralsMap.put(resourceId, quantityToString.build());
+              } else {
+                arraysMap.putAll(resourceId, arrayValues);
+              }
+              resourceType = null;
+            }
+            break;
+
+          default:
+            break;
+        }
       }
-      ImmutableMap.Builder<String, String> quantityToStringBuilder = ImmutableMap.builder();
-
-      NodeList itemNodes = ((Element) node).getElementsByTagName("item");
-      for (int j = 0; j < itemNodes.getLength(); ++j) {
-        Node itemNode = itemNodes.item(j);
-        String quantity = itemNode.getAttributes().getNamedItem("quantity").getNodeValue();
-        quantityToStringBuilder.put(quantity, itemNode.getTextContent());
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException e) {
+        // The stream itself is closed by the caller.
       }
-      pluralsMap.put(resourceId, quantityToStringBuilder.build());
     }
   }
 
-  /**
-   * Similar to {@code scrapeStringNodes}, but for string array nodes.
-   */
-  @VisibleForTesting
-  void scrapeStringArrayNodes(NodeList arrayNodes, Multimap<Integer, String> arraysMap) {
-    for (int i = 0; i < arrayNodes.getLength(); ++i) {
-      Node node = arrayNodes.item(i);
-      String resourceName = node.getAttributes().getNamedItem("name").getNodeValue();
-      // Ignore a resource if R.txt does not contain an entry for it.
-      if (!resourceNameToIdMap.containsKey(resourceName)) {
-        continue;
-      }
-
-      int resourceId = resourceNameToIdMap.get(resourceName);
-      // Ignore a resource if it has already been found.
-      if (arraysMap.containsKey(resourceId)) {
-        continue;
-      }
+  private Optional<Integer> getResourceId(@Nullable String resourceName) {
+    return Optional.fromNullable(resourceNameToIdMap.get(resourceName));
+  }
 
-      NodeList itemNodes = ((Element) node).getElementsByTagName("item");
-      for (int j = 0; j < itemNodes.getLength(); ++j) {
-        arraysMap.put(resourceId, itemNodes.item(j).getTextContent());
-      }
-    }
+  private static XMLInputFactory createXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
   }
 
   /**
@@ -348,6 +458,17 @@ public class CompileStringsStep implements Step {
     resourceNameToIdMap.putAll(nameToIdMap);
   }
 
+  /** A failure to compile the string files of a locale. */
+  @SuppressWarnings("serial")
+  private static class LocaleException extends Exception {
+    private final String locale;
+
+    private LocaleException(String locale, Throwable cause) {
+      super(cause);
+      this.locale = locale;
+    }
+  }
+
   @Override
   public String getShortName() {
     return "compile_strings";
@@ -38,6 +38,7 @@ import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.step.fs.MkdirStep;
 import com.facebook.buck.step.fs.WriteFileStep;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
@@ -94,7 +95,6 @@ public class DummyRDotJava extends AbstractBuildRule
       final BuildableContext buildableContext) {
     ImmutableList.Builder<Step> steps = ImmutableList.builder();
     final Path rDotJavaSrcFolder = getRDotJavaSrcFolder(getBuildTarget());
-    steps.add(new MakeCleanDirectoryStep(rDotJavaSrcFolder));
 
     // Generate the .java files and record where they will be written in javaSourceFilePaths.
     Set<SourcePath> javaSourceFilePaths = Sets.newHashSet();
@@ -108,11 +108,15 @@ public class DummyRDotJava extends AbstractBuildRule
       String rDotJavaPackage = "com.facebook";
       String javaCode = MergeAndroidResourcesStep.generateJavaCodeForPackageWithoutResources(
           rDotJavaPackage);
+      steps.add(new MakeCleanDirectoryStep(rDotJavaSrcFolder));
       steps.add(new MakeCleanDirectoryStep(rDotJavaSrcFolder.resolve("com/facebook")));
       Path rDotJavaFile = rDotJavaSrcFolder.resolve("com/facebook/R.java");
       steps.add(new WriteFileStep(javaCode, rDotJavaFile));
       javaSourceFilePaths.add(new PathSourcePath(rDotJavaFile));
     } else {
+      // The R.java files of the previous build are kept, so that MergeAndroidResourcesStep only
+      // writes again those that change.
+      steps.add(new MkdirStep(rDotJavaSrcFolder));
       Map<Path, String> symbolsFileToRDotJavaPackage = Maps.newHashMap();
       for (HasAndroidResourceDeps res : androidResourceDeps) {
         String rDotJavaPackage = res.getRDotJavaPackage();
@@ -121,8 +125,10 @@ public class DummyRDotJava extends AbstractBuildRule
             rDotJavaSrcFolder, rDotJavaPackage);
         javaSourceFilePaths.add(new PathSourcePath(rDotJavaFilePath));
       }
-      steps.add(new MergeAndroidResourcesStep(symbolsFileToRDotJavaPackage,
-          rDotJavaSrcFolder));
+      steps.add(new MergeAndroidResourcesStep(
+          symbolsFileToRDotJavaPackage,
+          rDotJavaSrcFolder,
+          Optional.of(getPathToIdAssignment(getBuildTarget()))));
     }
 
     // Clear out the directory where the .class files will be generated.
@@ -172,6 +178,10 @@ public class DummyRDotJava extends AbstractBuildRule
     return BuildTargets.getBinPath(buildTarget, "__%s_rdotjava_src__");
   }
 
+  private static Path getPathToIdAssignment(BuildTarget buildTarget) {
+    return BuildTargets.getBinPath(buildTarget, "__%s_rdotjava_ids__").resolve("ids.txt");
+  }
+
   private static Path getRDotJavaBinFolder(BuildTarget buildTarget) {
     return BuildTargets.getBinPath(buildTarget, "__%s_rdotjava_bin__");
   }
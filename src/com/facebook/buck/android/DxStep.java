@@ -16,12 +16,14 @@
 
 package com.facebook.buck.android;
 
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.AndroidPlatformTarget;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.Verbosity;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
@@ -38,6 +40,8 @@ import javax.annotation.CheckForNull;
 
 public class DxStep extends ShellStep {
 
+  private static final Logger LOG = Logger.get(DxStep.class);
+
   /**
    */
   public static final String XMX_OVERRIDE =
@@ -58,8 +62,9 @@ public class DxStep extends ShellStep {
     USE_CUSTOM_DX_IF_AVAILABLE,
 
     /**
-     * Execute DX in-process instead of fork/execing.
-     * This only works with custom dx.
+     * Execute DX in-process instead of fork/execing, on the {@link InProcessDxPool} shared by every
+     * step. This only works with custom dx, and falls back to fork/execing when the dx that is
+     * bundled with Buck is not safe to run in-process.
      */
     RUN_IN_PROCESS,
     ;
@@ -77,6 +82,7 @@ public class DxStep extends ShellStep {
   private final Set<Path> filesToDex;
   private final Set<Option> options;
   private final Supplier<String> getPathToCustomDx;
+  private final InProcessDxPool inProcessDxPool;
 
   /**
    * @param outputDexFile path to the file where the generated classes.dex should go.
@@ -100,10 +106,17 @@ public class DxStep extends ShellStep {
   @VisibleForTesting
   DxStep(Path outputDexFile, Iterable<Path> filesToDex, EnumSet<Option> options,
       Supplier<String> getPathToCustomDx) {
+    this(outputDexFile, filesToDex, options, getPathToCustomDx, InProcessDxPool.getInstance());
+  }
+
+  @VisibleForTesting
+  DxStep(Path outputDexFile, Iterable<Path> filesToDex, EnumSet<Option> options,
+      Supplier<String> getPathToCustomDx, InProcessDxPool inProcessDxPool) {
     this.outputDexFile = Preconditions.checkNotNull(outputDexFile);
     this.filesToDex = ImmutableSet.copyOf(filesToDex);
     this.options = Sets.immutableEnumSet(options);
     this.getPathToCustomDx = Preconditions.checkNotNull(getPathToCustomDx);
+    this.inProcessDxPool = Preconditions.checkNotNull(inProcessDxPool);
 
     Preconditions.checkArgument(
         !options.contains(Option.RUN_IN_PROCESS) ||
@@ -169,21 +182,28 @@ public class DxStep extends ShellStep {
     }
   }
 
-  private int executeInProcess(ExecutionContext context) {
+  private int executeInProcess(ExecutionContext context) throws InterruptedException {
     ImmutableList<String> argv = getShellCommandInternal(context);
 
     // The first arguments should be ".../dx --dex".  Strip them off
     // because we bypass the dispatcher and go straight to the dexer.
-    Preconditions.checkState(argv.get(0).endsWith("/dx"));
     Preconditions.checkState(argv.get(1).equals("--dex"));
     ImmutableList<String> args = argv.subList(2, argv.size());
 
+    // A custom dx that is not the dx script may not be the dx that is bundled with Buck, which is
+    // the one that would run here.
+    Optional<String> reasonNotToRunInProcess = argv.get(0).endsWith("/dx") ?
+        inProcessDxPool.getReasonNotToRunInProcess() :
+        Optional.of(argv.get(0) + " is not dx");
+    if (reasonNotToRunInProcess.isPresent()) {
+      LOG.debug(
+          "Running dx as a subprocess, as it cannot run in-process: %s",
+          reasonNotToRunInProcess.get());
+      return super.execute(context);
+    }
+
     try {
-      return new com.android.dx.command.dexer.Main().run(
-          args.toArray(new String[args.size()]),
-          context.getStdOut(),
-          context.getStdErr()
-      );
+      return inProcessDxPool.run(args, context.getStdOut(), context.getStdErr());
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
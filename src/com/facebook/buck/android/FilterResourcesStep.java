@@ -28,10 +28,13 @@ import com.facebook.buck.util.Filters.Density;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -47,6 +50,10 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -148,8 +155,25 @@ public class FilterResourcesStep implements Step {
       Set<Path> drawables = drawableFinder.findDrawables(
           inResDirToOutResDirMap.keySet(),
           context.getProjectFilesystem());
-      pathPredicates.add(
-          Filters.createImageDensityFilter(drawables, targetDensities, canDownscale));
+      if (canDownscale) {
+        // Only drop the higher densities of the drawables that can be scaled down to the target.
+        Set<Path> scalableDrawables = Sets.newHashSet();
+        for (Path drawable : drawables) {
+          if (imageScaler.canScale(drawable, context)) {
+            scalableDrawables.add(drawable);
+          }
+        }
+        pathPredicates.add(
+            Filters.createImageDensityFilter(scalableDrawables, targetDensities, true));
+        pathPredicates.add(
+            Filters.createImageDensityFilter(
+                Sets.difference(drawables, scalableDrawables),
+                targetDensities,
+                false));
+      } else {
+        pathPredicates.add(
+            Filters.createImageDensityFilter(drawables, targetDensities, false));
+      }
     }
 
     if (filterStrings) {
@@ -203,7 +227,7 @@ public class FilterResourcesStep implements Step {
    * Any drawables found by this step didn't have equivalents in the target density. If they are of
    * a higher density, we can replicate what Android does and downscale them at compile-time.
    */
-  private void scaleUnmatchedDrawables(ExecutionContext context)
+  private void scaleUnmatchedDrawables(final ExecutionContext context)
       throws IOException, InterruptedException {
     ProjectFilesystem filesystem = context.getProjectFilesystem();
     Filters.Density targetDensity = Filters.Density.ORDERING.max(targetDensities);
@@ -212,11 +236,17 @@ public class FilterResourcesStep implements Step {
     Collection<Path> drawables = drawableFinder.findDrawables(
         inResDirToOutResDirMap.values(),
         context.getProjectFilesystem());
-    for (Path drawable : drawables) {
+    List<Path> scaledDrawables = Lists.newArrayList();
+    List<Callable<Void>> scalings = Lists.newArrayList();
+    for (final Path drawable : drawables) {
       if (drawable.toString().endsWith(".9.png")) {
         // Skip nine-patch for now.
         continue;
       }
+      if (!imageScaler.canScale(drawable, context)) {
+        // Its higher densities were kept instead.
+        continue;
+      }
 
       Filters.Qualifiers qualifiers = new Filters.Qualifiers(drawable);
       Filters.Density density = qualifiers.density;
@@ -227,31 +257,55 @@ public class FilterResourcesStep implements Step {
         // Replace density qualifier with target density using regular expression to match
         // the qualifier in the context of a path to a drawable.
         String fromDensity = (density == Density.NO_QUALIFIER ? "" : "-") + density.toString();
-        Path destination = Paths.get(drawable.toString().replaceFirst(
+        final Path destination = Paths.get(drawable.toString().replaceFirst(
             "((?:^|/)drawable[^/]*)" + Pattern.quote(fromDensity) + "(-|$|/)",
             "$1-" + targetDensity + "$2"));
 
-        double factor = targetDensity.value() / density.value();
+        final double factor = targetDensity.value() / density.value();
         if (factor >= 1.0) {
           // There is no point in up-scaling, or converting between drawable and drawable-mdpi.
           continue;
         }
 
-        // Make sure destination folder exists and perform downscaling.
+        // Make sure destination folder exists, and downscale once every folder exists.
         filesystem.createParentDirs(destination);
-        imageScaler.scale(factor, drawable, destination, context);
+        scaledDrawables.add(drawable);
+        scalings.add(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            imageScaler.scale(factor, drawable, destination, context);
+            return null;
+          }
+        });
+      }
+    }
 
-        // Delete source file.
-        if (!filesystem.deleteFileAtPath(drawable)) {
-          throw new HumanReadableException("Cannot delete file: " + drawable);
-        }
+    // Each drawable is scaled independently of the others, so scale them concurrently.
+    ExecutorService executor = MoreExecutors.newMultiThreadExecutor(
+        "image-scaler",
+        Runtime.getRuntime().availableProcessors());
+    try {
+      for (Future<Void> scaling : executor.invokeAll(scalings)) {
+        scaling.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    imageScaler.finishScaling(context);
 
-        // Delete newly-empty directories to prevent missing resources errors in apkbuilder.
-        Path parent = drawable.getParent();
-        if (filesystem.listFiles(parent).length == 0 && !filesystem.deleteFileAtPath(parent)) {
-          throw new HumanReadableException("Cannot delete directory: " + parent);
-        }
+    for (Path drawable : scaledDrawables) {
+      // Delete source file.
+      if (!filesystem.deleteFileAtPath(drawable)) {
+        throw new HumanReadableException("Cannot delete file: " + drawable);
+      }
 
+      // Delete newly-empty directories to prevent missing resources errors in apkbuilder.
+      Path parent = drawable.getParent();
+      if (filesystem.listFiles(parent).length == 0 && !filesystem.deleteFileAtPath(parent)) {
+        throw new HumanReadableException("Cannot delete directory: " + parent);
       }
     }
   }
@@ -290,10 +344,25 @@ public class FilterResourcesStep implements Step {
     }
   }
 
+  /**
+   * Scales images. {@link #scale} is called concurrently for different images, so implementations
+   * must be thread-safe.
+   */
   public interface ImageScaler {
     public boolean isAvailable(ExecutionContext context) throws InterruptedException;
+
+    /**
+     * @return whether {@code drawable} can be scaled, which is only asked of an available scaler.
+     */
+    public boolean canScale(Path drawable, ExecutionContext context) throws InterruptedException;
+
     public void scale(double factor, Path source, Path destination, ExecutionContext context)
         throws InterruptedException;
+
+    /**
+     * Called once all the images of a step have been scaled.
+     */
+    public void finishScaling(ExecutionContext context) throws IOException;
   }
 
   /**
@@ -328,6 +397,11 @@ public class FilterResourcesStep implements Step {
       return 0 == new BashStep("which convert").execute(getContextWithSilentConsole(context));
     }
 
+    @Override
+    public boolean canScale(Path drawable, ExecutionContext context) {
+      return true;
+    }
+
     @Override
     public void scale(double factor, Path source, Path destination, ExecutionContext context)
         throws InterruptedException {
@@ -341,6 +415,11 @@ public class FilterResourcesStep implements Step {
         throw new HumanReadableException("Cannot scale " + source + " to " + destination);
       }
     }
+
+    @Override
+    public void finishScaling(ExecutionContext context) {
+      // Nothing is kept between scalings.
+    }
   }
 
   /**
@@ -403,6 +482,7 @@ public class FilterResourcesStep implements Step {
     private ResourceFilter resourceFilter;
     private boolean filterStrings = false;
     private ImmutableSet<Path> whitelistedStringDirs = ImmutableSet.of();
+    private Optional<Path> scaledDrawablesCacheDir = Optional.absent();
 
     private Builder() {
     }
@@ -427,6 +507,15 @@ public class FilterResourcesStep implements Step {
       return this;
     }
 
+    /**
+     * @param scaledDrawablesCacheDir where downscaled drawables are kept between builds, so that
+     *     unchanged drawables are not scaled again.
+     */
+    public Builder setScaledDrawablesCacheDir(Path scaledDrawablesCacheDir) {
+      this.scaledDrawablesCacheDir = Optional.of(scaledDrawablesCacheDir);
+      return this;
+    }
+
     public FilterResourcesStep build() {
       return new FilterResourcesStep(
           inResDirToOutResDirMap,
@@ -436,7 +525,9 @@ public class FilterResourcesStep implements Step {
           DefaultFilteredDirectoryCopier.getInstance(),
           resourceFilter.getDensities(),
           DefaultDrawableFinder.getInstance(),
-          resourceFilter.shouldDownscale() ? ImageMagickScaler.getInstance() : null);
+          resourceFilter.shouldDownscale() ?
+              new ImageIOScaler(scaledDrawablesCacheDir, ImageMagickScaler.getInstance()) :
+              null);
     }
   }
 }
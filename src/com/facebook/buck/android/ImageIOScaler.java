@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.android.FilterResourcesStep.ImageScaler;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+
+/**
+ * Implementation of {@link ImageScaler} that scales images within the JVM with
+ * {@link javax.imageio.ImageIO}, so that drawables can be scaled concurrently without starting a
+ * process for each of them. Images in a format that {@link javax.imageio.ImageIO} cannot read or
+ * write, such as WebP, are handed to a fallback {@link ImageScaler}, and are only scaled if it is
+ * available.
+ * <p>
+ * Scaled images are kept in a cache directory, keyed by the contents of the source image and the
+ * factor, so that a drawable that has not changed is not scaled again by the next build. The images
+ * that a build did not use are deleted from it once the build has scaled all of its drawables.
+ */
+public class ImageIOScaler implements ImageScaler {
+
+  /** Change this whenever the way that images are scaled changes. */
+  private static final String SCALER_VERSION = "2";
+
+  /** The {@link javax.imageio.ImageIO} format names that images are written in, by extension. */
+  private static final ImmutableMap<String, String> FORMATS_BY_EXTENSION = ImmutableMap.of(
+      "png", "png",
+      "jpg", "jpeg",
+      "jpeg", "jpeg",
+      "gif", "gif");
+
+  private final Optional<Path> cacheDir;
+  private final ImageScaler fallback;
+  private final Set<Path> usedCacheEntries = Sets.newConcurrentHashSet();
+  @Nullable
+  private Boolean isFallbackAvailable;
+
+  /**
+   * @param cacheDir where scaled images are kept between builds, relative to the project root.
+   * @param fallback scales the images that {@link javax.imageio.ImageIO} cannot.
+   */
+  public ImageIOScaler(Optional<Path> cacheDir, ImageScaler fallback) {
+    this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.fallback = Preconditions.checkNotNull(fallback);
+  }
+
+  /**
+   * @return true, as {@link javax.imageio.ImageIO} is always there to scale PNG, JPEG and GIF
+   *     images. Whether other images can be scaled is up to {@link #canScale}.
+   */
+  @Override
+  public boolean isAvailable(ExecutionContext context) {
+    return true;
+  }
+
+  @Override
+  public boolean canScale(Path drawable, ExecutionContext context) throws InterruptedException {
+    return FORMATS_BY_EXTENSION.containsKey(getExtension(drawable)) ||
+        (isFallbackAvailable(context) && fallback.canScale(drawable, context));
+  }
+
+  private synchronized boolean isFallbackAvailable(ExecutionContext context)
+      throws InterruptedException {
+    // Asking may start a process, so ask once for every drawable.
+    if (isFallbackAvailable == null) {
+      isFallbackAvailable = fallback.isAvailable(context);
+    }
+    return isFallbackAvailable;
+  }
+
+  private static String getExtension(Path image) {
+    return com.google.common.io.Files.getFileExtension(image.toString()).toLowerCase(Locale.US);
+  }
+
+  @Override
+  public void scale(double factor, Path source, Path destination, ExecutionContext context)
+      throws InterruptedException {
+    Preconditions.checkArgument(factor > 0.0 && factor < 1.0);
+    String extension = getExtension(source);
+    String formatName = FORMATS_BY_EXTENSION.get(extension);
+    if (formatName == null) {
+      fallback.scale(factor, source, destination, context);
+      return;
+    }
+
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    Path absoluteSource = filesystem.resolve(source);
+    Path absoluteDestination = filesystem.resolve(destination);
+    try {
+      Optional<Path> cached = Optional.absent();
+      if (cacheDir.isPresent()) {
+        cached = Optional.of(filesystem.resolve(cacheDir.get()).resolve(
+            getCacheKey(absoluteSource, factor) + "." + extension));
+        usedCacheEntries.add(cached.get());
+        if (Files.isRegularFile(cached.get())) {
+          Files.copy(cached.get(), absoluteDestination, StandardCopyOption.REPLACE_EXISTING);
+          return;
+        }
+      }
+
+      BufferedImage image = ImageIO.read(absoluteSource.toFile());
+      if (image == null) {
+        // There is no reader for this image, even though its extension is one we know.
+        fallback.scale(factor, source, destination, context);
+        return;
+      }
+      if (!ImageIO.write(scale(image, factor), formatName, absoluteDestination.toFile())) {
+        throw new HumanReadableException("Cannot scale " + source + " to " + destination);
+      }
+
+      if (cached.isPresent()) {
+        // Another thread may be scaling an identical image, so write the cached copy atomically.
+        Files.createDirectories(cached.get().getParent());
+        Path temp = Files.createTempFile(cached.get().getParent(), "scaled", ".tmp");
+        Files.copy(absoluteDestination, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(
+            temp,
+            cached.get(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+    } catch (IOException e) {
+      throw new HumanReadableException(
+          e,
+          "Cannot scale %s to %s: %s",
+          source,
+          destination,
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the scaled images in the cache directory that were not used since the last call, so
+   * that it only keeps the images of the drawables that the latest build scaled.
+   */
+  @Override
+  public void finishScaling(ExecutionContext context) throws IOException {
+    fallback.finishScaling(context);
+    if (!cacheDir.isPresent()) {
+      return;
+    }
+    Path absoluteCacheDir = context.getProjectFilesystem().resolve(cacheDir.get());
+    if (Files.isDirectory(absoluteCacheDir)) {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(absoluteCacheDir)) {
+        for (Path entry : entries) {
+          if (!usedCacheEntries.contains(entry)) {
+            Files.deleteIfExists(entry);
+          }
+        }
+      }
+    }
+    usedCacheEntries.clear();
+  }
+
+  private static String getCacheKey(Path source, double factor) throws IOException {
+    HashCode hash = Hashing.sha1().newHasher()
+        .putString(SCALER_VERSION, Charsets.UTF_8)
+        .putDouble(factor)
+        .putBytes(Files.readAllBytes(source))
+        .hash();
+    return hash.toString();
+  }
+
+  /**
+   * Scales {@code image} by {@code factor}, halving it with bilinear interpolation until the last
+   * step is at most a halving, which is close to averaging every source pixel into the result. The
+   * result has the type of {@code image}, so that, for example, a grayscale or palette PNG is not
+   * written as a larger true-color one.
+   */
+  @VisibleForTesting
+  static BufferedImage scale(BufferedImage image, double factor) {
+    int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * factor));
+    int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * factor));
+    // JPEG cannot store an alpha channel, so only keep one if the source has it.
+    int type = image.getColorModel().hasAlpha() ?
+        BufferedImage.TYPE_INT_ARGB :
+        BufferedImage.TYPE_INT_RGB;
+
+    BufferedImage scaled = image;
+    int width = image.getWidth();
+    int height = image.getHeight();
+    do {
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      BufferedImage step = new BufferedImage(width, height, type);
+      Graphics2D graphics = step.createGraphics();
+      try {
+        graphics.setRenderingHint(
+            RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(
+            RenderingHints.KEY_RENDERING,
+            RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(scaled, 0, 0, width, height, null);
+      } finally {
+        graphics.dispose();
+      }
+      scaled = step;
+    } while (width != targetWidth || height != targetHeight);
+    return convertToTypeOf(image, scaled);
+  }
+
+  private static BufferedImage convertToTypeOf(BufferedImage source, BufferedImage image) {
+    int type = source.getType();
+    if (type == image.getType() || type == BufferedImage.TYPE_CUSTOM) {
+      return image;
+    }
+    BufferedImage converted;
+    if (source.getColorModel() instanceof IndexColorModel) {
+      // Keep the palette of the source rather than the default one of the type.
+      converted = new BufferedImage(
+          image.getWidth(),
+          image.getHeight(),
+          type,
+          (IndexColorModel) source.getColorModel());
+    } else {
+      converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+    }
+    Graphics2D graphics = converted.createGraphics();
+    try {
+      // Replace, rather than blend with, the pixels of the new image, so that transparent pixels
+      // map to a transparent color of the palette.
+      graphics.setComposite(AlphaComposite.Src);
+      graphics.drawImage(image, 0, 0, null);
+    } finally {
+      graphics.dispose();
+    }
+    return converted;
+  }
+}
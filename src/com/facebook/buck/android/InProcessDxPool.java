@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Runs {@code dx --dex} in this process for every {@link DxStep} that asks to, at most a fixed
+ * number of runs at once, so that hundreds of dx invocations in a build neither pay for a JVM each
+ * nor hold more dx heaps than there are cores to use them.
+ * <p>
+ * Each run gets its own {@code Main}, whose console is its own rather than {@code System.out} and
+ * {@code System.err}, on a thread of the pool. What remains shared between runs is the static state
+ * that {@code tools/dxanalysis} reports, which is only safe to share in the dx build that
+ * {@code in-process-rationale.txt} audits. So before running dx here for the first time, the pool
+ * checks that the dx on the classpath is that build, and {@link DxStep} runs dx as a subprocess
+ * otherwise.
+ */
+class InProcessDxPool {
+
+  private static final String DEXER_MAIN = "com.android.dx.command.dexer.Main";
+  private static final String REGISTER_SPEC = "com.android.dx.rop.code.RegisterSpec";
+
+  private static final Supplier<InProcessDxPool> INSTANCE = Suppliers.memoize(
+      new Supplier<InProcessDxPool>() {
+        @Override
+        public InProcessDxPool get() {
+          return new InProcessDxPool(Runtime.getRuntime().availableProcessors());
+        }
+      });
+
+  private final ExecutorService executor;
+  private final Supplier<Optional<String>> reasonNotToRunInProcess = Suppliers.memoize(
+      new Supplier<Optional<String>>() {
+        @Override
+        public Optional<String> get() {
+          return checkStaticState();
+        }
+      });
+
+  @VisibleForTesting
+  InProcessDxPool(int maxConcurrentRuns) {
+    Preconditions.checkArgument(maxConcurrentRuns > 0);
+    // The threads are daemons, so that the pool never needs to be shut down.
+    this.executor = com.google.common.util.concurrent.MoreExecutors.getExitingExecutorService(
+        (ThreadPoolExecutor) MoreExecutors.newMultiThreadExecutor("dx", maxConcurrentRuns));
+  }
+
+  /**
+   * @return the pool shared by every {@link DxStep} in this process.
+   */
+  public static InProcessDxPool getInstance() {
+    return INSTANCE.get();
+  }
+
+  /**
+   * @return why dx must not run in this process, or absent if it may.
+   */
+  public Optional<String> getReasonNotToRunInProcess() {
+    return reasonNotToRunInProcess.get();
+  }
+
+  /**
+   * Runs {@code dx --dex} with {@code args}, waiting for a thread of the pool if they are all busy.
+   *
+   * @return the exit code of dx.
+   */
+  public int run(final ImmutableList<String> args, final PrintStream out, final PrintStream err)
+      throws IOException, InterruptedException {
+    Preconditions.checkState(!getReasonNotToRunInProcess().isPresent());
+    Future<Integer> result = executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws IOException {
+        return new com.android.dx.command.dexer.Main().run(
+            args.toArray(new String[args.size()]),
+            out,
+            err);
+      }
+    });
+
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      result.cancel(/* mayInterruptIfRunning */ true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Concurrent runs of dx are safe in the build of dx that Buck bundles because:
+   * <ul>
+   *   <li>its {@code Main} takes the console of a run as an argument, rather than from statics.
+   *   <li>the intern table of {@code RegisterSpec}, the one static that the analysis found unsafe
+   *       to share, is disabled.
+   * </ul>
+   * Everything else that the analysis reports is effectively immutable, or already thread-safe.
+   */
+  private static Optional<String> checkStaticState() {
+    try {
+      Method run = Class.forName(DEXER_MAIN)
+          .getMethod("run", String[].class, PrintStream.class, PrintStream.class);
+      if (Modifier.isStatic(run.getModifiers())) {
+        return Optional.of("the dexer takes its console from static state");
+      }
+
+      Field disableInterning = Class.forName(REGISTER_SPEC).getDeclaredField("DISABLE_INTERNING");
+      disableInterning.setAccessible(true);
+      if (!Modifier.isStatic(disableInterning.getModifiers()) ||
+          !disableInterning.getBoolean(null)) {
+        return Optional.of("RegisterSpec instances are interned in static state");
+      }
+    } catch (ReflectiveOperationException | SecurityException e) {
+      return Optional.of("it is not the audited build of dx: " + e);
+    }
+    return Optional.absent();
+  }
+}
@@ -22,28 +22,40 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.util.MoreStrings;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.SortedSetMultimap;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
-import com.google.common.io.Files;
 
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,8 +63,16 @@ public class MergeAndroidResourcesStep implements Step {
 
   private static final Pattern TEXT_SYMBOLS_LINE = Pattern.compile("(\\S+) (\\S+) (\\S+) (.+)");
 
+  /**
+   * Symbols files parsed by previous merges in this process, by the hash of their contents, so that
+   * only the symbols files that changed since are parsed again.
+   */
+  private static final Cache<HashCode, ImmutableList<RDotTxtEntry>> PARSED_SYMBOLS_FILES =
+      CacheBuilder.newBuilder().softValues().build();
+
   private final ImmutableMap<Path, String> symbolsFileToRDotJavaPackage;
   private final Path pathToGeneratedJavaFiles;
+  private final Optional<Path> pathToIdAssignment;
 
   /**
    * Merges text symbols files from {@code aapt} into R.java files that can be compiled.
@@ -62,13 +82,18 @@ public class MergeAndroidResourcesStep implements Step {
    * @param pathToGeneratedJavaFiles the directory where the generated R.java files should be
    *     written. Admittedly, this command could write such files to a {@code /tmp} directory, but
    *     it is convenient to have the R.java files written to a known location for debugging. This
-   *     directory should exist and be empty before this command is run.
+   *     directory may hold the R.java files of a previous merge, in which case only those whose
+   *     contents change are written again, and those of packages that are gone are deleted.
+   * @param pathToIdAssignment if present, where the ids that resources are re-enumerated with are
+   *     kept between merges, so that a resource keeps its id as long as it exists.
    */
   public MergeAndroidResourcesStep(
       Map<Path, String> symbolsFileToRDotJavaPackage,
-      Path pathToGeneratedJavaFiles) {
+      Path pathToGeneratedJavaFiles,
+      Optional<Path> pathToIdAssignment) {
     this.symbolsFileToRDotJavaPackage = ImmutableMap.copyOf(symbolsFileToRDotJavaPackage);
     this.pathToGeneratedJavaFiles = Preconditions.checkNotNull(pathToGeneratedJavaFiles);
+    this.pathToIdAssignment = Preconditions.checkNotNull(pathToIdAssignment);
   }
 
   @Override
@@ -79,10 +104,14 @@ public class MergeAndroidResourcesStep implements Step {
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      e.printStackTrace(context.getStdErr());
+      return 1;
     }
   }
 
-  private void doExecute(ExecutionContext context) throws IOException {
+  private void doExecute(ExecutionContext context) throws IOException, InterruptedException {
     // A symbols file may look like:
     //
     //    int id placeholder 0x7f020000
@@ -112,15 +141,31 @@ public class MergeAndroidResourcesStep implements Step {
     // written without using final so that javac will not inline the values.  Unfortunately,
     // though Robolectric doesn't read resources.arsc, it does assert that all the R.java resource
     // ids are unique.  This forces us to re-enumerate new unique ids.
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    RDotJavaIdAssignment idAssignment = pathToIdAssignment.isPresent() ?
+        RDotJavaIdAssignment.load(filesystem, pathToIdAssignment.get()) :
+        RDotJavaIdAssignment.empty();
     SortedSetMultimap<String, RDotTxtEntry> rDotJavaPackageToResources = sortSymbols(
+        parseSymbolsFiles(symbolsFileToRDotJavaPackage.keySet(), filesystem),
         symbolsFileToRDotJavaPackage,
-        context.getProjectFilesystem(),
-        true /* reenumerate */);
+        Optional.of(idAssignment));
+
+    // Delete the R.java files of packages that the previous merge had, but this one does not.
+    Collection<Path> packageDirs = filesystem.getDirectoryContents(pathToGeneratedJavaFiles);
+    if (packageDirs != null) {
+      for (Path packageDir : packageDirs) {
+        String rDotJavaPackage = packageDir.getFileName().toString();
+        if (!rDotJavaPackageToResources.containsKey(rDotJavaPackage)) {
+          filesystem.rmdir(pathToGeneratedJavaFiles.resolve(rDotJavaPackage));
+        }
+      }
+    }
 
     // Create an R.java file for each package.
     for (String rDotJavaPackage : rDotJavaPackageToResources.keySet()) {
       // Create the content of R.java.
       SortedSet<RDotTxtEntry> resources = rDotJavaPackageToResources.get(rDotJavaPackage);
+      String javaCode = generateJavaCodeForPackageAndResources(rDotJavaPackage, resources);
 
       // Write R.java in the pathToGeneratedJavaFiles directory. Admittedly, this will be written
       // to /tmp/com.example.stuff/R.java rather than /tmp/com/example/stuff/R.java. It turns out
@@ -128,18 +173,17 @@ public class MergeAndroidResourcesStep implements Step {
 
       // Determine the path to R.java.
       Path pathToRDotJava = getOutputFilePath(pathToGeneratedJavaFiles, rDotJavaPackage);
-      File rDotJava = context.getProjectFilesystem().getFileForRelativePath(pathToRDotJava);
-
-      // Then write R.java to the output directory.
-      Files.createParentDirs(rDotJava);
 
-      try (BufferedWriter writer = Files.newWriter(rDotJava, Charsets.UTF_8)) {
-        writeJavaCodeForPackageAndResources(
-            new PrintWriter(writer),
-            rDotJavaPackage,
-            resources);
+      // Then write R.java to the output directory, unless the previous merge wrote the same one.
+      if (!javaCode.equals(filesystem.readFileIfItExists(pathToRDotJava).orNull())) {
+        filesystem.createParentDirs(pathToRDotJava);
+        filesystem.writeContentsToPath(javaCode, pathToRDotJava);
       }
     }
+
+    if (pathToIdAssignment.isPresent()) {
+      idAssignment.save(filesystem, pathToIdAssignment.get());
+    }
   }
 
   @VisibleForTesting
@@ -147,50 +191,123 @@ public class MergeAndroidResourcesStep implements Step {
       Map<Path, String> symbolsFileToRDotJavaPackage,
       ProjectFilesystem filesystem,
       boolean reenumerate) {
-    // If we're reenumerating, start at 0x7f01001 so that the resulting file is human readable.
-    // This value range (0x7f010001 - ...) is easier to spot as an actual resource id instead of
-    // other values in styleable which can be enumerated integers starting at 0.
-    IntEnumerator enumerator = reenumerate ? new IntEnumerator(0x7f01001) : null;
-    SortedSetMultimap<String, RDotTxtEntry> rDotJavaPackageToSymbolsFiles = TreeMultimap.create();
-    for (Map.Entry<Path, String> entry : symbolsFileToRDotJavaPackage.entrySet()) {
-      Path symbolsFile = entry.getKey();
-
-      // Read the symbols file and parse each line as a Resource.
-      List<String> linesInSymbolsFile;
+    ImmutableMap.Builder<Path, ImmutableList<RDotTxtEntry>> symbolsFileToEntries =
+        ImmutableMap.builder();
+    for (Path symbolsFile : symbolsFileToRDotJavaPackage.keySet()) {
       try {
-        linesInSymbolsFile = FluentIterable.from(filesystem.readLines(symbolsFile))
-            .filter(MoreStrings.NON_EMPTY)
-            .toList();
+        symbolsFileToEntries.put(symbolsFile, parseSymbolsFile(filesystem.readLines(symbolsFile)));
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
+    }
+    return sortSymbols(
+        symbolsFileToEntries.build(),
+        symbolsFileToRDotJavaPackage,
+        reenumerate ?
+            Optional.of(RDotJavaIdAssignment.empty()) :
+            Optional.<RDotJavaIdAssignment>absent());
+  }
 
+  /**
+   * @param idAssignment if present, the ids to re-enumerate app-level resources with.
+   */
+  private static SortedSetMultimap<String, RDotTxtEntry> sortSymbols(
+      Map<Path, ImmutableList<RDotTxtEntry>> symbolsFileToEntries,
+      Map<Path, String> symbolsFileToRDotJavaPackage,
+      Optional<RDotJavaIdAssignment> idAssignment) {
+    SortedSetMultimap<String, RDotTxtEntry> rDotJavaPackageToSymbolsFiles = TreeMultimap.create();
+    for (Map.Entry<Path, String> entry : symbolsFileToRDotJavaPackage.entrySet()) {
       String packageName = entry.getValue();
-      for (String line : linesInSymbolsFile) {
-        Matcher matcher = TEXT_SYMBOLS_LINE.matcher(line);
-        boolean isMatch = matcher.matches();
-        Preconditions.checkState(isMatch, "Should be able to match '%s'.", line);
-        String idType = matcher.group(1);
-        String type = matcher.group(2);
-        String name = matcher.group(3);
-        String idValue = matcher.group(4);
-
+      for (RDotTxtEntry resource : symbolsFileToEntries.get(entry.getKey())) {
         // We're only doing the remapping so Roboelectric is happy and it is already ignoring the
         // id references found in the styleable section.  So let's do that as well so we don't have
         // to get fancier than is needed.  That is, just re-enumerate all app-level resource ids
         // and ignore everything else, allowing the styleable references to be messed up.
-        String idValueToUse = idValue;
-        if (reenumerate && idValue.startsWith("0x7f")) {
-          idValueToUse = String.format("0x%08x", enumerator.next());
+        if (idAssignment.isPresent() && resource.originalIdValue.startsWith("0x7f")) {
+          resource = new RDotTxtEntry(
+              resource.idType,
+              resource.type,
+              resource.name,
+              resource.originalIdValue,
+              String.format(
+                  "0x%08x",
+                  idAssignment.get().getId(packageName, resource.type, resource.name)));
         }
-
-        RDotTxtEntry resource = new RDotTxtEntry(idType, type, name, idValue, idValueToUse);
         rDotJavaPackageToSymbolsFiles.put(packageName, resource);
       }
     }
     return rDotJavaPackageToSymbolsFiles;
   }
 
+  /**
+   * Parses each of {@code symbolsFiles} concurrently, unless a previous merge parsed a symbols file
+   * with the same contents.
+   */
+  private static ImmutableMap<Path, ImmutableList<RDotTxtEntry>> parseSymbolsFiles(
+      Set<Path> symbolsFiles,
+      final ProjectFilesystem filesystem) throws IOException, InterruptedException {
+    Map<Path, Future<ImmutableList<RDotTxtEntry>>> parses = Maps.newLinkedHashMap();
+    ExecutorService executor = MoreExecutors.newMultiThreadExecutor(
+        "symbols-file-parser",
+        Math.max(1, Math.min(symbolsFiles.size(), Runtime.getRuntime().availableProcessors())));
+    try {
+      for (final Path symbolsFile : symbolsFiles) {
+        parses.put(symbolsFile, executor.submit(new Callable<ImmutableList<RDotTxtEntry>>() {
+          @Override
+          public ImmutableList<RDotTxtEntry> call() throws Exception {
+            final List<String> lines = filesystem.readLines(symbolsFile);
+            Hasher hasher = Hashing.sha1().newHasher();
+            for (String line : lines) {
+              hasher.putString(line, Charsets.UTF_8).putChar('\n');
+            }
+            return PARSED_SYMBOLS_FILES.get(
+                hasher.hash(),
+                new Callable<ImmutableList<RDotTxtEntry>>() {
+                  @Override
+                  public ImmutableList<RDotTxtEntry> call() {
+                    return parseSymbolsFile(lines);
+                  }
+                });
+          }
+        }));
+      }
+
+      ImmutableMap.Builder<Path, ImmutableList<RDotTxtEntry>> symbolsFileToEntries =
+          ImmutableMap.builder();
+      for (Map.Entry<Path, Future<ImmutableList<RDotTxtEntry>>> parse : parses.entrySet()) {
+        symbolsFileToEntries.put(parse.getKey(), parse.getValue().get());
+      }
+      return symbolsFileToEntries.build();
+    } catch (ExecutionException e) {
+      // Both the parse and the cache wrap what went wrong.
+      Throwable cause = e.getCause() instanceof ExecutionException ?
+          e.getCause().getCause() :
+          e.getCause();
+      Throwables.propagateIfInstanceOf(cause, IOException.class);
+      throw Throwables.propagate(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return each line of a symbols file as an {@link RDotTxtEntry} whose id is the one in the file.
+   */
+  private static ImmutableList<RDotTxtEntry> parseSymbolsFile(List<String> linesInSymbolsFile) {
+    ImmutableList.Builder<RDotTxtEntry> entries = ImmutableList.builder();
+    for (String line : FluentIterable.from(linesInSymbolsFile).filter(MoreStrings.NON_EMPTY)) {
+      Matcher matcher = TEXT_SYMBOLS_LINE.matcher(line);
+      boolean isMatch = matcher.matches();
+      Preconditions.checkState(isMatch, "Should be able to match '%s'.", line);
+      String idType = matcher.group(1);
+      String type = matcher.group(2);
+      String name = matcher.group(3);
+      String idValue = matcher.group(4);
+      entries.add(new RDotTxtEntry(idType, type, name, idValue, idValue));
+    }
+    return entries.build();
+  }
+
   public static String generateJavaCodeForPackageWithoutResources(String packageName) {
     return generateJavaCodeForPackageAndResources(
         packageName,
@@ -284,17 +401,4 @@ public class MergeAndroidResourcesStep implements Step {
         " -o " + pathToGeneratedJavaFiles;
   }
 
-  private static class IntEnumerator {
-    private int value;
-
-    public IntEnumerator(int start) {
-      value = start;
-    }
-
-    public int next() {
-      Preconditions.checkState(value < Integer.MAX_VALUE, "Stop goofing off");
-      return value++;
-    }
-  }
-
 }
@@ -27,6 +27,7 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -47,6 +48,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -56,6 +59,14 @@ import java.util.Set;
  */
 public class PreDexedFilesSorter {
 
+  private static final Comparator<DexWithClasses> LARGEST_FIRST = new Comparator<DexWithClasses>() {
+    @Override
+    public int compare(DexWithClasses o1, DexWithClasses o2) {
+      int result = Integer.compare(o2.getSizeEstimate(), o1.getSizeEstimate());
+      return result != 0 ? result : DexWithClasses.DEX_WITH_CLASSES_COMPARATOR.compare(o1, o2);
+    }
+  };
+
   private final Optional<DexWithClasses> rDotJavaDex;
   private final List<DexWithClasses> dexFilesToMerge;
   private final ClassNameFilter primaryDexFilter;
@@ -92,7 +103,6 @@ public class PreDexedFilesSorter {
       BuildContext context,
       ImmutableList.Builder<Step> steps) {
     List<DexWithClasses> primaryDexContents = Lists.newArrayList();
-    List<List<DexWithClasses>> secondaryDexesContents = Lists.newArrayList();
 
     int primaryDexSize = 0;
     // R.class files should always be in the primary dex.
@@ -101,14 +111,13 @@ public class PreDexedFilesSorter {
       primaryDexContents.add(rDotJavaDex.get());
     }
 
-    // Sort dex files so that there's a better chance of the same set of pre-dexed files to end up
-    // in a given secondary dex file.
+    // Sort dex files so that the primary dex lists them in the same order from one build to the
+    // next.
     ImmutableList<DexWithClasses> sortedDexFilesToMerge = FluentIterable.from(dexFilesToMerge)
         .toSortedList(DexWithClasses.DEX_WITH_CLASSES_COMPARATOR);
 
-    // Bucket each DexWithClasses into the appropriate dex file.
-    List<DexWithClasses> currentSecondaryDexContents = null;
-    int currentSecondaryDexSize = 0;
+    // Bucket each DexWithClasses into either the primary dex or the secondary dexes.
+    List<DexWithClasses> secondaryDexFiles = Lists.newArrayList();
     for (DexWithClasses dexWithClasses : sortedDexFilesToMerge) {
       if (mustBeInPrimaryDex(dexWithClasses)) {
         // Case 1: Entry must be in the primary dex.
@@ -137,25 +146,20 @@ public class PreDexedFilesSorter {
               linearAllocHardLimit);
           throw new HumanReadableException("Secondary dex exceeds linear alloc limit.");
         }
-
-        // If there is no current secondary dex, or dexWithClasses would put the current secondary
-        // dex over the cost threshold, then create a new secondary dex and initialize it with a
-        // canary.
-        if (currentSecondaryDexContents == null ||
-            dexWithClasses.getSizeEstimate() + currentSecondaryDexSize > linearAllocHardLimit) {
-          DexWithClasses canary = createCanary(secondaryDexesContents.size() + 1, steps);
-
-          currentSecondaryDexContents = Lists.newArrayList(canary);
-          currentSecondaryDexSize = canary.getSizeEstimate();
-          secondaryDexesContents.add(currentSecondaryDexContents);
-        }
-
-        // Now add the contributions from the dexWithClasses entry.
-        currentSecondaryDexContents.add(dexWithClasses);
-        currentSecondaryDexSize += dexWithClasses.getSizeEstimate();
+        secondaryDexFiles.add(dexWithClasses);
       }
     }
 
+    // Each secondary dex starts with a canary, which is assumed to cost nothing.
+    List<List<DexWithClasses>> secondaryDexesContents = Lists.newArrayList();
+    for (List<DexWithClasses> packedDex :
+        packIntoSecondaryDexes(secondaryDexFiles, linearAllocHardLimit)) {
+      List<DexWithClasses> secondaryDexContents =
+          Lists.newArrayList(createCanary(secondaryDexesContents.size() + 1, steps));
+      secondaryDexContents.addAll(packedDex);
+      secondaryDexesContents.add(secondaryDexContents);
+    }
+
     ImmutableSet<Path> primaryDexInputs = FluentIterable.from(primaryDexContents)
         .transform(DexWithClasses.TO_PATH)
         .toSet();
@@ -180,6 +184,89 @@ public class PreDexedFilesSorter {
         getDexInputsHashes(primaryDexContents, secondaryDexesContents));
   }
 
+  /**
+   * Packs {@code dexFiles} into as few secondary dexes as it can, none of which exceeds
+   * {@code linearAllocHardLimit}, such that a change to one of them moves few of the others.
+   * <p>
+   * The number of dexes starts at the lower bound that their total size implies. The dex files
+   * are then placed largest first, each in the dex it prefers most among those with room for it.
+   * Every dex file ranks the dexes by a hash of its path and the dex index (rendezvous hashing), so
+   * its preferences do not depend on the other dex files, and adding a dex only takes its share
+   * of dex files from the others. If some dex file fits in no dex, the packing is retried with one
+   * more dex.
+   *
+   * @return the contents of each secondary dex, each sorted by path, none of them empty.
+   */
+  @VisibleForTesting
+  static ImmutableList<ImmutableList<DexWithClasses>> packIntoSecondaryDexes(
+      List<DexWithClasses> dexFiles,
+      long linearAllocHardLimit) {
+    List<DexWithClasses> largestFirst = Lists.newArrayList(dexFiles);
+    Collections.sort(largestFirst, LARGEST_FIRST);
+
+    long totalSize = 0;
+    for (DexWithClasses dexWithClasses : largestFirst) {
+      Preconditions.checkArgument(dexWithClasses.getSizeEstimate() <= linearAllocHardLimit);
+      totalSize += dexWithClasses.getSizeEstimate();
+    }
+    int numDexes = (int) Math.max(
+        largestFirst.isEmpty() ? 0 : 1,
+        (totalSize + linearAllocHardLimit - 1) / linearAllocHardLimit);
+
+    while (true) {
+      Optional<List<List<DexWithClasses>>> dexes =
+          tryToPack(largestFirst, numDexes, linearAllocHardLimit);
+      if (dexes.isPresent()) {
+        ImmutableList.Builder<ImmutableList<DexWithClasses>> nonEmptyDexes =
+            ImmutableList.builder();
+        for (List<DexWithClasses> dex : dexes.get()) {
+          if (!dex.isEmpty()) {
+            nonEmptyDexes.add(FluentIterable.from(dex)
+                .toSortedList(DexWithClasses.DEX_WITH_CLASSES_COMPARATOR));
+          }
+        }
+        return nonEmptyDexes.build();
+      }
+      numDexes++;
+    }
+  }
+
+  private static Optional<List<List<DexWithClasses>>> tryToPack(
+      List<DexWithClasses> largestFirst,
+      int numDexes,
+      long linearAllocHardLimit) {
+    List<List<DexWithClasses>> dexes = Lists.newArrayList();
+    long[] dexSizes = new long[numDexes];
+    for (int i = 0; i < numDexes; i++) {
+      dexes.add(Lists.<DexWithClasses>newArrayList());
+    }
+
+    for (DexWithClasses dexWithClasses : largestFirst) {
+      Optional<Integer> preferredDex = Optional.absent();
+      int preferredDexScore = 0;
+      for (int i = 0; i < numDexes; i++) {
+        if (dexSizes[i] + dexWithClasses.getSizeEstimate() > linearAllocHardLimit) {
+          continue;
+        }
+        int score = Hashing.murmur3_32().newHasher()
+            .putString(dexWithClasses.getPathToDexFile().toString(), Charsets.UTF_8)
+            .putInt(i)
+            .hash()
+            .asInt();
+        if (!preferredDex.isPresent() || score > preferredDexScore) {
+          preferredDex = Optional.of(i);
+          preferredDexScore = score;
+        }
+      }
+      if (!preferredDex.isPresent()) {
+        return Optional.absent();
+      }
+      dexes.get(preferredDex.get()).add(dexWithClasses);
+      dexSizes[preferredDex.get()] += dexWithClasses.getSizeEstimate();
+    }
+    return Optional.of(dexes);
+  }
+
   private static ImmutableMap<Path, Sha1HashCode> getDexInputsHashes(
       List<DexWithClasses> primaryDexContents,
       List<List<DexWithClasses>> secondaryDexesContents) {
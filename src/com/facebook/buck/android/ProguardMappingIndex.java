@@ -0,0 +1,428 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * The class mapping of a ProGuard mapping file, as sorted arrays of internal class names that are
+ * searched without allocating. The first time a mapping file is read, it is parsed in chunks on
+ * several threads, and the index is written next to it. Until ProGuard writes the mapping file
+ * again, later reads memory-map the index instead of parsing the mapping file, so rerunning only
+ * the dexing stage of a build does not pay for parsing it.
+ * <p>
+ * The index file holds, after a header:
+ * <ul>
+ *   <li>the offset of each name in the name characters, where name {@code 2 * i} is the original
+ *       name of class {@code i} and name {@code 2 * i + 1} is its obfuscated name, followed by the
+ *       number of name characters;
+ *   <li>the classes, sorted by original name;
+ *   <li>the classes, sorted by obfuscated name;
+ *   <li>the name characters.
+ * </ul>
+ */
+class ProguardMappingIndex {
+
+  private static final int MAGIC = 0x50474d49;
+
+  /** Change this whenever the format of the index changes. */
+  private static final int VERSION = 1;
+
+  /** Magic, version, mapping file size and modification time, class and character counts. */
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+  /** Mapping files are split into chunks of at least this many bytes to be parsed. */
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+  private static final byte[] ARROW = " -> ".getBytes(Charsets.US_ASCII);
+
+  private final IntBuffer nameOffsets;
+  private final IntBuffer byOriginalName;
+  private final IntBuffer byObfuscatedName;
+  private final CharBuffer nameChars;
+
+  private ProguardMappingIndex(ByteBuffer buffer) {
+    int classCount = buffer.getInt(24);
+    int charCount = buffer.getInt(28);
+    int position = HEADER_SIZE;
+    nameOffsets = slice(buffer, position, (2 * classCount + 1) * 4).asIntBuffer();
+    position += (2 * classCount + 1) * 4;
+    byOriginalName = slice(buffer, position, classCount * 4).asIntBuffer();
+    position += classCount * 4;
+    byObfuscatedName = slice(buffer, position, classCount * 4).asIntBuffer();
+    position += classCount * 4;
+    nameChars = slice(buffer, position, charCount * 2).asCharBuffer();
+  }
+
+  /**
+   * @param classMapping obfuscated class names by original class name, in the dotted form that
+   *     mapping files use.
+   */
+  @VisibleForTesting
+  static ProguardMappingIndex fromClassMapping(Map<String, String> classMapping) {
+    List<String> names = Lists.newArrayListWithCapacity(classMapping.size() * 2);
+    for (Map.Entry<String, String> entry : classMapping.entrySet()) {
+      names.add(entry.getKey().replace('.', '/'));
+      names.add(entry.getValue().replace('.', '/'));
+    }
+    return new ProguardMappingIndex(encode(names, /* mappingSize */ -1, /* lastModified */ -1));
+  }
+
+  /**
+   * @return the index of {@code mappingFile}, which is built and saved if there is no index for
+   *     this version of the mapping file.
+   */
+  static ProguardMappingIndex load(ProjectFilesystem filesystem, Path mappingFile)
+      throws IOException {
+    Path absoluteMappingFile = filesystem.resolve(mappingFile);
+    Path indexFile = absoluteMappingFile.resolveSibling(
+        absoluteMappingFile.getFileName() + ".index");
+    long mappingSize = Files.size(absoluteMappingFile);
+    long lastModified = Files.getLastModifiedTime(absoluteMappingFile).toMillis();
+
+    Optional<ProguardMappingIndex> saved = map(indexFile, mappingSize, lastModified);
+    if (saved.isPresent()) {
+      return saved.get();
+    }
+
+    ByteBuffer index = encode(parse(absoluteMappingFile), mappingSize, lastModified);
+    // Another build may be reading the index, so replace it atomically.
+    Path temp = Files.createTempFile(indexFile.getParent(), "mapping", ".tmp");
+    try {
+      Files.write(temp, index.array());
+      Files.move(
+          temp,
+          indexFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return new ProguardMappingIndex(index);
+  }
+
+  /**
+   * @return the original name of the class whose obfuscated internal name is {@code name}, or
+   *     null if the class is not in the mapping.
+   */
+  @Nullable
+  String getOriginalName(String name) {
+    return find(byObfuscatedName, /* keyName */ 1, name);
+  }
+
+  /**
+   * @return the obfuscated name of the class whose original internal name is {@code name}, or
+   *     null if the class is not in the mapping.
+   */
+  @Nullable
+  String getObfuscatedName(String name) {
+    return find(byOriginalName, /* keyName */ 0, name);
+  }
+
+  @Nullable
+  private String find(IntBuffer sortedClasses, int keyName, String key) {
+    int low = 0;
+    int high = sortedClasses.limit() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int clazz = sortedClasses.get(middle);
+      int comparison = compareName(2 * clazz + keyName, key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return getName(2 * clazz + 1 - keyName);
+      }
+    }
+    return null;
+  }
+
+  /** Compares as {@link String#compareTo(String)} does, which is the order the index is in. */
+  private int compareName(int name, String key) {
+    int start = nameOffsets.get(name);
+    int length = nameOffsets.get(name + 1) - start;
+    int commonLength = Math.min(length, key.length());
+    for (int i = 0; i < commonLength; i++) {
+      int difference = nameChars.get(start + i) - key.charAt(i);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - key.length();
+  }
+
+  private String getName(int name) {
+    int start = nameOffsets.get(name);
+    char[] value = new char[nameOffsets.get(name + 1) - start];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = nameChars.get(start + i);
+    }
+    return new String(value);
+  }
+
+  private static Optional<ProguardMappingIndex> map(
+      Path indexFile,
+      long mappingSize,
+      long lastModified) throws IOException {
+    if (!Files.isRegularFile(indexFile)) {
+      return Optional.absent();
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+        return Optional.absent();
+      }
+      // The mapping stays valid once the channel is closed.
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt(0) != MAGIC ||
+        buffer.getInt(4) != VERSION ||
+        buffer.getLong(8) != mappingSize ||
+        buffer.getLong(16) != lastModified ||
+        buffer.capacity() != getIndexSize(buffer.getInt(24), buffer.getInt(28))) {
+      return Optional.absent();
+    }
+    return Optional.of(new ProguardMappingIndex(buffer));
+  }
+
+  private static long getIndexSize(int classCount, int charCount) {
+    return HEADER_SIZE + (2L * classCount + 1) * 4 + 2L * classCount * 4 + 2L * charCount;
+  }
+
+  /**
+   * @param names the original and obfuscated internal names of each class, one after the other.
+   */
+  private static ByteBuffer encode(final List<String> names, long mappingSize, long lastModified) {
+    final int classCount = names.size() / 2;
+    int charCount = 0;
+    for (String name : names) {
+      charCount += name.length();
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(Ints.checkedCast(getIndexSize(classCount, charCount)));
+    buffer.putInt(MAGIC)
+        .putInt(VERSION)
+        .putLong(mappingSize)
+        .putLong(lastModified)
+        .putInt(classCount)
+        .putInt(charCount);
+    int offset = 0;
+    for (String name : names) {
+      buffer.putInt(offset);
+      offset += name.length();
+    }
+    buffer.putInt(offset);
+
+    for (final int keyName : new int[] {0, 1}) {
+      Integer[] classes = new Integer[classCount];
+      for (int i = 0; i < classCount; i++) {
+        classes[i] = i;
+      }
+      Arrays.sort(classes, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return names.get(2 * a + keyName).compareTo(names.get(2 * b + keyName));
+        }
+      });
+      // The binary search would find either of two classes with the same name, so reject them as
+      // the maps ProguardMapping used to build did.
+      for (int i = 1; i < classCount; i++) {
+        String name = names.get(2 * classes[i] + keyName);
+        if (name.equals(names.get(2 * classes[i - 1] + keyName))) {
+          throw new IllegalArgumentException(
+              "Duplicate class in proguard mapping: " + name.replace('/', '.'));
+        }
+      }
+      for (int clazz : classes) {
+        buffer.putInt(clazz);
+      }
+    }
+
+    for (String name : names) {
+      for (int i = 0; i < name.length(); i++) {
+        buffer.putChar(name.charAt(i));
+      }
+    }
+    Preconditions.checkState(!buffer.hasRemaining());
+    buffer.rewind();
+    return buffer;
+  }
+
+  /**
+   * Parses the class lines of a mapping file, splitting it at line breaks into chunks that are
+   * parsed concurrently.
+   *
+   * @return the original and obfuscated internal names of each class, one after the other.
+   */
+  private static List<String> parse(Path mappingFile) throws IOException {
+    final MappedByteBuffer mapping;
+    try (FileChannel channel = FileChannel.open(mappingFile, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("ProGuard mapping is too large to index: " + mappingFile);
+      }
+      mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    int chunkCount = Math.max(1, Math.min(threads * 4, mapping.capacity() / MIN_CHUNK_SIZE));
+    ExecutorService executor = MoreExecutors.newMultiThreadExecutor("proguard-mapping", threads);
+    try {
+      List<Future<List<String>>> chunks = Lists.newArrayListWithCapacity(chunkCount);
+      int start = 0;
+      for (int i = 1; i <= chunkCount; i++) {
+        int end = (int) ((long) mapping.capacity() * i / chunkCount);
+        while (end < mapping.capacity() && end > 0 && mapping.get(end - 1) != '\n') {
+          end++;
+        }
+        if (end <= start) {
+          continue;
+        }
+        final int chunkStart = start;
+        final int chunkEnd = end;
+        chunks.add(executor.submit(new Callable<List<String>>() {
+          @Override
+          public List<String> call() {
+            return parseChunk(mapping, chunkStart, chunkEnd);
+          }
+        }));
+        start = end;
+      }
+
+      List<String> names = Lists.newArrayList();
+      for (Future<List<String>> chunk : chunks) {
+        names.addAll(chunk.get());
+      }
+      return names;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + mappingFile, e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Parses the class lines between {@code start} and {@code end}, accepting the same lines as
+   * {@link ProguardMapping#readClassMapping(Iterable)}.
+   */
+  @VisibleForTesting
+  static List<String> parseChunk(ByteBuffer mapping, int start, int end) {
+    List<String> names = Lists.newArrayList();
+    int lineStart = start;
+    while (lineStart < end) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && mapping.get(lineEnd) != '\n') {
+        lineEnd++;
+      }
+      int nextLine = lineEnd + 1;
+      if (lineEnd > lineStart && mapping.get(lineEnd - 1) == '\r') {
+        lineEnd--;
+      }
+
+      // Member mappings are indented, and are not handled yet.
+      if (lineEnd > lineStart && mapping.get(lineStart) != ' ') {
+        int arrow = indexOfArrow(mapping, lineStart, lineEnd);
+        if (arrow == -1 ||
+            mapping.get(lineEnd - 1) != ':' ||
+            !isClassName(mapping, lineStart, arrow) ||
+            !isClassName(mapping, arrow + ARROW.length, lineEnd - 1)) {
+          throw new IllegalArgumentException(
+              "Invalid line in proguard mapping: " + getString(mapping, lineStart, lineEnd));
+        }
+        names.add(getString(mapping, lineStart, arrow).replace('.', '/'));
+        names.add(getString(mapping, arrow + ARROW.length, lineEnd - 1).replace('.', '/'));
+      }
+      lineStart = nextLine;
+    }
+    return names;
+  }
+
+  private static int indexOfArrow(ByteBuffer mapping, int start, int end) {
+    outer:
+    for (int i = start; i <= end - ARROW.length; i++) {
+      for (int j = 0; j < ARROW.length; j++) {
+        if (mapping.get(i + j) != ARROW[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /** Matches {@code [\w.$]+}, as the class lines of mapping files do. */
+  private static boolean isClassName(ByteBuffer mapping, int start, int end) {
+    if (start >= end) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      byte b = mapping.get(i);
+      if (!((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+          b == '_' || b == '.' || b == '$')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getString(ByteBuffer mapping, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = mapping.get(start + i);
+    }
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(position);
+    slice.limit(position + length);
+    return slice.slice();
+  }
+}
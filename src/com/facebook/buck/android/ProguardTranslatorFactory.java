@@ -24,12 +24,10 @@ import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -37,13 +35,16 @@ import javax.annotation.Nullable;
 /**
  * If we end up creating both an obfuscator function and a deobfuscator function, it would be
  * nice to load the proguard mapping file once.  This class enables sharing that work.
+ * <p>
+ * The mapping is loaded as a {@link ProguardMappingIndex}, so it is only parsed once for each run
+ * of ProGuard.
  */
 class ProguardTranslatorFactory {
 
-  private final Optional<Map<String, String>> rawMap;
+  private final Optional<ProguardMappingIndex> index;
 
-  private ProguardTranslatorFactory(Optional<Map<String, String>> rawMap) {
-    this.rawMap = rawMap;
+  private ProguardTranslatorFactory(Optional<ProguardMappingIndex> index) {
+    this.index = index;
   }
 
   static ProguardTranslatorFactory create(
@@ -52,15 +53,19 @@ class ProguardTranslatorFactory {
       Optional<Path> proguardMappingFile)
       throws IOException {
     return new ProguardTranslatorFactory(
-        loadOptionalRawMap(context, proguardFullConfigFile, proguardMappingFile));
+        loadOptionalIndex(context, proguardFullConfigFile, proguardMappingFile));
   }
 
   @VisibleForTesting
   static ProguardTranslatorFactory createForTest(Optional<Map<String, String>> rawMap) {
-    return new ProguardTranslatorFactory(rawMap);
+    if (!rawMap.isPresent()) {
+      return new ProguardTranslatorFactory(Optional.<ProguardMappingIndex>absent());
+    }
+    return new ProguardTranslatorFactory(
+        Optional.of(ProguardMappingIndex.fromClassMapping(rawMap.get())));
   }
 
-  private static Optional<Map<String, String>> loadOptionalRawMap(
+  private static Optional<ProguardMappingIndex> loadOptionalIndex(
       ExecutionContext context,
       Optional<Path> proguardFullConfigFile,
       Optional<Path> proguardMappingFile)
@@ -80,8 +85,7 @@ class ProguardTranslatorFactory {
       return Optional.absent();
     }
 
-    List<String> lines = projectFilesystem.readLines(proguardMappingFile.get());
-    return Optional.of(ProguardMapping.readClassMapping(lines));
+    return Optional.of(ProguardMappingIndex.load(projectFilesystem, proguardMappingFile.get()));
   }
 
   public Function<String, String> createDeobfuscationFunction() {
@@ -92,27 +96,20 @@ class ProguardTranslatorFactory {
     return createFunction(true);
   }
 
-  private Function<String, String> createFunction(boolean isForObfuscation) {
-    if (!rawMap.isPresent()) {
+  private Function<String, String> createFunction(final boolean isForObfuscation) {
+    if (!index.isPresent()) {
       return Functions.identity();
     }
 
-    ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
-    for (Map.Entry<String, String> entry : rawMap.get().entrySet()) {
-      String original = entry.getKey().replace('.', '/');
-      String obfuscated = entry.getValue().replace('.', '/');
-      builder.put(
-          isForObfuscation ? original : obfuscated,
-          isForObfuscation ? obfuscated : original);
-    }
-    final Map<String, String> map = builder.build();
-
+    final ProguardMappingIndex mapping = index.get();
     return new Function<String, String>() {
       @Nullable
       @Override
       public String apply(@Nullable String input) {
         Preconditions.checkNotNull(input);
-        String mapped = map.get(input);
+        String mapped = isForObfuscation ?
+            mapping.getObfuscatedName(input) :
+            mapping.getOriginalName(input);
         if (mapped != null) {
           return mapped;
         } else {
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ids that {@link MergeAndroidResourcesStep} re-enumerated app-level resources with. A merge
+ * that starts from the ids of the previous one gives every resource that is still there the id it
+ * had, so adding or removing a resource only changes the {@code R.java} files of the packages that
+ * declare it.
+ */
+class RDotJavaIdAssignment {
+
+  /** Change this whenever the format of the file changes. */
+  private static final String FORMAT_VERSION = "1";
+
+  // Start at 0x7f01001 so that the resulting file is human readable. This value range
+  // (0x7f010001 - ...) is easier to spot as an actual resource id instead of other values in
+  // styleable which can be enumerated integers starting at 0.
+  private static final int FIRST_ID = 0x7f01001;
+
+  private final Map<String, Integer> previousIds;
+  private final Map<String, Integer> usedIds;
+  private int nextId;
+
+  private RDotJavaIdAssignment(Map<String, Integer> previousIds) {
+    this.previousIds = Preconditions.checkNotNull(previousIds);
+    this.usedIds = Maps.newLinkedHashMap();
+    int nextId = FIRST_ID;
+    for (int id : previousIds.values()) {
+      nextId = Math.max(nextId, id + 1);
+    }
+    this.nextId = nextId;
+  }
+
+  static RDotJavaIdAssignment empty() {
+    return new RDotJavaIdAssignment(Maps.<String, Integer>newHashMap());
+  }
+
+  /**
+   * @return the ids saved in {@code file}, or no ids if there is no such file, or it was saved by
+   *     another version of Buck.
+   */
+  static RDotJavaIdAssignment load(ProjectFilesystem filesystem, Path file) {
+    if (!filesystem.exists(file)) {
+      return empty();
+    }
+    List<String> lines;
+    try {
+      lines = filesystem.readLines(file);
+    } catch (IOException e) {
+      return empty();
+    }
+    if (lines.isEmpty() || !lines.get(0).equals(FORMAT_VERSION)) {
+      return empty();
+    }
+
+    Map<String, Integer> previousIds = Maps.newHashMap();
+    for (String line : lines.subList(1, lines.size())) {
+      int space = line.indexOf(' ');
+      try {
+        previousIds.put(line.substring(space + 1), Integer.decode(line.substring(0, space)));
+      } catch (IndexOutOfBoundsException | NumberFormatException e) {
+        return empty();
+      }
+    }
+    return new RDotJavaIdAssignment(previousIds);
+  }
+
+  /**
+   * Saves the ids that were used since this assignment was loaded, so that the ids of resources
+   * that are gone are not kept forever.
+   */
+  void save(ProjectFilesystem filesystem, Path file) throws IOException {
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    lines.add(FORMAT_VERSION);
+    for (Map.Entry<String, Integer> id : usedIds.entrySet()) {
+      lines.add(String.format("0x%08x %s", id.getValue(), id.getKey()));
+    }
+    filesystem.createParentDirs(file);
+    filesystem.writeLinesToPath(lines.build(), file);
+  }
+
+  /**
+   * @return the id that the resource {@code type}/{@code name} of {@code rDotJavaPackage} had in
+   *     the previous merge, or a new one if it had none.
+   */
+  int getId(String rDotJavaPackage, String type, String name) {
+    String key = rDotJavaPackage + " " + type + " " + name;
+    Integer id = usedIds.get(key);
+    if (id == null) {
+      id = previousIds.get(key);
+      if (id == null) {
+        Preconditions.checkState(nextId < Integer.MAX_VALUE, "Stop goofing off");
+        id = nextId++;
+      }
+      usedIds.put(key, id);
+    }
+    return id;
+  }
+}
@@ -207,7 +207,9 @@ public class ResourcesFilter extends AbstractBuildRule
     ImmutableBiMap<Path, Path> resSourceToDestDirMap = filteredResourcesDirMapBuilder.build();
     FilterResourcesStep.Builder filterResourcesStepBuilder = FilterResourcesStep.builder()
         .setInResToOutResDirMap(resSourceToDestDirMap)
-        .setResourceFilter(resourceFilter);
+        .setResourceFilter(resourceFilter)
+        .setScaledDrawablesCacheDir(
+            BuildTargets.getBinPath(getBuildTarget(), "__scaled_drawables_cache__%s__"));
 
     if (isStoreStringsAsAssets()) {
       filterResourcesStepBuilder.enableStringsFilter();
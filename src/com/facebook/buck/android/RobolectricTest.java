@@ -79,7 +79,8 @@ public class RobolectricTest extends JavaTest {
       List<String> vmArgs,
       ImmutableSet<BuildRule> sourceTargetsUnderTest,
       Optional<Path> resourcesRoot,
-      Optional<DummyRDotJava> optionalDummyRDotJava) {
+      Optional<DummyRDotJava> optionalDummyRDotJava,
+      int shards) {
     super(
         buildRuleParams,
         srcs,
@@ -91,7 +92,8 @@ public class RobolectricTest extends JavaTest {
         javacOptions,
         vmArgs,
         sourceTargetsUnderTest,
-        resourcesRoot);
+        resourcesRoot,
+        shards);
     this.optionalDummyRDotJava = Preconditions.checkNotNull(optionalDummyRDotJava);
   }
 
@@ -97,7 +97,8 @@ public class RobolectricTestDescription implements Description<RobolectricTestDe
             params.getBuildTarget(),
             resolver),
         args.resourcesRoot,
-        dummyRDotJava);
+        dummyRDotJava,
+        args.shards.or(1));
   }
 
   public class Arg extends JavaTestDescription.Arg {
@@ -124,6 +124,8 @@ public class SplitZipStep implements Step {
   private final Optional<Path> proguardMappingFile;
   private final DexSplitMode dexSplitMode;
   private final Path pathToReportDir;
+  private final Optional<Path> pathToDalvikStatsCache;
+  private final Optional<Path> pathToSecondaryDexAssignment;
 
   private final Optional<Path> primaryDexScenarioFile;
 
@@ -142,6 +144,11 @@ public class SplitZipStep implements Step {
    * @param proguardFullConfigFile Path to the full generated ProGuard configuration, generated
    *     by the -printconfiguration flag.  This is part of the *output* of ProGuard.
    * @param proguardMappingFile Path to the mapping file generated by ProGuard's obfuscation.
+   * @param pathToDalvikStatsCache Path to the file that keeps the linear alloc estimates of
+   *     classes between builds, which must survive the cleaning of the other outputs.
+   * @param pathToSecondaryDexAssignment Path to the file that keeps the secondary jar that each
+   *     class went into between builds, if classes should stay in the same secondary jars. Like
+   *     {@code pathToDalvikStatsCache}, it must survive the cleaning of the other outputs.
    */
   public SplitZipStep(
       Set<Path> inputPathsToSplit,
@@ -152,7 +159,9 @@ public class SplitZipStep implements Step {
       Optional<Path> proguardFullConfigFile,
       Optional<Path> proguardMappingFile,
       DexSplitMode dexSplitMode,
-      Path pathToReportDir) {
+      Path pathToReportDir,
+      Optional<Path> pathToDalvikStatsCache,
+      Optional<Path> pathToSecondaryDexAssignment) {
     this.inputPathsToSplit = ImmutableSet.copyOf(inputPathsToSplit);
     this.secondaryJarMetaPath = Preconditions.checkNotNull(secondaryJarMetaPath);
     this.primaryJarPath = Preconditions.checkNotNull(primaryJarPath);
@@ -162,6 +171,8 @@ public class SplitZipStep implements Step {
     this.proguardMappingFile = Preconditions.checkNotNull(proguardMappingFile);
     this.dexSplitMode = Preconditions.checkNotNull(dexSplitMode);
     this.pathToReportDir = Preconditions.checkNotNull(pathToReportDir);
+    this.pathToDalvikStatsCache = Preconditions.checkNotNull(pathToDalvikStatsCache);
+    this.pathToSecondaryDexAssignment = Preconditions.checkNotNull(pathToSecondaryDexAssignment);
 
     this.primaryDexScenarioFile = dexSplitMode.getPrimaryDexScenarioFile()
         .transform(SourcePaths.TO_PATH);
@@ -190,7 +201,10 @@ public class SplitZipStep implements Step {
       if (dexSplitMode.useLinearAllocSplitDex()) {
         zipSplitterFactory = new DalvikAwareZipSplitterFactory(
             dexSplitMode.getLinearAllocHardLimit(),
-            wantedInPrimaryZip);
+            wantedInPrimaryZip,
+            pathToDalvikStatsCache.transform(context.getProjectFilesystem().getAbsolutifier()),
+            pathToSecondaryDexAssignment.transform(
+                context.getProjectFilesystem().getAbsolutifier()));
       } else {
         zipSplitterFactory = new DefaultZipSplitterFactory(ZIP_SIZE_SOFT_LIMIT,
             ZIP_SIZE_HARD_LIMIT);
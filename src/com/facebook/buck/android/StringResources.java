@@ -20,14 +20,15 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.TreeMultimap;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -115,100 +116,122 @@ public class StringResources {
    * </p>
    */
   public byte[] getBinaryFileContent() {
-    try (
-      ByteArrayOutputStream bytesStream = new ByteArrayOutputStream();
-      DataOutputStream outputStream = new DataOutputStream(bytesStream)
-    ) {
-      outputStream.writeInt(FORMAT_VERSION);
-
-      writeStrings(outputStream);
-      writePlurals(outputStream);
-      writeArrays(outputStream);
-
-      return bytesStream.toByteArray();
-    } catch (IOException e) {
-      return null;
+    // Encode every value first, so that the buffer can be allocated at its final size.
+    List<byte[]> stringValues = getUnescapedStringsBytes(strings.values());
+    List<byte[]> pluralValues = Lists.newArrayList();
+    for (ImmutableMap<String, String> categoryMap : plurals.values()) {
+      pluralValues.addAll(getUnescapedStringsBytes(categoryMap.values()));
     }
+    List<byte[]> arrayValues = getUnescapedStringsBytes(arrays.values());
+
+    int size = 4;
+    size += 4 + (strings.isEmpty() ? 0 :
+        4 + 4 * strings.size() + getTotalLength(stringValues));
+    size += 4 + (plurals.isEmpty() ? 0 :
+        4 + 3 * plurals.size() + 3 * pluralValues.size() + getTotalLength(pluralValues));
+    size += 4 + (arrays.isEmpty() ? 0 :
+        4 + 6 * arrays.keySet().size() + 2 * arrayValues.size() + getTotalLength(arrayValues));
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(FORMAT_VERSION);
+    writeStrings(buffer, stringValues);
+    writePlurals(buffer, pluralValues);
+    writeArrays(buffer, arrayValues);
+    Preconditions.checkState(!buffer.hasRemaining());
+    return buffer.array();
   }
 
-  private void writeStrings(DataOutputStream outputStream) throws IOException {
-    outputStream.writeInt(strings.size());
+  private void writeStrings(ByteBuffer buffer, List<byte[]> stringValues) {
+    buffer.putInt(strings.size());
     if (strings.isEmpty()) {
       return;
     }
     int previousResourceId = strings.firstKey();
-    outputStream.writeInt(previousResourceId);
+    buffer.putInt(previousResourceId);
 
-    try (ByteArrayOutputStream dataStream = new ByteArrayOutputStream()) {
-      for (Map.Entry<Integer, String> entry : strings.entrySet()) {
-        byte[] resourceBytes = getUnescapedStringBytes(entry.getValue());
-        writeShort(outputStream, entry.getKey() - previousResourceId);
-        writeShort(outputStream, resourceBytes.length);
-        dataStream.write(resourceBytes, 0, resourceBytes.length);
+    Iterator<byte[]> values = stringValues.iterator();
+    for (int resourceId : strings.keySet()) {
+      putShort(buffer, resourceId - previousResourceId);
+      putShort(buffer, values.next().length);
 
-        previousResourceId = entry.getKey();
-      }
-      outputStream.write(dataStream.toByteArray());
+      previousResourceId = resourceId;
     }
+    putAll(buffer, stringValues);
   }
 
-  private void writePlurals(DataOutputStream outputStream) throws IOException {
-    outputStream.writeInt(plurals.size());
+  private void writePlurals(ByteBuffer buffer, List<byte[]> pluralValues) {
+    buffer.putInt(plurals.size());
     if (plurals.isEmpty()) {
       return;
     }
     int previousResourceId = plurals.firstKey();
-    outputStream.writeInt(previousResourceId);
-
-    try (ByteArrayOutputStream dataStream = new ByteArrayOutputStream()) {
-      for (Map.Entry<Integer, ImmutableMap<String, String>> entry : plurals.entrySet()) {
-        writeShort(outputStream, entry.getKey() - previousResourceId);
-        ImmutableMap<String, String> categoryMap = entry.getValue();
-        outputStream.writeByte(categoryMap.size());
-
-        for (Map.Entry<String, String> cat : categoryMap.entrySet()) {
-          outputStream.writeByte(PLURAL_CATEGORY_MAP.get(cat.getKey()).byteValue());
-          byte[] pluralValue = getUnescapedStringBytes(cat.getValue());
-          writeShort(outputStream, pluralValue.length);
-          dataStream.write(pluralValue);
-        }
-
-        previousResourceId = entry.getKey();
+    buffer.putInt(previousResourceId);
+
+    Iterator<byte[]> values = pluralValues.iterator();
+    for (Map.Entry<Integer, ImmutableMap<String, String>> entry : plurals.entrySet()) {
+      putShort(buffer, entry.getKey() - previousResourceId);
+      ImmutableMap<String, String> categoryMap = entry.getValue();
+      buffer.put((byte) categoryMap.size());
+
+      for (String category : categoryMap.keySet()) {
+        buffer.put(PLURAL_CATEGORY_MAP.get(category).byteValue());
+        putShort(buffer, values.next().length);
       }
 
-      outputStream.write(dataStream.toByteArray());
+      previousResourceId = entry.getKey();
     }
+    putAll(buffer, pluralValues);
   }
 
-  private void writeArrays(DataOutputStream outputStream) throws IOException {
-    outputStream.writeInt(arrays.keySet().size());
+  private void writeArrays(ByteBuffer buffer, List<byte[]> arrayValues) {
+    buffer.putInt(arrays.keySet().size());
     if (arrays.keySet().isEmpty()) {
       return;
     }
     int previousResourceId = arrays.keySet().first();
-    outputStream.writeInt(previousResourceId);
-    try (ByteArrayOutputStream dataStream = new ByteArrayOutputStream()) {
-      for (int resourceId : arrays.keySet()) {
-        writeShort(outputStream, resourceId - previousResourceId);
-        Collection<String> arrayValues = arrays.get(resourceId);
-        outputStream.writeInt(arrayValues.size());
-
-        for (String arrayValue : arrayValues) {
-          byte[] byteValue = getUnescapedStringBytes(arrayValue);
-          writeShort(outputStream, byteValue.length);
-          dataStream.write(byteValue);
-        }
-
-        previousResourceId = resourceId;
+    buffer.putInt(previousResourceId);
+
+    Iterator<byte[]> values = arrayValues.iterator();
+    for (int resourceId : arrays.keySet()) {
+      putShort(buffer, resourceId - previousResourceId);
+      int numElements = arrays.get(resourceId).size();
+      buffer.putInt(numElements);
+
+      for (int i = 0; i < numElements; i++) {
+        putShort(buffer, values.next().length);
       }
-      outputStream.write(dataStream.toByteArray());
+
+      previousResourceId = resourceId;
     }
+    putAll(buffer, arrayValues);
   }
 
-  private void writeShort(DataOutputStream stream, int number) throws IOException {
+  private static void putShort(ByteBuffer buffer, int number) {
     Preconditions.checkState(number <= Short.MAX_VALUE,
         "Error attempting to compact a numeral to short: " + number);
-    stream.writeShort(number);
+    buffer.putShort((short) number);
+  }
+
+  private static void putAll(ByteBuffer buffer, List<byte[]> values) {
+    for (byte[] value : values) {
+      buffer.put(value);
+    }
+  }
+
+  private static List<byte[]> getUnescapedStringsBytes(Collection<String> values) {
+    List<byte[]> bytes = Lists.newArrayListWithCapacity(values.size());
+    for (String value : values) {
+      bytes.add(getUnescapedStringBytes(value));
+    }
+    return bytes;
+  }
+
+  private static int getTotalLength(List<byte[]> values) {
+    int totalLength = 0;
+    for (byte[] value : values) {
+      totalLength += value.length;
+    }
+    return totalLength;
   }
 
   @VisibleForTesting
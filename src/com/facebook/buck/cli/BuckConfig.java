@@ -26,6 +26,7 @@ import com.facebook.buck.parser.ParseContext;
 import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.CassandraArtifactCache;
+import com.facebook.buck.rules.ContentAddressedDirArtifactCache;
 import com.facebook.buck.rules.DirArtifactCache;
 import com.facebook.buck.rules.HttpArtifactCache;
 import com.facebook.buck.rules.MultiArtifactCache;
@@ -92,12 +93,15 @@ public class BuckConfig {
 
   private static final String DEFAULT_CACHE_DIR = "buck-cache";
   private static final String DEFAULT_DIR_CACHE_MODE = CacheMode.readwrite.name();
+  private static final String DEFAULT_DIR_CACHE_LAYOUT = DirCacheLayout.zip.name();
   private static final String DEFAULT_CASSANDRA_PORT = "9160";
   private static final String DEFAULT_CASSANDRA_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_CASSANDRA_TIMEOUT_SECONDS = "10";
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_HTTP_CACHE_PORT = "5551";
   private static final String DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS = "10";
+  // HttpURLConnection keeps up to 5 connections to a host alive by default.
+  private static final String DEFAULT_HTTP_MAX_CONNECTIONS = "5";
   private static final String DEFAULT_MAX_TRACES = "25";
 
   // Prefer "python2" where available (Linux), but fall back to "python" (Mac).
@@ -122,6 +126,13 @@ public class BuckConfig {
     http
   }
 
+  private enum DirCacheLayout {
+    /** One zip file per {@link com.facebook.buck.rules.RuleKey}. */
+    zip,
+    /** Output files stored once by content, see {@link ContentAddressedDirArtifactCache}. */
+    content_addressed,
+  }
+
   private enum CacheMode {
     readonly(false),
     readwrite(true),
@@ -332,6 +343,54 @@ public class BuckConfig {
     return Splitter.on(' ').trimResults().omitEmptyStrings().split(includes);
   }
 
+  /**
+   * @return the maximum number of python processes used to evaluate build files concurrently.
+   *     Defaults to the number of available processors.
+   */
+  public int getNumParserThreads() {
+    Optional<String> value = getValue("buildfile", "parser_threads");
+    if (!value.isPresent()) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    try {
+      int numParserThreads = Integer.parseInt(value.get());
+      if (numParserThreads > 0) {
+        return numParserThreads;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new HumanReadableException(
+        "parser_threads in [buildfile] must be a positive integer, but was '%s'.",
+        value.get());
+  }
+
+  /**
+   * @return whether the rules produced by evaluating each build file should be persisted under
+   *     {@code buck-out} and reused by later runs of Buck while the build file and its inputs are
+   *     unchanged.
+   */
+  public boolean isPersistentParseCacheEnabled() {
+    return getBooleanValue("buildfile", "persistent_cache", true);
+  }
+
+  /**
+   * @return whether the hashes of input files should be persisted under {@code buck-out} and
+   *     reused by later runs of Buck while the size, modification time and inode of each file are
+   *     unchanged.
+   */
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getBooleanValue("build", "persistent_file_hashes", true);
+  }
+
+  /**
+   * @return whether the targets requested by a build should be looked up in the artifact cache
+   *     before any of their deps are built, so that the deps of a cached target are not built.
+   */
+  public boolean isCacheFirstEnabled() {
+    return getBooleanValue("build", "cache_first", false);
+  }
+
   /**
    * A set of paths to subtrees that do not contain source files, build files or files that could
    * affect either (buck-out, .idea, .buckd, buck-cache, .git, etc.).  May return absolute paths
@@ -575,7 +634,7 @@ public class BuckConfig {
       for (String mode : modes) {
         switch (ArtifactCacheNames.valueOf(mode)) {
         case dir:
-          ArtifactCache dirArtifactCache = createDirArtifactCache();
+          ArtifactCache dirArtifactCache = createDirArtifactCache(buckEventBus);
           buckEventBus.register(dirArtifactCache);
           builder.add(dirArtifactCache);
           break;
@@ -626,12 +685,44 @@ public class BuckConfig {
     });
   }
 
-  private ArtifactCache createDirArtifactCache() {
+  public Optional<Long> getCacheDirHighWaterMarkBytes() {
+    return getValue("cache", "dir_high_water_mark").transform(new Function<String, Long>() {
+      @Override
+      public Long apply(String input) {
+        return SizeUnit.parseBytes(input);
+      }
+    });
+  }
+
+  private ArtifactCache createDirArtifactCache(BuckEventBus buckEventBus) {
     Path cacheDir = getCacheDir();
     File dir = cacheDir.toFile();
     boolean doStore = readCacheMode("dir_mode", DEFAULT_DIR_CACHE_MODE);
+    Optional<Long> maxSizeBytes = getCacheDirMaxSizeBytes();
+    Optional<Long> highWaterMarkBytes = getCacheDirHighWaterMarkBytes();
+    if (maxSizeBytes.isPresent() && highWaterMarkBytes.isPresent() &&
+        highWaterMarkBytes.get() < maxSizeBytes.get()) {
+      throw new HumanReadableException(
+          "cache.dir_high_water_mark must not be less than cache.dir_max_size.");
+    }
     try {
-      return new DirArtifactCache(dir, doStore, getCacheDirMaxSizeBytes());
+      switch (readDirCacheLayout()) {
+        case content_addressed:
+          return new ContentAddressedDirArtifactCache(
+              dir,
+              doStore,
+              maxSizeBytes,
+              highWaterMarkBytes,
+              buckEventBus);
+        case zip:
+        default:
+          return new DirArtifactCache(
+              dir,
+              doStore,
+              maxSizeBytes,
+              highWaterMarkBytes,
+              buckEventBus);
+      }
     } catch (IOException e) {
       throw new HumanReadableException("Failure initializing artifact cache directory: %s", dir);
     }
@@ -682,15 +773,27 @@ public class BuckConfig {
     int timeoutSeconds = Integer.parseInt(
         getValue("cache", "connection_timeout_seconds").or(DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS));
     boolean doStore = readCacheMode("http_mode", DEFAULT_HTTP_CACHE_MODE);
+    int maxConnections = Integer.parseInt(
+        getValue("cache", "http_max_connections").or(DEFAULT_HTTP_MAX_CONNECTIONS));
     return new HttpArtifactCache(
         host,
         port,
         timeoutSeconds,
         doStore,
+        maxConnections,
         projectFilesystem,
         buckEventBus);
   }
 
+  private DirCacheLayout readDirCacheLayout() {
+    String layout = getValue("cache", "dir_layout").or(DEFAULT_DIR_CACHE_LAYOUT);
+    try {
+      return DirCacheLayout.valueOf(layout);
+    } catch (IllegalArgumentException e) {
+      throw new HumanReadableException("Unusable cache.dir_layout: '%s'", layout);
+    }
+  }
+
   private boolean readCacheMode(String fieldName, String defaultValue) {
     String cacheMode = getValue("cache", fieldName).or(defaultValue);
     final boolean doStore;
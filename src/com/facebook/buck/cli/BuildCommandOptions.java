@@ -50,6 +50,9 @@ public class BuildCommandOptions extends AbstractCommandOptions {
       usage = "How to handle including dependencies")
   private BuildDependencies buildDependencies = null;
 
+  @Option(name = "--cache-first",
+      usage = "Look for the requested targets in the cache before building any of their deps.")
+  private boolean isCacheFirst = false;
 
   @Argument
   private List<String> arguments = Lists.newArrayList();
@@ -112,6 +115,14 @@ public class BuildCommandOptions extends AbstractCommandOptions {
   }
 
 
+  /**
+   * @return whether the deps of the requested targets that are fetched from the artifact cache
+   *     may be left unbuilt.
+   */
+  public boolean isCacheFirst() {
+    return isCacheFirst || getBuckConfig().isCacheFirstEnabled();
+  }
+
   int getNumThreads() {
     return numThreads;
   }
@@ -148,6 +159,7 @@ public class BuildCommandOptions extends AbstractCommandOptions {
         isJacocoEnabled(),
         isDebugEnabled(),
         getBuildDependencies(),
+        isCacheFirst(),
         eventBus,
         platform,
         environment,
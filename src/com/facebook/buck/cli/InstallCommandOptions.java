@@ -98,6 +98,15 @@ public class InstallCommandOptions extends BuildCommandOptions {
     return activity;
   }
 
+  /**
+   * An exopackage install copies the secondary dex files produced by the deps of the APK, so those
+   * must always be built.
+   */
+  @Override
+  public boolean isCacheFirst() {
+    return false;
+  }
+
   public InstallCommandOptions(BuckConfig buckConfig) {
     super(buckConfig);
   }
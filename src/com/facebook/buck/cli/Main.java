@@ -28,6 +28,7 @@ import com.facebook.buck.event.listener.SuperConsoleEventBusListener;
 import com.facebook.buck.httpserver.WebServer;
 import com.facebook.buck.java.JavaBuckConfig;
 import com.facebook.buck.java.JavaCompilerEnvironment;
+import com.facebook.buck.json.BuildFileParseCache;
 import com.facebook.buck.log.LogConfig;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
@@ -48,6 +49,7 @@ import com.facebook.buck.util.DefaultAndroidDirectoryResolver;
 import com.facebook.buck.util.DefaultFileHashCache;
 import com.facebook.buck.util.DefaultPropertyFinder;
 import com.facebook.buck.util.FileHashCache;
+import com.facebook.buck.util.FileHashIndex;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.InterruptionFailedException;
 import com.facebook.buck.util.ProcessExecutor;
@@ -160,7 +162,7 @@ public final class Main {
         ImmutableMap<String, String> environment) throws IOException {
       this.config = Preconditions.checkNotNull(config);
       this.console = Preconditions.checkNotNull(console);
-      this.hashCache = new DefaultFileHashCache(projectFilesystem, console);
+      this.hashCache = createFileHashCache(config, projectFilesystem, console);
       Repository repository = new Repository(
           "default",
           projectFilesystem,
@@ -172,7 +174,9 @@ public final class Main {
           environment,
           config.getPythonInterpreter(),
           config.getTempFilePatterns(),
-          createRuleKeyBuilderFactory(hashCache));
+          createRuleKeyBuilderFactory(hashCache),
+          config.getNumParserThreads(),
+          createBuildFileParseCache(config, projectFilesystem, hashCache));
       this.androidDirectoryResolver = Preconditions.checkNotNull(androidDirectoryResolver);
 
       this.fileEventBus = new EventBus("file-change-events");
@@ -234,6 +238,10 @@ public final class Main {
       return parser;
     }
 
+    private DefaultFileHashCache getFileHashCache() {
+      return hashCache;
+    }
+
     private AndroidDirectoryResolver getAndroidDirectoryResolver() {
       return androidDirectoryResolver;
     }
@@ -583,6 +591,7 @@ public final class Main {
 
       // Create or get Parser and invalidate cached command parameters.
       Parser parser = null;
+      DefaultFileHashCache hashCache = null;
 
       if (isDaemon) {
         try {
@@ -596,6 +605,7 @@ public final class Main {
               clientEnvironment,
               commandEvent,
               buildEventBus);
+          hashCache = Preconditions.checkNotNull(daemon).getFileHashCache();
         } catch (WatchmanWatcherException | IOException e) {
           buildEventBus.post(ConsoleEvent.warning(
                   "Watchman threw an exception while parsing file changes.\n%s",
@@ -606,17 +616,21 @@ public final class Main {
       Repository repository = new Repository("default", projectFilesystem, buildRuleTypes, config);
 
       if (parser == null) {
+        hashCache = createFileHashCache(config, projectFilesystem, console);
         parser = new Parser(
             repository,
             console,
             clientEnvironment,
             config.getPythonInterpreter(),
             config.getTempFilePatterns(),
-            createRuleKeyBuilderFactory(new DefaultFileHashCache(projectFilesystem, console)));
+            createRuleKeyBuilderFactory(hashCache),
+            config.getNumParserThreads(),
+            createBuildFileParseCache(config, projectFilesystem, hashCache));
       }
       JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(projectFilesystem);
 
-      CachingBuildEngine buildEngine = new CachingBuildEngine();
+      CachingBuildEngine buildEngine = new CachingBuildEngine(
+          Optional.<FileHashCache>of(hashCache));
       exitCode = executingCommand.execute(remainingArgs,
           config,
           new CommandRunnerParams(
@@ -631,6 +645,12 @@ public final class Main {
               clientEnvironment,
               config.createDefaultJavaPackageFinder()));
 
+      try {
+        hashCache.saveIndex();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to save the file hash index.");
+      }
+
       // If the Daemon is running and serving web traffic, print the URL to the Chrome Trace.
       if (webServer.isPresent()) {
         int port = webServer.get().getPort();
@@ -878,6 +898,17 @@ public final class Main {
         environment);
   }
 
+  private static DefaultFileHashCache createFileHashCache(
+      BuckConfig config,
+      ProjectFilesystem projectFilesystem,
+      Console console) {
+    Optional<FileHashIndex> fileHashIndex = Optional.absent();
+    if (config.isPersistentFileHashCacheEnabled()) {
+      fileHashIndex = Optional.of(FileHashIndex.load(projectFilesystem));
+    }
+    return new DefaultFileHashCache(projectFilesystem, console, fileHashIndex);
+  }
+
   /**
    * @param hashCache A cache of file content hashes, used to avoid reading and hashing input files.
    */
@@ -892,6 +923,20 @@ public final class Main {
     };
   }
 
+  /**
+   * @param hashCache A cache of file content hashes, used to check whether build files and the
+   *     files they include have changed since they were last parsed.
+   */
+  private static Optional<BuildFileParseCache> createBuildFileParseCache(
+      BuckConfig config,
+      ProjectFilesystem projectFilesystem,
+      FileHashCache hashCache) {
+    if (!config.isPersistentParseCacheEnabled()) {
+      return Optional.absent();
+    }
+    return Optional.of(new BuildFileParseCache(projectFilesystem, hashCache));
+  }
+
   @VisibleForTesting
   int tryRunMainWithExitCode(File projectRoot, Optional<NGContext> context, String... args)
       throws IOException, InterruptedException {
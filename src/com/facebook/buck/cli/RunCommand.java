@@ -23,6 +23,7 @@ import com.facebook.buck.rules.BinaryBuildRule;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.shell.DefaultShellStep;
 import com.facebook.buck.shell.ShellStep;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 
 import java.io.IOException;
@@ -38,6 +39,22 @@ public class RunCommand extends AbstractCommandRunner<RunCommandOptions> {
     return "runs the specified target as a command, with provided args";
   }
 
+  /**
+   * @return the options to build the target to run, which runs against the outputs of the deps of
+   *     the target, so those must always be built, even with {@code [build] cache_first}.
+   */
+  @VisibleForTesting
+  static BuildCommandOptions createBuildCommandOptions(RunCommandOptions options) {
+    BuildCommandOptions buildCommandOptions = new BuildCommandOptions(options.getBuckConfig()) {
+      @Override
+      public boolean isCacheFirst() {
+        return false;
+      }
+    };
+    buildCommandOptions.setArguments(ImmutableList.of(options.getTarget()));
+    return buildCommandOptions;
+  }
+
   @Override
   int runCommandWithOptionsInternal(RunCommandOptions options)
       throws IOException, InterruptedException {
@@ -49,8 +66,7 @@ public class RunCommand extends AbstractCommandRunner<RunCommandOptions> {
 
     // Make sure the target is built.
     BuildCommand buildCommand = new BuildCommand(getCommandRunnerParams());
-    BuildCommandOptions buildCommandOptions = new BuildCommandOptions(options.getBuckConfig());
-    buildCommandOptions.setArguments(ImmutableList.of(options.getTarget()));
+    BuildCommandOptions buildCommandOptions = createBuildCommandOptions(options);
     int exitCode = buildCommand.runCommandWithOptions(buildCommandOptions);
     if (exitCode != 0) {
       return exitCode;
@@ -130,6 +130,14 @@ public class TestCommandOptions extends BuildCommandOptions {
     return !isResultsCacheDisabled;
   }
 
+  /**
+   * Tests run against the outputs of the deps of the test rules, so those must always be built.
+   */
+  @Override
+  public boolean isCacheFirst() {
+    return false;
+  }
+
   @Override
   public boolean isDebugEnabled() {
     return isDebugEnabled;
@@ -71,12 +71,16 @@ public class Build implements Closeable {
 
   private final BuildDependencies buildDependencies;
 
+  private final boolean isCacheFirst;
+
   /** Not set until {@link #executeBuild(Set)} is invoked. */
   @Nullable
   private BuildContext buildContext;
 
   /**
    * @param buildDependencies How to include dependencies when building rules.
+   * @param isCacheFirst Whether to look for the requested rules in the artifact cache before
+   *     building their deps.
    * @param environment
    */
   public Build(
@@ -94,6 +98,7 @@ public class Build implements Closeable {
       boolean isJacocoEnabled,
       boolean isDebugEnabled,
       BuildDependencies buildDependencies,
+      boolean isCacheFirst,
       BuckEventBus eventBus,
       Platform platform,
       ImmutableMap<String, String> environment,
@@ -124,6 +129,7 @@ public class Build implements Closeable {
     this.stepRunner = new DefaultStepRunner(executionContext, numThreads);
     this.javaPackageFinder = Preconditions.checkNotNull(javaPackageFinder);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
+    this.isCacheFirst = isCacheFirst;
   }
 
   public ActionGraph getActionGraph() {
@@ -226,6 +232,7 @@ public class Build implements Closeable {
         .setAndroidBootclasspathForAndroidPlatformTarget(
             executionContext.getAndroidPlatformTargetOptional())
         .setBuildDependencies(buildDependencies)
+        .setCacheFirst(isCacheFirst)
         .build();
 
     return Builder.getInstance().buildRules(buildEngine, rulesToBuild, buildContext);
@@ -19,6 +19,7 @@ package com.facebook.buck.dalvik;
 import com.facebook.buck.java.classes.FileLike;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
@@ -33,14 +34,23 @@ import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import javax.annotation.Nullable;
+
 /**
  * Helper to write a Zip file used by {@link DalvikAwareZipSplitter}.
+ * <p>
+ * A helper created by {@link #newPlan} accounts for its entries and writes its report just the
+ * same, but only records the entries, so that the zip can be written later, in parallel with
+ * others.
  */
 public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
 
   private static final int MAX_METHOD_REFERENCES = 64 * 1024;
 
+  @Nullable
   private final ZipOutputStream outStream;
+  @Nullable
+  private final ImmutableList.Builder<FileLike> plannedEntries;
   private final Set<String> entryNames = Sets.newHashSet();
   private final long linearAllocLimit;
   private final File reportFile;
@@ -55,14 +65,47 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
       File reportDir,
       DalvikStatsCache dalvikStatsCache)
       throws FileNotFoundException {
-    this.outStream = new ZipOutputStream(
-      new BufferedOutputStream(
-          new FileOutputStream(outputFile)));
+    this(
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile))),
+        /* plannedEntries */ null,
+        outputFile,
+        linearAllocLimit,
+        reportDir,
+        dalvikStatsCache);
+  }
+
+  private DalvikAwareOutputStreamHelper(
+      @Nullable ZipOutputStream outStream,
+      @Nullable ImmutableList.Builder<FileLike> plannedEntries,
+      File outputFile,
+      long linearAllocLimit,
+      File reportDir,
+      DalvikStatsCache dalvikStatsCache) {
+    Preconditions.checkArgument((outStream == null) != (plannedEntries == null));
+    this.outStream = outStream;
+    this.plannedEntries = plannedEntries;
     this.linearAllocLimit = linearAllocLimit;
     this.reportFile = new File(reportDir, outputFile.getName() + ".txt");
     this.dalvikStatsCache = dalvikStatsCache;
   }
 
+  /**
+   * @return a helper that plans the contents of {@code outputFile} without writing it.
+   */
+  static DalvikAwareOutputStreamHelper newPlan(
+      File outputFile,
+      long linearAllocLimit,
+      File reportDir,
+      DalvikStatsCache dalvikStatsCache) {
+    return new DalvikAwareOutputStreamHelper(
+        /* outStream */ null,
+        ImmutableList.<FileLike>builder(),
+        outputFile,
+        linearAllocLimit,
+        reportDir,
+        dalvikStatsCache);
+  }
+
   private boolean isEntryTooBig(FileLike entry) {
     DalvikStatsTool.Stats stats = dalvikStatsCache.getStats(entry);
     if (currentLinearAllocSize + stats.estimatedLinearAllocSize > linearAllocLimit) {
@@ -92,9 +135,13 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
     // proguard seems to handle merging multiple -injars into a single -outjar.
     if (!containsEntry(fileLike)) {
       entryNames.add(name);
-      outStream.putNextEntry(new ZipEntry(name));
-      try (InputStream in = fileLike.getInput()) {
-        ByteStreams.copy(in, outStream);
+      if (plannedEntries != null) {
+        plannedEntries.add(fileLike);
+      } else {
+        outStream.putNextEntry(new ZipEntry(name));
+        try (InputStream in = fileLike.getInput()) {
+          ByteStreams.copy(in, outStream);
+        }
       }
 
       // Make sure FileLike#getSize didn't lie (or we forgot to call canPutEntry).
@@ -111,8 +158,18 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
     }
   }
 
+  /**
+   * @return the entries put in a helper created by {@link #newPlan}, in the order they were put.
+   */
+  ImmutableList<FileLike> getPlannedEntries() {
+    Preconditions.checkState(plannedEntries != null, "Only a plan has planned entries.");
+    return plannedEntries.build();
+  }
+
   @Override
   public void close() throws IOException {
-    outStream.close();
+    if (outStream != null) {
+      outStream.close();
+    }
   }
 }
@@ -23,20 +23,41 @@ import com.facebook.buck.java.classes.DefaultClasspathTraverser;
 import com.facebook.buck.java.classes.FileLike;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
 
 /**
  * Alternative to {@link DefaultZipSplitter} that uses estimates from {@link DalvikStatsTool}
@@ -59,21 +80,40 @@ import java.util.Set;
  *     to zips as space allows. This is a simple, greedy algorithm.
  *   </li>
  * </ul>
+ * When it may use more than one thread, it first scans the inputs concurrently into a
+ * {@link DalvikClassIndex}, makes the same three passes over the index to plan what goes in each
+ * zip, and then writes the zips concurrently. The zips have the same entries, in the same order, as
+ * those written by a single thread.
+ * <p>
+ * When it is given where to keep the {@link SecondaryDexAssignment} between splits, the third pass
+ * instead puts every class that it can back in the zip it went into last time, and only then adds
+ * the new classes to the last secondary zip, or to new ones. A change to a few classes then only
+ * changes the secondary zips that they are in, rather than every zip after the first one that
+ * changed.
  */
 public class DalvikAwareZipSplitter implements ZipSplitter {
 
   private final ProjectFilesystem filesystem;
   private final Set<Path> inFiles;
   private final File outPrimary;
+  private final File outSecondaryDir;
+  private final String secondaryPattern;
+  private final ZipSplitter.CanaryStrategy canaryStrategy;
   private final Predicate<String> requiredInPrimaryZip;
   private final Set<String> wantedInPrimaryZip;
   private final File reportDir;
   private final long linearAllocLimit;
-  private final DalvikStatsCache dalvikStatsCache;
+  private final Optional<Path> dalvikStatsCacheFile;
+  private final Optional<Path> secondaryDexAssignmentFile;
+  private final int numThreads;
   private final DexSplitStrategy dexSplitStrategy;
 
   private final MySecondaryDexHelper secondaryDexWriter;
   private DalvikAwareOutputStreamHelper primaryOut;
+  private DalvikStatsCache dalvikStatsCache;
+  /** The planned zips, by the file each is written to, or null when zips are written directly. */
+  @Nullable
+  private Map<File, DalvikAwareOutputStreamHelper> plannedZips;
 
   /**
    * @see ZipSplitterFactory#newInstance(Set, File, File, String, Predicate,
@@ -90,13 +130,19 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       Set<String> wantedInPrimaryZip,
       DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      Optional<Path> dalvikStatsCacheFile,
+      Optional<Path> secondaryDexAssignmentFile,
+      int numThreads) {
     if (linearAllocLimit <= 0) {
       throw new HumanReadableException("linear_alloc_hard_limit must be greater than zero.");
     }
     this.filesystem = Preconditions.checkNotNull(filesystem);
     this.inFiles = ImmutableSet.copyOf(inFiles);
     this.outPrimary = Preconditions.checkNotNull(outPrimary);
+    this.outSecondaryDir = Preconditions.checkNotNull(outSecondaryDir);
+    this.secondaryPattern = Preconditions.checkNotNull(secondaryPattern);
+    this.canaryStrategy = Preconditions.checkNotNull(canaryStrategy);
     this.secondaryDexWriter =
         new MySecondaryDexHelper(outSecondaryDir, secondaryPattern, canaryStrategy);
     this.requiredInPrimaryZip = Preconditions.checkNotNull(requiredInPrimaryZip);
@@ -104,9 +150,19 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     this.reportDir = reportDir;
     this.dexSplitStrategy = Preconditions.checkNotNull(dexSplitStrategy);
     this.linearAllocLimit = linearAllocLimit;
-    this.dalvikStatsCache = new DalvikStatsCache();
+    this.dalvikStatsCacheFile = Preconditions.checkNotNull(dalvikStatsCacheFile);
+    this.secondaryDexAssignmentFile = Preconditions.checkNotNull(secondaryDexAssignmentFile);
+    Preconditions.checkArgument(numThreads > 0);
+    this.numThreads = numThreads;
   }
 
+  /**
+   * @param dalvikStatsCacheFile where the estimates of the classes in {@code inFiles} are kept
+   *     between builds, if anywhere.
+   * @param secondaryDexAssignmentFile where the zip that each class went into is kept between
+   *     builds, if anywhere. Splits that keep it try to leave classes in the same zips.
+   * @param numThreads how many threads estimate the classes that are not in that file.
+   */
   public static DalvikAwareZipSplitter splitZip(
       ProjectFilesystem filesystem,
       Set<Path> inFiles,
@@ -118,7 +174,10 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       Set<String> wantedInPrimaryZip,
       DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      Optional<Path> dalvikStatsCacheFile,
+      Optional<Path> secondaryDexAssignmentFile,
+      int numThreads) {
     return new DalvikAwareZipSplitter(
         filesystem,
         inFiles,
@@ -130,13 +189,78 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
         wantedInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        dalvikStatsCacheFile,
+        secondaryDexAssignmentFile,
+        numThreads);
   }
 
   @Override
   public Collection<File> execute() throws IOException {
-    ClasspathTraverser classpathTraverser = new DefaultClasspathTraverser();
+    if (dalvikStatsCacheFile.isPresent()) {
+      dalvikStatsCache = DalvikStatsCache.load(dalvikStatsCacheFile.get());
+    } else {
+      dalvikStatsCache = new DalvikStatsCache();
+    }
+
+    Optional<SecondaryDexAssignment> previousAssignment = Optional.absent();
+    if (secondaryDexAssignmentFile.isPresent()) {
+      previousAssignment = SecondaryDexAssignment.load(secondaryDexAssignmentFile.get());
+    }
+
+    Collection<File> secondaryZips;
+    if (numThreads == 1 && !secondaryDexAssignmentFile.isPresent()) {
+      // Estimate every class up front, so that the traversals below only look them up.
+      dalvikStatsCache.populate(inFiles, filesystem, numThreads);
+      plannedZips = null;
+      secondaryZips = split(
+          new DefaultClasspathTraverser(),
+          Optional.<SecondaryDexAssignment>absent());
+    } else {
+      ExecutorService executor = MoreExecutors.newMultiThreadExecutor("zip-splitter", numThreads);
+      try {
+        final DalvikClassIndex index =
+            DalvikClassIndex.scan(inFiles, filesystem, dalvikStatsCache, executor);
+        plannedZips = Maps.newLinkedHashMap();
+        secondaryZips = split(
+            new ClasspathTraverser() {
+              @Override
+              public void traverse(ClasspathTraversal traversal) throws IOException {
+                for (FileLike entry : index.getEntries()) {
+                  traversal.visit(entry);
+                }
+              }
+            },
+            previousAssignment);
+        writePlannedZips(plannedZips, executor);
+        if (secondaryDexAssignmentFile.isPresent()) {
+          SecondaryDexAssignment.of(ImmutableList.copyOf(plannedZips.values()))
+              .save(secondaryDexAssignmentFile.get());
+        }
+      } finally {
+        MoreExecutors.shutdownOrThrow(
+            executor,
+            /* timeout */ 1,
+            TimeUnit.MINUTES,
+            new RuntimeException("Could not shut down the threads splitting the zip."));
+      }
+    }
 
+    if (dalvikStatsCacheFile.isPresent()) {
+      dalvikStatsCache.save(dalvikStatsCacheFile.get());
+    }
+    return secondaryZips;
+  }
+
+  /**
+   * Makes the three passes over the entries that {@code classpathTraverser} visits.
+   *
+   * @param previousAssignment where the entries went in the previous split, which can only be
+   *     present when the zips are planned.
+   */
+  private Collection<File> split(
+      ClasspathTraverser classpathTraverser,
+      Optional<SecondaryDexAssignment> previousAssignment) throws IOException {
     // Start out by writing the primary zip and recording which entries were added to it.
     primaryOut = newZipOutput(outPrimary);
     secondaryDexWriter.reset();
@@ -152,7 +276,10 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
         if (requiredInPrimaryZip.apply(relativePath)) {
           primaryOut.putEntry(entry);
         } else if (wantedInPrimaryZip.contains(relativePath)) {
-          entriesBuilder.put(relativePath, new BufferedFileLike(entry));
+          // Entries of the index can be read at any time, but others only during the traversal.
+          entriesBuilder.put(
+              relativePath,
+              entry instanceof DalvikClassIndex.Entry ? entry : new BufferedFileLike(entry));
         }
       }
     });
@@ -166,6 +293,11 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       }
     }
 
+    if (previousAssignment.isPresent() &&
+        canKeepSecondaryZips(classpathTraverser, previousAssignment.get())) {
+      return putEntriesInPreviousZips(classpathTraverser, previousAssignment.get());
+    }
+
     // Now that all of the required entries have been added to the primary zip, fill the rest of
     // the zip up with the remaining entries.
     classpathTraverser.traverse(new ClasspathTraversal(inFiles, filesystem) {
@@ -191,8 +323,183 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     return secondaryDexWriter.getFiles();
   }
 
+  /**
+   * @return whether each secondary zip of {@code previousAssignment} would still get a class,
+   *     which is what keeps the zips numbered without gaps.
+   */
+  private boolean canKeepSecondaryZips(
+      ClasspathTraverser classpathTraverser,
+      final SecondaryDexAssignment previousAssignment) throws IOException {
+    final Set<Integer> keptZipIndexes = Sets.newHashSet();
+    classpathTraverser.traverse(new ClasspathTraversal(inFiles, filesystem) {
+      @Override
+      public void visit(FileLike entry) {
+        if (!primaryOut.containsEntry(entry)) {
+          keptZipIndexes.addAll(
+              previousAssignment.getZipIndex(entry.getRelativePath()).asSet());
+        }
+      }
+    });
+    for (int i = 1; i <= previousAssignment.getNumberOfSecondaryZips(); i++) {
+      if (!keptZipIndexes.contains(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The third pass when there is a previous assignment: entries go back into the zip they were in,
+   * if it still has room for them, and the others are then added as the greedy pass would.
+   */
+  private Collection<File> putEntriesInPreviousZips(
+      ClasspathTraverser classpathTraverser,
+      final SecondaryDexAssignment previousAssignment) throws IOException {
+    final List<DalvikAwareOutputStreamHelper> secondaryOuts = Lists.newArrayList();
+    for (int i = 1; i <= previousAssignment.getNumberOfSecondaryZips(); i++) {
+      secondaryOuts.add(newSecondaryZipOutput(i));
+    }
+
+    final List<FileLike> newEntries = Lists.newArrayList();
+    classpathTraverser.traverse(new ClasspathTraversal(inFiles, filesystem) {
+      @Override
+      public void visit(FileLike entry) throws IOException {
+        if (primaryOut.containsEntry(entry)) {
+          return;
+        }
+        Optional<Integer> zipIndex = previousAssignment.getZipIndex(entry.getRelativePath());
+        DalvikAwareOutputStreamHelper out = null;
+        if (zipIndex.isPresent()) {
+          out = zipIndex.get() == SecondaryDexAssignment.PRIMARY ?
+              primaryOut :
+              secondaryOuts.get(zipIndex.get() - 1);
+        }
+        if (out != null && (out.containsEntry(entry) || out.canPutEntry(entry))) {
+          out.putEntry(entry);
+        } else {
+          newEntries.add(entry);
+        }
+      }
+    });
+
+    for (FileLike entry : newEntries) {
+      if (primaryOut.containsEntry(entry) || isInAny(secondaryOuts, entry)) {
+        continue;
+      }
+      if (dexSplitStrategy == DexSplitStrategy.MAXIMIZE_PRIMARY_DEX_SIZE &&
+          primaryOut.canPutEntry(entry)) {
+        primaryOut.putEntry(entry);
+        continue;
+      }
+      DalvikAwareOutputStreamHelper out =
+          secondaryOuts.isEmpty() ? null : secondaryOuts.get(secondaryOuts.size() - 1);
+      if (out == null || !out.canPutEntry(entry)) {
+        out = newSecondaryZipOutput(secondaryOuts.size() + 1);
+        secondaryOuts.add(out);
+      }
+      out.putEntry(entry);
+    }
+
+    primaryOut.close();
+    ImmutableList.Builder<File> secondaryZips = ImmutableList.builder();
+    for (int i = 1; i <= secondaryOuts.size(); i++) {
+      secondaryOuts.get(i - 1).close();
+      secondaryZips.add(getSecondaryZipFile(i));
+    }
+    return secondaryZips.build();
+  }
+
+  private static boolean isInAny(List<DalvikAwareOutputStreamHelper> outs, FileLike entry) {
+    for (DalvikAwareOutputStreamHelper out : outs) {
+      if (out.containsEntry(entry)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the {@code index}th secondary zip, with its canary already in it, just as
+   *     {@link SecondaryDexHelper} would have started it.
+   */
+  private DalvikAwareOutputStreamHelper newSecondaryZipOutput(int index) throws IOException {
+    DalvikAwareOutputStreamHelper out = newZipOutput(getSecondaryZipFile(index));
+    if (canaryStrategy == ZipSplitter.CanaryStrategy.INCLUDE_CANARIES) {
+      out.putEntry(CanaryFactory.create(index));
+    }
+    return out;
+  }
+
+  private File getSecondaryZipFile(int index) {
+    return new File(outSecondaryDir, String.format(secondaryPattern, index));
+  }
+
   private DalvikAwareOutputStreamHelper newZipOutput(File file) throws FileNotFoundException {
-    return new DalvikAwareOutputStreamHelper(file, linearAllocLimit, reportDir, dalvikStatsCache);
+    if (plannedZips == null) {
+      return new DalvikAwareOutputStreamHelper(
+          file,
+          linearAllocLimit,
+          reportDir,
+          dalvikStatsCache);
+    }
+    DalvikAwareOutputStreamHelper plan =
+        DalvikAwareOutputStreamHelper.newPlan(file, linearAllocLimit, reportDir, dalvikStatsCache);
+    plannedZips.put(file, plan);
+    return plan;
+  }
+
+  private static void writePlannedZips(
+      Map<File, DalvikAwareOutputStreamHelper> plannedZips,
+      ExecutorService executor) throws IOException {
+    List<Future<Void>> writes = Lists.newArrayList();
+    for (final Map.Entry<File, DalvikAwareOutputStreamHelper> plannedZip : plannedZips.entrySet()) {
+      writes.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          writePlannedZip(plannedZip.getKey(), plannedZip.getValue().getPlannedEntries());
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (Future<Void> write : writes) {
+        write.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing zips.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<Void> write : writes) {
+        write.cancel(/* mayInterruptIfRunning */ true);
+      }
+    }
+  }
+
+  /**
+   * Writes {@code entries} just as {@link DalvikAwareOutputStreamHelper#putEntry} would have.
+   */
+  private static void writePlannedZip(File file, ImmutableList<FileLike> entries)
+      throws IOException {
+    Map<File, ZipFile> openZips = Maps.newHashMap();
+    try (ZipOutputStream outStream =
+             new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      for (FileLike entry : entries) {
+        outStream.putNextEntry(new ZipEntry(entry.getRelativePath()));
+        try (InputStream in = entry instanceof DalvikClassIndex.Entry ?
+                 ((DalvikClassIndex.Entry) entry).open(openZips) :
+                 entry.getInput()) {
+          ByteStreams.copy(in, outStream);
+        }
+      }
+    } finally {
+      for (ZipFile zip : openZips.values()) {
+        zip.close();
+      }
+    }
   }
 
   private class MySecondaryDexHelper
@@ -17,6 +17,8 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 
 import java.io.File;
@@ -27,12 +29,30 @@ public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
 
   private final long linearAllocLimit;
   private final Set<String> wantedInPrimaryZip;
+  private final Optional<Path> dalvikStatsCacheFile;
+  private final Optional<Path> secondaryDexAssignmentFile;
 
   public DalvikAwareZipSplitterFactory(
       long linearAllocLimit,
       Set<String> wantedInPrimaryZip) {
+    this(linearAllocLimit, wantedInPrimaryZip, Optional.<Path>absent(), Optional.<Path>absent());
+  }
+
+  /**
+   * @param dalvikStatsCacheFile absolute path of the file in which the splitters keep the
+   *     linear alloc estimates of classes between builds.
+   * @param secondaryDexAssignmentFile absolute path of the file in which the splitters keep the
+   *     zip that each class went into, so that the next split can keep classes where they were.
+   */
+  public DalvikAwareZipSplitterFactory(
+      long linearAllocLimit,
+      Set<String> wantedInPrimaryZip,
+      Optional<Path> dalvikStatsCacheFile,
+      Optional<Path> secondaryDexAssignmentFile) {
     this.linearAllocLimit = linearAllocLimit;
     this.wantedInPrimaryZip = wantedInPrimaryZip;
+    this.dalvikStatsCacheFile = Preconditions.checkNotNull(dalvikStatsCacheFile);
+    this.secondaryDexAssignmentFile = Preconditions.checkNotNull(secondaryDexAssignmentFile);
   }
 
   @Override
@@ -57,6 +77,9 @@ public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
         wantedInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        dalvikStatsCacheFile,
+        secondaryDexAssignmentFile,
+        Runtime.getRuntime().availableProcessors());
   }
 }
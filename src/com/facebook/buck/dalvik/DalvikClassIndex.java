@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.java.classes.AbstractFileLike;
+import com.facebook.buck.java.classes.ClasspathTraversal;
+import com.facebook.buck.java.classes.DefaultClasspathTraverser;
+import com.facebook.buck.java.classes.FileLike;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+/**
+ * Every entry of a set of inputs, in the order in which a {@link ClasspathTraversal} of them would
+ * visit it, along with its size. Scanning the inputs also leaves the {@link DalvikStatsTool}
+ * estimate of every class in the {@link DalvikStatsCache} that it is given.
+ * <p>
+ * The inputs are scanned concurrently, one task per input, but the index does not depend on which
+ * task finishes first. Once built, it can be bucketed without reading any input again, and its
+ * entries can be read again from any thread.
+ */
+class DalvikClassIndex {
+
+  private final ImmutableList<Entry> entries;
+
+  private DalvikClassIndex(ImmutableList<Entry> entries) {
+    this.entries = Preconditions.checkNotNull(entries);
+  }
+
+  /**
+   * Scans each of {@code inFiles} on {@code executor}, estimating the classes that
+   * {@code dalvikStatsCache} does not already know.
+   */
+  static DalvikClassIndex scan(
+      Set<Path> inFiles,
+      final ProjectFilesystem filesystem,
+      final DalvikStatsCache dalvikStatsCache,
+      ExecutorService executor) throws IOException {
+    List<Future<ImmutableList<Entry>>> scans = Lists.newArrayList();
+    for (final Path inFile : inFiles) {
+      // This mirrors how ClasspathTraversal tells zips from directories and files.
+      final boolean isZip = ImmutableSet.of("jar", "zip").contains(
+          Files.getFileExtension(inFile.getFileName().toString()).toLowerCase());
+      scans.add(executor.submit(new Callable<ImmutableList<Entry>>() {
+        @Override
+        public ImmutableList<Entry> call() throws IOException {
+          final ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+          new DefaultClasspathTraverser().traverse(
+              new ClasspathTraversal(ImmutableSet.of(inFile), filesystem) {
+                @Override
+                public void visit(FileLike fileLike) throws IOException {
+                  dalvikStatsCache.getStats(fileLike);
+                  entries.add(new Entry(
+                      fileLike.getContainer(),
+                      fileLike.getRelativePath(),
+                      fileLike.getSize(),
+                      isZip));
+                }
+              });
+          return entries.build();
+        }
+      }));
+    }
+
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    try {
+      for (Future<ImmutableList<Entry>> scan : scans) {
+        entries.addAll(scan.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while scanning classes.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      for (Future<ImmutableList<Entry>> scan : scans) {
+        scan.cancel(/* mayInterruptIfRunning */ true);
+      }
+    }
+    return new DalvikClassIndex(entries.build());
+  }
+
+  ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * An entry of an input. Its contents are only read again through {@link #open(Map)}, so that
+   * each jar is opened once per reader rather than once per entry.
+   */
+  static class Entry extends AbstractFileLike {
+    private final File container;
+    private final String relativePath;
+    private final long size;
+    private final boolean isInZip;
+
+    private Entry(File container, String relativePath, long size, boolean isInZip) {
+      this.container = Preconditions.checkNotNull(container);
+      this.relativePath = Preconditions.checkNotNull(relativePath);
+      this.size = size;
+      this.isInZip = isInZip;
+    }
+
+    @Override
+    public File getContainer() {
+      return container;
+    }
+
+    @Override
+    public String getRelativePath() {
+      return relativePath;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+
+    @Override
+    public InputStream getInput() throws IOException {
+      throw new UnsupportedOperationException("Use open() to read " + relativePath);
+    }
+
+    /**
+     * @param openZips the zips opened by the caller so far, which it must close.
+     */
+    InputStream open(Map<File, ZipFile> openZips) throws IOException {
+      if (isInZip) {
+        ZipFile zip = openZips.get(container);
+        if (zip == null) {
+          zip = new ZipFile(container);
+          openZips.put(container, zip);
+        }
+        return zip.getInputStream(zip.getEntry(relativePath));
+      }
+      return new FileInputStream(container);
+    }
+  }
+}
@@ -16,26 +16,232 @@
 
 package com.facebook.buck.dalvik;
 
+import com.facebook.buck.java.classes.ClasspathTraversal;
+import com.facebook.buck.java.classes.DefaultClasspathTraverser;
 import com.facebook.buck.java.classes.FileLike;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Cache to memoize results from DalvikStatsTool.
+ * <p>
+ * Results are keyed by the SHA-1 of the contents of the class they describe, so they can be
+ * {@link #save(Path) saved} and {@link #load(Path) loaded} again by a later build, which then only
+ * has to hash the classes that have not changed, rather than visit them with ASM.
  */
 class DalvikStatsCache {
 
+  /** Change this whenever the format of the file, or how DalvikStatsTool estimates, changes. */
+  private static final int FORMAT_VERSION = 1;
+
+  /** How many classes may be waiting to be estimated per thread, which bounds their memory. */
+  private static final int MAX_PENDING_CLASSES_PER_THREAD = 16;
+
   private final ConcurrentMap<FileLike, DalvikStatsTool.Stats> cache;
+  private final ConcurrentMap<String, HashCode> hashesOfEntries = Maps.newConcurrentMap();
+  private final ConcurrentMap<HashCode, DalvikStatsTool.Stats> statsOfHashes;
+  private final Set<HashCode> usedHashes = Sets.newSetFromMap(
+      Maps.<HashCode, Boolean>newConcurrentMap());
 
   DalvikStatsCache() {
-    cache = new MapMaker().weakKeys().makeMap();
+    this(Maps.<HashCode, DalvikStatsTool.Stats>newConcurrentMap());
+  }
+
+  private DalvikStatsCache(ConcurrentMap<HashCode, DalvikStatsTool.Stats> statsOfHashes) {
+    this.cache = new MapMaker().weakKeys().makeMap();
+    this.statsOfHashes = Preconditions.checkNotNull(statsOfHashes);
+  }
+
+  /**
+   * @return a cache with the results saved in {@code file}, or an empty one if there are none or
+   *     they were saved by another version of Buck.
+   */
+  static DalvikStatsCache load(Path file) {
+    ConcurrentMap<HashCode, DalvikStatsTool.Stats> statsOfHashes = Maps.newConcurrentMap();
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        return new DalvikStatsCache();
+      }
+
+      // Class and method names are shared by many references, so each is only written once.
+      String[] strings = new String[in.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+
+      int numStats = in.readInt();
+      byte[] hash = new byte[(int) (Hashing.sha1().bits() / 8)];
+      for (int i = 0; i < numStats; i++) {
+        in.readFully(hash);
+        int estimatedLinearAllocSize = in.readInt();
+        DalvikStatsTool.MethodReference[] methodReferences =
+            new DalvikStatsTool.MethodReference[in.readInt()];
+        for (int j = 0; j < methodReferences.length; j++) {
+          methodReferences[j] = new DalvikStatsTool.MethodReference(
+              strings[in.readInt()],
+              strings[in.readInt()],
+              strings[in.readInt()]);
+        }
+        statsOfHashes.put(
+            HashCode.fromBytes(hash.clone()),
+            new DalvikStatsTool.Stats(
+                estimatedLinearAllocSize,
+                ImmutableSet.copyOf(methodReferences)));
+      }
+    } catch (IOException | RuntimeException e) {
+      // A missing, truncated or corrupt cache is no worse than no cache.
+      return new DalvikStatsCache();
+    }
+    return new DalvikStatsCache(statsOfHashes);
+  }
+
+  /**
+   * Writes the results for the classes that this cache was asked about to {@code file}, so that
+   * the results for classes that are no longer built do not accumulate.
+   */
+  void save(Path file) throws IOException {
+    Map<String, Integer> stringIndexes = Maps.newLinkedHashMap();
+    List<HashCode> hashes = Lists.newArrayList();
+    for (HashCode hash : usedHashes) {
+      DalvikStatsTool.Stats stats = statsOfHashes.get(hash);
+      if (stats == null) {
+        continue;
+      }
+      hashes.add(hash);
+      for (DalvikStatsTool.MethodReference methodReference : stats.methodReferences) {
+        indexString(stringIndexes, methodReference.className);
+        indexString(stringIndexes, methodReference.methodName);
+        indexString(stringIndexes, methodReference.methodDesc);
+      }
+    }
+
+    Files.createDirectories(file.getParent());
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(stringIndexes.size());
+      for (String string : stringIndexes.keySet()) {
+        out.writeUTF(string);
+      }
+
+      out.writeInt(hashes.size());
+      for (HashCode hash : hashes) {
+        DalvikStatsTool.Stats stats = statsOfHashes.get(hash);
+        out.write(hash.asBytes());
+        out.writeInt(stats.estimatedLinearAllocSize);
+        out.writeInt(stats.methodReferences.size());
+        for (DalvikStatsTool.MethodReference methodReference : stats.methodReferences) {
+          out.writeInt(stringIndexes.get(methodReference.className));
+          out.writeInt(stringIndexes.get(methodReference.methodName));
+          out.writeInt(stringIndexes.get(methodReference.methodDesc));
+        }
+      }
+    }
+    // Another build may be reading the file, so replace it in one go.
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void indexString(Map<String, Integer> stringIndexes, String string) {
+    if (!stringIndexes.containsKey(string)) {
+      stringIndexes.put(string, stringIndexes.size());
+    }
+  }
+
+  /**
+   * Reads every class in {@code inFiles}, and hashes it and estimates it if that has not been done
+   * before, on {@code numThreads} threads. Later calls to {@link #getStats(FileLike)} for those
+   * classes need neither read nor visit them.
+   */
+  void populate(Set<Path> inFiles, ProjectFilesystem filesystem, int numThreads)
+      throws IOException {
+    final ExecutorService executor = MoreExecutors.newMultiThreadExecutor(
+        "dalvik-stats",
+        numThreads);
+    final Semaphore pendingClasses = new Semaphore(numThreads * MAX_PENDING_CLASSES_PER_THREAD);
+    final List<Future<?>> results = Lists.newArrayList();
+    try {
+      // Zips can only be read in order, so the classes are read here and hashed elsewhere.
+      new DefaultClasspathTraverser().traverse(new ClasspathTraversal(inFiles, filesystem) {
+        @Override
+        public void visit(FileLike entry) throws IOException {
+          if (!isClassFile(entry)) {
+            return;
+          }
+          final String key = getKey(entry);
+          final byte[] contents;
+          try (InputStream stream = entry.getInput()) {
+            contents = ByteStreams.toByteArray(stream);
+          }
+          pendingClasses.acquireUninterruptibly();
+          results.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              try {
+                hashesOfEntries.put(key, getStatsOfContents(key, contents).getKey());
+              } finally {
+                pendingClasses.release();
+              }
+              return null;
+            }
+          }));
+        }
+      });
+
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while estimating classes.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      MoreExecutors.shutdownOrThrow(
+          executor,
+          /* timeout */ 1,
+          TimeUnit.MINUTES,
+          new RuntimeException("Could not shut down the threads estimating classes."));
+    }
   }
 
   DalvikStatsTool.Stats getStats(FileLike entry) {
     String name = entry.getRelativePath();
-    if (!name.endsWith(".class")) {
+    if (!isClassFile(entry)) {
       // Probably something like a pom.properties file in a JAR: this does not contribute
       // to the linear alloc size, so return zero.
       return DalvikStatsTool.Stats.ZERO;
@@ -47,7 +253,20 @@ class DalvikStatsCache {
     }
 
     try {
-      stats = DalvikStatsTool.getEstimate(entry.getInput());
+      String key = getKey(entry);
+      HashCode hash = hashesOfEntries.get(key);
+      stats = hash == null ? null : statsOfHashes.get(hash);
+      if (stats == null) {
+        Map.Entry<HashCode, DalvikStatsTool.Stats> hashAndStats;
+        try (InputStream stream = entry.getInput()) {
+          hashAndStats = getStatsOfContents(key, ByteStreams.toByteArray(stream));
+        }
+        // Other FileLikes for the same entry can then be estimated without being read.
+        hashesOfEntries.put(key, hashAndStats.getKey());
+        stats = hashAndStats.getValue();
+      } else {
+        usedHashes.add(hash);
+      }
       cache.put(entry, stats);
       return stats;
     } catch (IOException e) {
@@ -56,4 +275,42 @@ class DalvikStatsCache {
       throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
     }
   }
+
+  /**
+   * @return the hash of {@code contents}, and the estimate for them, which is only computed if it
+   *     is not already known.
+   */
+  private Map.Entry<HashCode, DalvikStatsTool.Stats> getStatsOfContents(
+      String key,
+      byte[] contents) throws IOException {
+    HashCode hash = Hashing.sha1().hashBytes(contents);
+    DalvikStatsTool.Stats stats = statsOfHashes.get(hash);
+    if (stats == null) {
+      try {
+        stats = DalvikStatsTool.getEstimate(new ByteArrayInputStream(contents));
+      } catch (RuntimeException e) {
+        throw new RuntimeException(String.format("Error calculating size for %s.", key), e);
+      }
+      statsOfHashes.put(hash, stats);
+    }
+    usedHashes.add(hash);
+    return Maps.immutableEntry(hash, stats);
+  }
+
+  @VisibleForTesting
+  int getNumberOfKnownClasses() {
+    return statsOfHashes.size();
+  }
+
+  private static boolean isClassFile(FileLike entry) {
+    return entry.getRelativePath().endsWith(".class");
+  }
+
+  /**
+   * @return a key that identifies {@code entry} for as long as its container is not rewritten,
+   *     which is at least as long as this cache is used by a single split.
+   */
+  private static String getKey(FileLike entry) {
+    return entry.getContainer().getPath() + '!' + entry.getRelativePath();
+  }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.java.classes.FileLike;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which zip each entry of a split went into: {@link #PRIMARY} for the primary zip, and {@code n}
+ * for the {@code n}th secondary zip. A split that starts from the assignment of the previous one
+ * can leave every unchanged class where it was, so only the secondary dexes whose classes changed
+ * need to be dexed again.
+ */
+class SecondaryDexAssignment {
+
+  static final int PRIMARY = 0;
+
+  /** Change this whenever the format of the file changes. */
+  private static final String FORMAT_VERSION = "1";
+
+  private final ImmutableMap<String, Integer> zipIndexes;
+
+  private SecondaryDexAssignment(ImmutableMap<String, Integer> zipIndexes) {
+    this.zipIndexes = Preconditions.checkNotNull(zipIndexes);
+  }
+
+  /**
+   * @param zips the primary zip, followed by the secondary zips in order, all planned by
+   *     {@link DalvikAwareOutputStreamHelper#newPlan}.
+   */
+  static SecondaryDexAssignment of(List<DalvikAwareOutputStreamHelper> zips) {
+    Map<String, Integer> zipIndexes = Maps.newLinkedHashMap();
+    for (int i = 0; i < zips.size(); i++) {
+      for (FileLike entry : zips.get(i).getPlannedEntries()) {
+        // Canaries are made anew for every secondary zip, so they are not assigned.
+        if (entry instanceof DalvikClassIndex.Entry &&
+            !zipIndexes.containsKey(entry.getRelativePath())) {
+          zipIndexes.put(entry.getRelativePath(), i);
+        }
+      }
+    }
+    return new SecondaryDexAssignment(ImmutableMap.copyOf(zipIndexes));
+  }
+
+  /**
+   * @return the assignment saved in {@code file}, or absent if there is none, or it was saved by
+   *     another version of Buck.
+   */
+  static Optional<SecondaryDexAssignment> load(Path file) {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, Charsets.UTF_8);
+    } catch (IOException e) {
+      return Optional.absent();
+    }
+    if (lines.isEmpty() || !lines.get(0).equals(FORMAT_VERSION)) {
+      return Optional.absent();
+    }
+
+    ImmutableMap.Builder<String, Integer> zipIndexes = ImmutableMap.builder();
+    for (String line : lines.subList(1, lines.size())) {
+      int space = line.indexOf(' ');
+      int zipIndex;
+      try {
+        zipIndex = Integer.parseInt(line.substring(0, space));
+      } catch (IndexOutOfBoundsException | NumberFormatException e) {
+        return Optional.absent();
+      }
+      if (zipIndex < PRIMARY) {
+        return Optional.absent();
+      }
+      zipIndexes.put(line.substring(space + 1), zipIndex);
+    }
+    try {
+      return Optional.of(new SecondaryDexAssignment(zipIndexes.build()));
+    } catch (IllegalArgumentException e) {
+      // The same entry is assigned twice, so the file is not one that save() wrote.
+      return Optional.absent();
+    }
+  }
+
+  void save(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, Charsets.UTF_8)) {
+      writer.write(FORMAT_VERSION);
+      writer.newLine();
+      for (Map.Entry<String, Integer> zipIndex : zipIndexes.entrySet()) {
+        writer.write(String.format("%d %s", zipIndex.getValue(), zipIndex.getKey()));
+        writer.newLine();
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the zip that {@code relativePath} went into, if it went into any.
+   */
+  Optional<Integer> getZipIndex(String relativePath) {
+    return Optional.fromNullable(zipIndexes.get(relativePath));
+  }
+
+  int getNumberOfSecondaryZips() {
+    int numberOfSecondaryZips = 0;
+    for (int zipIndex : zipIndexes.values()) {
+      numberOfSecondaryZips = Math.max(numberOfSecondaryZips, zipIndex);
+    }
+    return numberOfSecondaryZips;
+  }
+}
@@ -23,6 +23,7 @@ import com.facebook.buck.java.classes.FileLike;
 import com.facebook.buck.java.classes.FileLikes;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
@@ -91,14 +92,9 @@ public class AccumulateClassNamesStep implements Step {
     }
 
     try {
-      context.getProjectFilesystem().writeLinesToPath(
-          Iterables.transform(classNames.entrySet(),
-              new Function<Map.Entry<String, HashCode>, String>() {
-            @Override
-            public String apply(Entry<String, HashCode> entry) {
-              return entry.getKey() + CLASS_NAME_HASH_CODE_SEPARATOR + entry.getValue();
-            }
-          }),
+      writeClassHashes(
+          context.getProjectFilesystem(),
+          classNames,
           whereClassNamesShouldBeWritten);
     } catch (IOException e) {
       context.getBuckEventBus().post(ThrowableConsoleEvent.create(e,
@@ -164,6 +160,25 @@ public class AccumulateClassNamesStep implements Step {
     return Optional.of(classNamesBuilder.build());
   }
 
+  /**
+   * Writes {@code classNames} to {@code whereClassNamesShouldBeWritten} in the format that
+   * {@link #parseClassHashes(List)} reads.
+   */
+  static void writeClassHashes(
+      ProjectFilesystem filesystem,
+      ImmutableSortedMap<String, HashCode> classNames,
+      Path whereClassNamesShouldBeWritten) throws IOException {
+    filesystem.writeLinesToPath(
+        Iterables.transform(classNames.entrySet(),
+            new Function<Map.Entry<String, HashCode>, String>() {
+          @Override
+          public String apply(Entry<String, HashCode> entry) {
+            return entry.getKey() + CLASS_NAME_HASH_CODE_SEPARATOR + entry.getValue();
+          }
+        }),
+        whereClassNamesShouldBeWritten);
+  }
+
   /**
    * @param lines that were written in the same format output by {@link #execute(ExecutionContext)}.
    */
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.java.ClasspathJarCache.CachedJar;
+import com.facebook.buck.java.ClasspathJarCache.JarEntryJavaFileObject;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * A {@link JavaFileManager} that looks up classes on the classpath in the jars held by a
+ * {@link ClasspathJarCache}, rather than opening and indexing every jar anew for each compilation.
+ * Directories on the classpath, and anything that cannot be read as a jar, are still listed by the
+ * {@link StandardJavaFileManager} that this delegates to.
+ * <p>
+ * The classpath is given to the constructor, so it must not also be passed to javac as
+ * {@code -classpath}. The jars are released back to the cache by {@link #close()}.
+ */
+class CachingClasspathFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+  private static final Logger logger = Logger.get(CachingClasspathFileManager.class);
+
+  /**
+   * Either a cached jar or a path listed by the delegate, in classpath order.
+   */
+  private static class ClasspathElement {
+    private final Path path;
+    @Nullable
+    private final CachedJar jar;
+
+    private ClasspathElement(Path path, @Nullable CachedJar jar) {
+      this.path = path.toAbsolutePath().normalize();
+      this.jar = jar;
+    }
+  }
+
+  private final ImmutableList<ClasspathElement> classpath;
+  private final boolean hasDelegatedElements;
+  private boolean isClosed;
+
+  /**
+   * @param classpathEntries absolute paths of the entries on the classpath, in order.
+   */
+  public CachingClasspathFileManager(
+      StandardJavaFileManager fileManager,
+      ClasspathJarCache jarCache,
+      Iterable<Path> classpathEntries) throws IOException {
+    super(fileManager);
+    Preconditions.checkNotNull(jarCache);
+
+    ImmutableList.Builder<ClasspathElement> classpath = ImmutableList.builder();
+    List<File> delegatedEntries = Lists.newArrayList();
+    for (Path entry : classpathEntries) {
+      CachedJar jar = null;
+      if (Files.isRegularFile(entry)) {
+        try {
+          jar = jarCache.acquire(entry);
+        } catch (IOException e) {
+          // Let javac report the problem with the entry, if it has to read it.
+          logger.debug(e, "Unable to cache %s", entry);
+        }
+      }
+      classpath.add(new ClasspathElement(entry, jar));
+      if (jar == null) {
+        delegatedEntries.add(entry.toFile());
+      }
+    }
+    this.classpath = classpath.build();
+    this.hasDelegatedElements = !delegatedEntries.isEmpty();
+    // An empty, rather than an unset, classpath keeps javac from falling back to the classpath of
+    // this process.
+    fileManager.setLocation(StandardLocation.CLASS_PATH, delegatedEntries);
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(
+      Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+
+    List<JavaFileObject> delegatedFiles = hasDelegatedElements ?
+        Lists.newArrayList(super.list(location, packageName, kinds, recurse)) :
+        Lists.<JavaFileObject>newArrayList();
+
+    // Keep the classpath order, as javac uses the first of several classes with the same name.
+    ImmutableList.Builder<JavaFileObject> files = ImmutableList.builder();
+    for (ClasspathElement element : classpath) {
+      if (element.jar != null) {
+        files.addAll(element.jar.list(packageName, kinds, recurse));
+      } else if (!delegatedFiles.isEmpty()) {
+        for (int i = 0; i < delegatedFiles.size(); ) {
+          JavaFileObject file = delegatedFiles.get(i);
+          if (Paths.get(file.toUri()).startsWith(element.path)) {
+            files.add(file);
+            delegatedFiles.remove(i);
+          } else {
+            i++;
+          }
+        }
+      }
+    }
+    files.addAll(delegatedFiles);
+    return files.build();
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof JarEntryJavaFileObject) {
+      return ((JarEntryJavaFileObject) file).getBinaryName();
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof JarEntryJavaFileObject || b instanceof JarEntryJavaFileObject) {
+      return a.toUri().equals(b.toUri());
+    }
+    return super.isSameFile(a, b);
+  }
+
+  /**
+   * Without {@code -processorpath}, javac looks for annotation processors on the classpath, which
+   * the delegate only partially knows about.
+   */
+  @Override
+  public ClassLoader getClassLoader(Location location) {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.getClassLoader(location);
+    }
+    URL[] urls = new URL[classpath.size()];
+    for (int i = 0; i < urls.length; i++) {
+      try {
+        urls[i] = classpath.get(i).path.toUri().toURL();
+      } catch (MalformedURLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return new URLClassLoader(urls, fileManager.getClass().getClassLoader());
+  }
+
+  @Override
+  public boolean hasLocation(Location location) {
+    return location == StandardLocation.CLASS_PATH || super.hasLocation(location);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!isClosed) {
+      isClosed = true;
+      for (ClasspathElement element : classpath) {
+        if (element.jar != null) {
+          element.jar.release();
+        }
+      }
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Keeps the jars on the classpaths of in-process javac invocations open, along with an index of
+ * their entries by package, so that each jar is opened and indexed once rather than by every
+ * compilation that has it on its classpath.
+ * <p>
+ * Jars are keyed by path and revalidated against the size, modification time and file key of the
+ * file on each use, so a jar that is rewritten by a later build is reindexed. The cache is bounded
+ * by the number of entries and jars it holds, and evicts the least recently used jars first. A
+ * jar that is evicted while a compilation is still reading from it is closed once that
+ * compilation releases it.
+ */
+public class ClasspathJarCache {
+
+  private static final Logger logger = Logger.get(ClasspathJarCache.class);
+
+  /**
+   * Weight of a jar itself, in addition to that of its entries, so that the number of open file
+   * descriptors is bounded even if the jars are small.
+   */
+  @VisibleForTesting
+  static final int JAR_WEIGHT = 500;
+
+  /**
+   * Allows for about 1000 open jars, or about half a million indexed classes.
+   */
+  private static final long DEFAULT_MAX_WEIGHT = 500000;
+
+  private static final ClasspathJarCache SHARED_INSTANCE =
+      new ClasspathJarCache(DEFAULT_MAX_WEIGHT);
+
+  private final Cache<Path, CachedJar> jars;
+
+  @VisibleForTesting
+  ClasspathJarCache(long maxWeight) {
+    this.jars = CacheBuilder.newBuilder()
+        // A single segment makes the bound and the LRU order apply to the cache as a whole, rather
+        // than to each segment.
+        .concurrencyLevel(1)
+        .maximumWeight(maxWeight)
+        .weigher(new Weigher<Path, CachedJar>() {
+          @Override
+          public int weigh(Path path, CachedJar jar) {
+            return JAR_WEIGHT + jar.entriesByPackage.size();
+          }
+        })
+        .removalListener(new RemovalListener<Path, CachedJar>() {
+          @Override
+          public void onRemoval(RemovalNotification<Path, CachedJar> notification) {
+            notification.getValue().evict();
+          }
+        })
+        .build();
+  }
+
+  /**
+   * @return the cache shared by all compilations in this process, which outlives a single build
+   *     when running in buckd.
+   */
+  public static ClasspathJarCache getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  /**
+   * @param jarPath absolute path to a jar.
+   * @return the open and indexed jar, which must be {@link CachedJar#release() released} by the
+   *     caller once it no longer reads from it.
+   */
+  public CachedJar acquire(final Path jarPath) throws IOException {
+    while (true) {
+      final JarStamp stamp = JarStamp.of(jarPath);
+      final AtomicReference<CachedJar> openedJar = new AtomicReference<>();
+      CachedJar jar;
+      try {
+        jar = jars.get(jarPath, new Callable<CachedJar>() {
+          @Override
+          public CachedJar call() throws IOException {
+            CachedJar jar = CachedJar.open(jarPath, stamp);
+            // Retain the jar before it is cached, so that it stays open even if it is too large
+            // to be kept in the cache.
+            jar.retain();
+            openedJar.set(jar);
+            return jar;
+          }
+        });
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+
+      if (jar == openedJar.get()) {
+        return jar;
+      }
+      if (!jar.stamp.equals(stamp)) {
+        // The jar was rewritten since it was indexed.
+        jars.asMap().remove(jarPath, jar);
+        continue;
+      }
+      if (jar.retain()) {
+        return jar;
+      }
+      // The jar was evicted and closed between being looked up and being retained.
+    }
+  }
+
+  @VisibleForTesting
+  long size() {
+    return jars.size();
+  }
+
+  @VisibleForTesting
+  void cleanUp() {
+    jars.cleanUp();
+  }
+
+  /**
+   * Identifies the contents of a jar without reading it.
+   */
+  private static class JarStamp {
+    private final long size;
+    private final long lastModifiedMillis;
+    private final Object fileKey;
+
+    private JarStamp(long size, long lastModifiedMillis, Object fileKey) {
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.fileKey = fileKey;
+    }
+
+    public static JarStamp of(Path jarPath) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(jarPath, BasicFileAttributes.class);
+      return new JarStamp(
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis(),
+          attributes.fileKey());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof JarStamp)) {
+        return false;
+      }
+      JarStamp that = (JarStamp) obj;
+      return this.size == that.size &&
+          this.lastModifiedMillis == that.lastModifiedMillis &&
+          Objects.equal(this.fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(size, lastModifiedMillis, fileKey);
+    }
+  }
+
+  /**
+   * An open jar and the names of its {@code .class} and {@code .java} entries by package.
+   */
+  public static class CachedJar {
+    private final Path jarPath;
+    private final JarStamp stamp;
+    private final ZipFile zipFile;
+    private final ImmutableListMultimap<String, ZipEntry> entriesByPackage;
+
+    @GuardedBy("this")
+    private int references;
+    @GuardedBy("this")
+    private boolean isEvicted;
+    @GuardedBy("this")
+    private boolean isClosed;
+
+    private CachedJar(
+        Path jarPath,
+        JarStamp stamp,
+        ZipFile zipFile,
+        ImmutableListMultimap<String, ZipEntry> entriesByPackage) {
+      this.jarPath = Preconditions.checkNotNull(jarPath);
+      this.stamp = Preconditions.checkNotNull(stamp);
+      this.zipFile = Preconditions.checkNotNull(zipFile);
+      this.entriesByPackage = Preconditions.checkNotNull(entriesByPackage);
+    }
+
+    private static CachedJar open(Path jarPath, JarStamp stamp) throws IOException {
+      ZipFile zipFile = new ZipFile(jarPath.toFile());
+      ImmutableListMultimap.Builder<String, ZipEntry> entriesByPackage =
+          ImmutableListMultimap.builder();
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements();
+          ) {
+        ZipEntry entry = entries.nextElement();
+        if (getKind(entry.getName()) == JavaFileObject.Kind.OTHER) {
+          continue;
+        }
+        int lastSlash = entry.getName().lastIndexOf('/');
+        String packageName = lastSlash == -1 ?
+            "" :
+            entry.getName().substring(0, lastSlash).replace('/', '.');
+        entriesByPackage.put(packageName, entry);
+      }
+      return new CachedJar(jarPath, stamp, zipFile, entriesByPackage.build());
+    }
+
+    public Path getPath() {
+      return jarPath;
+    }
+
+    /**
+     * @return the class and source files in {@code packageName} whose kinds are in {@code kinds},
+     *     including those of its subpackages if {@code recurse} is set.
+     */
+    public ImmutableList<JavaFileObject> list(
+        String packageName,
+        Set<JavaFileObject.Kind> kinds,
+        boolean recurse) {
+      ImmutableList.Builder<JavaFileObject> files = ImmutableList.builder();
+      if (recurse) {
+        String subpackagePrefix = packageName.isEmpty() ? "" : packageName + ".";
+        for (Map.Entry<String, ZipEntry> entry : entriesByPackage.entries()) {
+          if (entry.getKey().equals(packageName) ||
+              entry.getKey().startsWith(subpackagePrefix)) {
+            addIfKindMatches(entry.getValue(), kinds, files);
+          }
+        }
+      } else {
+        for (ZipEntry entry : entriesByPackage.get(packageName)) {
+          addIfKindMatches(entry, kinds, files);
+        }
+      }
+      return files.build();
+    }
+
+    private void addIfKindMatches(
+        ZipEntry entry,
+        Set<JavaFileObject.Kind> kinds,
+        ImmutableList.Builder<JavaFileObject> files) {
+      JavaFileObject.Kind kind = getKind(entry.getName());
+      if (kinds.contains(kind)) {
+        files.add(new JarEntryJavaFileObject(this, entry, kind));
+      }
+    }
+
+    private InputStream openInputStream(ZipEntry entry) throws IOException {
+      return zipFile.getInputStream(entry);
+    }
+
+    private synchronized boolean retain() {
+      if (isClosed) {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    /**
+     * Allows the jar to be closed once it has been evicted from the cache.
+     */
+    public synchronized void release() {
+      Preconditions.checkState(references > 0);
+      references--;
+      if (isEvicted && references == 0) {
+        close();
+      }
+    }
+
+    private synchronized void evict() {
+      isEvicted = true;
+      if (references == 0) {
+        close();
+      }
+    }
+
+    private void close() {
+      isClosed = true;
+      try {
+        zipFile.close();
+      } catch (IOException e) {
+        logger.debug(e, "Unable to close %s", jarPath);
+      }
+    }
+
+    @VisibleForTesting
+    synchronized boolean isClosed() {
+      return isClosed;
+    }
+
+    private static JavaFileObject.Kind getKind(String entryName) {
+      if (entryName.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+        return JavaFileObject.Kind.CLASS;
+      } else if (entryName.endsWith(JavaFileObject.Kind.SOURCE.extension)) {
+        return JavaFileObject.Kind.SOURCE;
+      }
+      return JavaFileObject.Kind.OTHER;
+    }
+  }
+
+  /**
+   * A class or source file in a {@link CachedJar}.
+   */
+  static class JarEntryJavaFileObject extends SimpleJavaFileObject {
+    private final CachedJar jar;
+    private final ZipEntry entry;
+
+    private JarEntryJavaFileObject(CachedJar jar, ZipEntry entry, JavaFileObject.Kind kind) {
+      super(createUri(jar.jarPath, entry), kind);
+      this.jar = jar;
+      this.entry = entry;
+    }
+
+    /**
+     * Creates a hierarchical URI, unlike the opaque {@code jar:file:...!/...} form, as
+     * {@link SimpleJavaFileObject} expects {@link URI#getPath()} to be set.
+     */
+    private static URI createUri(Path jarPath, ZipEntry entry) {
+      try {
+        return new URI("jar", null, jarPath.toUri().getPath() + "!/" + entry.getName(), null);
+      } catch (URISyntaxException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * @return the fully qualified name of the class in this file.
+     */
+    public String getBinaryName() {
+      String name = entry.getName();
+      return name.substring(0, name.length() - getKind().extension.length()).replace('/', '.');
+    }
+
+    @Override
+    public String getName() {
+      return jar.jarPath + "(" + entry.getName() + ")";
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      return jar.openInputStream(entry);
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      try (InputStream inputStream = openInputStream()) {
+        return new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8);
+      }
+    }
+
+    @Override
+    public long getLastModified() {
+      return entry.getTime();
+    }
+
+    @Override
+    public boolean isNameCompatible(String simpleName, JavaFileObject.Kind kind) {
+      String baseName = simpleName + kind.extension;
+      String name = entry.getName();
+      return kind == getKind() &&
+          (name.equals(baseName) || name.endsWith("/" + baseName));
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * What {@link IncrementalJavac} needs to know about a compiled class to decide which sources have
+ * to be recompiled when it changes: a hash of its ABI, a hash of the compile-time constants that
+ * javac may have inlined into other classes, and the classes it refers to.
+ */
+class CompiledClassInfo {
+
+  private static final int JAVA_7_MAJOR_VERSION = 51;
+  private static final int JAVA_8_MAJOR_VERSION = 52;
+
+  private static final Pattern CLASS_IN_DESCRIPTOR = Pattern.compile("L([^;<>\\[]+)[;<]");
+
+  private final String name;
+  private final HashCode abiHash;
+  private final HashCode constantsHash;
+  private final ImmutableSortedSet<String> superTypes;
+  private final ImmutableSortedSet<String> referencedClasses;
+
+  /**
+   * @param name the internal name of the class, such as {@code com/example/Example$Inner}.
+   */
+  public CompiledClassInfo(
+      String name,
+      HashCode abiHash,
+      HashCode constantsHash,
+      Set<String> superTypes,
+      Set<String> referencedClasses) {
+    this.name = Preconditions.checkNotNull(name);
+    this.abiHash = Preconditions.checkNotNull(abiHash);
+    this.constantsHash = Preconditions.checkNotNull(constantsHash);
+    this.superTypes = ImmutableSortedSet.copyOf(superTypes);
+    this.referencedClasses = ImmutableSortedSet.copyOf(referencedClasses);
+  }
+
+  /**
+   * Reads the ABI and the references of the class in {@code classFile}.
+   */
+  public static CompiledClassInfo create(byte[] classFile) throws IOException {
+    ClassReader reader;
+    try {
+      reader = new ClassReader(withSupportedVersion(classFile));
+    } catch (RuntimeException e) {
+      throw new IOException("Not a valid class file.", e);
+    }
+    AbiHashingVisitor visitor = new AbiHashingVisitor();
+    reader.accept(
+        visitor,
+        ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+    ImmutableSet.Builder<String> superTypes = ImmutableSet.builder();
+    if (reader.getSuperName() != null) {
+      superTypes.add(reader.getSuperName());
+    }
+    superTypes.add(reader.getInterfaces());
+
+    Set<String> referencedClasses = getReferencedClasses(classFile);
+    referencedClasses.remove(reader.getClassName());
+    return new CompiledClassInfo(
+        reader.getClassName(),
+        visitor.abi.hash(),
+        visitor.constants.hash(),
+        superTypes.build(),
+        referencedClasses);
+  }
+
+  /**
+   * ASM 4 refuses to read classes for Java 8, although it can read everything in them that is
+   * hashed here: Java 8 added no constant pool entries after Java 7, and the new attributes are
+   * skipped.
+   */
+  private static byte[] withSupportedVersion(byte[] classFile) throws IOException {
+    if (classFile.length < 8) {
+      throw new IOException("Not a valid class file.");
+    }
+    int majorVersion = ((classFile[6] & 0xFF) << 8) | (classFile[7] & 0xFF);
+    if (majorVersion <= JAVA_7_MAJOR_VERSION) {
+      return classFile;
+    } else if (majorVersion > JAVA_8_MAJOR_VERSION) {
+      throw new IOException("Unsupported class file version: " + majorVersion);
+    }
+    byte[] java7ClassFile = classFile.clone();
+    java7ClassFile[6] = 0;
+    java7ClassFile[7] = (byte) JAVA_7_MAJOR_VERSION;
+    return java7ClassFile;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return a hash of everything about the class that other classes may be compiled against: its
+   *     declaration, and its non-private, non-synthetic members and their annotations.
+   */
+  public HashCode getAbiHash() {
+    return abiHash;
+  }
+
+  /**
+   * @return a hash of the values of the non-private constant fields of the class. As javac copies
+   *     these into the classes that use them, a change to one cannot be traced back to its users.
+   */
+  public HashCode getConstantsHash() {
+    return constantsHash;
+  }
+
+  public ImmutableSortedSet<String> getSuperTypes() {
+    return superTypes;
+  }
+
+  /**
+   * @return the internal names of the classes that this class may refer to. This errs on the side
+   *     of including too many, such as strings that merely look like class names.
+   */
+  public ImmutableSortedSet<String> getReferencedClasses() {
+    return referencedClasses;
+  }
+
+  /**
+   * @return a copy of this that only refers to the classes in {@code classes}.
+   */
+  public CompiledClassInfo retainReferencesTo(Set<String> classes) {
+    return new CompiledClassInfo(
+        name,
+        abiHash,
+        constantsHash,
+        Sets.filter(superTypes, Predicates.in(classes)),
+        Sets.filter(referencedClasses, Predicates.in(classes)));
+  }
+
+  /**
+   * @return every class named in the constant pool of {@code classFile}, either on its own or in a
+   *     type descriptor or signature.
+   */
+  private static Set<String> getReferencedClasses(byte[] classFile) throws IOException {
+    Set<String> classes = Sets.newHashSet();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("Not a valid class file.");
+    }
+    in.skipBytes(4);
+    int constantPoolCount = in.readUnsignedShort();
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1: // Utf8
+          String value = in.readUTF();
+          if (!value.isEmpty() && value.charAt(0) != '(' && value.charAt(0) != '[') {
+            classes.add(value);
+          }
+          Matcher matcher = CLASS_IN_DESCRIPTOR.matcher(value);
+          while (matcher.find()) {
+            classes.add(matcher.group(1));
+          }
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          in.skipBytes(2);
+          break;
+        case 15: // MethodHandle
+          in.skipBytes(3);
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          in.skipBytes(4);
+          break;
+        case 5: // Long
+        case 6: // Double
+          in.skipBytes(8);
+          // These take up two entries in the constant pool.
+          i++;
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag: " + tag);
+      }
+    }
+    return classes;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof CompiledClassInfo)) {
+      return false;
+    }
+    CompiledClassInfo that = (CompiledClassInfo) obj;
+    return this.name.equals(that.name) &&
+        this.abiHash.equals(that.abiHash) &&
+        this.constantsHash.equals(that.constantsHash) &&
+        this.superTypes.equals(that.superTypes) &&
+        this.referencedClasses.equals(that.referencedClasses);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(name, abiHash, constantsHash, superTypes, referencedClasses);
+  }
+
+  private static void putString(Hasher hasher, @Nullable String value) {
+    if (value == null) {
+      hasher.putByte((byte) 0);
+    } else {
+      hasher.putByte((byte) 1).putInt(value.length()).putUnencodedChars(value);
+    }
+  }
+
+  private static void putValue(Hasher hasher, @Nullable Object value) {
+    putString(hasher, value == null ? null : value.getClass().getName());
+    // The ClassReader passes arrays of primitives in annotations as arrays, which have no useful
+    // toString().
+    if (value != null && value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      hasher.putInt(length);
+      for (int i = 0; i < length; i++) {
+        putString(hasher, String.valueOf(Array.get(value, i)));
+      }
+    } else {
+      putString(hasher, String.valueOf(value));
+    }
+  }
+
+  private static boolean isPartOfAbi(int access) {
+    return (access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC)) == 0;
+  }
+
+  /**
+   * Hashes the declarations that javac reads from a class when it compiles against it. Method
+   * bodies are skipped by the {@link ClassReader}, and private and synthetic members are skipped
+   * here, as other classes cannot be compiled against them.
+   */
+  private static class AbiHashingVisitor extends ClassVisitor {
+
+    private final Hasher abi = Hashing.sha1().newHasher();
+    private final Hasher constants = Hashing.sha1().newHasher();
+
+    private AbiHashingVisitor() {
+      super(Opcodes.ASM4);
+    }
+
+    @Override
+    public void visit(
+        int version,
+        int access,
+        String name,
+        String signature,
+        String superName,
+        String[] interfaces) {
+      abi.putChar('C').putInt(access);
+      putString(abi, name);
+      putString(abi, signature);
+      putString(abi, superName);
+      abi.putInt(interfaces.length);
+      for (String anInterface : interfaces) {
+        putString(abi, anInterface);
+      }
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String desc) {
+      abi.putChar('O');
+      putString(abi, owner);
+      putString(abi, name);
+      putString(abi, desc);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      return hashAnnotation(desc, visible);
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+      abi.putChar('I').putInt(access);
+      putString(abi, name);
+      putString(abi, outerName);
+      putString(abi, innerName);
+    }
+
+    @Override
+    public FieldVisitor visitField(
+        int access,
+        String name,
+        String desc,
+        String signature,
+        Object value) {
+      if (!isPartOfAbi(access)) {
+        return null;
+      }
+      abi.putChar('F').putInt(access);
+      putString(abi, name);
+      putString(abi, desc);
+      putString(abi, signature);
+      putValue(abi, value);
+      if (value != null) {
+        putString(constants, name);
+        putValue(constants, value);
+      }
+      return new FieldVisitor(Opcodes.ASM4) {
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+          return hashAnnotation(desc, visible);
+        }
+      };
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+        int access,
+        String name,
+        String desc,
+        String signature,
+        String[] exceptions) {
+      if (!isPartOfAbi(access)) {
+        return null;
+      }
+      abi.putChar('M').putInt(access);
+      putString(abi, name);
+      putString(abi, desc);
+      putString(abi, signature);
+      abi.putInt(exceptions == null ? 0 : exceptions.length);
+      if (exceptions != null) {
+        for (String exception : exceptions) {
+          putString(abi, exception);
+        }
+      }
+      return new MethodVisitor(Opcodes.ASM4) {
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+          abi.putChar('D');
+          return new AnnotationHashingVisitor(abi);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+          return hashAnnotation(desc, visible);
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(
+            int parameter,
+            String desc,
+            boolean visible) {
+          abi.putInt(parameter);
+          return hashAnnotation(desc, visible);
+        }
+      };
+    }
+
+    private AnnotationVisitor hashAnnotation(String desc, boolean visible) {
+      abi.putChar('A').putBoolean(visible);
+      putString(abi, desc);
+      return new AnnotationHashingVisitor(abi);
+    }
+  }
+
+  private static class AnnotationHashingVisitor extends AnnotationVisitor {
+
+    private final Hasher hasher;
+
+    private AnnotationHashingVisitor(Hasher hasher) {
+      super(Opcodes.ASM4);
+      this.hasher = hasher;
+    }
+
+    @Override
+    public void visit(String name, Object value) {
+      hasher.putChar('v');
+      putString(hasher, name);
+      putValue(hasher, value);
+    }
+
+    @Override
+    public void visitEnum(String name, String desc, String value) {
+      hasher.putChar('e');
+      putString(hasher, name);
+      putString(hasher, desc);
+      putString(hasher, value);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String name, String desc) {
+      hasher.putChar('a');
+      putString(hasher, name);
+      putString(hasher, desc);
+      return this;
+    }
+
+    @Override
+    public AnnotationVisitor visitArray(String name) {
+      hasher.putChar('[');
+      putString(hasher, name);
+      return this;
+    }
+
+    @Override
+    public void visitEnd() {
+      hasher.putChar(']');
+    }
+  }
+}
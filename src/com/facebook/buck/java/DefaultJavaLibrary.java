@@ -290,17 +290,29 @@ public class DefaultJavaLibrary extends AbstractBuildRule
             target,
             Optional.of(workingDirectory));
       } else {
+        boolean compileIntoOutputJar = shouldCompileIntoOutputJar(javacOptions);
+        boolean compileIncrementally = shouldCompileIncrementally(javacOptions);
         javacStep = new JavacInMemoryStep(
             outputDirectory,
             getJavaSrcs(),
             transitiveClasspathEntries,
             declaredClasspathEntries,
             javacOptions,
-            Optional.of(getPathToAbiOutputFile()),
+            // The AbiWriter would only see the sources that are recompiled.
+            compileIncrementally ?
+                Optional.<Path>absent() :
+                Optional.of(getPathToAbiOutputFile()),
             Optional.of(target),
             buildDependencies,
             suggestBuildRules,
-            Optional.of(pathToSrcsList));
+            Optional.of(pathToSrcsList),
+            compileIntoOutputJar ? outputJar : Optional.<Path>absent(),
+            compileIntoOutputJar ?
+                Optional.of(JavaLibraryRules.getPathToClassHashes(target)) :
+                Optional.<Path>absent(),
+            compileIncrementally ?
+                Optional.of(getPathToIncrementalStateDir(target)) :
+                Optional.<Path>absent());
       }
       commands.add(javacStep);
 
@@ -358,6 +370,47 @@ public class DefaultJavaLibrary extends AbstractBuildRule
             target.getShortName()));
   }
 
+  /**
+   * @return whether javac can write the classes straight into {@link #outputJar}, and hash them
+   *     for {@code classes.txt} as it does, rather than {@link JarDirectoryStep} and
+   *     {@link AccumulateClassNamesStep} reading them back from the classes directory. That takes
+   *     an in-process javac, and no {@link #postprocessClassesCommands} to rewrite the classes.
+   */
+  private boolean shouldCompileIntoOutputJar(JavacOptions javacOptions) {
+    return outputJar.isPresent() &&
+        !getJavaSrcs().isEmpty() &&
+        postprocessClassesCommands.isEmpty() &&
+        !javacOptions.getJavaCompilerEnvironment().getJavacPath().isPresent();
+  }
+
+  /**
+   * @return whether javac may only recompile the sources that changed since this rule was last
+   *     built, and the sources that depend on them, as {@link IncrementalJavac} does. That is only
+   *     done when javac writes the output jar itself, as the classes are kept elsewhere, and for
+   *     rules without annotation processors, which would only see the recompiled sources.
+   */
+  private boolean shouldCompileIncrementally(JavacOptions javacOptions) {
+    if (!shouldCompileIntoOutputJar(javacOptions) ||
+        !javacOptions.getJavaCompilerEnvironment().isIncrementalCompilationEnabled() ||
+        !javacOptions.getAnnotationProcessingData().isEmpty()) {
+      return false;
+    }
+    for (SourcePath src : getJavaSrcs()) {
+      if (!src.resolve().toString().endsWith(".java")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the directory that the classes compiled by {@link IncrementalJavac} are kept in from
+   *     one build to the next.
+   */
+  private static Path getPathToIncrementalStateDir(BuildTarget target) {
+    return BuildTargets.getBinPath(target, "lib__%s__incremental");
+  }
+
   /**
    * @return directory path relative to the project root where .class files will be generated.
    *     The return value does not end with a slash.
@@ -541,6 +594,27 @@ public class DefaultJavaLibrary extends AbstractBuildRule
     Path outputDirectory = getClassesDir(getBuildTarget());
     steps.add(new MakeCleanDirectoryStep(outputDirectory));
 
+    // If there are resources, then link them to the appropriate place in the classes directory.
+    JavaPackageFinder finder = context.getJavaPackageFinder();
+    if (resourcesRoot.isPresent()) {
+      finder = new ResourcesRootPackageFinder(resourcesRoot.get(), finder);
+    }
+    Step copyResourcesStep = new CopyResourcesStep(
+        getBuildTarget(),
+        resources,
+        outputDirectory,
+        finder);
+
+    // When javac writes the jar itself, it adds whatever is in the classes directory once it has
+    // compiled the classes, so the resources have to be copied there first.
+    boolean compileIntoOutputJar = shouldCompileIntoOutputJar(javacOptions);
+    Path pathToClassHashes = JavaLibraryRules.getPathToClassHashes(getBuildTarget());
+    if (compileIntoOutputJar) {
+      steps.add(copyResourcesStep);
+      steps.add(new MakeCleanDirectoryStep(getOutputJarDirPath(getBuildTarget())));
+      steps.add(new MkdirStep(pathToClassHashes.getParent()));
+    }
+
     Optional<JavacInMemoryStep.SuggestBuildRules> suggestBuildRule =
         createSuggestBuildFunction(context,
             transitiveClasspathEntries,
@@ -583,25 +657,18 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
     addPostprocessClassesCommands(steps, postprocessClassesCommands, outputDirectory);
 
-    // If there are resources, then link them to the appropriate place in the classes directory.
-    JavaPackageFinder finder = context.getJavaPackageFinder();
-    if (resourcesRoot.isPresent()) {
-      finder = new ResourcesRootPackageFinder(resourcesRoot.get(), finder);
+    if (!compileIntoOutputJar) {
+      steps.add(copyResourcesStep);
+      if (outputJar.isPresent()) {
+        steps.add(new MakeCleanDirectoryStep(getOutputJarDirPath(getBuildTarget())));
+        steps.add(new JarDirectoryStep(
+            outputJar.get(),
+            Collections.singleton(outputDirectory),
+            /* mainClass */ null,
+            /* manifestFile */ null));
+      }
     }
-    steps.add(
-        new CopyResourcesStep(
-            getBuildTarget(),
-            resources,
-            outputDirectory,
-            finder));
-
     if (outputJar.isPresent()) {
-      steps.add(new MakeCleanDirectoryStep(getOutputJarDirPath(getBuildTarget())));
-      steps.add(new JarDirectoryStep(
-          outputJar.get(),
-          Collections.singleton(outputDirectory),
-          /* mainClass */ null,
-          /* manifestFile */ null));
       buildableContext.recordArtifact(outputJar.get());
     }
 
@@ -611,7 +678,11 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
     addStepsToRecordAbiToDisk(steps, abiKeySupplier, buildableContext);
 
-    JavaLibraryRules.addAccumulateClassNamesStep(this, buildableContext, steps);
+    if (compileIntoOutputJar) {
+      buildableContext.recordArtifact(pathToClassHashes);
+    } else {
+      JavaLibraryRules.addAccumulateClassNamesStep(this, buildableContext, steps);
+    }
 
     return steps.build();
   }
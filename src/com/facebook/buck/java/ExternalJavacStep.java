@@ -16,7 +16,7 @@
 
 package com.facebook.buck.java;
 
-
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.Sha1HashCode;
@@ -34,7 +34,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -45,6 +47,8 @@ import java.util.Set;
 
 public class ExternalJavacStep extends JavacStep {
 
+  private static final Logger logger = Logger.get(ExternalJavacStep.class);
+
   private final Path pathToJavac;
   private final BuildTarget target;
   private final Optional<Path> workingDirectory;
@@ -132,26 +136,42 @@ public class ExternalJavacStep extends JavacStep {
       }
     }
 
-    ProcessBuilder processBuilder = new ProcessBuilder(command.build());
-
     // Set environment to client environment and add additional information.
-    Map<String, String> env = processBuilder.environment();
-    env.clear();
-    env.putAll(context.getEnvironment());
+    Map<String, String> env = Maps.newHashMap(context.getEnvironment());
     env.put("BUCK_INVOKING_RULE", (invokingRule.isPresent() ? invokingRule.get().toString() : ""));
     env.put("BUCK_TARGET", target.toString());
     env.put("BUCK_DIRECTORY_ROOT", context.getProjectDirectoryRoot().toString());
     env.put("BUCK_OUTPUT_ABI_FILE", pathToOutputAbiFile.or(new File("").toPath()).toString());
 
-    processBuilder.directory(context.getProjectDirectoryRoot());
-    // Run the command
     int exitCode = -1;
-    try {
-      ProcessExecutor.Result result = context.getProcessExecutor().execute(processBuilder.start());
-      exitCode = result.getExitCode();
-    } catch (IOException e) {
-      e.printStackTrace(context.getStdErr());
-      return exitCode;
+    Optional<Integer> exitCodeFromWorker = Optional.absent();
+    Optional<JavacWorkerOptions> workerOptions =
+        javacOptions.getJavaCompilerEnvironment().getJavacWorkerOptions();
+    if (workerOptions.isPresent()) {
+      ImmutableList<String> commandLine = command.build();
+      exitCodeFromWorker = compileOnWorker(
+          context,
+          workerOptions.get(),
+          commandLine.subList(1, commandLine.size()),
+          ImmutableMap.copyOf(env));
+    }
+
+    if (exitCodeFromWorker.isPresent()) {
+      exitCode = exitCodeFromWorker.get();
+    } else {
+      ProcessBuilder processBuilder = new ProcessBuilder(command.build());
+      processBuilder.environment().clear();
+      processBuilder.environment().putAll(env);
+      processBuilder.directory(context.getProjectDirectoryRoot());
+      // Run the command
+      try {
+        ProcessExecutor.Result result =
+            context.getProcessExecutor().execute(processBuilder.start());
+        exitCode = result.getExitCode();
+      } catch (IOException e) {
+        e.printStackTrace(context.getStdErr());
+        return exitCode;
+      }
     }
 
     if (exitCode != 0) {
@@ -174,6 +194,39 @@ public class ExternalJavacStep extends JavacStep {
     return 0;
   }
 
+  /**
+   * Sends the compilation to a persistent javac worker, printing its output if it fails, as the
+   * {@link ProcessExecutor} would for a forked javac.
+   *
+   * @return the exit code of the compilation, or absent if no worker could run it, in which case
+   *     it should be run by a new javac instead.
+   */
+  private Optional<Integer> compileOnWorker(
+      ExecutionContext context,
+      JavacWorkerOptions workerOptions,
+      ImmutableList<String> args,
+      ImmutableMap<String, String> env) throws InterruptedException {
+    JavacWorker.Response response;
+    try {
+      response = JavacWorkerPool.getSharedInstance(
+          pathToJavac,
+          workerOptions,
+          context.getProjectDirectoryRoot(),
+          context.getEnvironment())
+          .compile(args, env);
+    } catch (IOException e) {
+      logger.warn(e, "Unable to compile %s on a javac worker, running %s instead.",
+          target,
+          pathToJavac);
+      return Optional.absent();
+    }
+    if (response.getExitCode() != 0) {
+      context.getStdOut().print(response.getStdout());
+      context.getStdErr().print(response.getStderr());
+    }
+    return Optional.of(response.getExitCode());
+  }
+
   private ImmutableList<Path> getExpandedSourcePaths(ExecutionContext context)
       throws IOException {
     ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
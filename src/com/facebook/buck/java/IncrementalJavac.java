@@ -0,0 +1,569 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.Sha1HashCode;
+import com.facebook.buck.util.MoreFiles;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import javax.annotation.processing.Processor;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+
+/**
+ * Compiles the sources of a rule into a classes directory that is kept from one build of the rule
+ * to the next, recompiling only the sources that changed since the last build, and the sources
+ * that may have been compiled against an ABI that they changed.
+ * <p>
+ * Alongside the classes, it keeps the hash of each source, the classes that javac wrote for each
+ * source, and a {@link CompiledClassInfo} for each class. When a recompiled class has a new ABI,
+ * the sources of the classes that refer to it, or to one of its subclasses, are recompiled in
+ * turn. Everything is recompiled whenever that would not be safe: when the javac options or the
+ * classpath changed, when a compile-time constant that may have been inlined changed, and when
+ * there are annotation processors on the classpath, which would only see the recompiled sources.
+ */
+class IncrementalJavac {
+
+  private static final Logger logger = Logger.get(IncrementalJavac.class);
+
+  /**
+   * Compiles sources into the classes directory, which must also be on the classpath, so that the
+   * sources that are not recompiled are compiled against.
+   */
+  public interface Compiler {
+    /**
+     * @param classesOfSources where to record the internal names of the classes that javac wrote
+     *     for each of {@code sources}. Use {@link #recordClassesOfSources} to do so.
+     * @return the exit code of javac.
+     */
+    public int compile(
+        ImmutableSortedSet<Path> sources,
+        SetMultimap<Path, String> classesOfSources) throws IOException;
+  }
+
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Every round recompiles the sources that depend on what changed in the previous round. They
+   * converge quickly in practice, but to be safe, everything is recompiled after this many.
+   */
+  private static final int MAX_ROUNDS = 10;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Path classesDirectory;
+  private final Path stateFile;
+  private final String fingerprint;
+  private final ImmutableList<Path> classpath;
+  private final ImmutableSortedMap<Path, HashCode> sourceHashes;
+
+  private final SortedMap<String, CompiledClassInfo> classes = Maps.newTreeMap();
+  private final SetMultimap<Path, String> classesOfSources = TreeMultimap.create();
+  private final Set<Path> compiledSources = Sets.newTreeSet();
+  private boolean hasAnnotationProcessors;
+
+  /**
+   * @param classesDirectory absolute path of the directory to compile the classes into.
+   * @param stateFile absolute path of the file to keep the state of the compilation in.
+   * @param fingerprint everything else the compilation depends on, such as the javac options and
+   *     the classpath, as computed by {@link #computeFingerprint}.
+   * @param classpath the classpath that {@code fingerprint} was computed from, which is searched
+   *     for annotation processors whenever the fingerprint changes.
+   * @param sourceHashes the sources to compile, with hashes of their contents.
+   */
+  public IncrementalJavac(
+      Path classesDirectory,
+      Path stateFile,
+      String fingerprint,
+      ImmutableList<Path> classpath,
+      ImmutableSortedMap<Path, HashCode> sourceHashes) {
+    this.classesDirectory = Preconditions.checkNotNull(classesDirectory);
+    this.stateFile = Preconditions.checkNotNull(stateFile);
+    this.fingerprint = Preconditions.checkNotNull(fingerprint);
+    this.classpath = Preconditions.checkNotNull(classpath);
+    this.sourceHashes = Preconditions.checkNotNull(sourceHashes);
+  }
+
+  /**
+   * Brings the classes directory up to date with the sources. Every source is compiled if there
+   * is no usable previous compilation, or if there are annotation processors on the classpath.
+   *
+   * @return the exit code of javac.
+   */
+  public int build(Compiler compiler) throws IOException {
+    Optional<State> previous = readState();
+    boolean isFingerprintUnchanged =
+        previous.isPresent() && previous.get().fingerprint.equals(fingerprint);
+    // The classpath is part of the fingerprint, so it only needs to be searched when that changed.
+    hasAnnotationProcessors = isFingerprintUnchanged ?
+        previous.get().hasAnnotationProcessors :
+        hasAnnotationProcessors(classpath);
+    // Whatever happens to the classes directory from here on, it only matches the state once the
+    // compilation succeeds.
+    Files.deleteIfExists(stateFile);
+
+    if (!isFingerprintUnchanged || hasAnnotationProcessors) {
+      return buildAll(compiler);
+    }
+    return buildIncrementally(compiler, previous.get());
+  }
+
+  /**
+   * @return the sources that were compiled by {@link #build}.
+   */
+  public ImmutableSortedSet<Path> getCompiledSources() {
+    return ImmutableSortedSet.copyOf(compiledSources);
+  }
+
+  /**
+   * @return a hash of the ABIs of all the classes, to be used as the ABI key of the rule, as the
+   *     {@code AbiWriter} only sees the sources that were recompiled.
+   */
+  public Sha1HashCode getAbiKey() {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (CompiledClassInfo info : classes.values()) {
+      hasher.putUnencodedChars(info.getName());
+      hasher.putChar('\0');
+      hasher.putBytes(info.getAbiHash().asBytes());
+    }
+    return new Sha1HashCode(hasher.hash().toString());
+  }
+
+  private int buildAll(Compiler compiler) throws IOException {
+    if (Files.exists(classesDirectory)) {
+      MoreFiles.deleteRecursively(classesDirectory);
+    }
+    Files.createDirectories(classesDirectory);
+    classes.clear();
+    classesOfSources.clear();
+    compiledSources.clear();
+
+    ImmutableSortedSet<Path> sources = sourceHashes.keySet();
+    SetMultimap<Path, String> compiledClasses = TreeMultimap.create();
+    int exitCode = compiler.compile(sources, compiledClasses);
+    compiledSources.addAll(sources);
+    if (exitCode != 0) {
+      return exitCode;
+    }
+    for (Map.Entry<Path, String> entry : compiledClasses.entries()) {
+      classes.put(entry.getValue(), readClass(entry.getValue()));
+    }
+    classesOfSources.putAll(compiledClasses);
+    writeState();
+    return 0;
+  }
+
+  private int buildIncrementally(Compiler compiler, State previous) throws IOException {
+    classes.putAll(previous.classes);
+    classesOfSources.putAll(previous.classesOfSources);
+
+    Set<Path> pending = Sets.newTreeSet();
+    for (Map.Entry<Path, HashCode> source : sourceHashes.entrySet()) {
+      if (!source.getValue().equals(previous.sourceHashes.get(source.getKey()))) {
+        pending.add(source.getKey());
+      }
+    }
+
+    // Classes whose ABI changed, or which were added or removed, in the latest round, along with
+    // the packages of the top-level classes that were added, which may shadow other classes.
+    Set<String> changedClasses = Sets.newHashSet();
+    Set<String> packagesWithNewClasses = Sets.newHashSet();
+
+    Map<String, CompiledClassInfo> removedClasses = removeClassesOf(
+        Sets.difference(previous.sourceHashes.keySet(), sourceHashes.keySet()));
+    if (hasConstants(removedClasses.values())) {
+      return buildAll(compiler);
+    }
+    changedClasses.addAll(removedClasses.keySet());
+
+    for (int round = 1;; round++) {
+      if (!pending.isEmpty()) {
+        if (round > MAX_ROUNDS) {
+          logger.debug("Recompiling everything after %d rounds.", MAX_ROUNDS);
+          return buildAll(compiler);
+        }
+        Map<String, CompiledClassInfo> oldClasses = removeClassesOf(pending);
+        SetMultimap<Path, String> compiledClasses = TreeMultimap.create();
+        int exitCode = compiler.compile(ImmutableSortedSet.copyOf(pending), compiledClasses);
+        compiledSources.addAll(pending);
+        if (exitCode != 0) {
+          return exitCode;
+        }
+
+        for (Map.Entry<Path, String> entry : compiledClasses.entries()) {
+          String className = entry.getValue();
+          CompiledClassInfo info = readClass(className);
+          classes.put(className, info);
+          classesOfSources.put(entry.getKey(), className);
+
+          CompiledClassInfo oldInfo = oldClasses.remove(className);
+          if (oldInfo == null) {
+            changedClasses.add(className);
+            if (isTopLevelClass(className)) {
+              packagesWithNewClasses.add(getPackage(className));
+            }
+          } else if (!oldInfo.getConstantsHash().equals(info.getConstantsHash())) {
+            logger.debug("Recompiling everything, as the constants of %s changed.", className);
+            return buildAll(compiler);
+          } else if (!oldInfo.getAbiHash().equals(info.getAbiHash())) {
+            changedClasses.add(className);
+          }
+        }
+        // What is left are the classes that the sources no longer compile to.
+        if (hasConstants(oldClasses.values())) {
+          return buildAll(compiler);
+        }
+        changedClasses.addAll(oldClasses.keySet());
+      }
+
+      if (changedClasses.isEmpty() && packagesWithNewClasses.isEmpty()) {
+        break;
+      }
+      // The sources that were just compiled already saw the changes.
+      pending = getDependentSources(changedClasses, packagesWithNewClasses, pending);
+      changedClasses.clear();
+      packagesWithNewClasses.clear();
+    }
+
+    writeState();
+    return 0;
+  }
+
+  /**
+   * @return the sources, other than {@code excludedSources}, with a class that refers to one of
+   *     {@code changedClasses} or their subclasses, or that is in one of {@code packages}.
+   */
+  private Set<Path> getDependentSources(
+      Set<String> changedClasses,
+      Set<String> packages,
+      Set<Path> excludedSources) {
+    Set<String> affectedClasses = Sets.newHashSet(changedClasses);
+    // A change to a class is a change to what its subclasses inherit from it.
+    boolean foundSubclass;
+    do {
+      foundSubclass = false;
+      for (CompiledClassInfo info : classes.values()) {
+        if (!affectedClasses.contains(info.getName()) &&
+            !Sets.intersection(info.getSuperTypes(), affectedClasses).isEmpty()) {
+          affectedClasses.add(info.getName());
+          foundSubclass = true;
+        }
+      }
+    } while (foundSubclass);
+
+    Set<Path> dependentSources = Sets.newTreeSet();
+    for (Path source : sourceHashes.keySet()) {
+      if (excludedSources.contains(source)) {
+        continue;
+      }
+      for (String className : classesOfSources.get(source)) {
+        if (packages.contains(getPackage(className)) ||
+            !Sets.intersection(
+                classes.get(className).getReferencedClasses(),
+                affectedClasses).isEmpty()) {
+          dependentSources.add(source);
+          break;
+        }
+      }
+    }
+    return dependentSources;
+  }
+
+  /**
+   * Deletes the classes of {@code sources}, and forgets about them.
+   *
+   * @return the classes that were deleted.
+   */
+  private Map<String, CompiledClassInfo> removeClassesOf(Set<Path> sources) throws IOException {
+    Map<String, CompiledClassInfo> removedClasses = Maps.newHashMap();
+    for (Path source : ImmutableList.copyOf(sources)) {
+      for (String className : classesOfSources.removeAll(source)) {
+        Files.deleteIfExists(getClassFile(className));
+        CompiledClassInfo info = classes.remove(className);
+        if (info != null) {
+          removedClasses.put(className, info);
+        }
+      }
+    }
+    return removedClasses;
+  }
+
+  private CompiledClassInfo readClass(String className) throws IOException {
+    return CompiledClassInfo.create(Files.readAllBytes(getClassFile(className)));
+  }
+
+  private Path getClassFile(String className) {
+    return classesDirectory.resolve(className + JavaFileObject.Kind.CLASS.extension);
+  }
+
+  private static boolean hasConstants(Collection<CompiledClassInfo> classes) {
+    HashCode noConstants = Hashing.sha1().newHasher().hash();
+    for (CompiledClassInfo info : classes) {
+      if (!info.getConstantsHash().equals(noConstants)) {
+        logger.debug("Recompiling everything, as %s had constants.", info.getName());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether {@code className} is neither a member class, which can only shadow classes in
+   *     the subclasses of its outer class, whose ABI changes along with it, nor an anonymous or
+   *     local class, which cannot shadow anything.
+   */
+  private static boolean isTopLevelClass(String className) {
+    return className.indexOf('$') < 0;
+  }
+
+  private static String getPackage(String className) {
+    int slash = className.lastIndexOf('/');
+    return slash < 0 ? "" : className.substring(0, slash);
+  }
+
+  /**
+   * @return a fingerprint of {@code options} and of the contents of the entries of
+   *     {@code classpath}, which are given by their sizes and modification times, so that a change
+   *     to either of them causes everything to be recompiled.
+   */
+  public static String computeFingerprint(List<String> options, Iterable<Path> classpath)
+      throws IOException {
+    final Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    for (String option : options) {
+      hasher.putUnencodedChars(option).putChar('\0');
+    }
+    for (Path entry : classpath) {
+      hasher.putUnencodedChars(entry.toString()).putChar('\0');
+      if (Files.isDirectory(entry)) {
+        final SortedMap<String, BasicFileAttributes> files = Maps.newTreeMap();
+        final Path directory = entry;
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            files.put(directory.relativize(file).toString(), attrs);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+        for (Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+          hasher.putUnencodedChars(file.getKey()).putChar('\0');
+          putAttributes(hasher, file.getValue());
+        }
+      } else if (Files.exists(entry)) {
+        putAttributes(hasher, Files.readAttributes(entry, BasicFileAttributes.class));
+      }
+      hasher.putChar('\0');
+    }
+    return hasher.hash().toString();
+  }
+
+  private static boolean hasAnnotationProcessors(Iterable<Path> classpath) throws IOException {
+    List<URL> urls = Lists.newArrayList();
+    for (Path entry : classpath) {
+      urls.add(entry.toUri().toURL());
+    }
+    try (URLClassLoader classLoader =
+             new URLClassLoader(urls.toArray(new URL[urls.size()]), /* parent */ null)) {
+      return classLoader.getResource("META-INF/services/" + Processor.class.getName()) != null;
+    }
+  }
+
+  private static void putAttributes(Hasher hasher, BasicFileAttributes attributes) {
+    hasher.putLong(attributes.size()).putLong(attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * @return a {@link JavaFileManager} that records the classes that javac writes for each of
+   *     {@code sources}, given by the {@link URI}s of their {@link JavaFileObject}s, in
+   *     {@code classesOfSources}.
+   */
+  public static JavaFileManager recordClassesOfSources(
+      JavaFileManager fileManager,
+      final Map<URI, Path> sources,
+      final SetMultimap<Path, String> classesOfSources) {
+    return new ForwardingJavaFileManager<JavaFileManager>(fileManager) {
+      @Override
+      public JavaFileObject getJavaFileForOutput(
+          Location location,
+          String className,
+          JavaFileObject.Kind kind,
+          FileObject sibling) throws IOException {
+        // javac passes the source that a class was compiled from as its sibling.
+        if (kind == JavaFileObject.Kind.CLASS && sibling != null) {
+          Path source = sources.get(sibling.toUri());
+          if (source != null) {
+            classesOfSources.put(source, className.replace('.', '/'));
+          }
+        }
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+      }
+    };
+  }
+
+  /**
+   * The state of the classes directory after a successful compilation.
+   */
+  private static class State {
+    private final String fingerprint;
+    private final boolean hasAnnotationProcessors;
+    private final ImmutableSortedMap<Path, HashCode> sourceHashes;
+    private final SetMultimap<Path, String> classesOfSources;
+    private final ImmutableSortedMap<String, CompiledClassInfo> classes;
+
+    private State(
+        String fingerprint,
+        boolean hasAnnotationProcessors,
+        ImmutableSortedMap<Path, HashCode> sourceHashes,
+        SetMultimap<Path, String> classesOfSources,
+        ImmutableSortedMap<String, CompiledClassInfo> classes) {
+      this.fingerprint = fingerprint;
+      this.hasAnnotationProcessors = hasAnnotationProcessors;
+      this.sourceHashes = sourceHashes;
+      this.classesOfSources = classesOfSources;
+      this.classes = classes;
+    }
+  }
+
+  private static final String VERSION_KEY = "version";
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String ANNOTATION_PROCESSORS_KEY = "annotationProcessors";
+  private static final String SOURCES_KEY = "sources";
+  private static final String HASH_KEY = "hash";
+  private static final String CLASSES_KEY = "classes";
+  private static final String ABI_KEY = "abi";
+  private static final String CONSTANTS_KEY = "constants";
+  private static final String SUPER_TYPES_KEY = "superTypes";
+  private static final String REFERENCES_KEY = "references";
+
+  private void writeState() throws IOException {
+    // Only the references between the classes of the rule matter from one build to the next.
+    Set<String> classNames = classes.keySet();
+    SortedMap<String, Object> classesJson = Maps.newTreeMap();
+    for (CompiledClassInfo info : classes.values()) {
+      CompiledClassInfo retained = info.retainReferencesTo(classNames);
+      classesJson.put(info.getName(), ImmutableMap.of(
+          ABI_KEY, retained.getAbiHash().toString(),
+          CONSTANTS_KEY, retained.getConstantsHash().toString(),
+          SUPER_TYPES_KEY, retained.getSuperTypes(),
+          REFERENCES_KEY, retained.getReferencedClasses()));
+    }
+    SortedMap<String, Object> sourcesJson = Maps.newTreeMap();
+    for (Map.Entry<Path, HashCode> source : sourceHashes.entrySet()) {
+      sourcesJson.put(source.getKey().toString(), ImmutableMap.of(
+          HASH_KEY, source.getValue().toString(),
+          CLASSES_KEY, classesOfSources.get(source.getKey())));
+    }
+
+    Files.createDirectories(stateFile.getParent());
+    MAPPER.writeValue(stateFile.toFile(), ImmutableMap.of(
+        VERSION_KEY, FORMAT_VERSION,
+        FINGERPRINT_KEY, fingerprint,
+        ANNOTATION_PROCESSORS_KEY, hasAnnotationProcessors,
+        SOURCES_KEY, sourcesJson,
+        CLASSES_KEY, classesJson));
+  }
+
+  /**
+   * @return the state of the previous compilation, or absent if there is none that can be used.
+   */
+  private Optional<State> readState() {
+    if (!Files.isRegularFile(stateFile) || !Files.isDirectory(classesDirectory)) {
+      return Optional.absent();
+    }
+    try {
+      Map<?, ?> json = MAPPER.readValue(stateFile.toFile(), Map.class);
+      if (!Integer.valueOf(FORMAT_VERSION).equals(json.get(VERSION_KEY))) {
+        return Optional.absent();
+      }
+
+      ImmutableSortedMap.Builder<Path, HashCode> sourceHashes = ImmutableSortedMap.naturalOrder();
+      SetMultimap<Path, String> classesOfSources = TreeMultimap.create();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) json.get(SOURCES_KEY)).entrySet()) {
+        Path source = Paths.get((String) entry.getKey());
+        Map<?, ?> sourceJson = (Map<?, ?>) entry.getValue();
+        sourceHashes.put(source, HashCode.fromString((String) sourceJson.get(HASH_KEY)));
+        for (Object className : (List<?>) sourceJson.get(CLASSES_KEY)) {
+          classesOfSources.put(source, (String) className);
+        }
+      }
+
+      ImmutableSortedMap.Builder<String, CompiledClassInfo> classes =
+          ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) json.get(CLASSES_KEY)).entrySet()) {
+        String className = (String) entry.getKey();
+        Map<?, ?> classJson = (Map<?, ?>) entry.getValue();
+        classes.put(className, new CompiledClassInfo(
+            className,
+            HashCode.fromString((String) classJson.get(ABI_KEY)),
+            HashCode.fromString((String) classJson.get(CONSTANTS_KEY)),
+            toStrings((List<?>) classJson.get(SUPER_TYPES_KEY)),
+            toStrings((List<?>) classJson.get(REFERENCES_KEY))));
+      }
+
+      return Optional.of(new State(
+          (String) json.get(FINGERPRINT_KEY),
+          (Boolean) json.get(ANNOTATION_PROCESSORS_KEY),
+          sourceHashes.build(),
+          classesOfSources,
+          classes.build()));
+    } catch (IOException | RuntimeException e) {
+      logger.debug(e, "Unable to read %s, recompiling everything.", stateFile);
+      return Optional.absent();
+    }
+  }
+
+  private static Set<String> toStrings(List<?> values) {
+    Set<String> strings = Sets.newHashSet();
+    for (Object value : values) {
+      strings.add((String) value);
+    }
+    return strings;
+  }
+}
@@ -16,34 +16,43 @@
 
 package com.facebook.buck.java;
 
-import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP;
-
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.DirectoryTraversal;
 import com.facebook.buck.util.ProjectFilesystem;
-import com.facebook.buck.zip.CustomZipOutputStream;
-import com.facebook.buck.zip.ZipOutputStreams;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.facebook.buck.zip.RawZipFile;
+import com.facebook.buck.zip.ZipAssembler;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -59,6 +68,12 @@ import javax.annotation.Nullable;
  */
 public class JarDirectoryStep implements Step {
 
+  /**
+   * How many entries may be compressed ahead of the one being written, which bounds the memory
+   * that compressed entries can take.
+   */
+  private static final int MAX_PENDING_ENTRIES = 256;
+
   /** Where to write the new JAR file. */
   private final Path pathToOutputFile;
 
@@ -149,17 +164,24 @@ public class JarDirectoryStep implements Step {
     Manifest manifest = new Manifest();
     manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
 
-    try (CustomZipOutputStream outputFile = ZipOutputStreams.newOutputStream(
-        filesystem.getFileForRelativePath(pathToOutputFile), APPEND_TO_ZIP)) {
+    // Input jars are read as new entries are compressed, and must stay open until the last of
+    // their entries has been copied.
+    List<Closeable> inputs = Lists.newArrayList();
+    try (ZipAssembler outputFile = new ZipAssembler(
+        new DefaultClock(),
+        new BufferedOutputStream(
+            new FileOutputStream(filesystem.getFileForRelativePath(pathToOutputFile))),
+        DeflateExecutor.INSTANCE,
+        MAX_PENDING_ENTRIES)) {
 
       Set<String> alreadyAddedEntries = Sets.newHashSet();
-      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
       for (Path entry : entriesToJar) {
-        File file = projectFilesystem.getFileForRelativePath(entry);
+        File file = filesystem.getFileForRelativePath(entry);
         if (file.isFile()) {
           // Assume the file is a ZIP/JAR file.
           copyZipEntriesToJar(file,
               outputFile,
+              inputs,
               manifest,
               alreadyAddedEntries,
               context.getBuckEventBus());
@@ -198,20 +220,66 @@ public class JarDirectoryStep implements Step {
         manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
       }
 
-      JarEntry manifestEntry = new JarEntry(JarFile.MANIFEST_NAME);
-      outputFile.putNextEntry(manifestEntry);
-      manifest.write(outputFile);
+      ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+      manifest.write(manifestBytes);
+      outputFile.addEntry(
+          new JarEntry(JarFile.MANIFEST_NAME),
+          ByteSource.wrap(manifestBytes.toByteArray()));
+    } finally {
+      for (Closeable input : inputs) {
+        Closeables.close(input, /* swallowIOException */ true);
+      }
     }
   }
 
   /**
+   * Compressed entries are copied as they are, unless the zip uses features that
+   * {@link RawZipFile} does not support.
+   *
    * @param file is assumed to be a zip file.
    * @param jar is the file being written.
+   * @param inputs gets the open zip, which must stay open until {@code jar} is closed.
    * @param manifest that should get a copy of (@code jar}'s manifest entries.
    * @param alreadyAddedEntries is used to avoid duplicate entries.
    */
   private void copyZipEntriesToJar(File file,
-      final CustomZipOutputStream jar,
+      ZipAssembler jar,
+      List<Closeable> inputs,
+      Manifest manifest,
+      Set<String> alreadyAddedEntries,
+      BuckEventBus eventBus) throws IOException {
+    Optional<RawZipFile> rawZip = RawZipFile.open(file.toPath());
+    if (!rawZip.isPresent()) {
+      copyUnsupportedZipEntriesToJar(file, jar, manifest, alreadyAddedEntries, eventBus);
+      return;
+    }
+
+    RawZipFile zip = rawZip.get();
+    inputs.add(zip);
+    for (RawZipFile.Entry entry : zip.getEntries()) {
+      String entryName = entry.getName();
+
+      if (entryName.equals(JarFile.MANIFEST_NAME)) {
+        try (InputStream stream = zip.getInputStream(entry)) {
+          merge(manifest, new Manifest(stream));
+        }
+        continue;
+      }
+
+      if (shouldSkipZipEntry(entryName, entry.isDirectory(), alreadyAddedEntries, eventBus)) {
+        continue;
+      }
+
+      jar.addRawEntry(zip, entry);
+    }
+  }
+
+  /**
+   * Reads a zip that {@link RawZipFile} cannot, decompressing each entry so that it is compressed
+   * again for the jar.
+   */
+  private void copyUnsupportedZipEntriesToJar(File file,
+      ZipAssembler jar,
       Manifest manifest,
       Set<String> alreadyAddedEntries,
       BuckEventBus eventBus) throws IOException {
@@ -221,61 +289,52 @@ public class JarDirectoryStep implements Step {
         String entryName = entry.getName();
 
         if (entryName.equals(JarFile.MANIFEST_NAME)) {
-          Manifest readManifest = readManifest(zip, entry);
-          merge(manifest, readManifest);
+          try (InputStream stream = zip.getInputStream(entry)) {
+            merge(manifest, new Manifest(stream));
+          }
           continue;
         }
 
-        // We're in the process of merging a bunch of different jar files. These typically contain
-        // just ".class" files and the manifest, but they can also include things like license files
-        // from third party libraries and config files. We should include those license files within
-        // the jar we're creating. Extracting them is left as an exercise for the consumer of the
-        // jar.  Because we don't know which files are important, the only ones we skip are
-        // duplicate class files.
-        if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
-          // Duplicate entries. Skip.
-          eventBus.post(ConsoleEvent.create(
-              determineSeverity(entry), "Duplicate found when adding file to jar: %s", entryName));
+        if (shouldSkipZipEntry(entryName, entry.isDirectory(), alreadyAddedEntries, eventBus)) {
           continue;
         }
 
-        ZipEntry newEntry = new ZipEntry(entry);
-
-        // For deflated entries, the act of re-"putting" this entry means we're re-compressing
-        // the data that we've just uncompressed.  Due to various environmental issues (e.g. a
-        // newer version of zlib, changed compression settings), we may end up with a different
-        // compressed size.  This causes an issue in java's `java.util.zip.ZipOutputStream`
-        // implementation, as it only updates the compressed size field if one of `crc`,
-        // `compressedSize`, or `size` is -1.  When we copy the entry as-is, none of these are
-        // -1, and we may end up with an incorrect compressed size, in which case, we'll get an
-        // exception.  So, for deflated entries, reset the compressed size to -1 (as the
-        // ZipEntry(String) would).
-        // See https://github.com/spearce/buck/commit/8338c1c3d4a546f577eed0c9941d9f1c2ba0a1b7.
-        if (entry.getMethod() == ZipEntry.DEFLATED) {
-          newEntry.setCompressedSize(-1);
+        // The zip is closed before its entries are compressed, so read them now.
+        ZipEntry newEntry = new ZipEntry(entryName);
+        newEntry.setTime(entry.getTime());
+        try (InputStream inputStream = zip.getInputStream(entry)) {
+          jar.addEntry(newEntry, ByteSource.wrap(ByteStreams.toByteArray(inputStream)));
         }
-
-        jar.putNextEntry(newEntry);
-        InputStream inputStream = zip.getInputStream(entry);
-        ByteStreams.copy(inputStream, jar);
-        jar.closeEntry();
       }
     }
   }
 
-  private Level determineSeverity(ZipEntry entry) {
-    return entry.isDirectory() ? Level.FINE : Level.INFO;
+  /**
+   * We're in the process of merging a bunch of different jar files. These typically contain
+   * just ".class" files and the manifest, but they can also include things like license files
+   * from third party libraries and config files. We should include those license files within
+   * the jar we're creating. Extracting them is left as an exercise for the consumer of the
+   * jar.  Because we don't know which files are important, the only ones we skip are
+   * duplicate class files.
+   */
+  private boolean shouldSkipZipEntry(
+      String entryName,
+      boolean isDirectory,
+      Set<String> alreadyAddedEntries,
+      BuckEventBus eventBus) {
+    if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
+      // Duplicate entries. Skip.
+      eventBus.post(ConsoleEvent.create(
+          determineSeverity(isDirectory),
+          "Duplicate found when adding file to jar: %s",
+          entryName));
+      return true;
+    }
+    return false;
   }
 
-  private Manifest readManifest(ZipFile zip, ZipEntry manifestMfEntry) throws IOException {
-    try (
-        ByteArrayOutputStream output = new ByteArrayOutputStream((int) manifestMfEntry.getSize());
-        InputStream stream = zip.getInputStream(manifestMfEntry);
-    ) {
-      ByteStreams.copy(stream, output);
-      ByteArrayInputStream rawManifest = new ByteArrayInputStream(output.toByteArray());
-      return new Manifest(rawManifest);
-    }
+  private Level determineSeverity(boolean isDirectory) {
+    return isDirectory ? Level.FINE : Level.INFO;
   }
 
   /**
@@ -283,7 +342,7 @@ public class JarDirectoryStep implements Step {
    * @param jar is the file being written.
    */
   private void addFilesInDirectoryToJar(File directory,
-      final CustomZipOutputStream jar,
+      final ZipAssembler jar,
       final Set<String> alreadyAddedEntries,
       final BuckEventBus eventBus) throws IOException {
     new DirectoryTraversal(directory) {
@@ -299,14 +358,13 @@ public class JarDirectoryStep implements Step {
           if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
             if (!entryName.endsWith("/")) {
               eventBus.post(ConsoleEvent.create(
-                  determineSeverity(entry),
+                  determineSeverity(entry.isDirectory()),
                   "Duplicate found when adding directory to jar: %s", relativePath));
             }
               return;
           }
-          jar.putNextEntry(entry);
-          Files.copy(file, jar);
-          jar.closeEntry();
+          // The file is read when it is compressed.
+          jar.addEntry(entry, Files.asByteSource(file));
         } catch (IOException e) {
           Throwables.propagate(e);
         }
@@ -324,8 +382,7 @@ public class JarDirectoryStep implements Step {
         }
         JarEntry entry = new JarEntry(entryName);
         entry.setTime(directory.lastModified());
-        jar.putNextEntry(entry);
-        jar.closeEntry();
+        jar.addEntry(entry, ByteSource.empty());
       }
     }.traverse();
   }
@@ -359,4 +416,16 @@ public class JarDirectoryStep implements Step {
   private boolean isDuplicateAllowed(String name) {
     return !name.endsWith(".class") && !name.endsWith("/");
   }
+
+  /**
+   * Compresses the new entries of every jar that is being built. Its threads are daemons, so that
+   * it does not need to be shut down.
+   */
+  private static class DeflateExecutor {
+    private static final ExecutorService INSTANCE =
+        com.google.common.util.concurrent.MoreExecutors.getExitingExecutorService(
+            (ThreadPoolExecutor) MoreExecutors.newMultiThreadExecutor(
+                "jar-deflate",
+                Runtime.getRuntime().availableProcessors()));
+  }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP;
+
+import com.facebook.buck.util.DirectoryTraversal;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * A {@link JavaFileManager} that writes the {@code .class} files emitted by javac straight into a
+ * jar, and computes the SHA-1 hash of each class on the way, so that neither the jar nor the
+ * {@code classes.txt} written by {@link AccumulateClassNamesStep} have to be created by reading
+ * the classes back from a directory.
+ * <p>
+ * Other output, such as the resources generated by annotation processors, is still written to the
+ * output directory by the delegate, and is added to the jar by
+ * {@link #addFilesInDirectory(Path)} once javac is done.
+ */
+class JarOutputFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+  private final Path pathToJar;
+  private final CustomZipOutputStream jar;
+  private final Set<String> alreadyAddedEntries = Sets.newHashSet();
+  private final SortedMap<String, HashCode> classHashes = Maps.newTreeMap();
+  private boolean isJarClosed;
+
+  /**
+   * @param pathToJar absolute path of the jar to write. Its parent directory must exist.
+   */
+  public JarOutputFileManager(JavaFileManager fileManager, Path pathToJar) throws IOException {
+    super(fileManager);
+    this.pathToJar = Preconditions.checkNotNull(pathToJar);
+    this.jar = ZipOutputStreams.newOutputStream(pathToJar.toFile(), APPEND_TO_ZIP);
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForOutput(
+      Location location,
+      String className,
+      JavaFileObject.Kind kind,
+      FileObject sibling) throws IOException {
+    if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) {
+      return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+    return new JarEntryOutputObject(className.replace('.', '/') + kind.extension, kind);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof JarEntryOutputObject || b instanceof JarEntryOutputObject) {
+      return a.toUri().equals(b.toUri());
+    }
+    return super.isSameFile(a, b);
+  }
+
+  /**
+   * Adds the files in {@code directory} to the jar, as {@link JarDirectoryStep} would.
+   */
+  public void addFilesInDirectory(Path directory) throws IOException {
+    new DirectoryTraversal(directory.toFile()) {
+      @Override
+      public void visit(File file, String relativePath) throws IOException {
+        addEntry(relativePath, Files.readAllBytes(file.toPath()));
+      }
+    }.traverse();
+  }
+
+  /**
+   * Writes the manifest and closes the jar.
+   */
+  public void finishJar() throws IOException {
+    Preconditions.checkState(!isJarClosed, "%s was already closed.", pathToJar);
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    jar.putNextEntry(new CustomZipEntry(JarFile.MANIFEST_NAME));
+    manifest.write(jar);
+    jar.closeEntry();
+    closeJar();
+  }
+
+  /**
+   * @return the SHA-1 hash of each class in the jar, keyed by its path in the jar without the
+   *     {@code .class} suffix, as listed in {@code classes.txt}.
+   */
+  public ImmutableSortedMap<String, HashCode> getClassHashes() {
+    return ImmutableSortedMap.copyOfSorted(classHashes);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      closeJar();
+    } finally {
+      super.close();
+    }
+  }
+
+  private void closeJar() throws IOException {
+    if (!isJarClosed) {
+      isJarClosed = true;
+      jar.close();
+    }
+  }
+
+  private synchronized void addEntry(String name, byte[] contents) throws IOException {
+    boolean isClass = name.endsWith(JavaFileObject.Kind.CLASS.extension);
+    // As in JarDirectoryStep, only the first of several classes with the same name is kept.
+    if (!alreadyAddedEntries.add(name) && isClass) {
+      return;
+    }
+    addParentDirectories(name);
+
+    jar.putNextEntry(new CustomZipEntry(name));
+    jar.write(contents);
+    jar.closeEntry();
+
+    if (isClass) {
+      String key = name.substring(0, name.length() - JavaFileObject.Kind.CLASS.extension.length());
+      classHashes.put(key, Hashing.sha1().hashBytes(contents));
+    }
+  }
+
+  private void addParentDirectories(String name) throws IOException {
+    int slash = name.lastIndexOf('/');
+    if (slash < 0) {
+      return;
+    }
+    String directory = name.substring(0, slash + 1);
+    if (!alreadyAddedEntries.add(directory)) {
+      return;
+    }
+    addParentDirectories(directory.substring(0, directory.length() - 1));
+    jar.putNextEntry(new CustomZipEntry(directory));
+    jar.closeEntry();
+  }
+
+  /**
+   * A class that is added to the jar when javac closes the stream it writes the class to.
+   */
+  private class JarEntryOutputObject extends SimpleJavaFileObject {
+
+    private final String entryName;
+
+    private JarEntryOutputObject(String entryName, Kind kind) {
+      super(createUri(pathToJar, entryName), kind);
+      this.entryName = entryName;
+    }
+
+    @Override
+    public String getName() {
+      return pathToJar + "(" + entryName + ")";
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return new ByteArrayOutputStream() {
+        private boolean isClosed;
+
+        @Override
+        public void close() throws IOException {
+          if (!isClosed) {
+            isClosed = true;
+            addEntry(entryName, toByteArray());
+          }
+        }
+      };
+    }
+  }
+
+  private static URI createUri(Path pathToJar, String entryName) {
+    try {
+      return new URI("jar", null, pathToJar.toUri().getPath() + "!/" + entryName, null);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
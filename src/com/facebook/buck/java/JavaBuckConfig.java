@@ -52,7 +52,43 @@ public class JavaBuckConfig {
         javac,
         javacVersion,
         sourceLevel.or(TARGETED_JAVA_VERSION),
-        targetLevel.or(TARGETED_JAVA_VERSION));
+        targetLevel.or(TARGETED_JAVA_VERSION),
+        getJavacWorkerOptions(),
+        delegate.getBooleanValue("java", "incremental_compilation", false));
+  }
+
+  /**
+   * @return how to run the javac set in {@code [tools]} as a pool of persistent workers, or absent
+   *     if {@code javac_workers} is not set, in which case javac is run anew for each compilation.
+   */
+  @VisibleForTesting
+  Optional<JavacWorkerOptions> getJavacWorkerOptions() {
+    if (!delegate.getValue("tools", "javac_workers").isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(new JavacWorkerOptions(
+        getPositiveInt("javac_workers", 1),
+        getPositiveInt("javac_worker_max_requests", 1),
+        delegate.getValue("tools", "javac_worker_max_heap")));
+  }
+
+  private int getPositiveInt(String propertyName, int defaultValue) {
+    Optional<String> value = delegate.getValue("tools", propertyName);
+    if (!value.isPresent()) {
+      return defaultValue;
+    }
+    try {
+      int intValue = Integer.parseInt(value.get());
+      if (intValue > 0) {
+        return intValue;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new HumanReadableException(
+        "%s in [tools] must be a positive integer, but was '%s'.",
+        propertyName,
+        value.get());
   }
 
   @VisibleForTesting
@@ -36,16 +36,57 @@ public class JavaCompilerEnvironment {
   private final Optional<JavacVersion> javacVersion;
   private final String sourceLevel;
   private final String targetLevel;
+  private final Optional<JavacWorkerOptions> javacWorkerOptions;
+  private final boolean isIncrementalCompilationEnabled;
 
   public JavaCompilerEnvironment(
       Optional<Path> javacPath,
       Optional<JavacVersion> javacVersion,
       String sourceLevel,
       String targetLevel) {
+    this(javacPath,
+        javacVersion,
+        sourceLevel,
+        targetLevel,
+        Optional.<JavacWorkerOptions>absent());
+  }
+
+  /**
+   * @param javacWorkerOptions if specified, along with {@code javacPath}, compilations are sent to
+   *     a {@link JavacWorkerPool} of persistent workers, rather than to a new javac each.
+   */
+  public JavaCompilerEnvironment(
+      Optional<Path> javacPath,
+      Optional<JavacVersion> javacVersion,
+      String sourceLevel,
+      String targetLevel,
+      Optional<JavacWorkerOptions> javacWorkerOptions) {
+    this(javacPath,
+        javacVersion,
+        sourceLevel,
+        targetLevel,
+        javacWorkerOptions,
+        /* isIncrementalCompilationEnabled */ false);
+  }
+
+  /**
+   * @param isIncrementalCompilationEnabled whether rules that are compiled in-process may only
+   *     recompile the sources that changed since they were last built, and the sources that
+   *     depend on them. See {@link IncrementalJavac}.
+   */
+  public JavaCompilerEnvironment(
+      Optional<Path> javacPath,
+      Optional<JavacVersion> javacVersion,
+      String sourceLevel,
+      String targetLevel,
+      Optional<JavacWorkerOptions> javacWorkerOptions,
+      boolean isIncrementalCompilationEnabled) {
     this.javacPath = Preconditions.checkNotNull(javacPath);
     this.javacVersion = Preconditions.checkNotNull(javacVersion);
     this.sourceLevel = Preconditions.checkNotNull(sourceLevel);
     this.targetLevel = Preconditions.checkNotNull(targetLevel);
+    this.javacWorkerOptions = Preconditions.checkNotNull(javacWorkerOptions);
+    this.isIncrementalCompilationEnabled = isIncrementalCompilationEnabled;
   }
 
   public Optional<Path> getJavacPath() {
@@ -63,4 +104,12 @@ public class JavaCompilerEnvironment {
   public String getTargetLevel() {
     return targetLevel;
   }
+
+  public Optional<JavacWorkerOptions> getJavacWorkerOptions() {
+    return javacWorkerOptions;
+  }
+
+  public boolean isIncrementalCompilationEnabled() {
+    return isIncrementalCompilationEnabled;
+  }
 }
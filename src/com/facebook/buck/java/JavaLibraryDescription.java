@@ -113,7 +113,8 @@ public class JavaLibraryDescription implements Description<JavaLibraryDescriptio
         javacEnv.getJavacPath(),
         javacEnv.getJavacVersion(),
         sourceLevel,
-        targetLevel);
+        targetLevel,
+        javacEnv.getJavacWorkerOptions());
 
     javacOptions.setJavaCompilerEnviornment(javacEnvToUse);
 
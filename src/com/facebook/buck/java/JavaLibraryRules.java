@@ -78,7 +78,7 @@ public class JavaLibraryRules {
     return new JavaLibrary.Data(abiKeyHash.get(), classHashes);
   }
 
-  private static Path getPathToClassHashes(BuildTarget buildTarget) {
+  static Path getPathToClassHashes(BuildTarget buildTarget) {
     return BuildTargets.getGenPath(buildTarget, "%s.classes.txt");
   }
 }
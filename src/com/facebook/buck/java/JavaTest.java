@@ -25,6 +25,7 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.TestRule;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ParallelStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.TargetDevice;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
@@ -72,6 +73,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
 
   private final ImmutableSet<Path> additionalClasspathEntries;
 
+  private final int shards;
+
   protected JavaTest(
       BuildRuleParams params,
       Set<SourcePath> srcs,
@@ -83,7 +86,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
       JavacOptions javacOptions,
       List<String> vmArgs,
       ImmutableSet<BuildRule> sourceUnderTest,
-      Optional<Path> resourcesRoot) {
+      Optional<Path> resourcesRoot,
+      int shards) {
     super(
         params,
         srcs,
@@ -100,6 +104,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
     this.labels = ImmutableSet.copyOf(labels);
     this.contacts = ImmutableSet.copyOf(contacts);
     this.additionalClasspathEntries = Preconditions.checkNotNull(addtionalClasspathEntries);
+    Preconditions.checkArgument(shards > 0, "shards must be positive, but was %s.", shards);
+    this.shards = shards;
   }
 
   @Override
@@ -172,11 +178,53 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
         .addAll(getBootClasspathEntries(executionContext))
         .build();
 
-    Step junit = new JUnitStep(
+    List<String> amendedVmArgs = amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional());
+    ImmutableList<ImmutableSortedSet<String>> testClassShards =
+        getTestClassShards(executionContext, testClassNames);
+    if (testClassShards.size() == 1) {
+      steps.add(createJUnitStep(
+          executionContext,
+          classpathEntries,
+          testClassNames,
+          amendedVmArgs,
+          tmpDirectory,
+          testSelectorList,
+          isDryRun));
+    } else {
+      // Each shard is a JVM of its own, which writes the results of its classes to the same
+      // directory as the others, so the results are read as if there were a single JVM.
+      List<Step> junitSteps = Lists.newArrayListWithCapacity(testClassShards.size());
+      for (int i = 0; i < testClassShards.size(); i++) {
+        Path shardTmpDirectory = tmpDirectory.resolve("shard-" + i);
+        steps.add(new MakeCleanDirectoryStep(shardTmpDirectory));
+        junitSteps.add(createJUnitStep(
+            executionContext,
+            classpathEntries,
+            testClassShards.get(i),
+            amendedVmArgs,
+            shardTmpDirectory,
+            testSelectorList,
+            isDryRun));
+      }
+      steps.add(new ParallelStep(junitSteps));
+    }
+
+    return steps.build();
+  }
+
+  private JUnitStep createJUnitStep(
+      ExecutionContext executionContext,
+      Set<Path> classpathEntries,
+      Set<String> testClassNames,
+      List<String> vmArgs,
+      Path tmpDirectory,
+      TestSelectorList testSelectorList,
+      boolean isDryRun) {
+    return new JUnitStep(
         classpathEntries,
         testClassNames,
-        amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional()),
-        pathToTestOutput,
+        vmArgs,
+        getPathToTestOutputDirectory(),
         tmpDirectory,
         executionContext.isCodeCoverageEnabled(),
         executionContext.isJacocoEnabled(),
@@ -184,9 +232,31 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
         executionContext.getBuckEventBus().getBuildId(),
         testSelectorList,
         isDryRun);
-    steps.add(junit);
+  }
 
-    return steps.build();
+  /**
+   * Splits the test classes into at most {@code shards} sets of classes to run in JVMs of their
+   * own, using how long each class took the last time all of them were run.
+   */
+  @VisibleForTesting
+  ImmutableList<ImmutableSortedSet<String>> getTestClassShards(
+      ExecutionContext executionContext,
+      Set<String> testClassNames) {
+    // Only one JVM can wait for the debugger, and EMMA cannot merge the coverage of several JVMs
+    // that write it at the same time.
+    if (shards == 1 ||
+        executionContext.isDebugEnabled() ||
+        (executionContext.isCodeCoverageEnabled() && !executionContext.isJacocoEnabled())) {
+      return ImmutableList.of(ImmutableSortedSet.copyOf(testClassNames));
+    }
+    return TestClassDurations
+        .load(executionContext.getProjectFilesystem(), getPathToTestClassDurations())
+        .shard(testClassNames, shards);
+  }
+
+  @VisibleForTesting
+  Path getPathToTestClassDurations() {
+    return BuildTargets.getGenPath(getBuildTarget(), "__java_test_%s_durations__");
   }
 
   @VisibleForTesting
@@ -308,6 +378,11 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
           }
         }
 
+        // Partial runs would leave out the classes that did not run.
+        if (shards > 1 && !isUsingTestSelectors && !isDryRun) {
+          TestClassDurations.save(filesystem, getPathToTestClassDurations(), summaries);
+        }
+
         return new TestResults(getBuildTarget(), summaries, contacts);
       }
 
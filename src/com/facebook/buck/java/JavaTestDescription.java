@@ -78,7 +78,8 @@ public class JavaTestDescription implements Description<JavaTestDescription.Arg>
             args.sourceUnderTest.get(),
             params.getBuildTarget(),
             resolver),
-        args.resourcesRoot);
+        args.resourcesRoot,
+        args.shards.or(1));
   }
 
   public static ImmutableSet<BuildRule> validateAndGetSourcesUnderTest(
@@ -114,5 +115,6 @@ public class JavaTestDescription implements Description<JavaTestDescription.Arg>
     public Optional<ImmutableSortedSet<Label>> labels;
     public Optional<ImmutableSortedSet<BuildTarget>> sourceUnderTest;
     public Optional<ImmutableList<String>> vmArgs;
+    public Optional<Integer> shards;
   }
 }
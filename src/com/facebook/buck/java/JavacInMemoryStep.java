@@ -17,28 +17,41 @@
 package com.facebook.buck.java;
 
 import com.facebook.buck.event.MissingSymbolEvent;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.net.URI;
 import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -46,8 +59,10 @@ import java.util.zip.ZipFile;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
 /**
@@ -64,6 +79,13 @@ import javax.tools.ToolProvider;
  */
 public class JavacInMemoryStep extends JavacStep {
 
+  private static final Logger logger = Logger.get(JavacInMemoryStep.class);
+
+  private final Optional<Path> pathToOutputJar;
+  private final Optional<Path> pathToClassHashes;
+  private final Optional<Path> incrementalStateDirectory;
+  private final ClasspathJarCache jarCache;
+
   public JavacInMemoryStep(
       Path outputDirectory,
       Set<? extends SourcePath> javaSourceFilePaths,
@@ -75,6 +97,79 @@ public class JavacInMemoryStep extends JavacStep {
       BuildDependencies buildDependencies,
       Optional<SuggestBuildRules> suggestBuildRules,
       Optional<Path> pathToSrcsList) {
+    this(outputDirectory,
+        javaSourceFilePaths,
+        transitiveClasspathEntries,
+        declaredClasspathEntries,
+        javacOptions,
+        pathToOutputAbiFile,
+        invokingRule,
+        buildDependencies,
+        suggestBuildRules,
+        pathToSrcsList,
+        /* pathToOutputJar */ Optional.<Path>absent(),
+        /* pathToClassHashes */ Optional.<Path>absent(),
+        /* incrementalStateDirectory */ Optional.<Path>absent());
+  }
+
+  /**
+   * @param pathToOutputJar If specified, the classes are written to this jar, along with the
+   *     contents of {@code outputDirectory} once they have been compiled, rather than to
+   *     {@code outputDirectory}.
+   * @param pathToClassHashes Where to write the {@code classes.txt} of the classes in
+   *     {@code pathToOutputJar}. Must be specified if, and only if, {@code pathToOutputJar} is.
+   * @param incrementalStateDirectory If specified, the classes are compiled by an
+   *     {@link IncrementalJavac} into this directory, which must be kept from one build to the
+   *     next, before they are added to {@code pathToOutputJar}, which must then be specified. The
+   *     ABI key is computed from the classes, rather than by the {@code AbiWriter}, so
+   *     {@code pathToOutputAbiFile} should be absent, as should any annotation processors.
+   */
+  public JavacInMemoryStep(
+      Path outputDirectory,
+      Set<? extends SourcePath> javaSourceFilePaths,
+      Set<Path> transitiveClasspathEntries,
+      Set<Path> declaredClasspathEntries,
+      JavacOptions javacOptions,
+      Optional<Path> pathToOutputAbiFile,
+      Optional<BuildTarget> invokingRule,
+      BuildDependencies buildDependencies,
+      Optional<SuggestBuildRules> suggestBuildRules,
+      Optional<Path> pathToSrcsList,
+      Optional<Path> pathToOutputJar,
+      Optional<Path> pathToClassHashes,
+      Optional<Path> incrementalStateDirectory) {
+    this(outputDirectory,
+        javaSourceFilePaths,
+        transitiveClasspathEntries,
+        declaredClasspathEntries,
+        javacOptions,
+        pathToOutputAbiFile,
+        invokingRule,
+        buildDependencies,
+        suggestBuildRules,
+        pathToSrcsList,
+        pathToOutputJar,
+        pathToClassHashes,
+        incrementalStateDirectory,
+        ClasspathJarCache.getSharedInstance());
+  }
+
+  @VisibleForTesting
+  JavacInMemoryStep(
+      Path outputDirectory,
+      Set<? extends SourcePath> javaSourceFilePaths,
+      Set<Path> transitiveClasspathEntries,
+      Set<Path> declaredClasspathEntries,
+      JavacOptions javacOptions,
+      Optional<Path> pathToOutputAbiFile,
+      Optional<BuildTarget> invokingRule,
+      BuildDependencies buildDependencies,
+      Optional<SuggestBuildRules> suggestBuildRules,
+      Optional<Path> pathToSrcsList,
+      Optional<Path> pathToOutputJar,
+      Optional<Path> pathToClassHashes,
+      Optional<Path> incrementalStateDirectory,
+      ClasspathJarCache jarCache) {
     super(outputDirectory,
         javaSourceFilePaths,
         transitiveClasspathEntries,
@@ -85,6 +180,15 @@ public class JavacInMemoryStep extends JavacStep {
         buildDependencies,
         suggestBuildRules,
         pathToSrcsList);
+    this.pathToOutputJar = Preconditions.checkNotNull(pathToOutputJar);
+    this.pathToClassHashes = Preconditions.checkNotNull(pathToClassHashes);
+    Preconditions.checkArgument(pathToOutputJar.isPresent() == pathToClassHashes.isPresent(),
+        "pathToClassHashes must be specified along with pathToOutputJar.");
+    this.incrementalStateDirectory = Preconditions.checkNotNull(incrementalStateDirectory);
+    Preconditions.checkArgument(
+        !incrementalStateDirectory.isPresent() || pathToOutputJar.isPresent(),
+        "pathToOutputJar must be specified along with incrementalStateDirectory.");
+    this.jarCache = Preconditions.checkNotNull(jarCache);
   }
 
   @Override
@@ -112,16 +216,179 @@ public class JavacInMemoryStep extends JavacStep {
     JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
     Preconditions.checkNotNull(compiler,
         "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
-    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    List<String> options = withoutClasspath(getOptions(context, buildClasspathEntries));
+    if (incrementalStateDirectory.isPresent()) {
+      return buildIncrementally(context, compiler, buildClasspathEntries, options);
+    }
+
+    StandardJavaFileManager standardFileManager =
+        compiler.getStandardFileManager(null, null, null);
     Iterable<? extends JavaFileObject> compilationUnits;
+    CachingClasspathFileManager classpathFileManager;
     try {
       compilationUnits = createCompilationUnits(
-          fileManager, context.getProjectFilesystem().getAbsolutifier());
+          standardFileManager, context.getProjectFilesystem().getAbsolutifier());
+      handleFileManagerOptions(standardFileManager, options);
+      classpathFileManager = new CachingClasspathFileManager(
+          standardFileManager,
+          jarCache,
+          FluentIterable.from(buildClasspathEntries)
+              .transform(context.getProjectFilesystem().getAbsolutifier()));
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
     }
 
+    JavaFileManager fileManager = classpathFileManager;
+    try {
+      JarOutputFileManager jarFileManager = null;
+      if (pathToOutputJar.isPresent()) {
+        jarFileManager = new JarOutputFileManager(
+            classpathFileManager,
+            context.getProjectFilesystem().resolve(pathToOutputJar.get()));
+        fileManager = jarFileManager;
+      }
+
+      int exitCode = buildWithFileManager(
+          context,
+          compiler,
+          fileManager,
+          compilationUnits,
+          options);
+      if (exitCode != 0 || jarFileManager == null) {
+        return exitCode;
+      }
+      return finishOutputJar(context, jarFileManager);
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    } finally {
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        e.printStackTrace(context.getStdErr());
+      }
+    }
+  }
+
+  /**
+   * Compiles the sources that changed since the last build, and those that depend on them, into
+   * the classes directory in {@link #incrementalStateDirectory}, and then writes all of its
+   * classes to the output jar.
+   */
+  private int buildIncrementally(
+      final ExecutionContext context,
+      final JavaCompiler compiler,
+      Set<Path> buildClasspathEntries,
+      final List<String> options) {
+    final ProjectFilesystem filesystem = context.getProjectFilesystem();
+    Path stateDirectory = filesystem.resolve(incrementalStateDirectory.get());
+    final Path classesDirectory = stateDirectory.resolve("classes");
+    ImmutableList<Path> absoluteClasspathEntries = FluentIterable.from(buildClasspathEntries)
+        .transform(filesystem.getAbsolutifier())
+        .toList();
+    // The classes of the sources that are not recompiled are compiled against, and come first, as
+    // the sources of the rule would when everything is compiled.
+    final ImmutableList<Path> classpath = ImmutableList.<Path>builder()
+        .add(classesDirectory)
+        .addAll(absoluteClasspathEntries)
+        .build();
+
+    IncrementalJavac incrementalJavac;
+    try {
+      ImmutableSortedMap.Builder<Path, HashCode> sourceHashes = ImmutableSortedMap.naturalOrder();
+      for (SourcePath srcPath : javaSourceFilePaths) {
+        Path source = srcPath.resolve();
+        sourceHashes.put(source, Files.hash(filesystem.resolve(source).toFile(), Hashing.sha1()));
+      }
+      incrementalJavac = new IncrementalJavac(
+          classesDirectory,
+          stateDirectory.resolve("state.json"),
+          IncrementalJavac.computeFingerprint(options, absoluteClasspathEntries),
+          absoluteClasspathEntries,
+          sourceHashes.build());
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+
+    IncrementalJavac.Compiler incrementalCompiler = new IncrementalJavac.Compiler() {
+      @Override
+      public int compile(
+          ImmutableSortedSet<Path> sources,
+          SetMultimap<Path, String> classesOfSources) throws IOException {
+        StandardJavaFileManager standardFileManager =
+            compiler.getStandardFileManager(null, null, null);
+        handleFileManagerOptions(standardFileManager, options);
+        standardFileManager.setLocation(
+            StandardLocation.CLASS_OUTPUT,
+            ImmutableList.of(classesDirectory.toFile()));
+
+        List<JavaFileObject> compilationUnits = Lists.newArrayList();
+        Map<URI, Path> sourcesByUri = Maps.newHashMap();
+        for (Path source : sources) {
+          JavaFileObject compilationUnit = Iterables.getOnlyElement(
+              standardFileManager.getJavaFileObjects(filesystem.resolve(source).toFile()));
+          compilationUnits.add(compilationUnit);
+          sourcesByUri.put(compilationUnit.toUri(), source);
+        }
+
+        try (JavaFileManager fileManager = IncrementalJavac.recordClassesOfSources(
+            new CachingClasspathFileManager(standardFileManager, jarCache, classpath),
+            sourcesByUri,
+            classesOfSources)) {
+          return buildWithFileManager(context, compiler, fileManager, compilationUnits, options);
+        }
+      }
+    };
+
+    try {
+      int exitCode = incrementalJavac.build(incrementalCompiler);
+      if (exitCode != 0) {
+        return exitCode;
+      }
+      logger.debug(
+          "Compiled %d of %d sources of %s.",
+          incrementalJavac.getCompiledSources().size(),
+          javaSourceFilePaths.size(),
+          invokingRule.orNull());
+      abiKey = incrementalJavac.getAbiKey();
+
+      try (JarOutputFileManager jarFileManager = new JarOutputFileManager(
+          compiler.getStandardFileManager(null, null, null),
+          filesystem.resolve(pathToOutputJar.get()))) {
+        jarFileManager.addFilesInDirectory(classesDirectory);
+        return finishOutputJar(context, jarFileManager);
+      }
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  /**
+   * Adds whatever else javac wrote to the output directory, such as the output of annotation
+   * processors and any resources that were copied there before it ran, to the jar of compiled
+   * classes, and writes the hashes of the classes to {@code pathToClassHashes}.
+   */
+  private int finishOutputJar(ExecutionContext context, JarOutputFileManager jarFileManager)
+      throws IOException {
+    jarFileManager.addFilesInDirectory(context.getProjectFilesystem().resolve(outputDirectory));
+    jarFileManager.finishJar();
+    AccumulateClassNamesStep.writeClassHashes(
+        context.getProjectFilesystem(),
+        jarFileManager.getClassHashes(),
+        pathToClassHashes.get());
+    return 0;
+  }
+
+  private int buildWithFileManager(
+      ExecutionContext context,
+      JavaCompiler compiler,
+      JavaFileManager fileManager,
+      Iterable<? extends JavaFileObject> compilationUnits,
+      List<String> options) {
+
     if (pathToSrcsList.isPresent()) {
       // write javaSourceFilePaths to classes file
       // for buck user to have a list of all .java files to be compiled
@@ -139,7 +406,6 @@ public class JavacInMemoryStep extends JavacStep {
     }
 
     DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-    List<String> options = getOptions(context, buildClasspathEntries);
     List<String> classNamesForAnnotationProcessing = ImmutableList.of();
     Writer compilerOutputWriter = new PrintWriter(context.getStdErr());
     JavaCompiler.CompilationTask compilationTask = compiler.getTask(
@@ -189,6 +455,38 @@ public class JavacInMemoryStep extends JavacStep {
     }
   }
 
+  /**
+   * @return {@code options} without {@code -classpath}, as the classpath is passed to javac by its
+   *     {@link CachingClasspathFileManager} instead.
+   */
+  private static List<String> withoutClasspath(List<String> options) {
+    List<String> optionsWithoutClasspath = Lists.newArrayListWithCapacity(options.size());
+    for (Iterator<String> iterator = options.iterator(); iterator.hasNext(); ) {
+      String option = iterator.next();
+      if ("-classpath".equals(option)) {
+        iterator.next();
+      } else {
+        optionsWithoutClasspath.add(option);
+      }
+    }
+    return optionsWithoutClasspath;
+  }
+
+  /**
+   * Passes options such as {@code -d} and {@code -bootclasspath} to {@code fileManager}, as javac
+   * only configures the file managers that it creates itself from the options of a task.
+   */
+  private static void handleFileManagerOptions(
+      StandardJavaFileManager fileManager,
+      List<String> options) {
+    for (Iterator<String> iterator = options.iterator(); iterator.hasNext(); ) {
+      String option = iterator.next();
+      if (fileManager.isSupportedOption(option) >= 0) {
+        fileManager.handleOption(option, iterator);
+      }
+    }
+  }
+
   private Iterable<? extends JavaFileObject> createCompilationUnits(
       StandardJavaFileManager fileManager,
       Function<Path, Path> absolutifier) throws IOException {
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.Threads;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A long-running external javac that compiles the requests sent to its stdin, as described by
+ * {@link JavacWorkerPool}. Several requests may be outstanding at once, and the responses may come
+ * back in any order.
+ */
+class JavacWorker {
+
+  private static final Logger logger = Logger.get(JavacWorker.class);
+
+  static final String ID = "id";
+  static final String ARGS = "args";
+  static final String ENV = "env";
+  static final String EXIT_CODE = "exitCode";
+  static final String STDOUT = "stdout";
+  static final String STDERR = "stderr";
+
+  /**
+   * The outcome of a compilation, as reported by the worker.
+   */
+  public static class Response {
+    private final int exitCode;
+    private final String stdout;
+    private final String stderr;
+
+    public Response(int exitCode, String stdout, String stderr) {
+      this.exitCode = exitCode;
+      this.stdout = Preconditions.checkNotNull(stdout);
+      this.stderr = Preconditions.checkNotNull(stderr);
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    public String getStdout() {
+      return stdout;
+    }
+
+    public String getStderr() {
+      return stderr;
+    }
+  }
+
+  /**
+   * Thrown for each outstanding request of a worker that exited, or stopped speaking the protocol.
+   */
+  @SuppressWarnings("serial")
+  public static class CrashedException extends IOException {
+    public CrashedException(String message, @Nullable Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Process process;
+  private final OutputStream stdin;
+  private final Runnable onRequestFinished;
+  private final Map<Long, SettableFuture<Response>> outstandingRequests = Maps.newHashMap();
+  private long nextRequestId;
+  @Nullable
+  private CrashedException crash;
+
+  private JavacWorker(Process process, Runnable onRequestFinished) {
+    this.process = Preconditions.checkNotNull(process);
+    this.stdin = process.getOutputStream();
+    this.onRequestFinished = Preconditions.checkNotNull(onRequestFinished);
+  }
+
+  /**
+   * Starts a worker, and the threads that read its stdout and stderr.
+   *
+   * @param onRequestFinished run whenever a request gets its response, or fails because the worker
+   *     crashed.
+   */
+  public static JavacWorker start(
+      List<String> command,
+      File workingDirectory,
+      Map<String, String> environment,
+      Runnable onRequestFinished) throws IOException {
+    ProcessBuilder processBuilder = new ProcessBuilder(command);
+    processBuilder.directory(workingDirectory);
+    processBuilder.environment().clear();
+    processBuilder.environment().putAll(environment);
+    logger.debug("Starting javac worker: %s", command);
+    final JavacWorker worker = new JavacWorker(processBuilder.start(), onRequestFinished);
+
+    Thread stdoutReader = Threads.namedThread(
+        JavacWorker.class.getSimpleName() + "-stdout",
+        new Runnable() {
+          @Override
+          public void run() {
+            worker.readResponses();
+          }
+        });
+    Thread stderrReader = Threads.namedThread(
+        JavacWorker.class.getSimpleName() + "-stderr",
+        new Runnable() {
+          @Override
+          public void run() {
+            worker.readStderr();
+          }
+        });
+    // Workers are only killed when Buck exits, so these must not keep it from exiting.
+    stdoutReader.setDaemon(true);
+    stderrReader.setDaemon(true);
+    stdoutReader.start();
+    stderrReader.start();
+    return worker;
+  }
+
+  public synchronized boolean isAlive() {
+    return crash == null;
+  }
+
+  public synchronized int getOutstandingRequests() {
+    return outstandingRequests.size();
+  }
+
+  /**
+   * Sends a compilation to the worker.
+   *
+   * @return a future that fails with a {@link CrashedException} if the worker exits before it
+   *     responds.
+   */
+  public ListenableFuture<Response> send(
+      ImmutableList<String> args,
+      ImmutableMap<String, String> environment) {
+    SettableFuture<Response> response = SettableFuture.create();
+    IOException failure;
+    synchronized (this) {
+      if (crash != null) {
+        response.setException(crash);
+        return response;
+      }
+      long id = nextRequestId++;
+      outstandingRequests.put(id, response);
+      try {
+        String request = MAPPER.writeValueAsString(
+            ImmutableMap.of(ID, id, ARGS, args, ENV, environment));
+        stdin.write(request.getBytes(Charsets.UTF_8));
+        stdin.write('\n');
+        stdin.flush();
+        return response;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    // Outside of the lock, as onRequestFinished may have to take the lock of the pool.
+    crashed(failure);
+    return response;
+  }
+
+  /**
+   * Kills the worker, failing any outstanding requests.
+   */
+  public void destroy() {
+    process.destroy();
+    crashed(null);
+  }
+
+  private void readResponses() {
+    Exception cause = null;
+    try (BufferedReader stdout = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), Charsets.UTF_8))) {
+      for (String line = stdout.readLine(); line != null; line = stdout.readLine()) {
+        Map<?, ?> response = MAPPER.readValue(line, Map.class);
+        SettableFuture<Response> future;
+        synchronized (this) {
+          future = outstandingRequests.remove(((Number) response.get(ID)).longValue());
+        }
+        if (future == null) {
+          throw new IOException("Response to an unknown request: " + line);
+        }
+        future.set(new Response(
+            ((Number) response.get(EXIT_CODE)).intValue(),
+            String.valueOf(response.get(STDOUT)),
+            String.valueOf(response.get(STDERR))));
+        onRequestFinished.run();
+      }
+    } catch (IOException | RuntimeException e) {
+      // A malformed response means that the worker can no longer be trusted to answer.
+      cause = e;
+    }
+    process.destroy();
+    crashed(cause);
+  }
+
+  private void readStderr() {
+    try (BufferedReader stderr = new BufferedReader(
+        new InputStreamReader(process.getErrorStream(), Charsets.UTF_8))) {
+      for (String line = stderr.readLine(); line != null; line = stderr.readLine()) {
+        logger.debug("javac worker: %s", line);
+      }
+    } catch (IOException e) {
+      logger.debug(e, "Unable to read the stderr of a javac worker.");
+    }
+  }
+
+  private void crashed(@Nullable Throwable cause) {
+    CrashedException exception;
+    ImmutableList<SettableFuture<Response>> failedRequests;
+    synchronized (this) {
+      if (crash == null) {
+        crash = new CrashedException("The javac worker exited.", cause);
+      }
+      exception = crash;
+      failedRequests = ImmutableList.copyOf(outstandingRequests.values());
+      outstandingRequests.clear();
+    }
+    for (SettableFuture<Response> request : failedRequests) {
+      request.setException(exception);
+    }
+    onRequestFinished.run();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * A worker for a {@link JavacWorkerPool} that compiles each request with the system java compiler,
+ * several at a time. The environment of a request is ignored, as it cannot be applied to a
+ * compilation that runs in this process.
+ * <p>
+ * To use it, set {@code [tools] javac} to a script that runs this class with the compiler on its
+ * classpath when passed {@code --persistent-worker}, and that runs {@code javac} otherwise.
+ */
+public class JavacWorkerMain {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final JavaCompiler compiler;
+  private final OutputStream responses;
+
+  private JavacWorkerMain(JavaCompiler compiler, OutputStream responses) {
+    this.compiler = compiler;
+    this.responses = responses;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      System.err.println("No system java compiler: run the worker with a JDK rather than a JRE.");
+      System.exit(1);
+    }
+
+    // Keep annotation processors that print to System.out from corrupting the responses.
+    OutputStream responses = new FileOutputStream(FileDescriptor.out);
+    System.setOut(System.err);
+
+    final JavacWorkerMain worker = new JavacWorkerMain(compiler, responses);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, Charsets.UTF_8));
+    for (String line = requests.readLine(); line != null; line = requests.readLine()) {
+      final Map<?, ?> request = MAPPER.readValue(line, Map.class);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          worker.compile(request);
+        }
+      });
+    }
+    // Finish the outstanding requests once stdin is closed.
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private void compile(Map<?, ?> request) {
+    List<?> args = (List<?>) request.get(JavacWorker.ARGS);
+    String[] javacArgs = new String[args.size()];
+    for (int i = 0; i < javacArgs.length; i++) {
+      javacArgs[i] = String.valueOf(args.get(i));
+    }
+
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    int exitCode;
+    try (PrintStream err = new PrintStream(stderr, /* autoFlush */ true, Charsets.UTF_8.name())) {
+      exitCode = compiler.run(null, stdout, err, javacArgs);
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace(System.err);
+      exitCode = 1;
+    }
+
+    try {
+      byte[] response = MAPPER.writeValueAsBytes(ImmutableMap.of(
+          JavacWorker.ID, request.get(JavacWorker.ID),
+          JavacWorker.EXIT_CODE, exitCode,
+          JavacWorker.STDOUT, new String(stdout.toByteArray(), Charsets.UTF_8),
+          JavacWorker.STDERR, new String(stderr.toByteArray(), Charsets.UTF_8)));
+      synchronized (responses) {
+        responses.write(response);
+        responses.write('\n');
+        responses.flush();
+      }
+    } catch (IOException e) {
+      // Buck is gone, or no longer listening.
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * How many persistent workers a {@link JavacWorkerPool} may start for an external javac, and how
+ * much each of them may take on.
+ */
+public class JavacWorkerOptions {
+
+  private final int maxWorkers;
+  private final int maxRequestsPerWorker;
+  private final Optional<String> maxHeap;
+
+  /**
+   * @param maxWorkers the most worker processes to run at once.
+   * @param maxRequestsPerWorker the most compilations to send to a worker before it has answered
+   *     any of them.
+   * @param maxHeap if specified, the {@code -Xmx} of each worker, such as {@code 1g}.
+   */
+  public JavacWorkerOptions(int maxWorkers, int maxRequestsPerWorker, Optional<String> maxHeap) {
+    Preconditions.checkArgument(maxWorkers > 0, "There must be at least one javac worker.");
+    Preconditions.checkArgument(maxRequestsPerWorker > 0,
+        "A javac worker must accept at least one request at a time.");
+    this.maxWorkers = maxWorkers;
+    this.maxRequestsPerWorker = maxRequestsPerWorker;
+    this.maxHeap = Preconditions.checkNotNull(maxHeap);
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public int getMaxRequestsPerWorker() {
+    return maxRequestsPerWorker;
+  }
+
+  public Optional<String> getMaxHeap() {
+    return maxHeap;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof JavacWorkerOptions)) {
+      return false;
+    }
+    JavacWorkerOptions that = (JavacWorkerOptions) obj;
+    return this.maxWorkers == that.maxWorkers &&
+        this.maxRequestsPerWorker == that.maxRequestsPerWorker &&
+        this.maxHeap.equals(that.maxHeap);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(maxWorkers, maxRequestsPerWorker, maxHeap);
+  }
+}
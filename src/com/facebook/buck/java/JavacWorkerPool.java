@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A pool of long-running processes of an external javac, so that each compilation does not pay
+ * for the startup and warmup of a new JVM.
+ * <p>
+ * A worker is started as {@code javac --persistent-worker}, with {@code -Xmx} added to its
+ * {@code JAVA_TOOL_OPTIONS} if a maximum heap is configured. It reads one request per line from
+ * its stdin, as a JSON object with the {@code id} of the request, the {@code args} to compile with
+ * and the {@code env} that a forked javac would have been run with. For each request, it writes a
+ * line to its stdout with a JSON object with the {@code id} of the request, and the
+ * {@code exitCode}, {@code stdout} and {@code stderr} of the compilation. Requests may be answered
+ * in any order. Anything a worker writes to its stderr is logged. {@link JavacWorkerMain} is a
+ * worker that runs the system java compiler.
+ * <p>
+ * A compilation that was sent to a worker that exits before answering it is retried once on
+ * another worker.
+ */
+public class JavacWorkerPool implements AutoCloseable {
+
+  private static final Logger logger = Logger.get(JavacWorkerPool.class);
+
+  @VisibleForTesting
+  static final String PERSISTENT_WORKER_FLAG = "--persistent-worker";
+
+  private static final int MAX_ATTEMPTS = 2;
+
+  @Nullable
+  private static JavacWorkerPool sharedInstance;
+  @Nullable
+  private static ImmutableList<Object> sharedInstanceKey;
+
+  private final ImmutableList<String> command;
+  private final JavacWorkerOptions options;
+  private final File workingDirectory;
+  private final ImmutableMap<String, String> environment;
+
+  /** Workers that have been started and have not exited, guarded by {@code this}. */
+  private final List<JavacWorker> workers = Lists.newArrayList();
+  private boolean isClosed;
+
+  @VisibleForTesting
+  JavacWorkerPool(
+      Path pathToJavac,
+      JavacWorkerOptions options,
+      File workingDirectory,
+      ImmutableMap<String, String> environment) {
+    this.command = ImmutableList.of(pathToJavac.toString(), PERSISTENT_WORKER_FLAG);
+    this.options = Preconditions.checkNotNull(options);
+    this.workingDirectory = Preconditions.checkNotNull(workingDirectory);
+    this.environment = withMaxHeap(Preconditions.checkNotNull(environment), options);
+  }
+
+  /**
+   * @return the pool of the workers of {@code pathToJavac}, which is kept across builds. As
+   *     workers are started with the environment of the build that first needed them, the pool is
+   *     replaced if any of the arguments change.
+   */
+  public static synchronized JavacWorkerPool getSharedInstance(
+      Path pathToJavac,
+      JavacWorkerOptions options,
+      File workingDirectory,
+      ImmutableMap<String, String> environment) {
+    ImmutableList<Object> key =
+        ImmutableList.of(pathToJavac, options, workingDirectory, environment);
+    if (sharedInstance != null && key.equals(sharedInstanceKey)) {
+      return sharedInstance;
+    }
+    if (sharedInstance != null) {
+      sharedInstance.close();
+    } else {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          synchronized (JavacWorkerPool.class) {
+            if (sharedInstance != null) {
+              sharedInstance.close();
+            }
+          }
+        }
+      });
+    }
+    sharedInstance = new JavacWorkerPool(pathToJavac, options, workingDirectory, environment);
+    sharedInstanceKey = key;
+    return sharedInstance;
+  }
+
+  private static ImmutableMap<String, String> withMaxHeap(
+      ImmutableMap<String, String> environment,
+      JavacWorkerOptions options) {
+    if (!options.getMaxHeap().isPresent()) {
+      return environment;
+    }
+    // The worker may well be a script that starts a JVM, rather than a JVM that takes -J flags, so
+    // the maximum heap is passed in the environment that every JVM reads its options from.
+    String javaToolOptions = environment.get("JAVA_TOOL_OPTIONS");
+    String maxHeap = "-Xmx" + options.getMaxHeap().get();
+    Map<String, String> withMaxHeap = Maps.newHashMap(environment);
+    withMaxHeap.put(
+        "JAVA_TOOL_OPTIONS",
+        javaToolOptions == null ? maxHeap : javaToolOptions + " " + maxHeap);
+    return ImmutableMap.copyOf(withMaxHeap);
+  }
+
+  /**
+   * Compiles with {@code args} on the least busy worker, starting a new one if all of them are
+   * busy and there is room for another, and otherwise waiting for one of them to finish a request.
+   *
+   * @param requestEnvironment the environment that the compilation would have been forked with.
+   * @throws IOException if no worker could be started, or the compilation crashed a worker twice.
+   */
+  public JavacWorker.Response compile(
+      ImmutableList<String> args,
+      ImmutableMap<String, String> requestEnvironment) throws IOException, InterruptedException {
+    for (int attempt = 1;; attempt++) {
+      ListenableFuture<JavacWorker.Response> response = send(args, requestEnvironment);
+      try {
+        return response.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof JavacWorker.CrashedException && attempt < MAX_ATTEMPTS) {
+          logger.warn(cause, "A javac worker crashed, retrying on another worker.");
+          continue;
+        }
+        Throwables.propagateIfInstanceOf(cause, IOException.class);
+        throw Throwables.propagate(cause);
+      }
+    }
+  }
+
+  private synchronized ListenableFuture<JavacWorker.Response> send(
+      ImmutableList<String> args,
+      ImmutableMap<String, String> requestEnvironment) throws IOException, InterruptedException {
+    while (true) {
+      Preconditions.checkState(!isClosed, "The javac worker pool was closed.");
+      JavacWorker leastBusy = null;
+      for (Iterator<JavacWorker> iterator = workers.iterator(); iterator.hasNext(); ) {
+        JavacWorker worker = iterator.next();
+        if (!worker.isAlive()) {
+          iterator.remove();
+        } else if (leastBusy == null ||
+            worker.getOutstandingRequests() < leastBusy.getOutstandingRequests()) {
+          leastBusy = worker;
+        }
+      }
+
+      if (leastBusy != null && leastBusy.getOutstandingRequests() == 0) {
+        return leastBusy.send(args, requestEnvironment);
+      }
+      // Rather than queue a request behind another one, start a worker while there is room for it.
+      if (workers.size() < options.getMaxWorkers()) {
+        JavacWorker worker = JavacWorker.start(
+            command,
+            workingDirectory,
+            environment,
+            new Runnable() {
+              @Override
+              public void run() {
+                onRequestFinished();
+              }
+            });
+        workers.add(worker);
+        return worker.send(args, requestEnvironment);
+      }
+      if (leastBusy != null &&
+          leastBusy.getOutstandingRequests() < options.getMaxRequestsPerWorker()) {
+        return leastBusy.send(args, requestEnvironment);
+      }
+      wait();
+    }
+  }
+
+  private synchronized void onRequestFinished() {
+    notifyAll();
+  }
+
+  @VisibleForTesting
+  synchronized int getNumberOfLiveWorkers() {
+    int liveWorkers = 0;
+    for (JavacWorker worker : workers) {
+      if (worker.isAlive()) {
+        liveWorkers++;
+      }
+    }
+    return liveWorkers;
+  }
+
+  /**
+   * Kills every worker, failing the compilations that they have not finished.
+   */
+  @Override
+  public void close() {
+    ImmutableList<JavacWorker> workersToDestroy;
+    synchronized (this) {
+      isClosed = true;
+      workersToDestroy = ImmutableList.copyOf(workers);
+      workers.clear();
+      notifyAll();
+    }
+    for (JavacWorker worker : workersToDestroy) {
+      worker.destroy();
+    }
+  }
+}
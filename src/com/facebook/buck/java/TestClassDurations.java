@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How long each test class of a {@code java_test()} took the last time all of them were run, which
+ * is used to split the classes into shards that take about as long as each other.
+ */
+class TestClassDurations {
+
+  /** Change this whenever the format of the file changes. */
+  private static final String FORMAT_VERSION = "1";
+
+  private final ImmutableMap<String, Long> durations;
+
+  private TestClassDurations(ImmutableMap<String, Long> durations) {
+    this.durations = Preconditions.checkNotNull(durations);
+  }
+
+  static TestClassDurations empty() {
+    return new TestClassDurations(ImmutableMap.<String, Long>of());
+  }
+
+  @VisibleForTesting
+  static TestClassDurations fromMap(Map<String, Long> durations) {
+    return new TestClassDurations(ImmutableMap.copyOf(durations));
+  }
+
+  /**
+   * @return the durations saved in {@code file}, or no durations if there is no such file, or it
+   *     was saved by another version of Buck.
+   */
+  static TestClassDurations load(ProjectFilesystem filesystem, Path file) {
+    if (!filesystem.exists(file)) {
+      return empty();
+    }
+    List<String> lines;
+    try {
+      lines = filesystem.readLines(file);
+    } catch (IOException e) {
+      return empty();
+    }
+    if (lines.isEmpty() || !lines.get(0).equals(FORMAT_VERSION)) {
+      return empty();
+    }
+
+    Map<String, Long> durations = Maps.newHashMap();
+    for (String line : lines.subList(1, lines.size())) {
+      int space = line.indexOf(' ');
+      try {
+        durations.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+      } catch (IndexOutOfBoundsException | NumberFormatException e) {
+        return empty();
+      }
+    }
+    return new TestClassDurations(ImmutableMap.copyOf(durations));
+  }
+
+  /**
+   * Saves the total time of each test class in {@code summaries}, in milliseconds.
+   */
+  static void save(ProjectFilesystem filesystem, Path file, Iterable<TestCaseSummary> summaries)
+      throws IOException {
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    lines.add(FORMAT_VERSION);
+    for (TestCaseSummary summary : summaries) {
+      lines.add(String.format("%d %s", summary.getTotalTime(), summary.getTestCaseName()));
+    }
+    filesystem.createParentDirs(file);
+    filesystem.writeLinesToPath(lines.build(), file);
+  }
+
+  /**
+   * Splits {@code testClassNames} into at most {@code maxShards} shards, so that the longest shard
+   * takes as little time as possible. The longest classes are placed first, each in the shard with
+   * the least work so far. Classes that have not been timed yet are taken to last as long as the
+   * average class that has.
+   */
+  ImmutableList<ImmutableSortedSet<String>> shard(Set<String> testClassNames, int maxShards) {
+    Preconditions.checkArgument(maxShards > 0);
+    int shardCount = Math.max(1, Math.min(maxShards, testClassNames.size()));
+
+    long knownTotal = 0;
+    int knownCount = 0;
+    for (String testClassName : testClassNames) {
+      Long duration = durations.get(testClassName);
+      if (duration != null) {
+        knownTotal += duration;
+        knownCount++;
+      }
+    }
+    final long defaultDuration = knownCount == 0 ? 1 : Math.max(1, knownTotal / knownCount);
+
+    List<String> longestFirst = Lists.newArrayList(testClassNames);
+    Collections.sort(longestFirst, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int byDuration = Long.compare(
+            getDuration(b, defaultDuration),
+            getDuration(a, defaultDuration));
+        return byDuration != 0 ? byDuration : a.compareTo(b);
+      }
+    });
+
+    List<ImmutableSortedSet.Builder<String>> shards = Lists.newArrayListWithCapacity(shardCount);
+    long[] shardDurations = new long[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(ImmutableSortedSet.<String>naturalOrder());
+    }
+    for (String testClassName : longestFirst) {
+      int shortest = 0;
+      for (int i = 1; i < shardCount; i++) {
+        if (shardDurations[i] < shardDurations[shortest]) {
+          shortest = i;
+        }
+      }
+      shards.get(shortest).add(testClassName);
+      shardDurations[shortest] += getDuration(testClassName, defaultDuration);
+    }
+
+    ImmutableList.Builder<ImmutableSortedSet<String>> result = ImmutableList.builder();
+    for (ImmutableSortedSet.Builder<String> shard : shards) {
+      result.add(shard.build());
+    }
+    return result.build();
+  }
+
+  private long getDuration(String testClassName, long defaultDuration) {
+    Long duration = durations.get(testClassName);
+    return duration != null ? duration : defaultDuration;
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.FileHashCache;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * Persists the raw rules produced by buck.py for each build file under {@code buck-out}, so that
+ * a fresh checkout, a CI machine or a restarted daemon can skip re-evaluating build files that have
+ * not changed.
+ * <p>
+ * An entry is only used if all of the following still match what was recorded when it was
+ * written:
+ * <ul>
+ *   <li>the parser key, which covers the generated buck.py, the python interpreter, the default
+ *       includes, the parse options and the environment that buck.py runs in;</li>
+ *   <li>the contents of the build file and of every file it transitively includes;</li>
+ *   <li>the names of the files in the build file's package, since those are what {@code glob()}
+ *       sees. As with the in-memory cache in {@code Parser}, files in sub-packages are not
+ *       considered part of the package.</li>
+ * </ul>
+ */
+public class BuildFileParseCache {
+
+  private static final Logger LOG = Logger.get(BuildFileParseCache.class);
+
+  @VisibleForTesting
+  static final Path CACHE_DIR = Paths.get(BuckConstant.BUCK_OUTPUT_DIRECTORY, "parse-cache");
+
+  /**
+   * Bumped whenever the layout of cache entries changes, so that entries written by an older
+   * version of this class are ignored.
+   */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String PARSER_KEY = "parser_key";
+  private static final String FILE_HASHES = "file_hashes";
+  private static final String PACKAGE_HASH = "package_hash";
+  private static final String RULES = "rules";
+
+  private static final String INCLUDES_META_RULE = "__includes";
+
+  private final ProjectFilesystem projectFilesystem;
+  private final FileHashCache fileHashCache;
+
+  public BuildFileParseCache(ProjectFilesystem projectFilesystem, FileHashCache fileHashCache) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.fileHashCache = Preconditions.checkNotNull(fileHashCache);
+  }
+
+  /**
+   * @param pathToBuckPy the buck.py that will evaluate build files, including the functions
+   *     generated for each known rule type.
+   * @return a key that identifies everything, other than the files being parsed, that can affect
+   *     the output of buck.py.
+   */
+  public static HashCode createParserKey(
+      Path pathToBuckPy,
+      String pythonInterpreter,
+      Iterable<String> commonIncludes,
+      Iterable<?> parseOptions,
+      ImmutableMap<String, String> environment) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    hasher.putBytes(Files.readAllBytes(pathToBuckPy));
+    hasher.putString(pythonInterpreter, Charsets.UTF_8).putByte((byte) 0);
+    for (String include : commonIncludes) {
+      hasher.putString(include, Charsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 0);
+    for (Object option : parseOptions) {
+      hasher.putString(option.toString(), Charsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 0);
+    for (Map.Entry<String, String> entry : ImmutableSortedMap.copyOf(environment).entrySet()) {
+      hasher.putString(entry.getKey(), Charsets.UTF_8).putByte((byte) 0);
+      hasher.putString(entry.getValue(), Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * @param buildFile an absolute path to a build file.
+   * @return the rules and meta rules of {@code buildFile} if they were cached with the same parser
+   *     key and none of the inputs to the build file have changed since.
+   */
+  @SuppressWarnings("unchecked")
+  public Optional<List<Map<String, Object>>> get(HashCode parserKey, Path buildFile) {
+    Path entryPath = getEntryPath(buildFile);
+    Optional<Reader> reader = projectFilesystem.getReaderIfFileExists(entryPath);
+    if (!reader.isPresent()) {
+      return Optional.absent();
+    }
+
+    try {
+      Map<String, Object> entry = RawParser.parseFromReader(reader.get());
+      if (!parserKey.toString().equals(entry.get(PARSER_KEY))) {
+        return Optional.absent();
+      }
+      Map<String, Object> fileHashes = (Map<String, Object>) entry.get(FILE_HASHES);
+      for (Map.Entry<String, Object> fileHash : fileHashes.entrySet()) {
+        Path file = Paths.get(fileHash.getKey());
+        if (!projectFilesystem.isFile(file) ||
+            !fileHashCache.get(file).toString().equals(fileHash.getValue())) {
+          return Optional.absent();
+        }
+      }
+      if (!hashPackage(buildFile).toString().equals(entry.get(PACKAGE_HASH))) {
+        return Optional.absent();
+      }
+      return Optional.of((List<Map<String, Object>>) entry.get(RULES));
+    } catch (IOException | RuntimeException e) {
+      // A corrupt or unreadable entry is treated like a miss and overwritten on the next put.
+      LOG.debug(e, "Ignoring unreadable parse cache entry %s", entryPath);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Records the rules and meta rules that buck.py produced for {@code buildFile}.
+   * Build files that include files outside of the project are not cached.
+   */
+  @SuppressWarnings("unchecked")
+  public void put(HashCode parserKey, Path buildFile, List<Map<String, Object>> rules) {
+    // The last rule is the __includes meta rule: the build file followed by the files it includes.
+    Map<String, Object> includesMetaRule = rules.get(rules.size() - 1);
+    Preconditions.checkState(includesMetaRule.containsKey(INCLUDES_META_RULE));
+
+    Path entryPath = getEntryPath(buildFile);
+    try {
+      SortedMap<String, String> fileHashes = Maps.newTreeMap();
+      for (String include : (List<String>) includesMetaRule.get(INCLUDES_META_RULE)) {
+        Optional<Path> file = relativize(Paths.get(include));
+        if (!file.isPresent()) {
+          return;
+        }
+        fileHashes.put(file.get().toString(), fileHashCache.get(file.get()).toString());
+      }
+
+      Map<String, Object> entry = ImmutableMap.of(
+          PARSER_KEY, parserKey.toString(),
+          FILE_HASHES, fileHashes,
+          PACKAGE_HASH, hashPackage(buildFile).toString(),
+          RULES, rules);
+
+      // Write to a temporary file first so that a concurrent reader never sees a partial entry.
+      projectFilesystem.mkdirs(CACHE_DIR);
+      Path tempFile = Files.createTempFile(
+          projectFilesystem.resolve(CACHE_DIR),
+          entryPath.getFileName().toString(),
+          ".tmp");
+      try (Writer writer = Files.newBufferedWriter(tempFile, Charsets.UTF_8)) {
+        new GsonBuilder().serializeNulls().create().toJson(entry, writer);
+      }
+      Files.move(
+          tempFile,
+          projectFilesystem.resolve(entryPath),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Unable to write parse cache entry %s", entryPath);
+    }
+  }
+
+  private Path getEntryPath(Path buildFile) {
+    String key = Hashing.sha1()
+        .hashString(projectFilesystem.resolve(buildFile).toString(), Charsets.UTF_8)
+        .toString();
+    return CACHE_DIR.resolve(key + ".json");
+  }
+
+  private Optional<Path> relativize(Path path) {
+    Path absolutePath = projectFilesystem.resolve(path).normalize();
+    Path rootPath = projectFilesystem.getRootPath().toAbsolutePath().normalize();
+    if (!absolutePath.startsWith(rootPath)) {
+      return Optional.absent();
+    }
+    return Optional.of(rootPath.relativize(absolutePath));
+  }
+
+  /**
+   * @return a hash of the names of the files in the package of {@code buildFile}, stopping at
+   *     sub-packages and ignored paths.
+   */
+  @VisibleForTesting
+  HashCode hashPackage(Path buildFile) throws IOException {
+    Optional<Path> buildFileRelativePath = relativize(buildFile);
+    Preconditions.checkState(buildFileRelativePath.isPresent());
+    final Path packagePath = Optional
+        .fromNullable(buildFileRelativePath.get().getParent())
+        .or(Paths.get(""));
+    final SortedSet<String> fileNames = Sets.newTreeSet();
+    projectFilesystem.walkRelativeFileTree(packagePath, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        if (dir.equals(packagePath)) {
+          return FileVisitResult.CONTINUE;
+        }
+        if (projectFilesystem.isIgnored(dir) ||
+            projectFilesystem.isFile(dir.resolve(BuckConstant.BUILD_RULES_FILE_NAME))) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        fileNames.add(file.toString());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String fileName : fileNames) {
+      hasher.putString(fileName, Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash();
+  }
+}
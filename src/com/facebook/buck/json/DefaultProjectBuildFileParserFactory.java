@@ -19,6 +19,7 @@ package com.facebook.buck.json;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -29,14 +30,28 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final ProjectFilesystem projectFilesystem;
   private final String pythonInterpreter;
   private final ImmutableSet<Description<?>> descriptions;
+  private final Optional<BuildFileParseCache> parseCache;
 
   public DefaultProjectBuildFileParserFactory(
       ProjectFilesystem projectFilesystem,
       String pythonInterpreter,
       ImmutableSet<Description<?>> descriptions) {
+    this(
+        projectFilesystem,
+        pythonInterpreter,
+        descriptions,
+        Optional.<BuildFileParseCache>absent());
+  }
+
+  public DefaultProjectBuildFileParserFactory(
+      ProjectFilesystem projectFilesystem,
+      String pythonInterpreter,
+      ImmutableSet<Description<?>> descriptions,
+      Optional<BuildFileParseCache> parseCache) {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.pythonInterpreter = Preconditions.checkNotNull(pythonInterpreter);
     this.descriptions = Preconditions.checkNotNull(descriptions);
+    this.parseCache = Preconditions.checkNotNull(parseCache);
   }
 
   @Override
@@ -52,6 +67,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
         descriptions,
         parseOptions,
         console,
-        environment);
+        environment,
+        parseCache);
   }
 }
@@ -33,6 +33,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.common.io.CharStreams;
 
 import java.io.BufferedWriter;
@@ -85,6 +86,10 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private final String pythonInterpreter;
   private final EnumSet<Option> parseOptions;
   private final Console console;
+  private final Optional<BuildFileParseCache> parseCache;
+
+  /** Lazily computed key under which this parser's results are stored in {@link #parseCache}. */
+  @Nullable private HashCode parserKey;
 
   private boolean isServerMode;
 
@@ -98,7 +103,8 @@ public class ProjectBuildFileParser implements AutoCloseable {
       ImmutableSet<Description<?>> descriptions,
       EnumSet<Option> parseOptions,
       Console console,
-      ImmutableMap<String, String> environment) {
+      ImmutableMap<String, String> environment,
+      Optional<BuildFileParseCache> parseCache) {
     this.projectRoot = projectFilesystem.getProjectRoot();
     this.descriptions = Preconditions.checkNotNull(descriptions);
     this.ignorePaths = projectFilesystem.getIgnorePaths();
@@ -108,6 +114,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.pathToBuckPy = Optional.absent();
     this.console = Preconditions.checkNotNull(console);
     this.environment = Preconditions.checkNotNull(environment);
+    this.parseCache = Preconditions.checkNotNull(parseCache);
 
     // Default to server mode unless explicitly unset internally.
     setServerMode(true);
@@ -252,19 +259,45 @@ public class ProjectBuildFileParser implements AutoCloseable {
 
   /**
    * Collect all rules from a particular build file, along with meta rules about the rules, for
-   * example which build files the rules depend on.
+   * example which build files the rules depend on. If a persistent parse cache is in use and has
+   * an up to date entry for the build file, buck.py is not consulted at all.
    *
    * @param buildFile should be an absolute path to a build file. Must have rootPath as its prefix.
    */
   public List<Map<String, Object>> getAllRulesAndMetaRules(Path buildFile)
       throws BuildFileParseException {
     try {
-      return getAllRulesInternal(Optional.of(buildFile));
+      if (parseCache.isPresent()) {
+        Optional<List<Map<String, Object>>> cachedRules =
+            parseCache.get().get(getParserKey(), buildFile);
+        if (cachedRules.isPresent()) {
+          return cachedRules.get();
+        }
+      }
+
+      List<Map<String, Object>> rules = getAllRulesInternal(Optional.of(buildFile));
+
+      if (parseCache.isPresent()) {
+        parseCache.get().put(getParserKey(), buildFile, rules);
+      }
+      return rules;
     } catch (IOException e) {
       throw BuildFileParseException.createForBuildFileParseError(buildFile, e);
     }
   }
 
+  private HashCode getParserKey() throws IOException {
+    if (parserKey == null) {
+      parserKey = BuildFileParseCache.createParserKey(
+          getPathToBuckPy(descriptions),
+          pythonInterpreter,
+          commonIncludes,
+          parseOptions,
+          environment);
+    }
+    return parserKey;
+  }
+
   @VisibleForTesting
   protected List<Map<String, Object>> getAllRulesInternal(Optional<Path> buildFile)
       throws IOException {
@@ -325,17 +358,18 @@ public class ProjectBuildFileParser implements AutoCloseable {
           throw BuildFileParseException.createForUnknownParseError(
               String.format("Parser did not exit cleanly (exit code: %d)", exitCode));
         }
+      }
 
-        try {
-          synchronized (this) {
-            if (pathToBuckPy.isPresent()) {
-              Files.delete(pathToBuckPy.get());
-            }
+      // The temporary buck.py may exist without buck.py ever having run: it is also used to compute
+      // the key for the parse cache.
+      try {
+        synchronized (this) {
+          if (pathToBuckPy.isPresent()) {
+            Files.delete(pathToBuckPy.get());
           }
-        } catch (IOException e) {
-          // Eat any exceptions from deleting the temporary buck.py file.
         }
-
+      } catch (IOException e) {
+        // Eat any exceptions from deleting the temporary buck.py file.
       }
     } finally {
       isClosed = true;
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.util.Console;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded pool of {@link ProjectBuildFileParser}s, each of which drives its own long-lived
+ * {@code buck.py --server} process, so that independent build files can be evaluated
+ * concurrently. Workers are started lazily, so a pool that is only asked to parse a single build
+ * file costs no more than a single {@link ProjectBuildFileParser}. Like the parsers it manages, a
+ * pool is constructed on demand for the parsing phase and must be closed afterward.
+ */
+public class ProjectBuildFileParserPool implements AutoCloseable {
+
+  private final ProjectBuildFileParserFactory buildFileParserFactory;
+  private final ImmutableList<String> commonIncludes;
+  private final EnumSet<ProjectBuildFileParser.Option> parseOptions;
+  private final Console console;
+  private final ImmutableMap<String, String> environment;
+
+  private final ListeningExecutorService executorService;
+
+  /** Parsers that have been started and are not currently evaluating a build file. */
+  private final BlockingQueue<ProjectBuildFileParser> idleParsers;
+
+  /** Every parser started by this pool, so that all of them are shut down by {@link #close()}. */
+  private final List<ProjectBuildFileParser> allParsers;
+
+  private boolean isClosed;
+
+  public ProjectBuildFileParserPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory buildFileParserFactory,
+      Iterable<String> commonIncludes,
+      EnumSet<ProjectBuildFileParser.Option> parseOptions,
+      Console console,
+      ImmutableMap<String, String> environment) {
+    Preconditions.checkArgument(maxParsers > 0, "A parser pool needs at least one parser.");
+    this.buildFileParserFactory = Preconditions.checkNotNull(buildFileParserFactory);
+    this.commonIncludes = ImmutableList.copyOf(commonIncludes);
+    this.parseOptions = Preconditions.checkNotNull(parseOptions);
+    this.console = Preconditions.checkNotNull(console);
+    this.environment = Preconditions.checkNotNull(environment);
+    // There is exactly one thread per parser, so a task never has to wait for an idle parser.
+    this.executorService = com.google.common.util.concurrent.MoreExecutors.listeningDecorator(
+        MoreExecutors.newMultiThreadExecutor(
+            ProjectBuildFileParserPool.class.getSimpleName(),
+            maxParsers));
+    this.idleParsers = new LinkedBlockingQueue<>();
+    this.allParsers = Lists.newArrayList();
+  }
+
+  /**
+   * Schedules the evaluation of a build file on the next available parser.
+   *
+   * @param buildFile should be an absolute path to a build file. Must have rootPath as its prefix.
+   * @return the rules and meta rules of the build file, as returned by
+   *     {@link ProjectBuildFileParser#getAllRulesAndMetaRules(Path)}.
+   */
+  public synchronized ListenableFuture<List<Map<String, Object>>> getAllRulesAndMetaRules(
+      final Path buildFile) {
+    Preconditions.checkState(!isClosed);
+    return executorService.submit(new Callable<List<Map<String, Object>>>() {
+      @Override
+      public List<Map<String, Object>> call() throws BuildFileParseException {
+        ProjectBuildFileParser parser = obtainParser();
+        List<Map<String, Object>> rules = parser.getAllRulesAndMetaRules(buildFile);
+        // A parser that failed is not returned to the pool: its buck.py may be in a bad state.
+        idleParsers.add(parser);
+        return rules;
+      }
+    });
+  }
+
+  /**
+   * Evaluates a build file on the next available parser, blocking until it has been parsed.
+   */
+  public List<Map<String, Object>> getAllRulesAndMetaRulesNow(Path buildFile)
+      throws BuildFileParseException, InterruptedException {
+    return getRules(getAllRulesAndMetaRules(buildFile));
+  }
+
+  /**
+   * Waits for a future returned by {@link #getAllRulesAndMetaRules(Path)}, rethrowing the
+   * {@link BuildFileParseException} that caused it to fail, if any.
+   */
+  public static List<Map<String, Object>> getRules(
+      ListenableFuture<List<Map<String, Object>>> future)
+      throws BuildFileParseException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, BuildFileParseException.class);
+      throw Throwables.propagate(cause);
+    }
+  }
+
+  private ProjectBuildFileParser obtainParser() {
+    ProjectBuildFileParser parser = idleParsers.poll();
+    if (parser != null) {
+      return parser;
+    }
+    parser = buildFileParserFactory.createParser(
+        commonIncludes,
+        parseOptions,
+        console,
+        environment);
+    synchronized (allParsers) {
+      allParsers.add(parser);
+    }
+    return parser;
+  }
+
+  /**
+   * Waits for scheduled build files to be evaluated and shuts down every parser in the pool.
+   * All parsers are closed even if one of them fails to shut down cleanly, in which case the
+   * first failure is rethrown.
+   */
+  @Override
+  public synchronized void close() throws BuildFileParseException, InterruptedException {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+
+    executorService.shutdown();
+    executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    @Nullable BuildFileParseException firstFailure = null;
+    synchronized (allParsers) {
+      for (ProjectBuildFileParser parser : allParsers) {
+        try {
+          parser.close();
+        } catch (BuildFileParseException e) {
+          if (firstFailure == null) {
+            firstFailure = e;
+          }
+        }
+      }
+    }
+    if (firstFailure != null) {
+      throw firstFailure;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.TargetNode;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retains the {@link BuildRule}s created from {@link TargetNode}s between calls to
+ * {@link Parser#parseBuildFilesForTargets}, so that a daemon does not recreate the action graph,
+ * or recompute the {@link com.facebook.buck.rules.RuleKey}s that the rules memoize, for every
+ * command.
+ * <p>
+ * A cached rule is only reused for the same {@link TargetNode} instance it was created from, and
+ * only if every one of its deps is the rule that the new action graph already contains for that
+ * target. As {@link Parser} creates a new {@link TargetNode} whenever it reparses a build file, and
+ * the action graph is built bottom-up, a change to a rule therefore also causes every rule that
+ * transitively depends on it to be recreated.
+ */
+class BuildRuleCache {
+
+  private static class CachedBuildRule {
+    private final TargetNode<?> targetNode;
+    private final BuildRule buildRule;
+
+    private CachedBuildRule(TargetNode<?> targetNode, BuildRule buildRule) {
+      this.targetNode = Preconditions.checkNotNull(targetNode);
+      this.buildRule = Preconditions.checkNotNull(buildRule);
+    }
+  }
+
+  private final Map<BuildTarget, CachedBuildRule> buildRules = Maps.newHashMap();
+
+  /**
+   * Targets of cached rules, keyed by the inputs of their rules and by their base paths.
+   */
+  private final SetMultimap<Path, BuildTarget> targetsByPath = HashMultimap.create();
+
+  /**
+   * @return the cached rule for {@code targetNode}, if it can be reused in the action graph that
+   *     {@code ruleResolver} is indexing. The graph enhanced deps of the rule are added to
+   *     {@code ruleResolver}, as they would have been if the rule had been created from
+   *     {@code targetNode}.
+   */
+  public synchronized Optional<BuildRule> get(
+      TargetNode<?> targetNode,
+      BuildRuleResolver ruleResolver) {
+    CachedBuildRule cachedBuildRule = buildRules.get(targetNode.getBuildTarget());
+    if (cachedBuildRule == null || cachedBuildRule.targetNode != targetNode) {
+      return Optional.absent();
+    }
+
+    List<BuildRule> enhancedDeps = Lists.newArrayList();
+    if (!collectEnhancedDeps(cachedBuildRule.buildRule, ruleResolver, enhancedDeps)) {
+      return Optional.absent();
+    }
+    for (BuildRule enhancedDep : enhancedDeps) {
+      ruleResolver.addToIndex(enhancedDep.getBuildTarget(), enhancedDep);
+    }
+    return Optional.of(cachedBuildRule.buildRule);
+  }
+
+  /**
+   * @return false if a dep of {@code rule} is not the rule {@code ruleResolver} has for its target.
+   *     Flavored deps are created along with the rule, so those not yet in {@code ruleResolver} are
+   *     checked recursively and added to {@code enhancedDeps}.
+   */
+  private boolean collectEnhancedDeps(
+      BuildRule rule,
+      BuildRuleResolver ruleResolver,
+      List<BuildRule> enhancedDeps) {
+    for (BuildRule dep : rule.getDeps()) {
+      BuildRule resolvedDep = ruleResolver.get(dep.getBuildTarget());
+      if (resolvedDep == dep || enhancedDeps.contains(dep)) {
+        continue;
+      }
+      if (resolvedDep != null || !dep.getBuildTarget().isFlavored()) {
+        return false;
+      }
+      enhancedDeps.add(dep);
+      if (!collectEnhancedDeps(dep, ruleResolver, enhancedDeps)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized void put(TargetNode<?> targetNode, BuildRule buildRule) {
+    BuildTarget buildTarget = targetNode.getBuildTarget();
+    invalidate(buildTarget);
+    buildRules.put(buildTarget, new CachedBuildRule(targetNode, buildRule));
+    targetsByPath.put(buildTarget.getBasePath(), buildTarget);
+    for (Path input : buildRule.getInputs()) {
+      targetsByPath.put(input, buildTarget);
+    }
+  }
+
+  public synchronized void invalidate(BuildTarget buildTarget) {
+    CachedBuildRule cachedBuildRule = buildRules.remove(buildTarget);
+    if (cachedBuildRule == null) {
+      return;
+    }
+    targetsByPath.remove(buildTarget.getBasePath(), buildTarget);
+    for (Path input : cachedBuildRule.buildRule.getInputs()) {
+      targetsByPath.remove(input, buildTarget);
+    }
+  }
+
+  /**
+   * Invalidates the rules that may have read {@code path}: those that list it as an input, and
+   * those defined in the closest ancestor directory of {@code path} that defines cached rules,
+   * which is the package of {@code path} unless none of the rules of that package are cached.
+   * Rules that depend on the invalidated rules are recreated by the next action graph, as
+   * described in the class comment.
+   *
+   * @param path a path relative to the project root.
+   */
+  public synchronized void invalidate(Path path) {
+    invalidateTargetsByPath(path);
+    for (Path basePath = path.getParent();; basePath = basePath.getParent()) {
+      Path key = basePath == null ? path.getFileSystem().getPath("") : basePath;
+      if (invalidateTargetsByPath(key) || basePath == null) {
+        break;
+      }
+    }
+  }
+
+  private boolean invalidateTargetsByPath(Path path) {
+    ImmutableSet<BuildTarget> buildTargets = ImmutableSet.copyOf(targetsByPath.get(path));
+    for (BuildTarget buildTarget : buildTargets) {
+      invalidate(buildTarget);
+    }
+    return !buildTargets.isEmpty();
+  }
+
+  public synchronized void invalidateAll() {
+    buildRules.clear();
+    targetsByPath.clear();
+  }
+}
@@ -24,10 +24,12 @@ import com.facebook.buck.graph.AbstractBottomUpTraversal;
 import com.facebook.buck.graph.DefaultImmutableDirectedAcyclicGraph;
 import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.graph.TraversableGraph;
+import com.facebook.buck.json.BuildFileParseCache;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.json.ProjectBuildFileParserFactory;
+import com.facebook.buck.json.ProjectBuildFileParserPool;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
@@ -54,15 +56,20 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.File;
 import java.io.IOException;
@@ -70,11 +77,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -83,8 +94,10 @@ import javax.annotation.Nullable;
  * High-level build file parsing machinery.  Primarily responsible for producing a
  * {@link ActionGraph} based on a set of targets.  Also exposes some low-level facilities to
  * parse individual build files. Caches build rules to minimise the number of calls to python and
- * processes filesystem WatchEvents to invalidate the cache as files change. Expected to be used
- * from a single thread, so methods are not synchronized or thread safe.
+ * processes filesystem WatchEvents to invalidate the cache as files change. Build files may be
+ * evaluated by several python processes at once, but their rules are always merged into the cache
+ * on the calling thread. Expected to be used from a single thread, so methods are not synchronized
+ * or thread safe.
  */
 public class Parser {
 
@@ -118,9 +131,21 @@ public class Parser {
   // TODO(user): Stop caching these in addition to parsedBuildFiles?
   private final Map<BuildTarget, TargetNode<?>> knownBuildTargets;
 
+  /**
+   * The build rules created from {@link #knownBuildTargets}, which are reused by later action
+   * graphs until the files they were created from change.
+   */
+  private final BuildRuleCache buildRuleCache;
+
   private final Repository repository;
   private final ProjectBuildFileParserFactory buildFileParserFactory;
   private final RuleKeyBuilderFactory ruleKeyBuilderFactory;
+
+  /**
+   * The maximum number of buck.py processes used to evaluate build files concurrently while
+   * building a target graph.
+   */
+  private final int numParserThreads;
   private Console console;
   private ImmutableMap<String, String> environment;
 
@@ -223,7 +248,9 @@ public class Parser {
       ImmutableMap<String, String> environment,
       String pythonInterpreter,
       ImmutableSet<Pattern> tempFilePatterns,
-      RuleKeyBuilderFactory ruleKeyBuilderFactory) {
+      RuleKeyBuilderFactory ruleKeyBuilderFactory,
+      int numParserThreads,
+      Optional<BuildFileParseCache> buildFileParseCache) {
     this(repository,
         console,
         environment,
@@ -239,9 +266,11 @@ public class Parser {
         new DefaultProjectBuildFileParserFactory(
             repository.getFilesystem(),
             pythonInterpreter,
-            repository.getAllDescriptions()),
+            repository.getAllDescriptions(),
+            buildFileParseCache),
         tempFilePatterns,
-        ruleKeyBuilderFactory);
+        ruleKeyBuilderFactory,
+        numParserThreads);
   }
 
   /**
@@ -257,13 +286,16 @@ public class Parser {
       Map<BuildTarget, TargetNode<?>> knownBuildTargets,
       ProjectBuildFileParserFactory buildFileParserFactory,
       ImmutableSet<Pattern> tempFilePatterns,
-      RuleKeyBuilderFactory ruleKeyBuilderFactory) {
+      RuleKeyBuilderFactory ruleKeyBuilderFactory,
+      int numParserThreads) {
+    Preconditions.checkArgument(numParserThreads > 0);
     this.repository = Preconditions.checkNotNull(repository);
     this.console = Preconditions.checkNotNull(console);
     this.environment = Preconditions.checkNotNull(environment);
     this.buildFileTreeCache = new BuildFileTreeCache(
         Preconditions.checkNotNull(buildFileTreeSupplier));
     this.knownBuildTargets = Maps.newHashMap(Preconditions.checkNotNull(knownBuildTargets));
+    this.buildRuleCache = new BuildRuleCache();
     this.buildTargetParser = Preconditions.checkNotNull(buildTargetParser);
     this.buildFileParserFactory = Preconditions.checkNotNull(buildFileParserFactory);
     this.ruleKeyBuilderFactory = Preconditions.checkNotNull(ruleKeyBuilderFactory);
@@ -271,6 +303,7 @@ public class Parser {
     this.targetsToFile = Maps.newHashMap();
     this.buildFileDependents = ArrayListMultimap.create();
     this.tempFilePatterns = tempFilePatterns;
+    this.numParserThreads = numParserThreads;
   }
 
   public BuildTargetParser getBuildTargetParser() {
@@ -329,6 +362,7 @@ public class Parser {
     }
     parsedBuildFiles.clear();
     knownBuildTargets.clear();
+    buildRuleCache.invalidateAll();
     allBuildFilesParsed = false;
   }
 
@@ -347,24 +381,19 @@ public class Parser {
     // seed BuildTargets for the traversal.
     postParseStartEvent(buildTargets, eventBus);
     ActionGraph graph = null;
-    try (ProjectBuildFileParser buildFileParser =
-             buildFileParserFactory.createParser(
+    try (ProjectBuildFileParserPool buildFileParserPool =
+             new ProjectBuildFileParserPool(
+                 numParserThreads,
+                 buildFileParserFactory,
                  defaultIncludes,
                  EnumSet.of(ProjectBuildFileParser.Option.STRIP_NULL),
                  console,
                  environment)) {
       if (!isCacheComplete(defaultIncludes)) {
-        Set<File> buildTargetFiles = Sets.newHashSet();
-        for (BuildTarget buildTarget : buildTargets) {
-          File buildFile = buildTarget.getBuildFile(repository.getFilesystem());
-          boolean isNewElement = buildTargetFiles.add(buildFile);
-          if (isNewElement) {
-            parseBuildFile(buildFile, defaultIncludes, buildFileParser);
-          }
-        }
+        parseTransitiveBuildFiles(buildTargets, defaultIncludes, buildFileParserPool);
       }
 
-      graph = findAllTransitiveDependencies(buildTargets, defaultIncludes, buildFileParser);
+      graph = findAllTransitiveDependencies(buildTargets, defaultIncludes, buildFileParserPool);
       return graph;
     } finally {
       eventBus.post(ParseEvent.finished(buildTargets, Optional.fromNullable(graph)));
@@ -376,12 +405,86 @@ public class Parser {
       Iterable<BuildTarget> toExplore,
       Iterable<String> defaultIncludes)
       throws IOException, BuildFileParseException, InterruptedException {
-    try (ProjectBuildFileParser parser = buildFileParserFactory.createParser(
+    try (ProjectBuildFileParserPool parserPool = new ProjectBuildFileParserPool(
+        numParserThreads,
+        buildFileParserFactory,
         defaultIncludes,
         EnumSet.noneOf(ProjectBuildFileParser.Option.class),
         console,
         environment)) {
-      return findAllTransitiveDependencies(toExplore, defaultIncludes, parser);
+      return findAllTransitiveDependencies(toExplore, defaultIncludes, parserPool);
+    }
+  }
+
+  /**
+   * Parses the build files that define {@code toExplore} and their transitive deps, keeping up to
+   * {@link #numParserThreads} build files in flight at once. Rules are merged into
+   * {@link #knownBuildTargets} on the calling thread as each build file completes, and the deps of
+   * the newly known targets determine which build files to parse next.
+   * <p>
+   * Targets that are still missing once their build file has been parsed are not reported here:
+   * {@link #buildTargetGraph} does that when it walks the graph in a deterministic order.
+   */
+  private void parseTransitiveBuildFiles(
+      Iterable<BuildTarget> toExplore,
+      Iterable<String> defaultIncludes,
+      ProjectBuildFileParserPool buildFileParserPool)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    Deque<BuildTarget> targetsToVisit = new ArrayDeque<>();
+    Iterables.addAll(targetsToVisit, toExplore);
+    Set<BuildTarget> visitedTargets = Sets.newHashSet();
+    Set<File> scheduledBuildFiles = Sets.newHashSet();
+    SetMultimap<File, BuildTarget> targetsAwaitingBuildFile = HashMultimap.create();
+    Map<File, ListenableFuture<List<Map<String, Object>>>> buildFilesInFlight = Maps.newHashMap();
+    final BlockingQueue<File> completedBuildFiles = new LinkedBlockingQueue<>();
+
+    while (true) {
+      while (!targetsToVisit.isEmpty()) {
+        BuildTarget buildTarget = targetsToVisit.pop();
+        TargetNode<?> targetNode = knownBuildTargets.get(buildTarget);
+        if (targetNode != null) {
+          if (visitedTargets.add(buildTarget)) {
+            targetsToVisit.addAll(targetNode.getDeps());
+          }
+          continue;
+        }
+
+        final File buildFile = buildTarget.getBuildFile(repository.getFilesystem());
+        if (isCached(buildFile, defaultIncludes) ||
+            (scheduledBuildFiles.contains(buildFile) &&
+                !buildFilesInFlight.containsKey(buildFile))) {
+          // The build file has been parsed but does not define the target.
+          continue;
+        }
+        targetsAwaitingBuildFile.put(buildFile, buildTarget);
+        if (scheduledBuildFiles.add(buildFile)) {
+          if (console.getVerbosity().shouldPrintCommand()) {
+            console.getStdErr().printf("Parsing %s file: %s\n",
+                BuckConstant.BUILD_RULES_FILE_NAME,
+                buildFile);
+          }
+          ListenableFuture<List<Map<String, Object>>> future =
+              buildFileParserPool.getAllRulesAndMetaRules(buildFile.toPath());
+          future.addListener(
+              new Runnable() {
+                @Override
+                public void run() {
+                  completedBuildFiles.add(buildFile);
+                }
+              },
+              MoreExecutors.sameThreadExecutor());
+          buildFilesInFlight.put(buildFile, future);
+        }
+      }
+
+      if (buildFilesInFlight.isEmpty()) {
+        return;
+      }
+
+      File buildFile = completedBuildFiles.take();
+      parseRawRulesInternal(
+          ProjectBuildFileParserPool.getRules(buildFilesInFlight.remove(buildFile)));
+      targetsToVisit.addAll(targetsAwaitingBuildFile.removeAll(buildFile));
     }
   }
 
@@ -393,10 +496,10 @@ public class Parser {
   private ActionGraph findAllTransitiveDependencies(
       Iterable<BuildTarget> toExplore,
       final Iterable<String> defaultIncludes,
-      final ProjectBuildFileParser buildFileParser) throws IOException {
+      final ProjectBuildFileParserPool buildFileParserPool) throws IOException {
 
     final TraversableGraph<TargetNode<?>> graph =
-        buildTargetGraph(toExplore, defaultIncludes, buildFileParser);
+        buildTargetGraph(toExplore, defaultIncludes, buildFileParserPool);
 
     return buildActionGraphFromTargetGraph(graph);
   }
@@ -404,7 +507,7 @@ public class Parser {
   private TraversableGraph<TargetNode<?>> buildTargetGraph(
       Iterable<BuildTarget> toExplore,
       final Iterable<String> defaultIncludes,
-      final ProjectBuildFileParser buildFileParser) throws IOException {
+      final ProjectBuildFileParserPool buildFileParserPool) throws IOException {
     final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
 
     AbstractAcyclicDepthFirstPostOrderTraversal<BuildTarget> traversal =
@@ -431,7 +534,7 @@ public class Parser {
                       buildTarget,
                       buildTargetForDep,
                       defaultIncludes,
-                      buildFileParser);
+                      buildFileParserPool);
                   depTargetNode = knownBuildTargets.get(buildTargetForDep);
                   if (depTargetNode == null) {
                     throw new HumanReadableException(
@@ -444,6 +547,10 @@ public class Parser {
                 deps.add(buildTargetForDep);
               } catch (BuildTargetException | BuildFileParseException e) {
                 throw new HumanReadableException(e);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HumanReadableException(
+                    "Interrupted while parsing the build file of %s", buildTargetForDep);
               }
             }
 
@@ -484,13 +591,19 @@ public class Parser {
 
           @Override
           public void visit(TargetNode<?> node) {
-            TargetNodeToBuildRuleTransformer<?> transformer =
-                new TargetNodeToBuildRuleTransformer<>(node);
+            Optional<BuildRule> cachedRule = buildRuleCache.get(node, ruleResolver);
             BuildRule rule;
-            try {
-              rule = transformer.transform(ruleResolver);
-            } catch (NoSuchBuildTargetException e) {
-              throw new HumanReadableException(e);
+            if (cachedRule.isPresent()) {
+              rule = cachedRule.get();
+            } else {
+              TargetNodeToBuildRuleTransformer<?> transformer =
+                  new TargetNodeToBuildRuleTransformer<>(node);
+              try {
+                rule = transformer.transform(ruleResolver);
+              } catch (NoSuchBuildTargetException e) {
+                throw new HumanReadableException(e);
+              }
+              buildRuleCache.put(node, rule);
             }
             ruleResolver.addToIndex(node.getBuildTarget(), rule);
             actionGraph.addNode(rule);
@@ -551,8 +664,8 @@ public class Parser {
       BuildTarget sourceTarget,
       BuildTarget buildTarget,
       Iterable<String> defaultIncludes,
-      ProjectBuildFileParser buildFileParser)
-      throws BuildFileParseException, BuildTargetException, IOException {
+      ProjectBuildFileParserPool buildFileParserPool)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
     if (isCacheComplete(defaultIncludes)) {
       // In this case, all of the build rules should have been loaded into the knownBuildTargets
       // Map before this method was invoked. Therefore, there should not be any more build files to
@@ -577,7 +690,12 @@ public class Parser {
           buildFile);
     }
 
-    parseBuildFile(buildFile, defaultIncludes, buildFileParser);
+    if (console.getVerbosity().shouldPrintCommand()) {
+      console.getStdErr().printf("Parsing %s file: %s\n",
+          BuckConstant.BUILD_RULES_FILE_NAME,
+          buildFile);
+    }
+    parseRawRulesInternal(buildFileParserPool.getAllRulesAndMetaRulesNow(buildFile.toPath()));
   }
 
   public List<Map<String, Object>> parseBuildFile(
@@ -793,6 +911,7 @@ public class Parser {
     }
     if (!isCacheComplete(includes)) {
       knownBuildTargets.clear();
+      buildRuleCache.invalidateAll();
       parsedBuildFiles.clear();
       parseRawRulesInternal(
           ProjectBuildFileParser.getAllRulesInProject(
@@ -879,6 +998,9 @@ public class Parser {
       // Invalidate the raw rules and targets dependent on this file.
       invalidateDependents(path);
 
+      // Invalidate the build rules, and so the rule keys, that may depend on this file.
+      buildRuleCache.invalidate(path);
+
     } else {
 
       // Non-path change event, likely an overflow due to many change events: invalidate everything.
@@ -940,6 +1062,7 @@ public class Parser {
       for (Map<String, Object> rawRule : parsedBuildFiles.get(path)) {
         BuildTarget target = parseBuildTargetFromRawRule(rawRule);
         knownBuildTargets.remove(target);
+        buildRuleCache.invalidate(target);
       }
 
       // Remove all rules defined in path from cache.
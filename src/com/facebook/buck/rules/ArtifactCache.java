@@ -16,8 +16,12 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
 import java.io.Closeable;
 import java.io.File;
+import java.nio.file.Path;
 
 public interface ArtifactCache extends Closeable {
   /**
@@ -30,6 +34,39 @@ public interface ArtifactCache extends Closeable {
    */
   public CacheResult fetch(RuleKey ruleKey, File output) throws InterruptedException;
 
+  /**
+   * Fetch a cached artifact, keyed by ruleKey, directly into the project, writing each of its files
+   * to the path relative to {@code projectRoot} that it was stored from. This spares the caller
+   * from extracting the zip file that {@link #fetch(RuleKey, File)} writes.
+   *
+   * @param ruleKey cache fetch key
+   * @param projectRoot path to the root of the project
+   * @return {@link CacheResult#MISS} if the artifact is not in the cache, or if the cache can only
+   *     fetch artifacts with {@link #fetch(RuleKey, File)}, and some type of hit otherwise.
+   */
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) throws InterruptedException;
+
+  /**
+   * Checks which of {@code ruleKeys} have cached artifacts, in as few round trips to the cache as
+   * it supports. Artifacts may be evicted at any time, so a later {@link #fetch(RuleKey, File)} of
+   * a key that is returned may still miss.
+   *
+   * @return the subset of {@code ruleKeys} whose artifacts are in the cache.
+   */
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException;
+
+  /**
+   * Fetches the artifacts of several rules, as {@link #fetch(RuleKey, File)} would, concurrently or
+   * in batches where the cache supports it.
+   *
+   * @param ruleKeysToOutputs the path to store the artifact of each cache fetch key to
+   * @return the result of fetching each key in {@code ruleKeysToOutputs}.
+   */
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs)
+      throws InterruptedException;
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
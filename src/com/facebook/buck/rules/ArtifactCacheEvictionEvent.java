@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.nio.file.Path;
+
+/**
+ * Posted once a directory cache has evicted the entries that a build left it too large to keep.
+ */
+public class ArtifactCacheEvictionEvent extends AbstractBuckEvent {
+
+  private final Path cacheDir;
+  private final ImmutableList<BuildTarget> buildTargets;
+  private final long bytesEvicted;
+  private final long bytesRemaining;
+
+  private ArtifactCacheEvictionEvent(
+      Path cacheDir,
+      ImmutableList<BuildTarget> buildTargets,
+      long bytesEvicted,
+      long bytesRemaining) {
+    this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.buildTargets = Preconditions.checkNotNull(buildTargets);
+    this.bytesEvicted = bytesEvicted;
+    this.bytesRemaining = bytesRemaining;
+  }
+
+  /**
+   * @param buildTargets the targets of the build after which the entries were evicted.
+   */
+  public static ArtifactCacheEvictionEvent create(
+      Path cacheDir,
+      ImmutableList<BuildTarget> buildTargets,
+      long bytesEvicted,
+      long bytesRemaining) {
+    return new ArtifactCacheEvictionEvent(cacheDir, buildTargets, bytesEvicted, bytesRemaining);
+  }
+
+  public Path getCacheDir() {
+    return cacheDir;
+  }
+
+  public ImmutableList<BuildTarget> getBuildTargets() {
+    return buildTargets;
+  }
+
+  public long getBytesEvicted() {
+    return bytesEvicted;
+  }
+
+  public long getBytesRemaining() {
+    return bytesRemaining;
+  }
+
+  @Override
+  public String getEventName() {
+    return "ArtifactCacheEviction";
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format(
+        "%s: evicted %d bytes after building %s, leaving %d bytes",
+        cacheDir,
+        bytesEvicted,
+        buildTargets,
+        bytesRemaining);
+  }
+
+  @Override
+  public boolean eventsArePair(BuckEvent event) {
+    return false;
+  }
+}
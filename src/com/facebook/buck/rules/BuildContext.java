@@ -46,6 +46,7 @@ public class BuildContext {
   private final BuckEventBus events;
   private final Supplier<String> androidBootclasspathSupplier;
   private final BuildDependencies buildDependencies;
+  private final boolean isCacheFirst;
 
   private BuildContext(
       ActionGraph actionGraph,
@@ -55,7 +56,8 @@ public class BuildContext {
       JavaPackageFinder javaPackageFinder,
       BuckEventBus events,
       Supplier<String> androidBootclasspathSupplier,
-      BuildDependencies buildDependencies) {
+      BuildDependencies buildDependencies,
+      boolean isCacheFirst) {
     this.actionGraph = Preconditions.checkNotNull(actionGraph);
     this.stepRunner = Preconditions.checkNotNull(stepRunner);
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
@@ -64,6 +66,7 @@ public class BuildContext {
     this.events = Preconditions.checkNotNull(events);
     this.androidBootclasspathSupplier = Preconditions.checkNotNull(androidBootclasspathSupplier);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
+    this.isCacheFirst = isCacheFirst;
   }
 
   public Path getProjectRoot() {
@@ -113,6 +116,15 @@ public class BuildContext {
     return buildDependencies;
   }
 
+  /**
+   * @return whether the rules requested by the build are looked up in the {@link ArtifactCache}
+   *     before any of their deps are built, so that the deps of a rule that is fetched from the
+   *     cache are not built at all.
+   */
+  public boolean isCacheFirst() {
+    return isCacheFirst;
+  }
+
   /**
    * Creates an {@link OnDiskBuildInfo}.
    * <p>
@@ -161,6 +173,7 @@ public class BuildContext {
     private BuckEventBus events = null;
     private Supplier<String> androidBootclasspathSupplier = null;
     private BuildDependencies buildDependencies = BuildDependencies.getDefault();
+    private boolean isCacheFirst = false;
 
     private Builder() {}
 
@@ -176,7 +189,8 @@ public class BuildContext {
           javaPackgeFinder,
           events,
           androidBootclasspathSupplier,
-          buildDependencies);
+          buildDependencies,
+          isCacheFirst);
     }
 
     public Builder setActionGraph(ActionGraph actionGraph) {
@@ -214,6 +228,11 @@ public class BuildContext {
       return this;
     }
 
+    public Builder setCacheFirst(boolean isCacheFirst) {
+      this.isCacheFirst = isCacheFirst;
+      return this;
+    }
+
     public Builder setAndroidBootclasspathForAndroidPlatformTarget(
         Optional<AndroidPlatformTarget> maybeAndroidPlatformTarget) {
       if (maybeAndroidPlatformTarget.isPresent()) {
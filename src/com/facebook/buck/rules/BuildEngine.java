@@ -19,6 +19,7 @@ package com.facebook.buck.rules;
 import com.facebook.buck.model.BuildTarget;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -32,6 +33,14 @@ public interface BuildEngine {
    */
   ListenableFuture<BuildRuleSuccess> build(BuildContext context, BuildRule rule);
 
+  /**
+   * Build the given build rules, which are those requested by the user, and return a future to
+   * their build rule successes, in the same order.
+   */
+  ListenableFuture<List<BuildRuleSuccess>> buildAll(
+      BuildContext context,
+      Iterable<BuildRule> rules);
+
   /**
    * Returns the build result of the build rule associated with the given build target.
    * Returns {@code null} if the build rule has not yet been built.
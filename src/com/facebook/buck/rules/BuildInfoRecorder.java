@@ -197,6 +197,17 @@ public class BuildInfoRecorder {
     return artifactCache.fetch(ruleKey, outputFile);
   }
 
+  /**
+   * Fetches the artifact associated with the {@link #buildTarget} for this class directly into the
+   * project, if the {@code artifactCache} supports it.
+   */
+  public CacheResult fetchArtifactForBuildableIntoProject(
+      Path projectRoot,
+      ArtifactCache artifactCache) throws InterruptedException {
+    Preconditions.checkNotNull(projectRoot);
+    return artifactCache.fetchInto(ruleKey, projectRoot);
+  }
+
   /**
    * @param pathToArtifact Relative path to the project root.
    */
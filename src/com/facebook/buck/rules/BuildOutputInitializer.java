@@ -48,13 +48,11 @@ public class BuildOutputInitializer<T> {
    * This should be invoked only by the build engine (currently, {@link CachingBuildEngine})
    * that invoked {@link #initializeFromDisk(OnDiskBuildInfo)}.
    * <p>
-   * @throws IllegalStateException if this method has already been invoked.
+   * A rule that is retained by the daemon between commands is built again by each command, in
+   * which case the value set by the previous build is replaced.
    */
-  public void setBuildOutput(T buildOutput) throws IllegalStateException {
-    Preconditions.checkState(this.buildOutput == null,
-        "buildOutput should not already be set for %s",
-        buildTarget);
-    this.buildOutput = buildOutput;
+  public void setBuildOutput(T buildOutput) {
+    this.buildOutput = Preconditions.checkNotNull(buildOutput);
   }
 
   /**
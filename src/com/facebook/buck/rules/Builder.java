@@ -16,9 +16,6 @@
 
 package com.facebook.buck.rules;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.List;
@@ -34,16 +31,9 @@ public class Builder {
   }
 
   public ListenableFuture<List<BuildRuleSuccess>> buildRules(
-      final BuildEngine buildEngine,
+      BuildEngine buildEngine,
       Iterable<BuildRule> rules,
-      final BuildContext context) {
-    return Futures.allAsList(Iterables.transform(
-        rules,
-        new Function<BuildRule, ListenableFuture<BuildRuleSuccess>>() {
-          @Override
-          public ListenableFuture<BuildRuleSuccess> apply(BuildRule rule) {
-            return buildEngine.build(context, rule);
-          }
-        }));
+      BuildContext context) {
+    return buildEngine.buildAll(context, rules);
   }
 }
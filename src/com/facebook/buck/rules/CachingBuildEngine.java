@@ -22,24 +22,32 @@ import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.zip.Unzip;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
@@ -49,6 +57,10 @@ import javax.annotation.Nullable;
  * A build engine used to build a {@link BuildRule} which also caches the results. If the current
  * {@link RuleKey} of the build rules matches the one on disk, it does not do any work. It also
  * tries to fetch its output from an {@link ArtifactCache} to avoid doing any computation.
+ * <p>
+ * Normally, the deps of a rule are built before its output is looked up in the cache. If
+ * {@link BuildContext#isCacheFirst()}, the outputs of the rules requested by the build are looked
+ * up first, and the deps of those that are found are not built at all.
  */
 public class CachingBuildEngine implements BuildEngine {
 
@@ -67,7 +79,35 @@ public class CachingBuildEngine implements BuildEngine {
 
   private final ConcurrentMap<BuildTarget, RuleKey> ruleKeys = Maps.newConcurrentMap();
 
+  /**
+   * If present, the {@link RuleKey}s of the rules being built are computed ahead of the builds by
+   * a {@link RuleKeyCalculator} that hashes inputs into this cache.
+   */
+  private final Optional<FileHashCache> fileHashCache;
+
+  @Nullable
+  private RuleKeyCalculator ruleKeyCalculator;
+
   public CachingBuildEngine() {
+    this(Optional.<FileHashCache>absent());
+  }
+
+  /**
+   * @param fileHashCache the cache used to compute the {@link RuleKey}s of the rules being built.
+   */
+  public CachingBuildEngine(Optional<FileHashCache> fileHashCache) {
+    this.fileHashCache = Preconditions.checkNotNull(fileHashCache);
+  }
+
+  /**
+   * @return a calculator that shares the threads of the {@link StepRunner} of the current build.
+   */
+  private synchronized RuleKeyCalculator getRuleKeyCalculator(StepRunner stepRunner) {
+    ListeningExecutorService executorService = stepRunner.getListeningExecutorService();
+    if (ruleKeyCalculator == null || ruleKeyCalculator.getExecutorService() != executorService) {
+      ruleKeyCalculator = new RuleKeyCalculator(executorService, fileHashCache.get());
+    }
+    return ruleKeyCalculator;
   }
 
   @VisibleForTesting
@@ -102,6 +142,143 @@ public class CachingBuildEngine implements BuildEngine {
   public final ListenableFuture<BuildRuleSuccess> build(
       final BuildContext context,
       final BuildRule rule) {
+    return build(context, rule, Optional.<BuildResult>absent());
+  }
+
+  @Override
+  public ListenableFuture<List<BuildRuleSuccess>> buildAll(
+      final BuildContext context,
+      Iterable<BuildRule> rules) {
+    final ImmutableList<BuildRule> requestedRules = ImmutableList.copyOf(rules);
+    if (!context.isCacheFirst()) {
+      return buildEach(context, requestedRules);
+    }
+
+    // Wait for the RuleKeys of the requested rules, but leave any failure to compute one for the
+    // build of the rule to report.
+    List<ListenableFuture<RuleKey>> ruleKeyFutures = Lists.newArrayList();
+    if (fileHashCache.isPresent()) {
+      RuleKeyCalculator calculator = getRuleKeyCalculator(context.getStepRunner());
+      for (BuildRule rule : requestedRules) {
+        ruleKeyFutures.add(calculator.calculate(rule));
+      }
+    }
+    return Futures.transform(
+        Futures.successfulAsList(ruleKeyFutures),
+        new AsyncFunction<List<RuleKey>, List<BuildRuleSuccess>>() {
+          @Override
+          public ListenableFuture<List<BuildRuleSuccess>> apply(List<RuleKey> input)
+              throws InterruptedException {
+            return buildCacheFirst(context, requestedRules);
+          }
+        },
+        context.getStepRunner().getListeningExecutorService());
+  }
+
+  private ListenableFuture<List<BuildRuleSuccess>> buildEach(
+      BuildContext context,
+      List<BuildRule> rules) {
+    List<ListenableFuture<BuildRuleSuccess>> builtRules = Lists.newArrayList();
+    for (BuildRule rule : rules) {
+      builtRules.add(build(context, rule));
+    }
+    return Futures.allAsList(builtRules);
+  }
+
+  /**
+   * Looks for the outputs of {@code requestedRules} on disk and in the {@link ArtifactCache}
+   * before building any of their deps. The outputs that the cache cannot place in the project
+   * directly are fetched in one batch. A rule whose outputs are found is resolved without building
+   * its deps, and the rest are built as usual.
+   * <p>
+   * Only the requested rules are treated this way: once a rule has to be built, the outputs of its
+   * deps are needed, and so its whole subgraph is built as usual.
+   */
+  private ListenableFuture<List<BuildRuleSuccess>> buildCacheFirst(
+      BuildContext context,
+      List<BuildRule> requestedRules) throws InterruptedException {
+    Map<BuildTarget, BuildResult> resultsOfRequestedRules = Maps.newHashMap();
+    Map<RuleKey, BuildRule> rulesToFetch = Maps.newHashMap();
+    for (BuildRule rule : requestedRules) {
+      RuleKey ruleKey;
+      try {
+        ruleKey = rule.getRuleKey();
+      } catch (RuntimeException e) {
+        // Reported by the build of the rule.
+        continue;
+      }
+      Optional<RuleKey> cachedRuleKey =
+          context.createOnDiskBuildInfoFor(rule.getBuildTarget()).getRuleKey();
+      if (ruleKey.equals(cachedRuleKey.orNull())) {
+        resultsOfRequestedRules.put(
+            rule.getBuildTarget(),
+            new BuildResult(
+                BuildRuleSuccess.Type.MATCHING_RULE_KEY,
+                CacheResult.LOCAL_KEY_UNCHANGED_HIT));
+      } else {
+        rulesToFetch.put(ruleKey, rule);
+      }
+    }
+
+    Path projectRoot = context.getProjectRoot();
+    Iterator<Map.Entry<RuleKey, BuildRule>> ruleToFetch = rulesToFetch.entrySet().iterator();
+    while (ruleToFetch.hasNext()) {
+      Map.Entry<RuleKey, BuildRule> entry = ruleToFetch.next();
+      CacheResult cacheResult = context.getArtifactCache().fetchInto(entry.getKey(), projectRoot);
+      if (cacheResult.isSuccess()) {
+        resultsOfRequestedRules.put(
+            entry.getValue().getBuildTarget(),
+            new BuildResult(BuildRuleSuccess.Type.FETCHED_FROM_CACHE, cacheResult));
+        ruleToFetch.remove();
+      }
+    }
+
+    if (!rulesToFetch.isEmpty()) {
+      ImmutableMap.Builder<RuleKey, File> zipFiles = ImmutableMap.builder();
+      for (Map.Entry<RuleKey, BuildRule> entry : rulesToFetch.entrySet()) {
+        zipFiles.put(entry.getKey(), createTempZipFile(entry.getValue()));
+      }
+      ImmutableMap<RuleKey, File> zipFilesByRuleKey = zipFiles.build();
+      ImmutableMap<RuleKey, CacheResult> cacheResults =
+          context.getArtifactCache().multiFetch(zipFilesByRuleKey);
+      for (Map.Entry<RuleKey, File> entry : zipFilesByRuleKey.entrySet()) {
+        BuildRule rule = rulesToFetch.get(entry.getKey());
+        CacheResult cacheResult = Optional.fromNullable(cacheResults.get(entry.getKey()))
+            .or(CacheResult.MISS);
+        if (!cacheResult.isSuccess()) {
+          entry.getValue().delete();
+        } else if (unzipArtifact(rule, entry.getValue(), projectRoot, context)) {
+          resultsOfRequestedRules.put(
+              rule.getBuildTarget(),
+              new BuildResult(BuildRuleSuccess.Type.FETCHED_FROM_CACHE, cacheResult));
+        }
+      }
+    }
+
+    // Start the builds of the rules that were not found first, so that a requested rule that was
+    // found but is also a dep of one that was not is built along with the deps it needs.
+    for (BuildRule rule : requestedRules) {
+      if (!resultsOfRequestedRules.containsKey(rule.getBuildTarget())) {
+        build(context, rule);
+      }
+    }
+    List<ListenableFuture<BuildRuleSuccess>> builtRules = Lists.newArrayList();
+    for (BuildRule rule : requestedRules) {
+      builtRules.add(
+          build(context, rule, Optional.fromNullable(
+              resultsOfRequestedRules.get(rule.getBuildTarget()))));
+    }
+    return Futures.allAsList(builtRules);
+  }
+
+  /**
+   * @param resultWithoutDeps if present, the result of the rule, which is recorded without building
+   *     its deps.
+   */
+  private ListenableFuture<BuildRuleSuccess> build(
+      final BuildContext context,
+      final BuildRule rule,
+      final Optional<BuildResult> resultWithoutDeps) {
 
     final SettableFuture<BuildRuleSuccess> newFuture = SettableFuture.create();
     SettableFuture<BuildRuleSuccess> existingFuture = results.putIfAbsent(
@@ -113,6 +290,13 @@ public class CachingBuildEngine implements BuildEngine {
       return existingFuture;
     }
 
+    // Start computing the RuleKeys of this rule and its deps, so that they are ready by the time
+    // the deps have been built. Any failure is left for the build of the rule to report when it
+    // asks for its RuleKey.
+    if (fileHashCache.isPresent() && !resultWithoutDeps.isPresent()) {
+      getRuleKeyCalculator(context.getStepRunner()).calculate(rule);
+    }
+
     // Build all of the deps first and then schedule a callback for this rule to build itself once
     // all of those rules are done building.
     try {
@@ -120,8 +304,10 @@ public class CachingBuildEngine implements BuildEngine {
       // successful completion of all deps.
       List<ListenableFuture<BuildRuleSuccess>> builtDeps =
           Lists.newArrayListWithCapacity(rule.getDeps().size());
-      for (BuildRule dep : rule.getDeps()) {
-        builtDeps.add(build(context, dep));
+      if (!resultWithoutDeps.isPresent()) {
+        for (BuildRule dep : rule.getDeps()) {
+          builtDeps.add(build(context, dep));
+        }
       }
       ListenableFuture<List<BuildRuleSuccess>> allBuiltDeps = Futures.allAsList(builtDeps);
 
@@ -173,13 +359,17 @@ public class CachingBuildEngine implements BuildEngine {
               startOfBuildWasRecordedOnTheEventBus = true;
 
               ruleKeys.putIfAbsent(rule.getBuildTarget(), rule.getRuleKey());
-              BuildResult result = null;
-              result = buildOnceDepsAreBuilt(
-                  rule,
-                  context,
-                  onDiskBuildInfo,
-                  buildInfoRecorder.get(),
-                  shouldTryToFetchFromCache(deps));
+              BuildResult result;
+              if (resultWithoutDeps.isPresent()) {
+                result = resultWithoutDeps.get();
+              } else {
+                result = buildOnceDepsAreBuilt(
+                    rule,
+                    context,
+                    onDiskBuildInfo,
+                    buildInfoRecorder.get(),
+                    shouldTryToFetchFromCache(deps));
+              }
               if (result.getStatus() == BuildRuleStatus.SUCCESS) {
                 try {
                   recordBuildRuleSuccess(result);
@@ -392,24 +582,50 @@ public class CachingBuildEngine implements BuildEngine {
       ArtifactCache artifactCache,
       Path projectRoot,
       BuildContext buildContext) throws InterruptedException {
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    File zipFile;
-    try {
-      zipFile = File.createTempFile(rule.getFullyQualifiedName().replace('/', '_'), ".zip");
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    // A cache that stores the files of the artifact individually places them in the project
+    // without a zip file being written and extracted.
+    CacheResult cacheResult = buildInfoRecorder.fetchArtifactForBuildableIntoProject(
+        projectRoot,
+        artifactCache);
+    if (cacheResult.isSuccess()) {
+      return cacheResult;
     }
 
+    File zipFile = createTempZipFile(rule);
+
     // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from Cassandra into the on-disk cache and unzip it from
     // there.
-    CacheResult cacheResult = buildInfoRecorder.fetchArtifactForBuildable(zipFile, artifactCache);
+    cacheResult = buildInfoRecorder.fetchArtifactForBuildable(zipFile, artifactCache);
     if (!cacheResult.isSuccess()) {
       zipFile.delete();
       return cacheResult;
     }
 
+    if (!unzipArtifact(rule, zipFile, projectRoot, buildContext)) {
+      return CacheResult.MISS;
+    }
+    return cacheResult;
+  }
+
+  private static File createTempZipFile(BuildRule rule) {
+    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
+    // that we are creating a zip-based FileSystem.
+    try {
+      return File.createTempFile(rule.getFullyQualifiedName().replace('/', '_'), ".zip");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return whether the artifact fetched into {@code zipFile} was extracted into the project.
+   */
+  private static boolean unzipArtifact(
+      BuildRule rule,
+      File zipFile,
+      Path projectRoot,
+      BuildContext buildContext) {
     // We unzip the file in the root of the project directory.
     // Ideally, the following would work:
     //
@@ -427,7 +643,7 @@ public class CachingBuildEngine implements BuildEngine {
           /* overwriteExistingFiles */ true);
     } catch (IOException e) {
       // In the wild, we have seen some inexplicable failures during this step. For now, we try to
-      // give the user as much information as we can to debug the issue, but return CacheResult.MISS
+      // give the user as much information as we can to debug the issue, but return false
       // so that Buck will fall back on doing a local build.
       buildContext.getEventBus().post(ConsoleEvent.warning(
               "Failed to unzip the artifact for %s at %s.\n" +
@@ -436,13 +652,13 @@ public class CachingBuildEngine implements BuildEngine {
                   rule.getBuildTarget(),
               zipFile.getAbsolutePath(),
               Throwables.getStackTraceAsString(e)));
-      return CacheResult.MISS;
+      return false;
     }
 
     // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
     // around for debugging purposes.
     zipFile.delete();
-    return cacheResult;
+    return true;
   }
 
   /**
@@ -23,6 +23,10 @@ import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.FutureCallback;
@@ -42,12 +46,16 @@ import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
 import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
 import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
 import com.netflix.astyanax.serializers.StringSerializer;
 import com.netflix.astyanax.thrift.ThriftFamilyFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
@@ -85,6 +93,18 @@ public class CassandraArtifactCache implements ArtifactCache {
       StringSerializer.get(),
       StringSerializer.get());
 
+  /**
+   * The most rows whose columns are counted by one query, which only returns a number per row.
+   */
+  private static final int MAX_KEYS_PER_COUNT_QUERY = 256;
+
+  /**
+   * The most rows that are read by one query, which returns all of their artifacts in a single
+   * response, so that it stays well within the frame size of the connection and the memory of the
+   * process.
+   */
+  private static final int MAX_KEYS_PER_FETCH_QUERY = 8;
+
   private static final String ARTIFACT_COLUMN_FAMILY_NAME = "Artifacts";
   private static final String ARTIFACT_COLUMN_NAME = "artifact";
   private static final ColumnFamily<String, String> CF_ARTIFACT = new ColumnFamily<String, String>(
@@ -265,9 +285,20 @@ public class CassandraArtifactCache implements ArtifactCache {
       return CacheResult.MISS;
     }
 
+    return writeArtifact(ruleKey, result.getResult(), ttl, output);
+  }
+
+  /**
+   * Writes the artifact in {@code columns}, the row of {@code ruleKey}, to {@code output}.
+   */
+  private CacheResult writeArtifact(
+      RuleKey ruleKey,
+      ColumnList<String> columns,
+      int ttl,
+      File output) throws InterruptedException {
     CacheResult success = CacheResult.MISS;
     try {
-      Column<String> column = result.getResult().getColumnByName(ARTIFACT_COLUMN_NAME);
+      Column<String> column = columns.getColumnByName(ARTIFACT_COLUMN_NAME);
       if (column != null) {
         byte[] artifact = column.getByteArrayValue();
         Files.createParentDirs(output);
@@ -294,6 +325,113 @@ public class CassandraArtifactCache implements ArtifactCache {
     return success;
   }
 
+  /**
+   * @return {@link CacheResult#MISS}: artifacts are stored as zip files, which are extracted by the
+   *     caller.
+   */
+  @Override
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+    return CacheResult.MISS;
+  }
+
+  /**
+   * Counts the columns of the rows, {@link #MAX_KEYS_PER_COUNT_QUERY} at a time, without reading
+   * the artifacts.
+   */
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException {
+    Optional<KeyspaceAndTtl> keyspaceAndTtl = getKeyspaceAndTtl();
+    if (!keyspaceAndTtl.isPresent() || ruleKeys.isEmpty()) {
+      return ImmutableSet.of();
+    }
+
+    ImmutableSet.Builder<RuleKey> containedRuleKeys = ImmutableSet.builder();
+    for (List<RuleKey> batch : Iterables.partition(ruleKeys, MAX_KEYS_PER_COUNT_QUERY)) {
+      Map<String, RuleKey> keysToRuleKeys = getKeysToRuleKeys(batch);
+      OperationResult<Map<String, Integer>> result;
+      try {
+        result = keyspaceAndTtl.get().getKeyspace().prepareQuery(CF_ARTIFACT)
+            .getKeySlice(keysToRuleKeys.keySet())
+            .getColumnCounts()
+            .execute();
+      } catch (ConnectionException e) {
+        reportConnectionFailure("Attempting to look up " + batch.size() + " artifacts.", e);
+        continue;
+      }
+
+      for (Map.Entry<String, Integer> columnCount : result.getResult().entrySet()) {
+        RuleKey ruleKey = keysToRuleKeys.get(columnCount.getKey());
+        if (ruleKey != null && columnCount.getValue() > 0) {
+          containedRuleKeys.add(ruleKey);
+        }
+      }
+    }
+    return containedRuleKeys.build();
+  }
+
+  /**
+   * Reads the rows {@link #MAX_KEYS_PER_FETCH_QUERY} at a time, so that only the artifacts of one
+   * batch are held in memory at once. If reading a batch fails, such as when its response is too
+   * large for a single frame, its rows are read one at a time instead.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newHashMap();
+    for (RuleKey ruleKey : ruleKeysToOutputs.keySet()) {
+      results.put(ruleKey, CacheResult.MISS);
+    }
+    Optional<KeyspaceAndTtl> keyspaceAndTtl = getKeyspaceAndTtl();
+    if (!keyspaceAndTtl.isPresent() || ruleKeysToOutputs.isEmpty()) {
+      return ImmutableMap.copyOf(results);
+    }
+
+    for (List<RuleKey> batch :
+        Iterables.partition(ruleKeysToOutputs.keySet(), MAX_KEYS_PER_FETCH_QUERY)) {
+      Map<String, RuleKey> keysToRuleKeys = getKeysToRuleKeys(batch);
+      Rows<String, String> rows;
+      try {
+        rows = keyspaceAndTtl.get().getKeyspace().prepareQuery(CF_ARTIFACT)
+            .getKeySlice(keysToRuleKeys.keySet())
+            .execute()
+            .getResult();
+      } catch (ConnectionException e) {
+        reportConnectionFailure("Attempting to fetch " + batch.size() + " artifacts.", e);
+        if (batch.size() > 1) {
+          for (RuleKey ruleKey : batch) {
+            results.put(ruleKey, fetch(ruleKey, ruleKeysToOutputs.get(ruleKey)));
+          }
+        }
+        continue;
+      }
+
+      for (Row<String, String> row : rows) {
+        RuleKey ruleKey = keysToRuleKeys.get(row.getKey());
+        if (ruleKey == null) {
+          continue;
+        }
+        results.put(
+            ruleKey,
+            writeArtifact(
+                ruleKey,
+                row.getColumns(),
+                keyspaceAndTtl.get().getTtl(),
+                ruleKeysToOutputs.get(ruleKey)));
+      }
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
+  private static Map<String, RuleKey> getKeysToRuleKeys(List<RuleKey> ruleKeys) {
+    Map<String, RuleKey> keysToRuleKeys = Maps.newHashMap();
+    for (RuleKey ruleKey : ruleKeys) {
+      keysToRuleKeys.put(ruleKey.toString(), ruleKey);
+    }
+    return keysToRuleKeys;
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) throws InterruptedException {
     if (!isStoreSupported()) {
@@ -0,0 +1,574 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.MorePosixFilePermissions;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nullable;
+
+/**
+ * A directory-based {@link ArtifactCache} that stores each output file once, named by the SHA-1 of
+ * its contents, so that rules whose outputs are identical share the same bytes on disk. The cache
+ * directory contains:
+ * <ul>
+ *   <li>{@code manifests/<rule key>}: one line per output file of the rule, with the name of its
+ *       blob and its path relative to the project root.
+ *   <li>{@code blobs/<first two hex digits>/<SHA-1>}: the contents of an output file. The name of
+ *       an executable file ends with {@code x}, so that it gets a blob of its own.
+ * </ul>
+ * {@link #fetchInto(RuleKey, Path)} copies the blobs of a rule into the project rather than
+ * extracting a zip file. The blobs are never linked into the project, as they are shared by every
+ * rule with the same outputs, and a build step that writes to one of its outputs in place would
+ * change them all.
+ * <p>
+ * If the cache has a maximum size, the blobs are recorded in a {@link DirArtifactCacheIndex}, and
+ * evicted in the background as {@link DirArtifactCache} evicts its entries. The index also records
+ * the manifests that list each blob, so that those that list an evicted blob are deleted along with
+ * it. Any other manifest that lists a missing blob is deleted when it is next read.
+ */
+public class ContentAddressedDirArtifactCache implements ArtifactCache {
+
+  private static final Logger logger = Logger.get(ContentAddressedDirArtifactCache.class);
+
+  @VisibleForTesting
+  static final String MANIFESTS_DIR = "manifests";
+
+  @VisibleForTesting
+  static final String BLOBS_DIR = "blobs";
+
+  private static final String EXECUTABLE_SUFFIX = "x";
+
+  private final Path manifestsDir;
+  private final Path blobsDir;
+  private final boolean doStore;
+  private final Optional<Long> maxCacheSizeBytes;
+  private final long highWaterMarkBytes;
+  private final Optional<BuckEventBus> eventBus;
+
+  @Nullable
+  private final DirArtifactCacheIndex index;
+  @Nullable
+  private final ListeningExecutorService evictionExecutor;
+  @Nullable
+  private ListenableFuture<Long> pendingEviction;
+
+  public ContentAddressedDirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes) throws IOException {
+    this(
+        cacheDir,
+        doStore,
+        maxCacheSizeBytes,
+        /* highWaterMarkBytes */ Optional.<Long>absent(),
+        Optional.<BuckEventBus>absent());
+  }
+
+  /**
+   * @param highWaterMarkBytes the size past which blobs are evicted, which defaults to
+   *     {@code maxCacheSizeBytes}.
+   * @param eventBus where to post an {@link ArtifactCacheEvictionEvent} after each eviction.
+   */
+  public ContentAddressedDirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> highWaterMarkBytes,
+      BuckEventBus eventBus) throws IOException {
+    this(cacheDir, doStore, maxCacheSizeBytes, highWaterMarkBytes, Optional.of(eventBus));
+  }
+
+  private ContentAddressedDirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> highWaterMarkBytes,
+      Optional<BuckEventBus> eventBus) throws IOException {
+    Preconditions.checkNotNull(cacheDir);
+    this.manifestsDir = cacheDir.toPath().resolve(MANIFESTS_DIR);
+    this.blobsDir = cacheDir.toPath().resolve(BLOBS_DIR);
+    this.doStore = doStore;
+    this.maxCacheSizeBytes = Preconditions.checkNotNull(maxCacheSizeBytes);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
+    Files.createDirectories(manifestsDir);
+    Files.createDirectories(blobsDir);
+
+    if (maxCacheSizeBytes.isPresent()) {
+      this.highWaterMarkBytes = highWaterMarkBytes.or(maxCacheSizeBytes.get());
+      Preconditions.checkArgument(this.highWaterMarkBytes >= maxCacheSizeBytes.get());
+      this.index = DirArtifactCacheIndex.load(blobsDir, /* entryDepth */ 2);
+      this.evictionExecutor = MoreExecutors.listeningDecorator(
+          MoreExecutors.getExitingExecutorService(
+              (ThreadPoolExecutor) Executors.newFixedThreadPool(1)));
+    } else {
+      this.highWaterMarkBytes = Long.MAX_VALUE;
+      this.index = null;
+      this.evictionExecutor = null;
+    }
+  }
+
+  /**
+   * An output file of a rule, as listed in its manifest.
+   */
+  private static class ManifestEntry {
+    private final String blobName;
+    private final String path;
+
+    private ManifestEntry(String blobName, String path) {
+      this.blobName = Preconditions.checkNotNull(blobName);
+      this.path = Preconditions.checkNotNull(path);
+    }
+
+    private boolean isExecutable() {
+      return blobName.endsWith(EXECUTABLE_SUFFIX);
+    }
+  }
+
+  private Path getPathToBlob(String blobName) {
+    return blobsDir.resolve(getIndexEntry(blobName));
+  }
+
+  /**
+   * @return the name of the blob in the {@link DirArtifactCacheIndex}, which is its path relative
+   *     to the blobs directory.
+   */
+  private static String getIndexEntry(String blobName) {
+    return blobName.substring(0, 2) + File.separator + blobName;
+  }
+
+  private void recordAccess(List<ManifestEntry> entries) {
+    if (index == null) {
+      return;
+    }
+    long timeMillis = System.currentTimeMillis();
+    for (ManifestEntry entry : entries) {
+      index.accessed(getIndexEntry(entry.blobName), timeMillis);
+    }
+  }
+
+  /**
+   * @return the entries of the manifest {@code manifest}, or absent if it does not exist or has a
+   *     malformed line.
+   */
+  private Optional<List<ManifestEntry>> parseManifest(Path manifest) throws IOException {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(manifest, Charsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return Optional.absent();
+    }
+    List<ManifestEntry> entries = Lists.newArrayListWithCapacity(lines.size());
+    for (String line : lines) {
+      int separator = line.indexOf(' ');
+      if (separator < 2) {
+        logger.warn("Malformed line in %s: %s", manifest, line);
+        return Optional.absent();
+      }
+      entries.add(new ManifestEntry(
+          line.substring(0, separator),
+          line.substring(separator + 1)));
+    }
+    return Optional.of(entries);
+  }
+
+  /**
+   * @return the entries of the manifest for {@code ruleKey}, or absent if it is not in the cache or
+   *     if any of its blobs has been evicted.
+   */
+  private Optional<List<ManifestEntry>> readManifest(RuleKey ruleKey) throws IOException {
+    Path manifest = manifestsDir.resolve(ruleKey.toString());
+    Optional<List<ManifestEntry>> entries = parseManifest(manifest);
+    if (!entries.isPresent()) {
+      Files.deleteIfExists(manifest);
+      return Optional.absent();
+    }
+    for (ManifestEntry entry : entries.get()) {
+      if (!Files.isRegularFile(getPathToBlob(entry.blobName))) {
+        Files.deleteIfExists(manifest);
+        return Optional.absent();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Writes the output files of the rule into a zip file, as it was passed to
+   * {@link #store(RuleKey, File)}.
+   */
+  @Override
+  public CacheResult fetch(RuleKey ruleKey, File output) {
+    CacheResult success = CacheResult.MISS;
+    try {
+      Optional<List<ManifestEntry>> entries = readManifest(ruleKey);
+      if (entries.isPresent()) {
+        Files.createDirectories(output.toPath().getParent());
+        try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(output)) {
+          for (ManifestEntry entry : entries.get()) {
+            CustomZipEntry zipEntry = new CustomZipEntry(entry.path);
+            if (entry.isExecutable()) {
+              zipEntry.setExternalAttributes(MorePosixFilePermissions.toMode(
+                  EnumSet.of(PosixFilePermission.OWNER_EXECUTE)) << 16);
+            }
+            zip.putNextEntry(zipEntry);
+            Files.copy(getPathToBlob(entry.blobName), zip);
+            zip.closeEntry();
+          }
+        }
+        recordAccess(entries.get());
+        success = CacheResult.DIR_HIT;
+      }
+    } catch (IOException e) {
+      logger.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output.getPath());
+    }
+    logger.info("Artifact fetch(%s, %s) cache %s",
+        ruleKey,
+        output.getPath(),
+        (success.isSuccess() ? "hit" : "miss"));
+    return success;
+  }
+
+  @Override
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+    CacheResult success = CacheResult.MISS;
+    try {
+      Optional<List<ManifestEntry>> entries = readManifest(ruleKey);
+      if (entries.isPresent()) {
+        for (ManifestEntry entry : entries.get()) {
+          materialize(entry, projectRoot);
+        }
+        recordAccess(entries.get());
+        success = CacheResult.DIR_HIT;
+      }
+    } catch (IOException e) {
+      logger.warn(e, "Artifact fetchInto(%s, %s) error", ruleKey, projectRoot);
+    }
+    logger.info("Artifact fetchInto(%s, %s) cache %s",
+        ruleKey,
+        projectRoot,
+        (success.isSuccess() ? "hit" : "miss"));
+    return success;
+  }
+
+  private void materialize(ManifestEntry entry, Path projectRoot) throws IOException {
+    Path target = projectRoot.resolve(entry.path);
+    Files.createDirectories(target.getParent());
+    // Replace rather than write through any existing file.
+    Files.copy(getPathToBlob(entry.blobName), target, REPLACE_EXISTING);
+    // The copy starts out with the mode of the blob, which is read-only.
+    File targetFile = target.toFile();
+    targetFile.setWritable(/* writable */ true, /* ownerOnly */ true);
+    targetFile.setExecutable(entry.isExecutable(), /* ownerOnly */ true);
+  }
+
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableSet.Builder<RuleKey> containedRuleKeys = ImmutableSet.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      if (Files.exists(manifestsDir.resolve(ruleKey.toString()))) {
+        containedRuleKeys.add(ruleKey);
+      }
+    }
+    return containedRuleKeys.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs) {
+    // Reading from the local disk gains nothing from being batched.
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> ruleKeyAndOutput : ruleKeysToOutputs.entrySet()) {
+      results.put(
+          ruleKeyAndOutput.getKey(),
+          fetch(ruleKeyAndOutput.getKey(), ruleKeyAndOutput.getValue()));
+    }
+    return results.build();
+  }
+
+  /**
+   * Stores each file in the zip file {@code output} as a blob, unless a blob with the same contents
+   * is already in the cache, and then writes the manifest of the rule.
+   */
+  @Override
+  public void store(RuleKey ruleKey, File output) {
+    if (!doStore) {
+      return;
+    }
+    List<String> manifestLines = Lists.newArrayList();
+    Set<String> indexEntries = Sets.newLinkedHashSet();
+    try (ZipFile zip = new ZipFile(output)) {
+      Enumeration<ZipArchiveEntry> zipEntries = zip.getEntries();
+      while (zipEntries.hasMoreElements()) {
+        ZipArchiveEntry zipEntry = zipEntries.nextElement();
+        if (zipEntry.isDirectory()) {
+          continue;
+        }
+        boolean isExecutable = MorePosixFilePermissions.fromMode(
+            zipEntry.getExternalAttributes() >> 16)
+            .contains(PosixFilePermission.OWNER_EXECUTE);
+        try (InputStream input = zip.getInputStream(zipEntry)) {
+          String blobName = storeBlob(input, isExecutable);
+          manifestLines.add(blobName + ' ' + zipEntry.getName());
+          indexEntries.add(getIndexEntry(blobName));
+        }
+      }
+      writeAtomically(
+          Joiner.on('\n').join(manifestLines).getBytes(Charsets.UTF_8),
+          manifestsDir.resolve(ruleKey.toString()));
+      if (index != null) {
+        index.referencedBy(indexEntries, ruleKey.toString());
+      }
+    } catch (IOException e) {
+      logger.warn(e, "Artifact store(%s, %s) error", ruleKey, output.getPath());
+    }
+  }
+
+  /**
+   * @return the name of the blob with the contents of {@code input}.
+   */
+  private String storeBlob(InputStream input, boolean isExecutable) throws IOException {
+    Path tmpBlob = Files.createTempFile(blobsDir, "blob", ".tmp");
+    try {
+      try (OutputStream tmpOutput = Files.newOutputStream(tmpBlob)) {
+        ByteStreams.copy(input, tmpOutput);
+      }
+      String blobName = com.google.common.io.Files.hash(tmpBlob.toFile(), Hashing.sha1())
+          .toString() + (isExecutable ? EXECUTABLE_SUFFIX : "");
+      Path blob = getPathToBlob(blobName);
+      if (!Files.exists(blob)) {
+        File tmpBlobFile = tmpBlob.toFile();
+        tmpBlobFile.setExecutable(isExecutable, /* ownerOnly */ true);
+        tmpBlobFile.setReadOnly();
+        long sizeBytes = tmpBlobFile.length();
+        Files.createDirectories(blob.getParent());
+        Files.move(tmpBlob, blob, REPLACE_EXISTING);
+        if (index != null) {
+          index.stored(getIndexEntry(blobName), sizeBytes, System.currentTimeMillis());
+        }
+      } else if (index != null) {
+        index.accessed(getIndexEntry(blobName), System.currentTimeMillis());
+      }
+      return blobName;
+    } finally {
+      Files.deleteIfExists(tmpBlob);
+    }
+  }
+
+  /**
+   * Writes to a temporary file and moves the file to its final location atomically to protect
+   * against partial entries posing as valid entries during subsequent buck runs.
+   */
+  private void writeAtomically(byte[] contents, Path path) throws IOException {
+    Path tmpPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmpPath, contents);
+      Files.move(tmpPath, path, REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmpPath);
+    }
+  }
+
+  @Override
+  public boolean isStoreSupported() {
+    return doStore;
+  }
+
+  /**
+   * Waits for a pending eviction to finish, so that the process does not exit while it is deleting
+   * blobs.
+   */
+  @Override
+  public void close() {
+    ListenableFuture<Long> eviction;
+    synchronized (this) {
+      eviction = pendingEviction;
+    }
+    if (eviction != null) {
+      try {
+        eviction.get();
+      } catch (ExecutionException e) {
+        logger.warn(e, "Failed to evict blobs from %s", blobsDir);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (evictionExecutor != null) {
+      evictionExecutor.shutdown();
+    }
+    if (index != null) {
+      index.close();
+    }
+  }
+
+  /**
+   * Starts evicting blobs in the background if the build left the cache larger than its high-water
+   * mark. The bytes evicted are reported against the build once eviction finishes.
+   *
+   * @param finished Signals that the build has finished.
+   */
+  @Subscribe
+  public synchronized void buildFinished(BuildEvent.Finished finished) {
+    if (index == null || evictionExecutor == null) {
+      return;
+    }
+    if (pendingEviction != null && !pendingEviction.isDone()) {
+      return;
+    }
+    if (index.getTotalSizeBytes() <= highWaterMarkBytes && !index.needsCompaction()) {
+      return;
+    }
+    final ImmutableList<BuildTarget> buildTargets = finished.getBuildTargets();
+    pendingEviction = evictionExecutor.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws IOException {
+        if (index.needsCompaction()) {
+          index.rebuild();
+        }
+        long bytesEvicted = evictLeastRecentlyAccessed();
+        logger.info("Evicted %d bytes from %s after building %s, leaving %d bytes in %d blobs.",
+            bytesEvicted,
+            blobsDir,
+            buildTargets,
+            index.getTotalSizeBytes(),
+            index.size());
+        if (eventBus.isPresent()) {
+          eventBus.get().post(ArtifactCacheEvictionEvent.create(
+              blobsDir.getParent(),
+              buildTargets,
+              bytesEvicted,
+              index.getTotalSizeBytes()));
+        }
+        return bytesEvicted;
+      }
+    });
+  }
+
+  /**
+   * Deletes the least recently accessed blobs until the cache is no larger than its maximum size,
+   * and then the manifests that list any of them.
+   *
+   * @return the number of bytes freed.
+   */
+  @VisibleForTesting
+  long evictLeastRecentlyAccessed() {
+    Preconditions.checkState(index != null && maxCacheSizeBytes.isPresent());
+    long bytesEvicted = 0;
+    Set<String> evictedBlobNames = Sets.newHashSet();
+    Set<String> manifestNames = Sets.newHashSet();
+    for (String indexEntry : index.getEntriesToEvict(maxCacheSizeBytes.get())) {
+      Path blob = blobsDir.resolve(indexEntry);
+      ImmutableSet<String> referrers = index.getReferrers(indexEntry);
+      try {
+        long sizeBytes = Files.size(blob);
+        Files.delete(blob);
+        bytesEvicted += sizeBytes;
+      } catch (NoSuchFileException e) {
+        // Already deleted, possibly by another process sharing the cache.
+        logger.debug("Evicted blob %s no longer exists", blob);
+      } catch (IOException e) {
+        // Eat any IOExceptions while attempting to clean up the cache directory.
+        continue;
+      }
+      index.evicted(indexEntry);
+      evictedBlobNames.add(blob.getFileName().toString());
+      manifestNames.addAll(referrers);
+    }
+    for (String manifestName : manifestNames) {
+      deleteManifestIfListing(manifestsDir.resolve(manifestName), evictedBlobNames);
+    }
+    return bytesEvicted;
+  }
+
+  /**
+   * Deletes {@code manifest} if it lists any of {@code blobNames}, which can no longer be fetched.
+   * It is read first, as the rule may have been stored again with other blobs since it was recorded
+   * as listing them.
+   */
+  private void deleteManifestIfListing(Path manifest, Set<String> blobNames) {
+    try {
+      Optional<List<ManifestEntry>> entries = parseManifest(manifest);
+      if (!entries.isPresent()) {
+        Files.deleteIfExists(manifest);
+        return;
+      }
+      for (ManifestEntry entry : entries.get()) {
+        if (blobNames.contains(entry.blobName)) {
+          Files.deleteIfExists(manifest);
+          return;
+        }
+      }
+    } catch (IOException e) {
+      // A manifest that lists a missing blob is deleted when it is next read.
+      logger.debug(e, "Unable to delete %s", manifest);
+    }
+  }
+
+  @VisibleForTesting
+  ImmutableList<Path> getBlobs() {
+    ImmutableList.Builder<Path> blobs = ImmutableList.builder();
+    for (File blobDir : Optional.fromNullable(blobsDir.toFile().listFiles()).or(new File[0])) {
+      for (File blob : Optional.fromNullable(blobDir.listFiles()).or(new File[0])) {
+        blobs.add(blob.toPath());
+      }
+    }
+    return blobs.build();
+  }
+}
@@ -18,34 +18,108 @@ package com.facebook.buck.rules;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.util.MoreFiles;
-import com.facebook.buck.util.collect.ArrayIterable;
+import com.facebook.buck.model.BuildTarget;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import javax.annotation.Nullable;
+
+/**
+ * Stores each artifact as a file named after its {@link RuleKey} in a directory.
+ * <p>
+ * If the cache has a maximum size, the size and last access time of every entry is recorded in a
+ * {@link DirArtifactCacheIndex}. Once a build has left the cache larger than its high-water mark,
+ * the least recently accessed entries are evicted on a background thread until the cache is back
+ * under its maximum size, and an {@link ArtifactCacheEvictionEvent} reports how much was evicted.
+ */
 public class DirArtifactCache implements ArtifactCache {
 
   private static final Logger logger = Logger.get(DirArtifactCache.class);
 
   private final File cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
+  private final long highWaterMarkBytes;
   private final boolean doStore;
+  private final Optional<BuckEventBus> eventBus;
+
+  @Nullable
+  private final DirArtifactCacheIndex index;
+  @Nullable
+  private final ListeningExecutorService evictionExecutor;
+  @Nullable
+  private ListenableFuture<Long> pendingEviction;
 
   public DirArtifactCache(File cacheDir, boolean doStore, Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(
+        cacheDir,
+        doStore,
+        maxCacheSizeBytes,
+        /* highWaterMarkBytes */ Optional.<Long>absent(),
+        Optional.<BuckEventBus>absent());
+  }
+
+  /**
+   * @param highWaterMarkBytes the size past which entries are evicted, which defaults to
+   *     {@code maxCacheSizeBytes}. A higher mark means evicting more entries, less often.
+   * @param eventBus where to post an {@link ArtifactCacheEvictionEvent} after each eviction.
+   */
+  public DirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> highWaterMarkBytes,
+      BuckEventBus eventBus)
+      throws IOException {
+    this(cacheDir, doStore, maxCacheSizeBytes, highWaterMarkBytes, Optional.of(eventBus));
+  }
+
+  private DirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> highWaterMarkBytes,
+      Optional<BuckEventBus> eventBus)
+      throws IOException {
     this.cacheDir = Preconditions.checkNotNull(cacheDir);
     this.maxCacheSizeBytes = Preconditions.checkNotNull(maxCacheSizeBytes);
     this.doStore = doStore;
+    this.eventBus = Preconditions.checkNotNull(eventBus);
     Files.createDirectories(cacheDir.toPath());
+
+    if (maxCacheSizeBytes.isPresent()) {
+      this.highWaterMarkBytes = highWaterMarkBytes.or(maxCacheSizeBytes.get());
+      Preconditions.checkArgument(this.highWaterMarkBytes >= maxCacheSizeBytes.get());
+      this.index = DirArtifactCacheIndex.load(cacheDir.toPath());
+      this.evictionExecutor = MoreExecutors.listeningDecorator(
+          MoreExecutors.getExitingExecutorService(
+              (ThreadPoolExecutor) Executors.newFixedThreadPool(1)));
+    } else {
+      this.highWaterMarkBytes = Long.MAX_VALUE;
+      this.index = null;
+      this.evictionExecutor = null;
+    }
   }
 
   @Override
@@ -57,6 +131,9 @@ public class DirArtifactCache implements ArtifactCache {
         Files.createDirectories(output.toPath().getParent());
         Files.copy(cacheEntry.toPath(), output.toPath(), REPLACE_EXISTING);
         success = CacheResult.DIR_HIT;
+        if (index != null) {
+          index.accessed(cacheEntry.getName(), System.currentTimeMillis());
+        }
       } catch (IOException e) {
         logger.warn(e, "Artifact fetch(%s, %s) error",
             ruleKey,
@@ -70,6 +147,39 @@ public class DirArtifactCache implements ArtifactCache {
     return success;
   }
 
+  /**
+   * @return {@link CacheResult#MISS}: artifacts are stored as zip files, which are extracted by the
+   *     caller.
+   */
+  @Override
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+    return CacheResult.MISS;
+  }
+
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableSet.Builder<RuleKey> containedRuleKeys = ImmutableSet.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      if (new File(cacheDir, ruleKey.toString()).exists()) {
+        containedRuleKeys.add(ruleKey);
+      }
+    }
+    return containedRuleKeys.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs) {
+    // Copying from the local disk gains nothing from being batched.
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> ruleKeyAndOutput : ruleKeysToOutputs.entrySet()) {
+      results.put(
+          ruleKeyAndOutput.getKey(),
+          fetch(ruleKeyAndOutput.getKey(), ruleKeyAndOutput.getValue()));
+    }
+    return results.build();
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) {
     if (!doStore) {
@@ -83,7 +193,11 @@ public class DirArtifactCache implements ArtifactCache {
       // as valid artifacts during subsequent buck runs.
       tmpCacheEntry = File.createTempFile(ruleKey.toString(), ".tmp", cacheDir).toPath();
       Files.copy(output.toPath(), tmpCacheEntry, REPLACE_EXISTING);
+      long sizeBytes = Files.size(tmpCacheEntry);
       Files.move(tmpCacheEntry, cacheEntry.toPath(), REPLACE_EXISTING);
+      if (index != null) {
+        index.stored(cacheEntry.getName(), sizeBytes, System.currentTimeMillis());
+      }
     } catch (IOException e) {
       logger.warn(e, "Artifact store(%s, %s) error",
           ruleKey,
@@ -107,55 +221,113 @@ public class DirArtifactCache implements ArtifactCache {
     return doStore;
   }
 
+  /**
+   * Waits for a pending eviction to finish, so that the process does not exit while it is deleting
+   * entries.
+   */
   @Override
   public void close() {
-    // store() operation is synchronous - do nothing.
+    ListenableFuture<Long> eviction;
+    synchronized (this) {
+      eviction = pendingEviction;
+    }
+    if (eviction != null) {
+      try {
+        eviction.get();
+      } catch (ExecutionException e) {
+        logger.warn(e, "Failed to evict entries from %s", cacheDir);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (evictionExecutor != null) {
+      evictionExecutor.shutdown();
+    }
+    if (index != null) {
+      index.close();
+    }
   }
 
   /**
+   * Starts evicting entries in the background if the build left the cache larger than its
+   * high-water mark. The bytes evicted are reported against the build once eviction finishes.
+   *
    * @param finished Signals that the build has finished.
    */
   @Subscribe
   public synchronized void buildFinished(BuildEvent.Finished finished) {
-    deleteOldFiles();
+    if (index == null || evictionExecutor == null) {
+      return;
+    }
+    if (pendingEviction != null && !pendingEviction.isDone()) {
+      return;
+    }
+    if (index.getTotalSizeBytes() <= highWaterMarkBytes && !index.needsCompaction()) {
+      return;
+    }
+    final ImmutableList<BuildTarget> buildTargets = finished.getBuildTargets();
+    pendingEviction = evictionExecutor.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws IOException {
+        if (index.needsCompaction()) {
+          index.rebuild();
+        }
+        long bytesEvicted = evictLeastRecentlyAccessed();
+        logger.info("Evicted %d bytes from %s after building %s, leaving %d bytes in %d entries.",
+            bytesEvicted,
+            cacheDir,
+            buildTargets,
+            index.getTotalSizeBytes(),
+            index.size());
+        if (eventBus.isPresent()) {
+          eventBus.get().post(ArtifactCacheEvictionEvent.create(
+              cacheDir.toPath(),
+              buildTargets,
+              bytesEvicted,
+              index.getTotalSizeBytes()));
+        }
+        return bytesEvicted;
+      }
+    });
   }
 
   /**
-   * Deletes files that haven't been accessed recently from the directory cache.
+   * Lists the cache directory to bring the index up to date, then deletes the entries that haven't
+   * been accessed recently.
    */
   @VisibleForTesting
-  void deleteOldFiles() {
-    if (!maxCacheSizeBytes.isPresent()) {
+  void deleteOldFiles() throws IOException {
+    if (index == null) {
       return;
     }
-    for (File fileAccessedEntry : findFilesToDelete()) {
+    index.rebuild();
+    evictLeastRecentlyAccessed();
+  }
+
+  /**
+   * @return the number of bytes freed by deleting the least recently accessed entries until the
+   *     cache is no larger than its maximum size.
+   */
+  @VisibleForTesting
+  long evictLeastRecentlyAccessed() {
+    Preconditions.checkState(index != null && maxCacheSizeBytes.isPresent());
+    long bytesEvicted = 0;
+    for (String fileName : index.getEntriesToEvict(maxCacheSizeBytes.get())) {
+      Path cacheEntry = cacheDir.toPath().resolve(fileName);
       try {
-        Files.deleteIfExists(fileAccessedEntry.toPath());
+        long sizeBytes = Files.size(cacheEntry);
+        Files.delete(cacheEntry);
+        bytesEvicted += sizeBytes;
+      } catch (NoSuchFileException e) {
+        // Already deleted, possibly by another process sharing the cache.
+        logger.debug("Evicted entry %s no longer exists", cacheEntry);
       } catch (IOException e) {
         // Eat any IOExceptions while attempting to clean up the cache directory.  If the file is
         // now in use, we no longer want to delete it.
         continue;
       }
+      index.evicted(fileName);
     }
-  }
-
-  private Iterable<File> findFilesToDelete() {
-    Preconditions.checkState(maxCacheSizeBytes.isPresent());
-    long maxSizeBytes = maxCacheSizeBytes.get();
-
-    File[] files = cacheDir.listFiles();
-    MoreFiles.sortFilesByAccessTime(files);
-
-    // Finds the first N from the list ordered by last access time who's combined size is less than
-    // maxCacheSizeBytes.
-    long currentSizeBytes = 0;
-    for (int i = 0; i < files.length; ++i) {
-      File file = files[i];
-      currentSizeBytes += file.length();
-      if (currentSizeBytes > maxSizeBytes) {
-        return ArrayIterable.of(files, i, files.length);
-      }
-    }
-    return ImmutableList.<File>of();
+    return bytesEvicted;
   }
 }
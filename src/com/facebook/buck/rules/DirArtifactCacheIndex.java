@@ -0,0 +1,464 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * The sizes and last access times of the entries of a {@link DirArtifactCache}, so that the cache
+ * can be kept under its maximum size without listing its directory.
+ * <p>
+ * The index is persisted in the cache directory as a journal with one line per store, fetch or
+ * eviction of an entry, which is replayed when the index is loaded. As the journal only grows,
+ * {@link #needsCompaction()} reports when it should be rewritten by {@link #rebuild()}, which also
+ * picks up entries that other processes sharing the directory stored without this index seeing
+ * them. Appending to the journal and rewriting it both hold a lock on a file next to it, so that
+ * the lines that other processes append are not written to a journal that has been replaced.
+ * <p>
+ * An entry may also record the names of the other files that refer to it, such as the manifests of
+ * a {@link ContentAddressedDirArtifactCache} that list a blob, so that they can be found when the
+ * entry is evicted.
+ */
+class DirArtifactCacheIndex implements Closeable {
+
+  private static final Logger logger = Logger.get(DirArtifactCacheIndex.class);
+
+  @VisibleForTesting
+  static final String INDEX_FILE_NAME = ".buckcacheindex";
+
+  /**
+   * The journal is not compacted until it has at least this many lines, so that a small cache is
+   * not rescanned after every few stores.
+   */
+  private static final int MIN_JOURNAL_LINES_TO_COMPACT = 1000;
+
+  private static final String STORED = "S";
+  private static final String ACCESSED = "A";
+  private static final String EVICTED = "E";
+  private static final String REFERENCED = "R";
+
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ');
+
+  private static class Entry {
+    private final long sizeBytes;
+    private long lastAccessMillis;
+    private final Set<String> referrers = Sets.newHashSet();
+
+    private Entry(long sizeBytes, long lastAccessMillis) {
+      this.sizeBytes = sizeBytes;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+  }
+
+  /**
+   * A {@link FileLock} is held by the whole JVM, and trying to take it twice fails, so the indexes
+   * of a process also take turns among themselves.
+   */
+  private static final Object PROCESS_LOCK = new Object();
+
+  private final Path cacheDir;
+  private final int entryDepth;
+  private final Path indexFile;
+  private final Path lockFile;
+
+  /** Entries by file name, from the least to the most recently accessed. */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+  private long totalSizeBytes;
+  private int referenceCount;
+  private int journalLines;
+  @Nullable
+  private FileChannel lockChannel;
+
+  private DirArtifactCacheIndex(Path cacheDir, int entryDepth) {
+    Preconditions.checkArgument(entryDepth > 0);
+    this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.entryDepth = entryDepth;
+    this.indexFile = cacheDir.resolve(INDEX_FILE_NAME);
+    this.lockFile = cacheDir.resolve(INDEX_FILE_NAME + ".lock");
+  }
+
+  /**
+   * @return the index of the files directly in {@code cacheDir}, replayed from its journal, or
+   *     built by listing {@code cacheDir} if it does not have one yet.
+   */
+  public static DirArtifactCacheIndex load(Path cacheDir) throws IOException {
+    return load(cacheDir, /* entryDepth */ 1);
+  }
+
+  /**
+   * @param entryDepth how many directories deep the entries are in {@code cacheDir}, which are
+   *     named by their paths relative to it.
+   * @return the index of {@code cacheDir}, replayed from its journal, or built by listing
+   *     {@code cacheDir} if it does not have one yet.
+   */
+  public static DirArtifactCacheIndex load(Path cacheDir, int entryDepth) throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(cacheDir, entryDepth);
+    if (Files.exists(index.indexFile)) {
+      index.replay();
+    } else {
+      index.rebuild();
+    }
+    return index;
+  }
+
+  /**
+   * @return whether {@code fileName} in the cache directory is part of the index itself, rather
+   *     than a cache entry.
+   */
+  public static boolean isIndexFile(String fileName) {
+    return fileName.startsWith(INDEX_FILE_NAME);
+  }
+
+  private synchronized void replay() throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(indexFile, Charsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        journalLines++;
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        try {
+          if (fields.size() == 4 && STORED.equals(fields.get(0))) {
+            putEntry(fields.get(1), Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)));
+          } else if (fields.size() == 3 && ACCESSED.equals(fields.get(0))) {
+            touchEntry(fields.get(1), Long.parseLong(fields.get(2)));
+          } else if (fields.size() == 2 && EVICTED.equals(fields.get(0))) {
+            removeEntry(fields.get(1));
+          } else if (fields.size() == 3 && REFERENCED.equals(fields.get(0))) {
+            addReferrer(fields.get(1), fields.get(2));
+          } else {
+            logger.debug("Ignoring malformed line in %s: %s", indexFile, line);
+          }
+        } catch (NumberFormatException e) {
+          // A line may have been cut short by a process that was killed while appending it.
+          logger.debug("Ignoring malformed line in %s: %s", indexFile, line);
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that an entry of {@code sizeBytes} was written to {@code fileName}.
+   */
+  public synchronized void stored(String fileName, long sizeBytes, long timeMillis) {
+    putEntry(fileName, sizeBytes, timeMillis);
+    append(STORED + " " + fileName + " " + sizeBytes + " " + timeMillis);
+  }
+
+  /**
+   * Records that the entry in {@code fileName} was read.
+   */
+  public synchronized void accessed(String fileName, long timeMillis) {
+    if (touchEntry(fileName, timeMillis)) {
+      append(ACCESSED + " " + fileName + " " + timeMillis);
+    }
+  }
+
+  /**
+   * Records that the entry in {@code fileName} was deleted.
+   */
+  public synchronized void evicted(String fileName) {
+    if (removeEntry(fileName)) {
+      append(EVICTED + " " + fileName);
+    }
+  }
+
+  /**
+   * Records that {@code referrer}, which must not contain spaces, refers to each of the entries in
+   * {@code fileNames}.
+   */
+  public synchronized void referencedBy(Iterable<String> fileNames, String referrer) {
+    Preconditions.checkArgument(referrer.indexOf(' ') == -1);
+    List<String> lines = Lists.newArrayList();
+    for (String fileName : fileNames) {
+      if (addReferrer(fileName, referrer)) {
+        lines.add(REFERENCED + " " + fileName + " " + referrer);
+      }
+    }
+    append(lines);
+  }
+
+  /**
+   * @return the referrers recorded for the entry in {@code fileName}.
+   */
+  public synchronized ImmutableSet<String> getReferrers(String fileName) {
+    Entry entry = entries.get(fileName);
+    return entry == null ? ImmutableSet.<String>of() : ImmutableSet.copyOf(entry.referrers);
+  }
+
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the least recently accessed entries that have to be evicted for the cache to take no
+   *     more than {@code maxSizeBytes}, in the order they were last accessed.
+   */
+  public synchronized ImmutableList<String> getEntriesToEvict(long maxSizeBytes) {
+    ImmutableList.Builder<String> toEvict = ImmutableList.builder();
+    long sizeBytes = totalSizeBytes;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      toEvict.add(entry.getKey());
+      sizeBytes -= entry.getValue().sizeBytes;
+    }
+    return toEvict.build();
+  }
+
+  /**
+   * @return whether the journal has grown enough larger than the index that it should be rewritten
+   *     by {@link #rebuild()}.
+   */
+  public synchronized boolean needsCompaction() {
+    return journalLines >
+        Math.max(MIN_JOURNAL_LINES_TO_COMPACT, 2 * (entries.size() + referenceCount));
+  }
+
+  /**
+   * Replays the journal, to see the lines that other processes appended to it, and lists the cache
+   * directory to add the entries that the journal does not know about and to drop those that no
+   * longer exist. It then rewrites the journal with one line per entry and referrer.
+   * An entry that is in the journal keeps its recorded access time unless the file system reports
+   * a later one.
+   */
+  public synchronized void rebuild() throws IOException {
+    // An empty cache without a journal needs neither a journal nor a lock on it.
+    if (!Files.exists(indexFile) && listEntries().isEmpty()) {
+      clear();
+      return;
+    }
+    synchronized (PROCESS_LOCK) {
+      try (FileLock lock = lockJournal()) {
+        if (Files.exists(indexFile)) {
+          clear();
+          replay();
+        }
+        rewriteJournal(listEntries());
+      }
+    }
+  }
+
+  /**
+   * @return the entries in the cache directory, from the least to the most recently accessed.
+   */
+  private List<Map.Entry<String, Entry>> listEntries() throws IOException {
+    final List<Map.Entry<String, Entry>> found = Lists.newArrayList();
+    Files.walkFileTree(
+        cacheDir,
+        EnumSet.noneOf(FileVisitOption.class),
+        entryDepth,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            Path entry = cacheDir.relativize(file);
+            String fileName = file.getFileName().toString();
+            if (entry.getNameCount() != entryDepth ||
+                !attributes.isRegularFile() ||
+                isIndexFile(fileName) ||
+                fileName.endsWith(".tmp")) {
+              return FileVisitResult.CONTINUE;
+            }
+            long lastAccessMillis = attributes.lastAccessTime().toMillis();
+            Entry known = entries.get(entry.toString());
+            if (known != null) {
+              lastAccessMillis = Math.max(lastAccessMillis, known.lastAccessMillis);
+            }
+            Entry listed = new Entry(attributes.size(), lastAccessMillis);
+            if (known != null) {
+              listed.referrers.addAll(known.referrers);
+            }
+            found.add(Maps.immutableEntry(entry.toString(), listed));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // The file was deleted while the directory was being listed.
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    Collections.sort(found, new Comparator<Map.Entry<String, Entry>>() {
+      @Override
+      public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+        return Long.compare(a.getValue().lastAccessMillis, b.getValue().lastAccessMillis);
+      }
+    });
+    return found;
+  }
+
+  private void rewriteJournal(List<Map.Entry<String, Entry>> found) throws IOException {
+    clear();
+    if (found.isEmpty()) {
+      // An empty cache needs no journal, and listing its directory again is cheap.
+      Files.deleteIfExists(indexFile);
+      return;
+    }
+    Path tmpIndexFile = cacheDir.resolve(INDEX_FILE_NAME + ".tmp");
+    int lines = 0;
+    try (BufferedWriter writer = Files.newBufferedWriter(tmpIndexFile, Charsets.UTF_8)) {
+      for (Map.Entry<String, Entry> entry : found) {
+        Entry value = entry.getValue();
+        putEntry(entry.getKey(), value.sizeBytes, value.lastAccessMillis);
+        writer.write(
+            STORED + " " + entry.getKey() + " " + value.sizeBytes + " " + value.lastAccessMillis);
+        writer.newLine();
+        lines++;
+        for (String referrer : value.referrers) {
+          addReferrer(entry.getKey(), referrer);
+          writer.write(REFERENCED + " " + entry.getKey() + " " + referrer);
+          writer.newLine();
+          lines++;
+        }
+      }
+    }
+    Files.move(tmpIndexFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    journalLines = lines;
+  }
+
+  private void clear() {
+    entries.clear();
+    totalSizeBytes = 0;
+    referenceCount = 0;
+    journalLines = 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (lockChannel == null) {
+      return;
+    }
+    try {
+      lockChannel.close();
+    } catch (IOException e) {
+      logger.debug(e, "Unable to close %s", lockFile);
+    }
+    lockChannel = null;
+  }
+
+  private void putEntry(String fileName, long sizeBytes, long timeMillis) {
+    removeEntry(fileName);
+    entries.put(fileName, new Entry(sizeBytes, timeMillis));
+    totalSizeBytes += sizeBytes;
+  }
+
+  private boolean touchEntry(String fileName, long timeMillis) {
+    // With accessOrder, get() also moves the entry to the end of the iteration order.
+    Entry entry = entries.get(fileName);
+    if (entry == null) {
+      return false;
+    }
+    entry.lastAccessMillis = timeMillis;
+    return true;
+  }
+
+  private boolean removeEntry(String fileName) {
+    Entry entry = entries.remove(fileName);
+    if (entry == null) {
+      return false;
+    }
+    totalSizeBytes -= entry.sizeBytes;
+    referenceCount -= entry.referrers.size();
+    return true;
+  }
+
+  private boolean addReferrer(String fileName, String referrer) {
+    // An entry is referred to right after it is stored or accessed, so that get() moving it to the
+    // end of the iteration order does not change which entries are evicted first.
+    Entry entry = entries.get(fileName);
+    if (entry == null || !entry.referrers.add(referrer)) {
+      return false;
+    }
+    referenceCount++;
+    return true;
+  }
+
+  private void append(String line) {
+    append(ImmutableList.of(line));
+  }
+
+  private void append(List<String> lines) {
+    if (lines.isEmpty()) {
+      return;
+    }
+    // The journal is opened every time, as another process may have replaced it since the last.
+    synchronized (PROCESS_LOCK) {
+      try (FileLock lock = lockJournal();
+           Writer journal = Files.newBufferedWriter(indexFile, Charsets.UTF_8, CREATE, APPEND)) {
+        for (String line : lines) {
+          journal.write(line);
+          journal.write('\n');
+          journalLines++;
+        }
+      } catch (IOException e) {
+        // The index is only used to pick entries to evict, and the next rebuild() will correct it.
+        logger.warn(e, "Unable to append to %s", indexFile);
+      }
+    }
+  }
+
+  /**
+   * @return a lock on the journal, which is shared by all processes using the cache directory.
+   */
+  private FileLock lockJournal() throws IOException {
+    if (lockChannel == null) {
+      lockChannel = FileChannel.open(lockFile, CREATE, WRITE);
+    }
+    return lockChannel.lock();
+  }
+}
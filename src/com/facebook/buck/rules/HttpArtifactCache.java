@@ -20,8 +20,17 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.File;
 import java.io.BufferedOutputStream;
@@ -34,10 +43,33 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * An {@link ArtifactCache} backed by an HTTP server.
+ * <p>
+ * At most {@code maxConnections} requests are in flight at once, so that the connections to the
+ * server can all be kept alive and reused by {@link HttpURLConnection} rather than reopened for
+ * every artifact. Responses are always read to the end for the same reason. Artifacts are stored
+ * by a background executor, so that the build does not wait on uploads until {@link #close()}, and
+ * the same executor makes the requests of {@link #containsAll(ImmutableSet)} and
+ * {@link #multiFetch(ImmutableMap)} concurrently.
+ */
 public class HttpArtifactCache implements ArtifactCache {
   /**
    * If the user is offline, then we do not want to print every connection failure that occurs.
@@ -59,16 +91,27 @@ public class HttpArtifactCache implements ArtifactCache {
   private final BuckEventBus buckEventBus;
   private final String urlStore;
 
+  /**
+   * Held for the duration of each request, so that no more connections are open at once than
+   * {@link HttpURLConnection} keeps alive for reuse.
+   */
+  private final Semaphore connectionPermits;
+  private final ListeningExecutorService requestExecutor;
+  private final Set<ListenableFuture<?>> futures;
+  private final AtomicBoolean isWaitingToClose;
+
   public HttpArtifactCache(
       String hostname,
       int port,
       int timeoutSeconds,
       boolean doStore,
+      int maxConnections,
       ProjectFilesystem projectFilesystem,
       BuckEventBus buckEventBus) {
     Preconditions.checkNotNull(hostname);
     Preconditions.checkArgument(0 <= port && port < 65536);
     Preconditions.checkArgument(1 <= timeoutSeconds);
+    Preconditions.checkArgument(1 <= maxConnections);
     Preconditions.checkNotNull(projectFilesystem);
     Preconditions.checkNotNull(buckEventBus);
     this.hostname = hostname;
@@ -79,6 +122,14 @@ public class HttpArtifactCache implements ArtifactCache {
     this.buckEventBus = buckEventBus;
     this.numConnectionExceptionReports = new AtomicInteger(0);
     this.urlStore = String.format(URL_TEMPLATE_STORE, hostname, port);
+    this.connectionPermits = new Semaphore(maxConnections);
+    this.requestExecutor = MoreExecutors.listeningDecorator(
+        MoreExecutors.getExitingExecutorService(
+            (ThreadPoolExecutor) Executors.newFixedThreadPool(maxConnections),
+            0,
+            TimeUnit.SECONDS));
+    this.futures = Sets.newSetFromMap(new ConcurrentHashMap<ListenableFuture<?>, Boolean>());
+    this.isWaitingToClose = new AtomicBoolean(false);
   }
 
   protected HttpURLConnection getConnection(String url) throws MalformedURLException, IOException {
@@ -86,7 +137,16 @@ public class HttpArtifactCache implements ArtifactCache {
   }
 
   @Override
-  public CacheResult fetch(RuleKey ruleKey, File file) {
+  public CacheResult fetch(RuleKey ruleKey, File file) throws InterruptedException {
+    connectionPermits.acquire();
+    try {
+      return fetchWithPermit(ruleKey, file);
+    } finally {
+      connectionPermits.release();
+    }
+  }
+
+  private CacheResult fetchWithPermit(RuleKey ruleKey, File file) {
     String url = String.format(URL_TEMPLATE_FETCH, hostname, port, ruleKey.toString());
     HttpURLConnection connection;
     try {
@@ -110,11 +170,11 @@ public class HttpArtifactCache implements ArtifactCache {
 
     switch (responseCode) {
       case HttpURLConnection.HTTP_OK:
-        try {
+        // The artifact is streamed straight into the file rather than buffered in memory.
+        try (InputStream inputStream = connection.getInputStream()) {
           Path path = file.toPath();
           projectFilesystem.createParentDirs(path);
-          projectFilesystem.copyToPath(connection.getInputStream(), path,
-              StandardCopyOption.REPLACE_EXISTING);
+          projectFilesystem.copyToPath(inputStream, path, StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
           logger.warn(e, "fetch(%s): [write] IOException: %s", ruleKey, e.getMessage());
           return CacheResult.MISS;
@@ -122,26 +182,179 @@ public class HttpArtifactCache implements ArtifactCache {
         logger.info("fetch(%s): cache hit", ruleKey);
         return CacheResult.HTTP_HIT;
       case HttpURLConnection.HTTP_NOT_FOUND:
+        consumeErrorStream(connection);
         logger.info("fetch(%s): cache miss", ruleKey);
         return CacheResult.MISS;
       default:
+        consumeErrorStream(connection);
         logger.warn("fetch(%s): unexpected response: %d", ruleKey, responseCode);
         return CacheResult.MISS;
     }
   }
 
+  /**
+   * @return {@link CacheResult#MISS}: artifacts are stored as zip files, which are extracted by the
+   *     caller.
+   */
   @Override
-  public void store(RuleKey ruleKey, File file) {
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+    return CacheResult.MISS;
+  }
+
+  /**
+   * Makes a {@code HEAD} request for each key. A server that does not support {@code HEAD} requests
+   * is treated as if it contained none of the keys.
+   */
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException {
+    Map<RuleKey, ListenableFuture<Boolean>> requests = Maps.newHashMap();
+    for (final RuleKey ruleKey : ruleKeys) {
+      requests.put(ruleKey, requestExecutor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws InterruptedException {
+          connectionPermits.acquire();
+          try {
+            return containsWithPermit(ruleKey);
+          } finally {
+            connectionPermits.release();
+          }
+        }
+      }));
+    }
+
+    ImmutableSet.Builder<RuleKey> containedRuleKeys = ImmutableSet.builder();
+    for (Map.Entry<RuleKey, Boolean> result : getAll(requests, false).entrySet()) {
+      if (result.getValue()) {
+        containedRuleKeys.add(result.getKey());
+      }
+    }
+    return containedRuleKeys.build();
+  }
+
+  private boolean containsWithPermit(RuleKey ruleKey) {
+    String url = String.format(URL_TEMPLATE_FETCH, hostname, port, ruleKey.toString());
+    int responseCode;
+    try {
+      HttpURLConnection connection = getConnection(url);
+      connection.setConnectTimeout(timeoutSeconds);
+      connection.setRequestMethod("HEAD");
+      responseCode = connection.getResponseCode();
+      if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+        consumeErrorStream(connection);
+      }
+    } catch (IOException e) {
+      reportConnectionFailure(String.format("contains(%s)", ruleKey), e);
+      return false;
+    }
+    return responseCode == HttpURLConnection.HTTP_OK;
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs)
+      throws InterruptedException {
+    Map<RuleKey, ListenableFuture<CacheResult>> requests = Maps.newHashMap();
+    for (final Map.Entry<RuleKey, File> ruleKeyAndOutput : ruleKeysToOutputs.entrySet()) {
+      requests.put(ruleKeyAndOutput.getKey(), requestExecutor.submit(new Callable<CacheResult>() {
+        @Override
+        public CacheResult call() throws InterruptedException {
+          return fetch(ruleKeyAndOutput.getKey(), ruleKeyAndOutput.getValue());
+        }
+      }));
+    }
+    return getAll(requests, CacheResult.MISS);
+  }
+
+  /**
+   * @return the value of each of {@code requests}, or {@code valueOnFailure} for those that failed.
+   */
+  private static <T> ImmutableMap<RuleKey, T> getAll(
+      Map<RuleKey, ListenableFuture<T>> requests,
+      T valueOnFailure) throws InterruptedException {
+    ImmutableMap.Builder<RuleKey, T> results = ImmutableMap.builder();
+    try {
+      for (Map.Entry<RuleKey, ListenableFuture<T>> request : requests.entrySet()) {
+        T result;
+        try {
+          result = request.getValue().get();
+        } catch (ExecutionException e) {
+          logger.warn(e.getCause(), "Request for %s failed", request.getKey());
+          result = valueOnFailure;
+        }
+        results.put(request.getKey(), result);
+      }
+    } catch (InterruptedException e) {
+      for (ListenableFuture<T> request : requests.values()) {
+        request.cancel(true);
+      }
+      throw e;
+    }
+    return results.build();
+  }
+
+  /**
+   * Schedules {@code file} to be uploaded. The caller may delete {@code file} as soon as this
+   * returns, so the upload reads from a link to it, or a copy if it cannot be linked.
+   */
+  @Override
+  public void store(final RuleKey ruleKey, File file) {
     if (!isStoreSupported()) {
       return;
     }
+
+    final Path upload;
+    try {
+      upload = createUpload(file.toPath());
+    } catch (IOException e) {
+      logger.warn(e, "store(%s): IOException: %s", ruleKey, e.getMessage());
+      return;
+    }
+
+    ListenableFuture<?> future = requestExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          connectionPermits.acquire();
+          try {
+            storeWithPermit(ruleKey, upload);
+          } finally {
+            connectionPermits.release();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          try {
+            Files.deleteIfExists(upload);
+          } catch (IOException e) {
+            logger.debug(e, "store(%s): could not delete %s", ruleKey, upload);
+          }
+        }
+      }
+    });
+    trackFuture(future);
+  }
+
+  private static Path createUpload(Path file) throws IOException {
+    file = file.toAbsolutePath();
+    Path upload = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".upload");
+    Files.delete(upload);
+    try {
+      Files.createLink(upload, file);
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(file, upload);
+    }
+    return upload;
+  }
+
+  private void storeWithPermit(RuleKey ruleKey, Path upload) {
     String method = "POST";
     HttpURLConnection connection;
     try {
       connection = getConnection(urlStore);
       connection.setConnectTimeout(timeoutSeconds);
       connection.setRequestMethod(method);
-      prepareFileUpload(connection, file, ruleKey.toString());
+      prepareFileUpload(connection, upload, ruleKey.toString());
     } catch (MalformedURLException e) {
       logger.error(e, "store(%s): malformed URL: %s", ruleKey, urlStore);
       return;
@@ -163,23 +376,69 @@ public class HttpArtifactCache implements ArtifactCache {
       reportConnectionFailure(String.format("store(%s)", ruleKey), e);
       return;
     }
+    if (responseCode < HttpURLConnection.HTTP_BAD_REQUEST) {
+      consumeInputStream(connection);
+    } else {
+      consumeErrorStream(connection);
+    }
     if (responseCode != HttpURLConnection.HTTP_ACCEPTED) {
       logger.warn("store(%s): unexpected response: %d", ruleKey, responseCode);
     }
   }
 
+  private void trackFuture(final ListenableFuture<?> future) {
+    futures.add(future);
+    Futures.addCallback(future, new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object result) {
+        removeFuture();
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        removeFuture();
+      }
+
+      private void removeFuture() {
+        if (!isWaitingToClose.get()) {
+          futures.remove(future);
+        }
+      }
+    });
+  }
+
   @Override
   public boolean isStoreSupported() {
     return doStore;
   }
 
+  /**
+   * Waits for the artifacts scheduled by {@link #store(RuleKey, File)} to be uploaded.
+   */
   @Override
+  @SuppressWarnings("PMD.EmptyCatchBlock")
   public void close() {
+    isWaitingToClose.set(true);
+    ListenableFuture<List<Object>> future = Futures.<Object>allAsList(futures);
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      // Swallow exception and move on.
+    } catch (InterruptedException e) {
+      try {
+        future.cancel(true);
+      } catch (CancellationException ignored) {
+        // ListenableFuture may throw when its future is cancelled.
+      }
+      Thread.currentThread().interrupt();
+    } finally {
+      requestExecutor.shutdown();
+    }
+
     int failures = numConnectionExceptionReports.get();
     if (failures > 0) {
       logger.warn("Total connection failures: %s", failures);
     }
-    return;
   }
 
   private void reportConnectionFailure(String context, Exception exception) {
@@ -191,24 +450,57 @@ public class HttpArtifactCache implements ArtifactCache {
     }
   }
 
-  private void prepareFileUpload(HttpURLConnection connection, File file, String key)
+  /**
+   * A connection is only returned to the pool of kept alive connections once its response has been
+   * read to the end.
+   */
+  private void consumeInputStream(HttpURLConnection connection) {
+    try (InputStream inputStream = connection.getInputStream()) {
+      consume(inputStream);
+    } catch (IOException e) {
+      logger.debug(e, "Could not read response from %s", connection.getURL());
+    }
+  }
+
+  /**
+   * @see #consumeInputStream(HttpURLConnection)
+   */
+  private void consumeErrorStream(HttpURLConnection connection) {
+    try (InputStream errorStream = connection.getErrorStream()) {
+      consume(errorStream);
+    } catch (IOException e) {
+      logger.debug(e, "Could not read error response from %s", connection.getURL());
+    }
+  }
+
+  private static void consume(InputStream inputStream) throws IOException {
+    if (inputStream != null) {
+      ByteStreams.copy(inputStream, ByteStreams.nullOutputStream());
+    }
+  }
+
+  private void prepareFileUpload(HttpURLConnection connection, Path upload, String key)
       throws IOException {
+    byte[] header = ("--" + BOUNDARY + "\r\n" +
+        "Content-Disposition: form-data; name=\"key0\"\r\n\r\n" +
+        key +
+        "\r\n--" + BOUNDARY + "\r\n" +
+        "Content-Disposition: form-data; name=\"data0\"; filename=\"artifact\"\r\n" +
+        "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    byte[] trailer = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+
     connection.setDoOutput(true);
+    // Without a fixed length, HttpURLConnection buffers the whole artifact in memory.
+    connection.setFixedLengthStreamingMode(
+        header.length + Files.size(upload) + trailer.length);
     connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
     // The cache protocol requires we provide the number of artifacts being sent in the request
     connection.setRequestProperty("Buck-Artifact-Count", "1");
     try (OutputStream os = new BufferedOutputStream(connection.getOutputStream());
-         InputStream is = projectFilesystem.newFileInputStream(file.toPath());) {
-      os.write(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.UTF_8));
-      os.write("Content-Disposition: form-data; name=\"key0\"\r\n\r\n".getBytes(
-            StandardCharsets.UTF_8));
-      os.write(key.getBytes(StandardCharsets.UTF_8));
-      os.write(("\r\n--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.UTF_8));
-      os.write("Content-Disposition: form-data; name=\"data0\"; filename=\"artifact\"\r\n"
-          .getBytes(StandardCharsets.UTF_8));
-      os.write("Content-Type: application/octet-stream\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+         InputStream is = Files.newInputStream(upload)) {
+      os.write(header);
       ByteStreams.copy(is, os);
-      os.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+      os.write(trailer);
     }
   }
 }
@@ -17,9 +17,13 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
 
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
@@ -46,6 +50,44 @@ public class LoggingArtifactCacheDecorator {
         return fetchResult;
       }
 
+      @Override
+      public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot)
+          throws InterruptedException {
+        CacheResult fetchResult = delegate.fetchInto(ruleKey, projectRoot);
+        // A miss is followed by a fetch(), so only hits are logged, to count each fetch once.
+        if (fetchResult.isSuccess()) {
+          eventBus.post(ArtifactCacheEvent.started(ArtifactCacheEvent.Operation.FETCH,
+              ruleKey));
+          eventBus.post(ArtifactCacheEvent.finished(ArtifactCacheEvent.Operation.FETCH,
+              ruleKey,
+              fetchResult));
+        }
+        return fetchResult;
+      }
+
+      @Override
+      public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys)
+          throws InterruptedException {
+        return delegate.containsAll(ruleKeys);
+      }
+
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(
+          ImmutableMap<RuleKey, File> ruleKeysToOutputs)
+          throws InterruptedException {
+        for (RuleKey ruleKey : ruleKeysToOutputs.keySet()) {
+          eventBus.post(ArtifactCacheEvent.started(ArtifactCacheEvent.Operation.FETCH,
+              ruleKey));
+        }
+        ImmutableMap<RuleKey, CacheResult> fetchResults = delegate.multiFetch(ruleKeysToOutputs);
+        for (Map.Entry<RuleKey, CacheResult> fetchResult : fetchResults.entrySet()) {
+          eventBus.post(ArtifactCacheEvent.finished(ArtifactCacheEvent.Operation.FETCH,
+              fetchResult.getKey(),
+              fetchResult.getValue()));
+        }
+        return fetchResults;
+      }
+
       @Override
       public void store(RuleKey ruleKey, File output)
           throws InterruptedException {
@@ -18,9 +18,16 @@ package com.facebook.buck.rules;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -69,6 +76,73 @@ public class MultiArtifactCache implements ArtifactCache {
     return CacheResult.MISS;
   }
 
+  /**
+   * Fetch the artifact matching ruleKey into the project from the first of the encapsulated
+   * ArtifactCaches that can. Nothing is stored to the other caches, as no zip file of the artifact
+   * is written.
+   */
+  @Override
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot)
+      throws InterruptedException {
+    for (ArtifactCache artifactCache : artifactCaches) {
+      CacheResult cacheResult = artifactCache.fetchInto(ruleKey, projectRoot);
+      if (cacheResult.isSuccess()) {
+        return cacheResult;
+      }
+    }
+    return CacheResult.MISS;
+  }
+
+  /**
+   * @return the keys whose artifacts are in any of the encapsulated ArtifactCaches. Each cache is
+   *     only asked about the keys that the caches before it do not contain.
+   */
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException {
+    Set<RuleKey> remainingRuleKeys = Sets.newHashSet(ruleKeys);
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (remainingRuleKeys.isEmpty()) {
+        break;
+      }
+      remainingRuleKeys.removeAll(
+          artifactCache.containsAll(ImmutableSet.copyOf(remainingRuleKeys)));
+    }
+    return ImmutableSet.copyOf(Sets.difference(ruleKeys, remainingRuleKeys));
+  }
+
+  /**
+   * Fetches the artifacts from each of the encapsulated ArtifactCaches in turn, asking each only
+   * for those that the caches before it missed. As with {@link #fetch(RuleKey, File)}, fetched
+   * artifacts are stored to the caches earlier in the search order.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newHashMap();
+    Map<RuleKey, File> remaining = Maps.newHashMap(ruleKeysToOutputs);
+    for (int i = 0; i < artifactCaches.size() && !remaining.isEmpty(); i++) {
+      ImmutableMap<RuleKey, CacheResult> cacheResults =
+          artifactCaches.get(i).multiFetch(ImmutableMap.copyOf(remaining));
+      for (Map.Entry<RuleKey, CacheResult> cacheResult : cacheResults.entrySet()) {
+        if (!cacheResult.getValue().isSuccess()) {
+          continue;
+        }
+        RuleKey ruleKey = cacheResult.getKey();
+        File output = remaining.remove(ruleKey);
+        results.put(ruleKey, cacheResult.getValue());
+        for (ArtifactCache priorArtifactCache : artifactCaches.subList(0, i)) {
+          priorArtifactCache.store(ruleKey, output);
+        }
+      }
+    }
+    for (RuleKey ruleKey : remaining.keySet()) {
+      results.put(ruleKey, CacheResult.MISS);
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
   /**
    * Store the artifact to all encapsulated ArtifactCaches.
    */
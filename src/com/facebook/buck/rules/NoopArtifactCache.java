@@ -16,7 +16,13 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
 import java.io.File;
+import java.nio.file.Path;
 
 public class NoopArtifactCache implements ArtifactCache {
 
@@ -26,6 +32,24 @@ public class NoopArtifactCache implements ArtifactCache {
     return CacheResult.MISS;
   }
 
+  @Override
+  public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+    // Do nothing.
+    return CacheResult.MISS;
+  }
+
+  @Override
+  public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys) {
+    return ImmutableSet.of();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(
+      ImmutableMap<RuleKey, File> ruleKeysToOutputs) {
+    return ImmutableMap.copyOf(
+        Maps.toMap(ruleKeysToOutputs.keySet(), Functions.constant(CacheResult.MISS)));
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) {
     // Do nothing.
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.FileHashCache;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes the {@link RuleKey}s of a graph of {@link BuildRule}s bottom-up on an executor, so that
+ * the keys of independent subgraphs are computed concurrently rather than by a single recursive
+ * call to {@link BuildRule#getRuleKey()} on whichever thread first needs a key. While the keys of
+ * the deps of a rule are being computed, the inputs of the rule are hashed in batches so that a
+ * rule with many inputs is hashed by several threads.
+ * <p>
+ * {@link BuildRule}s memoize their own keys, so this only changes when and on which thread the
+ * keys are computed, not their values.
+ */
+public class RuleKeyCalculator {
+
+  @VisibleForTesting
+  static final int INPUT_BATCH_SIZE = 64;
+
+  private final ListeningExecutorService executorService;
+  private final FileHashCache fileHashCache;
+
+  private final ConcurrentMap<BuildTarget, SettableFuture<RuleKey>> ruleKeys =
+      Maps.newConcurrentMap();
+
+  /**
+   * @param fileHashCache should be the cache used by the {@link RuleKey.Builder}s of the rules, so
+   *     that the hashes computed ahead of time are the ones used by the builders.
+   */
+  public RuleKeyCalculator(
+      ListeningExecutorService executorService,
+      FileHashCache fileHashCache) {
+    this.executorService = Preconditions.checkNotNull(executorService);
+    this.fileHashCache = Preconditions.checkNotNull(fileHashCache);
+  }
+
+  public ListeningExecutorService getExecutorService() {
+    return executorService;
+  }
+
+  /**
+   * @return a future for the {@link RuleKey} of {@code rule}, which is only computed once its deps
+   *     have their keys.
+   */
+  public ListenableFuture<RuleKey> calculate(final BuildRule rule) {
+    SettableFuture<RuleKey> newFuture = SettableFuture.create();
+    SettableFuture<RuleKey> existingFuture = ruleKeys.putIfAbsent(
+        rule.getBuildTarget(),
+        newFuture);
+    if (existingFuture != null) {
+      return existingFuture;
+    }
+
+    final SettableFuture<RuleKey> ruleKey = newFuture;
+    try {
+      List<ListenableFuture<?>> prerequisites = Lists.newArrayList();
+      for (BuildRule dep : rule.getDeps()) {
+        prerequisites.add(calculate(dep));
+      }
+      prerequisites.addAll(hashInputs(rule));
+
+      Futures.addCallback(
+          Futures.<Object>allAsList(prerequisites),
+          new FutureCallback<List<Object>>() {
+            @Override
+            public void onSuccess(List<Object> result) {
+              try {
+                ruleKey.set(rule.getRuleKey());
+              } catch (RuntimeException e) {
+                ruleKey.setException(e);
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+              ruleKey.setException(failure);
+            }
+          },
+          executorService);
+    } catch (Throwable failure) {
+      // As in CachingBuildEngine, make sure that nothing waiting on this future hangs.
+      ruleKey.setException(failure);
+    }
+    return ruleKey;
+  }
+
+  /**
+   * @return a future for the {@link RuleKey}s of {@code rules}, in the same order.
+   */
+  public ListenableFuture<List<RuleKey>> calculate(Iterable<? extends BuildRule> rules) {
+    List<ListenableFuture<RuleKey>> keys = Lists.newArrayList();
+    for (BuildRule rule : rules) {
+      keys.add(calculate(rule));
+    }
+    return Futures.allAsList(keys);
+  }
+
+  private List<ListenableFuture<?>> hashInputs(BuildRule rule) {
+    List<ListenableFuture<?>> batches = Lists.newArrayList();
+    for (final List<Path> batch : Iterables.partition(rule.getInputs(), INPUT_BATCH_SIZE)) {
+      batches.add(executorService.submit(new Runnable() {
+        @Override
+        @SuppressWarnings("PMD.EmptyCatchBlock")
+        public void run() {
+          for (Path input : batch) {
+            if (fileHashCache.contains(input)) {
+              continue;
+            }
+            try {
+              fileHashCache.get(input);
+            } catch (RuntimeException e) {
+              // An input that cannot be hashed is reported by the RuleKey.Builder of the rule, in
+              // the same way as if its hash had not been computed ahead of time.
+            }
+          }
+        }
+      }));
+    }
+    return batches;
+  }
+}
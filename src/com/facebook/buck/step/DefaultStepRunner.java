@@ -163,6 +163,11 @@ public final class DefaultStepRunner implements StepRunner, Closeable {
     Futures.addCallback(dependencies, callback, listeningExecutorService);
   }
 
+  @Override
+  public ListeningExecutorService getListeningExecutorService() {
+    return listeningExecutorService;
+  }
+
   @Override
   public void close() throws IOException {
     close(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES);
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs its steps at the same time, each on its own thread, and fails if any of them fails. Like
+ * {@link CompositeStep}, it lets independent steps, such as the shards of a test run, be returned
+ * as a single step of a rule.
+ * <p>
+ * The steps get a {@link DefaultStepRunner} of their own, rather than threads of the runner that
+ * runs this step, which may all be busy waiting on steps like this one.
+ */
+public class ParallelStep implements Step, Iterable<Step> {
+
+  private final ImmutableList<Step> steps;
+
+  public ParallelStep(List<? extends Step> steps) {
+    Preconditions.checkNotNull(steps);
+    Preconditions.checkArgument(!steps.isEmpty(), "Must have at least one step");
+    this.steps = ImmutableList.copyOf(steps);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) throws InterruptedException {
+    try (DefaultStepRunner stepRunner = new DefaultStepRunner(context, steps.size())) {
+      stepRunner.runStepsInParallelAndWait(steps);
+    } catch (StepFailedException e) {
+      return e.getExitCode();
+    } catch (IOException e) {
+      context.logError(e, "Failed to run %s.", getShortName());
+      return 1;
+    }
+    return 0;
+  }
+
+  @Override
+  public String getDescription(final ExecutionContext context) {
+    return Joiner.on(" & ").join(Iterables.transform(steps,
+        new Function<Step, String>() {
+          @Override
+          public String apply(Step step) {
+            return step.getDescription(context);
+          }
+    }));
+  }
+
+  @Override
+  public String getShortName() {
+    return Joiner.on("_&_").join(Iterables.transform(steps,
+        new Function<Step, String>() {
+      @Override
+      public String apply(Step step) {
+        return step.getShortName();
+      }
+    }));
+  }
+
+  @Override
+  public Iterator<Step> iterator() {
+    return steps.iterator();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == null) {
+      return false;
+    } else if (this == obj) {
+      return true;
+    } else if (!(getClass() == obj.getClass())) {
+      return false;
+    }
+
+    ParallelStep that = (ParallelStep) obj;
+    return Objects.equal(this.steps, that.steps);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(steps);
+  }
+}
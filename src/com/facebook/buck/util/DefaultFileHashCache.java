@@ -17,6 +17,7 @@
 package com.facebook.buck.util;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -33,29 +34,63 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.concurrent.ExecutionException;
 
 public class DefaultFileHashCache implements FileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
+  private final Optional<FileHashIndex> fileHashIndex;
   private Console console;
 
   @VisibleForTesting
   final LoadingCache<Path, HashCode> loadingCache;
 
   public DefaultFileHashCache(ProjectFilesystem projectFilesystem, Console console) {
+    this(projectFilesystem, console, Optional.<FileHashIndex>absent());
+  }
+
+  /**
+   * @param fileHashIndex if present, hashes are looked up in the index before files are read, and
+   *     the hashes of files that are read are recorded in it.
+   */
+  public DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Console console,
+      Optional<FileHashIndex> fileHashIndex) {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.console = Preconditions.checkNotNull(console);
+    this.fileHashIndex = Preconditions.checkNotNull(fileHashIndex);
 
     this.loadingCache = CacheBuilder.newBuilder()
         .build(new CacheLoader<Path, HashCode>() {
           @Override
           public HashCode load(Path path) throws Exception {
-            return getHashCode(path);
+            return getIndexedHashCode(path);
           }
         });
   }
 
+  private HashCode getIndexedHashCode(Path path) throws IOException {
+    if (!fileHashIndex.isPresent()) {
+      return getHashCode(path);
+    }
+
+    // Read the attributes before the contents, so that the index never associates the hash of
+    // newer contents with the attributes of older ones.
+    long hashTimeMillis = System.currentTimeMillis();
+    BasicFileAttributes attributes = java.nio.file.Files.readAttributes(
+        projectFilesystem.resolve(path),
+        BasicFileAttributes.class);
+    Optional<HashCode> indexedSha1 = fileHashIndex.get().get(path, attributes);
+    if (indexedSha1.isPresent()) {
+      return indexedSha1.get();
+    }
+    HashCode sha1 = getHashCode(path);
+    fileHashIndex.get().put(path, attributes, hashTimeMillis, sha1);
+    return sha1;
+  }
+
   private HashCode getHashCode(Path path) throws IOException {
     File file = this.projectFilesystem.resolve(path).toFile();
     InputSupplier<? extends InputStream> inputSupplier = Files.newInputStreamSupplier(file);
@@ -104,12 +139,27 @@ public class DefaultFileHashCache implements FileHashCache {
       // Path event, remove the path from the cache as it has been changed, added or deleted.
       Path path = (Path) event.context();
       loadingCache.invalidate(path.normalize());
+      if (fileHashIndex.isPresent()) {
+        fileHashIndex.get().invalidate(path.normalize());
+      }
     } else {
       // Non-path change event, likely an overflow due to many change events: invalidate everything.
+      // Entries in the file hash index are kept, as they are validated against the attributes of
+      // each file before they are used.
       loadingCache.invalidateAll();
     }
   }
 
+  /**
+   * Writes any hashes computed since the last call to the file hash index, if there is one, so
+   * that they can be reused by later runs of Buck.
+   */
+  public void saveIndex() throws IOException {
+    if (fileHashIndex.isPresent()) {
+      fileHashIndex.get().save();
+    }
+  }
+
   /**
    * DefaultFileHashCaches may be reused on different consoles, so allow the console to be set.
    * @param console The new console that the Parser should use.
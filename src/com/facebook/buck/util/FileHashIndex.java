@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A record of the SHA-1s of files that outlives the Buck process, so that a new daemon or a
+ * non-daemon run does not have to read and hash inputs that have not changed since they were last
+ * hashed. Each entry stores the modification time, size and file key (the device and inode on unix)
+ * that the file had when it was hashed, and is only trusted while a {@code stat} of the file still
+ * reports the same values.
+ * <p>
+ * The index is a single binary file under {@code buck-out} that is memory mapped when loaded and
+ * rewritten by {@link #save()} if it has changed.
+ */
+public class FileHashIndex {
+
+  private static final Logger LOG = Logger.get(FileHashIndex.class);
+
+  @VisibleForTesting
+  static final Path INDEX_PATH = BuckConstant.BUCK_OUTPUT_PATH.resolve("file-hash-index");
+
+  private static final int MAGIC = 0x42554649;
+
+  /**
+   * Bumped whenever the layout of the index changes, so that an index written by an older version
+   * of this class is ignored.
+   */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int SHA1_BYTES = 20;
+
+  /**
+   * Files modified less than this long before they were hashed are not recorded. Filesystems with a
+   * coarse timestamp granularity could otherwise report the same modification time for a change
+   * made shortly after the file was hashed.
+   */
+  @VisibleForTesting
+  static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final ConcurrentMap<Path, Entry> entries;
+  private volatile boolean isDirty;
+
+  @VisibleForTesting
+  FileHashIndex(ProjectFilesystem projectFilesystem, Map<Path, Entry> entries) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.entries = Maps.newConcurrentMap();
+    this.entries.putAll(entries);
+  }
+
+  /**
+   * @return the index previously saved for {@code projectFilesystem}, or an empty index if there
+   *     is none or it cannot be read.
+   */
+  public static FileHashIndex load(ProjectFilesystem projectFilesystem) {
+    Map<Path, Entry> entries = Maps.newHashMap();
+    Path indexPath = projectFilesystem.resolve(INDEX_PATH);
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() == MAGIC && buffer.getInt() == FORMAT_VERSION) {
+        int numEntries = buffer.getInt();
+        for (int i = 0; i < numEntries; i++) {
+          Path path = Paths.get(readString(buffer));
+          long lastModifiedTime = buffer.getLong();
+          long size = buffer.getLong();
+          String fileKey = readString(buffer);
+          byte[] sha1 = new byte[SHA1_BYTES];
+          buffer.get(sha1);
+          entries.put(path, new Entry(lastModifiedTime, size, fileKey, HashCode.fromBytes(sha1)));
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // No index has been saved yet.
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LOG.debug(e, "Ignoring unreadable file hash index %s", indexPath);
+      entries.clear();
+    }
+    return new FileHashIndex(projectFilesystem, entries);
+  }
+
+  /**
+   * @param path a path relative to the project root.
+   * @param attributes the current attributes of {@code path}.
+   * @return the recorded SHA-1 of {@code path}, if the file has not changed since it was recorded.
+   */
+  public Optional<HashCode> get(Path path, BasicFileAttributes attributes) {
+    Entry entry = entries.get(path);
+    if (entry == null || !entry.matches(attributes)) {
+      return Optional.absent();
+    }
+    return Optional.of(entry.sha1);
+  }
+
+  /**
+   * Records the SHA-1 of {@code path}.
+   *
+   * @param attributes the attributes of {@code path}, read before its contents were hashed so that
+   *     a change made while hashing is detected the next time the file is looked up.
+   * @param hashTimeMillis the time at which {@code attributes} were read.
+   */
+  public void put(Path path, BasicFileAttributes attributes, long hashTimeMillis, HashCode sha1) {
+    long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+    if (hashTimeMillis - lastModifiedTime < TIMESTAMP_GRANULARITY_MILLIS) {
+      return;
+    }
+    Entry entry = new Entry(lastModifiedTime, attributes.size(), getFileKey(attributes), sha1);
+    if (!entry.equals(entries.put(path, entry))) {
+      isDirty = true;
+    }
+  }
+
+  /**
+   * Forgets the recorded SHA-1 of {@code path}.
+   */
+  public void invalidate(Path path) {
+    if (entries.remove(path) != null) {
+      isDirty = true;
+    }
+  }
+
+  /**
+   * Writes the index to disk if it has changed since it was loaded or last saved, leaving out the
+   * files that no longer exist. The new index is written alongside the old one and moved into
+   * place, so that a concurrent or interrupted run of Buck never observes a partially written
+   * index. If the index cannot be written, it is still considered changed, so the next call tries
+   * again.
+   */
+  public synchronized void save() throws IOException {
+    if (!isDirty) {
+      return;
+    }
+    // Cleared before the entries are copied, so that an entry added while the index is written is
+    // saved by the next call.
+    isDirty = false;
+    boolean isSaved = false;
+
+    Path indexPath = projectFilesystem.resolve(INDEX_PATH);
+    Path tempFile = null;
+    try {
+      Files.createDirectories(indexPath.getParent());
+      tempFile = Files.createTempFile(
+          indexPath.getParent(),
+          indexPath.getFileName().toString(),
+          ".tmp");
+      // Entries may be added concurrently, so copy them to get a consistent count.
+      Map<Path, Entry> snapshot = Maps.newHashMap(entries);
+      Iterator<Map.Entry<Path, Entry>> snapshotEntries = snapshot.entrySet().iterator();
+      while (snapshotEntries.hasNext()) {
+        Map.Entry<Path, Entry> mapEntry = snapshotEntries.next();
+        if (!projectFilesystem.exists(mapEntry.getKey())) {
+          snapshotEntries.remove();
+          entries.remove(mapEntry.getKey(), mapEntry.getValue());
+        }
+      }
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Path, Entry> mapEntry : snapshot.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          writeString(out, mapEntry.getKey().toString());
+          out.writeLong(entry.lastModifiedTime);
+          out.writeLong(entry.size);
+          writeString(out, entry.fileKey);
+          out.write(entry.sha1.asBytes());
+        }
+      }
+      Files.move(
+          tempFile,
+          indexPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      isSaved = true;
+    } finally {
+      if (!isSaved) {
+        isDirty = true;
+      }
+      if (tempFile != null) {
+        Files.deleteIfExists(tempFile);
+      }
+    }
+  }
+
+  private static String getFileKey(BasicFileAttributes attributes) {
+    Object fileKey = attributes.fileKey();
+    return fileKey == null ? "" : fileKey.toString();
+  }
+
+  private static String readString(MappedByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @VisibleForTesting
+  static class Entry {
+    private final long lastModifiedTime;
+    private final long size;
+    private final String fileKey;
+    private final HashCode sha1;
+
+    Entry(long lastModifiedTime, long size, String fileKey, HashCode sha1) {
+      this.lastModifiedTime = lastModifiedTime;
+      this.size = size;
+      this.fileKey = Preconditions.checkNotNull(fileKey);
+      this.sha1 = Preconditions.checkNotNull(sha1);
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return lastModifiedTime == attributes.lastModifiedTime().toMillis() &&
+          size == attributes.size() &&
+          fileKey.equals(getFileKey(attributes));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Entry)) {
+        return false;
+      }
+      Entry that = (Entry) obj;
+      return lastModifiedTime == that.lastModifiedTime &&
+          size == that.size &&
+          fileKey.equals(that.fileKey) &&
+          sha1.equals(that.sha1);
+    }
+
+    @Override
+    public int hashCode() {
+      return sha1.hashCode();
+    }
+  }
+}
@@ -39,12 +39,17 @@ class EntryAccounting {
   private static final int UTF8_NAMES_FLAG = 1 << 11;
   private static final int ARBITRARY_SIZE = 1024;
   private static final long DOS_EPOCH_START = (1 << 21) | (1 << 16);
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
 
   private final ZipEntry entry;
   private final Method method;
   private Hasher crc = Hashing.crc32().newHasher();
   private long offset;
   private long externalAttributes = 0;
+  /** Whether the crc and sizes are known before the entry's data is written. */
+  private boolean isPrecomputed = false;
+  /** The number of zero bytes in the extra field of the local file header. */
+  private int padding = 0;
 
   /*
    * General purpose bit flag:
@@ -146,10 +151,34 @@ class EntryAccounting {
     return entry.getCrc();
   }
 
+  /**
+   * Pads the extra field of the local file header, as zipalign does, so that the entry's data
+   * starts at a multiple of {@code alignment} bytes. Must be called once the offset is known.
+   */
+  public void alignData(int alignment) {
+    Preconditions.checkArgument(alignment > 0);
+    long dataOffset = offset + LOCAL_FILE_HEADER_SIZE +
+        entry.getName().getBytes(Charsets.UTF_8).length;
+    padding = (int) ((alignment - dataOffset % alignment) % alignment);
+  }
+
   public void calculateCrc() {
     entry.setCrc(crc.hash().padToLong());
   }
 
+  /**
+   * Records the crc and sizes of data that has already been compressed (or stored), so that they
+   * can go in the local file header and the entry needs no data descriptor. The data must then be
+   * written to the zip as it is, rather than through
+   * {@link #write(OutputStream, byte[], int, int)}.
+   */
+  public void setPrecomputedData(long crc, long compressedSize, long size) {
+    entry.setCrc(crc);
+    entry.setCompressedSize(compressedSize);
+    entry.setSize(size);
+    isPrecomputed = true;
+  }
+
   public int getCompressionMethod() {
     return method.compressionMethod;
   }
@@ -164,7 +193,9 @@ class EntryAccounting {
 
   public long writeLocalFileHeader(OutputStream out) throws IOException {
     if (method == Method.DEFLATE) {
-      flags |= DATA_DESCRIPTOR_FLAG;
+      if (!isPrecomputed) {
+        flags |= DATA_DESCRIPTOR_FLAG;
+      }
 
       // See http://www.pkware.com/documents/casestudies/APPNOTE.TXT (section 4.4.4)
       // Essentially, we're about to set bits 1 and 2 to indicate to tools such as zipinfo which
@@ -200,8 +231,12 @@ class EntryAccounting {
       ByteIo.writeShort(stream, getCompressionMethod());
       ByteIo.writeInt(stream, getTime());
 
-      // In deflate mode, we don't know the size or CRC of the data.
-      if (isDeflated()) {
+      // In deflate mode, we don't know the size or CRC of the data unless it was precomputed.
+      if (isPrecomputed) {
+        ByteIo.writeInt(stream, entry.getCrc());
+        ByteIo.writeInt(stream, entry.getCompressedSize());
+        ByteIo.writeInt(stream, entry.getSize());
+      } else if (isDeflated()) {
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
@@ -213,8 +248,9 @@ class EntryAccounting {
 
       byte[] nameBytes = entry.getName().getBytes(Charsets.UTF_8);
       ByteIo.writeShort(stream, nameBytes.length);
-      ByteIo.writeShort(stream, 0);
+      ByteIo.writeShort(stream, padding);
       stream.write(nameBytes);
+      stream.write(new byte[padding]);
 
       byte[] bytes = stream.toByteArray();
       out.write(bytes);
@@ -267,6 +303,11 @@ class EntryAccounting {
   }
 
   public long close(OutputStream out) throws IOException {
+    if (isPrecomputed) {
+      deflater.end();
+      return 0;
+    }
+
     if (!isDeflated()) {
       // Nothing left to do.
       return 0;
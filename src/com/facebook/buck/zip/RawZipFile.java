@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip file whose entries can be copied into another zip as they are, still compressed, by a
+ * {@link ZipAssembler}. Only the central directory is read when the file is opened.
+ * <p>
+ * Archives that need zip64, span several disks, or contain encrypted entries or compression
+ * methods other than deflate and store are not supported: {@link #open(Path)} returns absent for
+ * them, and they should be read with {@link java.util.zip.ZipFile} instead.
+ */
+public class RawZipFile implements Closeable {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int ENCRYPTED_FLAG = 1;
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ImmutableList<Entry> entries;
+
+  private RawZipFile(Path path, FileChannel channel, ImmutableList<Entry> entries) {
+    this.path = Preconditions.checkNotNull(path);
+    this.channel = Preconditions.checkNotNull(channel);
+    this.entries = Preconditions.checkNotNull(entries);
+  }
+
+  /**
+   * @return the opened zip, or absent if it uses features that are not supported, in which case
+   *     nothing is left open.
+   */
+  public static Optional<RawZipFile> open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    boolean isOpened = false;
+    try {
+      Optional<ImmutableList<Entry>> entries = readCentralDirectory(channel);
+      if (!entries.isPresent()) {
+        return Optional.absent();
+      }
+      isOpened = true;
+      return Optional.of(new RawZipFile(path, channel, entries.get()));
+    } finally {
+      if (!isOpened) {
+        channel.close();
+      }
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the entries, in the order of the central directory.
+   */
+  public ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the uncompressed contents of {@code entry}.
+   */
+  public InputStream getInputStream(Entry entry) throws IOException {
+    byte[] data = new byte[(int) entry.getCompressedSize()];
+    readFully(channel, ByteBuffer.wrap(data), getDataOffset(entry));
+    InputStream stream = new ByteArrayInputStream(data);
+    if (entry.getMethod() == ZipEntry.DEFLATED) {
+      stream = new InflaterInputStream(stream, new Inflater(/* nowrap */ true));
+    }
+    return stream;
+  }
+
+  /**
+   * Writes the data of {@code entry} to {@code out} without decompressing it.
+   */
+  void copyCompressedData(Entry entry, OutputStream out) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+    long position = getDataOffset(entry);
+    long remaining = entry.getCompressedSize();
+    while (remaining > 0) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), remaining));
+      readFully(channel, buffer, position);
+      out.write(buffer.array(), 0, buffer.limit());
+      position += buffer.limit();
+      remaining -= buffer.limit();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * The data of an entry starts after its local file header, whose extra field may not match the
+   * one in the central directory.
+   */
+  private long getDataOffset(Entry entry) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, entry.localHeaderOffset);
+    if (header.getInt(0) != ZipEntry.LOCSIG) {
+      throw new IOException(
+          String.format("Bad local file header for %s in %s", entry.getName(), path));
+    }
+    int nameLength = header.getShort(26) & 0xffff;
+    int extraLength = header.getShort(28) & 0xffff;
+    return entry.localHeaderOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  private static Optional<ImmutableList<Entry>> readCentralDirectory(FileChannel channel)
+      throws IOException {
+    long size = channel.size();
+    if (size < END_OF_CENTRAL_DIRECTORY_SIZE) {
+      return Optional.absent();
+    }
+
+    // The end of central directory record is at the very end, unless the zip has a comment.
+    int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, tail, size - tailSize);
+    int end = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == ZipEntry.ENDSIG) {
+        end = i;
+        break;
+      }
+    }
+    if (end == -1) {
+      return Optional.absent();
+    }
+
+    int thisDisk = tail.getShort(end + 4) & 0xffff;
+    int centralDirectoryDisk = tail.getShort(end + 6) & 0xffff;
+    int entryCount = tail.getShort(end + 10) & 0xffff;
+    long centralDirectorySize = tail.getInt(end + 12) & ZIP64_MARKER;
+    long centralDirectoryOffset = tail.getInt(end + 16) & ZIP64_MARKER;
+    if (thisDisk != 0 ||
+        centralDirectoryDisk != 0 ||
+        entryCount == 0xffff ||
+        centralDirectorySize == ZIP64_MARKER ||
+        centralDirectoryOffset == ZIP64_MARKER ||
+        centralDirectoryOffset + centralDirectorySize > size) {
+      return Optional.absent();
+    }
+
+    ByteBuffer directory =
+        ByteBuffer.allocate((int) centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, directory, centralDirectoryOffset);
+
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    int position = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (position + CENTRAL_DIRECTORY_HEADER_SIZE > directory.limit() ||
+          directory.getInt(position) != ZipEntry.CENSIG) {
+        return Optional.absent();
+      }
+      int flags = directory.getShort(position + 8) & 0xffff;
+      int method = directory.getShort(position + 10) & 0xffff;
+      long dosTime = directory.getInt(position + 12) & ZIP64_MARKER;
+      long crc = directory.getInt(position + 16) & ZIP64_MARKER;
+      long compressedSize = directory.getInt(position + 20) & ZIP64_MARKER;
+      long uncompressedSize = directory.getInt(position + 24) & ZIP64_MARKER;
+      int nameLength = directory.getShort(position + 28) & 0xffff;
+      int extraLength = directory.getShort(position + 30) & 0xffff;
+      int commentLength = directory.getShort(position + 32) & 0xffff;
+      long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MARKER;
+      if ((flags & ENCRYPTED_FLAG) != 0 ||
+          (method != ZipEntry.DEFLATED && method != ZipEntry.STORED) ||
+          compressedSize == ZIP64_MARKER ||
+          uncompressedSize == ZIP64_MARKER ||
+          localHeaderOffset == ZIP64_MARKER ||
+          position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength > directory.limit()) {
+        return Optional.absent();
+      }
+
+      // Zip entry names are UTF-8 in every jar we produce or consume.
+      String name = new String(
+          directory.array(),
+          position + CENTRAL_DIRECTORY_HEADER_SIZE,
+          nameLength,
+          Charsets.UTF_8);
+      entries.add(new Entry(
+          name,
+          method,
+          dosTime,
+          crc,
+          compressedSize,
+          uncompressedSize,
+          localHeaderOffset));
+
+      position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return Optional.of(entries.build());
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      position += read;
+    }
+  }
+
+  /**
+   * An entry as described by the central directory.
+   */
+  public static class Entry {
+    private final String name;
+    private final int method;
+    private final long dosTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    private Entry(
+        String name,
+        int method,
+        long dosTime,
+        long crc,
+        long compressedSize,
+        long size,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the modification time in milliseconds since the epoch, in the local time zone as
+     *     {@link ZipEntry#getTime()} does.
+     */
+    public long getTime() {
+      Calendar calendar = Calendar.getInstance();
+      calendar.clear();
+      calendar.set(
+          (int) ((dosTime >> 25) & 0x7f) + 1980,
+          (int) ((dosTime >> 21) & 0x0f) - 1,
+          (int) ((dosTime >> 16) & 0x1f),
+          (int) ((dosTime >> 11) & 0x1f),
+          (int) ((dosTime >> 5) & 0x3f),
+          (int) ((dosTime << 1) & 0x3e));
+      return calendar.getTimeInMillis();
+    }
+  }
+}
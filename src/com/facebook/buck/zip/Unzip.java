@@ -73,6 +73,9 @@ public class Unzip {
           Files.createDirectories(target.toPath().getParent());
 
           filesWritten.add(target.toPath());
+          // Replace rather than write through an existing file, which may be a hard link to a file
+          // that something else, such as an artifact cache, still refers to.
+          Files.deleteIfExists(target.toPath());
           // Write file
           try (FileOutputStream out = new FileOutputStream(target)) {
             ByteStreams.copy(zip.getInputStream(entry), out);
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.timing.Clock;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes a zip from entries that are either new, and compressed in parallel on an executor, or
+ * copied from another zip as they are, without being decompressed and compressed again. Entries
+ * are written in the order they are added, and duplicates are not checked for.
+ * <p>
+ * Only a bounded number of new entries are held in memory at once: adding an entry blocks until
+ * the oldest pending ones have been written.
+ * <p>
+ * The data of stored entries may be aligned, as zipalign does, so that they can be mapped into
+ * memory straight from the zip.
+ */
+public class ZipAssembler implements Closeable {
+
+  private final Clock clock;
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int maxPendingEntries;
+  private final int storedEntryAlignment;
+  private final Deque<Future<PendingEntry>> pendingEntries = new ArrayDeque<>();
+  private final List<EntryAccounting> entries = Lists.newArrayList();
+  private long currentOffset = 0;
+  private boolean isClosed = false;
+
+  /**
+   * @param executor runs the compression of new entries. Its tasks never block, so it may be shared
+   *     between several assemblers.
+   * @param maxPendingEntries how many entries may be waiting to be written at once.
+   */
+  public ZipAssembler(
+      Clock clock,
+      OutputStream out,
+      ExecutorService executor,
+      int maxPendingEntries) {
+    this(clock, out, executor, maxPendingEntries, /* storedEntryAlignment */ 1);
+  }
+
+  /**
+   * @param storedEntryAlignment the number of bytes that the data of stored entries is aligned
+   *     to, or 1 to leave it unaligned.
+   */
+  public ZipAssembler(
+      Clock clock,
+      OutputStream out,
+      ExecutorService executor,
+      int maxPendingEntries,
+      int storedEntryAlignment) {
+    Preconditions.checkArgument(maxPendingEntries > 0);
+    Preconditions.checkArgument(storedEntryAlignment > 0);
+    this.clock = Preconditions.checkNotNull(clock);
+    this.out = Preconditions.checkNotNull(out);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.maxPendingEntries = maxPendingEntries;
+    this.storedEntryAlignment = storedEntryAlignment;
+  }
+
+  /**
+   * Adds an entry whose data is compressed on the executor, at the level of {@code entry} if it is
+   * a {@link CustomZipEntry}. {@code contents} is read on the executor too.
+   */
+  public void addEntry(ZipEntry entry, final ByteSource contents) throws IOException {
+    final EntryAccounting accounting = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    final int method = entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+    final int level = entry instanceof CustomZipEntry ?
+        ((CustomZipEntry) entry).getCompressionLevel() :
+        Deflater.DEFAULT_COMPRESSION;
+    enqueue(executor.submit(new Callable<PendingEntry>() {
+      @Override
+      public PendingEntry call() throws IOException {
+        byte[] data = contents.read();
+        byte[] compressed = method == ZipEntry.STORED ? data : deflate(data, level);
+        accounting.setPrecomputedData(
+            Hashing.crc32().hashBytes(data).padToLong(),
+            compressed.length,
+            data.length);
+        return new PendingEntry(accounting, compressed, null);
+      }
+    }));
+  }
+
+  /**
+   * Adds an entry of {@code zip}, whose compressed data is copied to the output when its turn
+   * comes. {@code zip} must stay open until this assembler is closed.
+   */
+  public void addRawEntry(RawZipFile zip, RawZipFile.Entry rawEntry) throws IOException {
+    ZipEntry entry = new ZipEntry(rawEntry.getName());
+    entry.setMethod(rawEntry.getMethod());
+    entry.setTime(rawEntry.getTime());
+    EntryAccounting accounting = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    accounting.setPrecomputedData(
+        rawEntry.getCrc(),
+        rawEntry.getCompressedSize(),
+        rawEntry.getSize());
+    // Raw entries need no work before they are written, so they skip the executor.
+    enqueue(Futures.immediateFuture(
+        new PendingEntry(accounting, null, new RawData(zip, rawEntry))));
+  }
+
+  private void enqueue(Future<PendingEntry> pendingEntry) throws IOException {
+    Preconditions.checkState(!isClosed, "Zip has already been closed.");
+    pendingEntries.add(pendingEntry);
+    while (pendingEntries.size() > maxPendingEntries) {
+      writeOldestPendingEntry();
+    }
+  }
+
+  private void writeOldestPendingEntry() throws IOException {
+    PendingEntry pendingEntry;
+    try {
+      pendingEntry = pendingEntries.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing a zip entry.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+
+    EntryAccounting entry = pendingEntry.entry;
+    entry.setOffset(currentOffset);
+    if (storedEntryAlignment > 1 && entry.getCompressionMethod() == ZipEntry.STORED) {
+      entry.alignData(storedEntryAlignment);
+    }
+    currentOffset += entry.writeLocalFileHeader(out);
+    if (pendingEntry.rawData != null) {
+      pendingEntry.rawData.zip.copyCompressedData(pendingEntry.rawData.entry, out);
+    } else {
+      out.write(Preconditions.checkNotNull(pendingEntry.data));
+    }
+    currentOffset += entry.getCompressedSize();
+    currentOffset += entry.close(out);
+    entries.add(entry);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (isClosed) {
+      return;
+    }
+    try {
+      while (!pendingEntries.isEmpty()) {
+        writeOldestPendingEntry();
+      }
+      new CentralDirectory().writeCentralDirectory(out, currentOffset, entries);
+    } finally {
+      isClosed = true;
+      for (Future<PendingEntry> pendingEntry : pendingEntries) {
+        pendingEntry.cancel(/* mayInterruptIfRunning */ false);
+      }
+      pendingEntries.clear();
+      out.close();
+    }
+  }
+
+  private static byte[] deflate(byte[] data, int level) throws IOException {
+    Deflater deflater = new Deflater(level, /* nowrap */ true);
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+      try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+        stream.write(data);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * An entry whose crc and sizes are known, along with either its compressed data or where to copy
+   * it from.
+   */
+  /**
+   * An entry that is ready to be written, with either its compressed {@code data} or the
+   * {@code rawData} to copy it from.
+   */
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    @Nullable
+    private final byte[] data;
+    @Nullable
+    private final RawData rawData;
+
+    private PendingEntry(
+        EntryAccounting entry,
+        @Nullable byte[] data,
+        @Nullable RawData rawData) {
+      Preconditions.checkArgument((data == null) != (rawData == null));
+      this.entry = entry;
+      this.data = data;
+      this.rawData = rawData;
+    }
+  }
+
+  private static class RawData {
+    private final RawZipFile zip;
+    private final RawZipFile.Entry entry;
+
+    private RawData(RawZipFile zip, RawZipFile.Entry entry) {
+      this.zip = zip;
+      this.entry = entry;
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.CodeSigner;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ApkWriterTest {
+
+  private static final String KEYSTORE =
+      "test/com/facebook/buck/android/testdata/android_project/keystores/debug.keystore";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutorService executor;
+  private X509Certificate certificate;
+  private ApkSigner signer;
+  private File apkFile;
+
+  /**
+   * Recent JREs treat jars signed with SHA-1, as APKs are, as unsigned. Allow SHA-1 again, before
+   * {@link JarFile} first reads the property, so that it verifies the signature.
+   */
+  @BeforeClass
+  public static void allowSha1JarSignatures() {
+    Security.setProperty("jdk.jar.disabledAlgorithms", "MD2, MD5, RSA keySize < 1024");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    KeyStore keystore = KeyStore.getInstance("jks");
+    try (InputStream stream = new FileInputStream(KEYSTORE)) {
+      keystore.load(stream, "android".toCharArray());
+    }
+    certificate = (X509Certificate) keystore.getCertificate("my_alias");
+    signer = new ApkSigner(
+        (PrivateKey) keystore.getKey("my_alias", "android".toCharArray()),
+        certificate);
+    apkFile = new File(tmp.getRoot(), "app.apk");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void writesASignedAlignedApk() throws Exception {
+    File resourceApk = createZip(
+        "resources.ap_",
+        ImmutableList.of(
+            "AndroidManifest.xml",
+            "res/drawable/icon.png",
+            "resources.arsc",
+            "META-INF/MANIFEST.MF"),
+        ImmutableSet.of("res/drawable/icon.png", "resources.arsc"));
+    File jar = createZip(
+        "library.jar",
+        ImmutableList.of("com/example/Library.class", "com/example/library.properties"),
+        ImmutableSet.<String>of());
+    File dexFile = createFile("classes.dex");
+    File assets = tmp.newFolder("assets");
+    Files.createDirectories(assets.toPath().resolve("assets/fonts"));
+    createFile("assets/assets/fonts/" + Strings.repeat("long-name-", 10) + ".ttf");
+    createFile("assets/assets/.hidden");
+
+    try (ApkWriter apk =
+             new ApkWriter(apkFile, signer, executor, ImmutableSet.of("resources.arsc"))) {
+      apk.addZipFile(resourceApk, /* isJavaResources */ false);
+      apk.addFile(dexFile, "classes.dex");
+      apk.addSourceFolder(assets);
+      apk.addZipFile(jar, /* isJavaResources */ true);
+    }
+
+    try (ZipFile zip = new ZipFile(apkFile)) {
+      List<String> names = Lists.newArrayList();
+      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+        names.add(entries.nextElement().getName());
+      }
+      assertEquals(
+          ImmutableList.of(
+              "AndroidManifest.xml",
+              "res/drawable/icon.png",
+              "resources.arsc",
+              "classes.dex",
+              "assets/fonts/" + Strings.repeat("long-name-", 10) + ".ttf",
+              "com/example/library.properties",
+              "META-INF/MANIFEST.MF",
+              "META-INF/CERT.SF",
+              "META-INF/CERT.RSA"),
+          names);
+
+      assertEquals(ZipEntry.STORED, zip.getEntry("res/drawable/icon.png").getMethod());
+      assertEquals(
+          "resources.arsc should be compressed.",
+          ZipEntry.DEFLATED,
+          zip.getEntry("resources.arsc").getMethod());
+      assertArrayEquals(
+          contentsOf("resources.arsc"),
+          ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("resources.arsc"))));
+    }
+
+    assertStoredEntriesAreAligned(apkFile);
+
+    assertSignatureMatches(apkFile);
+  }
+
+  @Test
+  public void jarFileVerifiesTheSignatureOfEveryEntry() throws Exception {
+    File resourceApk = createZip(
+        "resources.ap_",
+        ImmutableList.of("AndroidManifest.xml", "res/drawable/icon.png", "resources.arsc"),
+        ImmutableSet.of("res/drawable/icon.png"));
+    File dexFile = createFile("classes.dex");
+    try (ApkWriter apk = new ApkWriter(apkFile, signer, executor, ImmutableSet.<String>of())) {
+      apk.addZipFile(resourceApk, /* isJavaResources */ false);
+      apk.addFile(dexFile, "classes.dex");
+    }
+
+    // Entries must be read to the end before JarFile checks them against the signature, and throws
+    // a SecurityException if they do not match.
+    int signedEntries = 0;
+    try (JarFile jar = new JarFile(apkFile, /* verify */ true)) {
+      for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+        JarEntry entry = entries.nextElement();
+        try (InputStream stream = jar.getInputStream(entry)) {
+          ByteStreams.toByteArray(stream);
+        }
+        if (entry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        CodeSigner[] signers = entry.getCodeSigners();
+        assertNotNull(entry.getName() + " should be signed.", signers);
+        assertEquals(
+            ImmutableList.of(certificate),
+            signers[0].getSignerCertPath().getCertificates());
+        signedEntries++;
+      }
+    }
+    assertEquals(4, signedEntries);
+  }
+
+  @Test
+  public void ecKeysAreSignedWithEcdsa() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair keyPair = generator.generateKeyPair();
+    ApkSigner ecSigner = new ApkSigner(keyPair.getPrivate(), certificate);
+
+    Map<String, byte[]> signatureFiles = ecSigner.createSignatureFiles(
+        ImmutableMap.of("classes.dex", Hashing.sha1().hashBytes(contentsOf("classes.dex"))));
+
+    assertEquals(
+        ImmutableSet.of("META-INF/MANIFEST.MF", "META-INF/CERT.SF", "META-INF/CERT.EC"),
+        signatureFiles.keySet());
+    // The block ends with an OCTET STRING that holds the signature, a DER SEQUENCE. Both lengths
+    // fit in a byte for P-256.
+    byte[] signatureBlock = signatureFiles.get("META-INF/CERT.EC");
+    int signatureStart = signatureBlock.length - 2;
+    while (!isSignatureAt(signatureBlock, signatureStart)) {
+      signatureStart--;
+    }
+    Signature signature = Signature.getInstance("SHA1withECDSA");
+    signature.initVerify(keyPair.getPublic());
+    signature.update(signatureFiles.get("META-INF/CERT.SF"));
+    assertTrue(signature.verify(
+        Arrays.copyOfRange(signatureBlock, signatureStart, signatureBlock.length)));
+  }
+
+  @Test
+  public void duplicateEntriesAreReported() throws IOException {
+    File first = createZip("first.zip", ImmutableList.of("a.txt"), ImmutableSet.<String>of());
+    File second = createZip("second.zip", ImmutableList.of("a.txt"), ImmutableSet.<String>of());
+    try (ApkWriter apk = new ApkWriter(apkFile, signer, executor, ImmutableSet.<String>of())) {
+      apk.addZipFile(first, /* isJavaResources */ false);
+      apk.addZipFile(second, /* isJavaResources */ false);
+      fail("Adding a.txt twice should fail.");
+    } catch (HumanReadableException e) {
+      assertEquals(
+          String.format(
+              "Found duplicate file for APK: a.txt\nOrigin 1: %s\nOrigin 2: %s",
+              first,
+              second),
+          e.getHumanReadableErrorMessage());
+    }
+  }
+
+  /**
+   * Checks each part of the signature as a verifier would, so that a failure points at the part
+   * that is wrong.
+   */
+  private void assertSignatureMatches(File apk) throws Exception {
+    try (ZipFile zip = new ZipFile(apk)) {
+      byte[] manifestBytes = readEntry(zip, "META-INF/MANIFEST.MF");
+      byte[] signatureFileBytes = readEntry(zip, "META-INF/CERT.SF");
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      Manifest signatureFile = new Manifest(new ByteArrayInputStream(signatureFileBytes));
+
+      // Every entry has the digest of its contents in the manifest.
+      int signedEntries = 0;
+      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+        String name = entries.nextElement().getName();
+        if (name.startsWith("META-INF/")) {
+          continue;
+        }
+        assertEquals(
+            base64Sha1(readEntry(zip, name)),
+            manifest.getAttributes(name).getValue("SHA1-Digest"));
+        signedEntries++;
+      }
+      assertEquals(signedEntries, manifest.getEntries().size());
+
+      // The signature file has the digest of the manifest, and of each of its sections.
+      assertEquals(
+          base64Sha1(manifestBytes),
+          signatureFile.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      List<String> sections = Splitter.on("\r\n\r\n").omitEmptyStrings()
+          .splitToList(new String(manifestBytes, UTF_8));
+      for (String section : sections.subList(1, sections.size())) {
+        String nameLine = section.replace("\r\n ", "").split("\r\n")[0];
+        assertEquals(
+            base64Sha1((section + "\r\n\r\n").getBytes(UTF_8)),
+            signatureFile.getAttributes(nameLine.substring("Name: ".length()))
+                .getValue("SHA1-Digest"));
+      }
+
+      // The signature block holds the certificate, and ends with the signature of the signature
+      // file.
+      byte[] signatureBlock = readEntry(zip, "META-INF/CERT.RSA");
+      assertEquals(
+          ImmutableList.of(certificate),
+          ImmutableList.copyOf(CertificateFactory.getInstance("X.509")
+              .generateCertificates(new ByteArrayInputStream(signatureBlock))));
+      Signature signature = Signature.getInstance("SHA1withRSA");
+      signature.initVerify(certificate);
+      signature.update(signatureFileBytes);
+      int signatureLength =
+          ((RSAPublicKey) certificate.getPublicKey()).getModulus().bitLength() / 8;
+      assertTrue(signature.verify(Arrays.copyOfRange(
+          signatureBlock,
+          signatureBlock.length - signatureLength,
+          signatureBlock.length)));
+    }
+  }
+
+  private static boolean isSignatureAt(byte[] signatureBlock, int start) {
+    int length = signatureBlock.length - start;
+    return signatureBlock[start - 2] == 0x04 &&
+        (signatureBlock[start - 1] & 0xff) == length &&
+        signatureBlock[start] == 0x30 &&
+        (signatureBlock[start + 1] & 0xff) == length - 2;
+  }
+
+  private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+    try (InputStream stream = zip.getInputStream(zip.getEntry(name))) {
+      return ByteStreams.toByteArray(stream);
+    }
+  }
+
+  private static String base64Sha1(byte[] bytes) {
+    return BaseEncoding.base64().encode(Hashing.sha1().hashBytes(bytes).asBytes());
+  }
+
+  private static void assertStoredEntriesAreAligned(File zipFile) throws IOException {
+    ByteBuffer zip = ByteBuffer.wrap(Files.readAllBytes(zipFile.toPath()))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int offset = 0;
+    while (zip.getInt(offset) == ZipEntry.LOCSIG) {
+      int method = zip.getShort(offset + 8);
+      int compressedSize = zip.getInt(offset + 18);
+      int dataOffset = offset + 30 + zip.getShort(offset + 26) + zip.getShort(offset + 28);
+      if (method == ZipEntry.STORED) {
+        assertEquals(0, dataOffset % 4);
+      }
+      offset = dataOffset + compressedSize;
+    }
+  }
+
+  private File createFile(String name) throws IOException {
+    File file = new File(tmp.getRoot(), name);
+    Files.write(file.toPath(), contentsOf(name));
+    return file;
+  }
+
+  private File createZip(String name, List<String> entryNames, ImmutableSet<String> storedEntries)
+      throws IOException {
+    File file = new File(tmp.getRoot(), name);
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+      for (String entryName : entryNames) {
+        byte[] contents = contentsOf(entryName);
+        ZipEntry entry = new ZipEntry(entryName);
+        if (storedEntries.contains(entryName)) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(contents.length);
+          entry.setCrc(Hashing.crc32().hashBytes(contents).padToLong());
+        }
+        zip.putNextEntry(entry);
+        zip.write(contents);
+        zip.closeEntry();
+      }
+    }
+    return file;
+  }
+
+  private static byte[] contentsOf(String name) {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      contents.append(name).append(' ').append(i).append('\n');
+    }
+    return contents.toString().getBytes(UTF_8);
+  }
+}
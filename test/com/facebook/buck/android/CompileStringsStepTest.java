@@ -22,7 +22,7 @@ import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.ProjectFilesystem;
-import com.facebook.buck.util.XmlDomParser;
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -34,12 +34,13 @@ import com.google.common.io.Files;
 
 import org.easymock.EasyMockSupport;
 import org.junit.Test;
-import org.w3c.dom.NodeList;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.Path;
@@ -150,9 +151,6 @@ public class CompileStringsStepTest extends EasyMockSupport {
           "<string name='name4'></string>" +
           "<string name='name3'>IGNORE</string>" + // ignored because "name3" already found
           "<string name='name5'>Value with %1$s</string>";
-    NodeList stringNodes = XmlDomParser.parse(createResourcesXml(xmlInput))
-        .getElementsByTagName("string");
-
     Map<Integer, String> stringsMap = Maps.newHashMap();
     CompileStringsStep step = createNonExecutingStep();
     step.addResourceNameToIdMap(ImmutableMap.of(
@@ -161,7 +159,11 @@ public class CompileStringsStepTest extends EasyMockSupport {
         "name3", 3,
         "name4", 4,
         "name5", 5));
-    step.scrapeStringNodes(stringNodes, stringsMap);
+    step.scrapeResources(
+        createResourcesXml(xmlInput),
+        stringsMap,
+        Maps.<Integer, ImmutableMap<String, String>>newHashMap(),
+        ArrayListMultimap.<Integer, String>create());
 
     assertEquals(
         "Incorrect map of resource id to string values.",
@@ -188,16 +190,17 @@ public class CompileStringsStepTest extends EasyMockSupport {
           "</plurals>" +
           "<plurals name='name3'></plurals>" + // Test empty array.
           "<plurals name='name2'></plurals>"; // Ignored since "name2" already found.
-    NodeList pluralsNodes = XmlDomParser.parse(createResourcesXml(xmlInput))
-        .getElementsByTagName("plurals");
-
     Map<Integer, ImmutableMap<String, String>> pluralsMap = Maps.newHashMap();
     CompileStringsStep step = createNonExecutingStep();
     step.addResourceNameToIdMap(ImmutableMap.of(
         "name1", 1,
         "name2", 2,
         "name3", 3));
-    step.scrapePluralsNodes(pluralsNodes, pluralsMap);
+    step.scrapeResources(
+        createResourcesXml(xmlInput),
+        Maps.<Integer, String>newHashMap(),
+        pluralsMap,
+        ArrayListMultimap.<Integer, String>create());
 
     assertEquals(
         "Incorrect map of resource id to plural values.",
@@ -229,16 +232,17 @@ public class CompileStringsStepTest extends EasyMockSupport {
             "<item>ignored</item>" + // Ignored because "name2" already found above.
           "</string-array>";
 
-    NodeList arrayNodes = XmlDomParser.parse(createResourcesXml(xmlInput))
-        .getElementsByTagName("string-array");
-
     Multimap<Integer, String> arraysMap = ArrayListMultimap.create();
     CompileStringsStep step = createNonExecutingStep();
     step.addResourceNameToIdMap(ImmutableMap.of(
         "name1", 1,
         "name2", 2,
         "name3", 3));
-    step.scrapeStringArrayNodes(arrayNodes, arraysMap);
+    step.scrapeResources(
+        createResourcesXml(xmlInput),
+        Maps.<Integer, String>newHashMap(),
+        Maps.<Integer, ImmutableMap<String, String>>newHashMap(),
+        arraysMap);
 
     assertEquals(
         "Incorrect map of resource id to string arrays.",
@@ -250,6 +254,37 @@ public class CompileStringsStepTest extends EasyMockSupport {
         arraysMap);
   }
 
+  @Test
+  public void testScrapeResourcesIncludesTheTextOfNestedElements() throws IOException {
+    String xmlInput =
+          "<string name='name1'>Hello <xliff:g id='who'>%s</xliff:g>!</string>" +
+          "<string name='unknown'>Not in R.txt</string>" +
+          "<plurals name='name2'>" +
+            "<!-- A comment is not part of the value. -->" +
+            "<item quantity='one'><b>%d</b> item</item>" +
+            "<item quantity='other'><![CDATA[%d <items>]]></item>" +
+          "</plurals>" +
+          "<string-array name='name3'>" +
+            "<item>Value<i>31</i></item>" +
+          "</string-array>";
+
+    Map<Integer, String> stringsMap = Maps.newHashMap();
+    Map<Integer, ImmutableMap<String, String>> pluralsMap = Maps.newHashMap();
+    Multimap<Integer, String> arraysMap = ArrayListMultimap.create();
+    CompileStringsStep step = createNonExecutingStep();
+    step.addResourceNameToIdMap(ImmutableMap.of(
+        "name1", 1,
+        "name2", 2,
+        "name3", 3));
+    step.scrapeResources(createResourcesXml(xmlInput), stringsMap, pluralsMap, arraysMap);
+
+    assertEquals(ImmutableMap.of(1, "Hello %s!"), stringsMap);
+    assertEquals(
+        ImmutableMap.of(2, ImmutableMap.of("one", "%d item", "other", "%d <items>")),
+        pluralsMap);
+    assertEquals(ImmutableMultimap.of(3, "Value31"), arraysMap);
+  }
+
   private CompileStringsStep createNonExecutingStep() {
     return new CompileStringsStep(
         ImmutableSet.<Path>of(),
@@ -257,8 +292,9 @@ public class CompileStringsStepTest extends EasyMockSupport {
         createMock(Path.class));
   }
 
-  private String createResourcesXml(String contents) {
-    return XML_HEADER + "<resources>" + contents + "</resources>";
+  private InputStream createResourcesXml(String contents) {
+    return new ByteArrayInputStream(
+        (XML_HEADER + "<resources>" + contents + "</resources>").getBytes(Charsets.UTF_8));
   }
 
   @Test
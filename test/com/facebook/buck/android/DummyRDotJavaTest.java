@@ -92,7 +92,7 @@ public class DummyRDotJavaTest {
     String rDotJavaAbiFolder = "buck-out/gen/java/base/__rule_dummyrdotjava_abi__";
 
     List<String> expectedStepDescriptions = Lists.newArrayList(
-        makeCleanDirDescription(rDotJavaSrcFolder),
+        "mkdir -p " + rDotJavaSrcFolder,
         mergeAndroidResourcesDescription(
             ImmutableList.of(
                 (AndroidResource) resourceRule1,
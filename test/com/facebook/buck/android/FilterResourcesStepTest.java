@@ -119,6 +119,10 @@ public class FilterResourcesStepTest {
         context);
 
     EasyMock.expect(scaler.isAvailable(context)).andReturn(true);
+    EasyMock.expect(scaler.canScale(EasyMock.<Path>anyObject(), EasyMock.eq(context)))
+        .andReturn(true)
+        .anyTimes();
+    scaler.finishScaling(context);
     EasyMock.replay(scaler);
 
     FilterResourcesStep command = new FilterResourcesStep(
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.android.FilterResourcesStep.ImageScaler;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+
+public class ImageIOScalerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutionContext context;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    cacheDir = Paths.get("cache");
+  }
+
+  @Test
+  public void scalesImagesAndKeepsTheirAlphaChannel() throws IOException, InterruptedException {
+    Path source = writeImage("res/drawable-xhdpi/icon.png", 40, 30, BufferedImage.TYPE_INT_ARGB);
+    Path destination = Paths.get("res/drawable-mdpi/icon.png");
+    Files.createDirectories(tmp.getRoot().toPath().resolve(destination).getParent());
+
+    new ImageIOScaler(Optional.of(cacheDir), EasyMock.createMock(ImageScaler.class))
+        .scale(0.5, source, destination, context);
+
+    BufferedImage scaled = ImageIO.read(tmp.getRoot().toPath().resolve(destination).toFile());
+    assertEquals(20, scaled.getWidth());
+    assertEquals(15, scaled.getHeight());
+    assertTrue(scaled.getColorModel().hasAlpha());
+  }
+
+  @Test
+  public void scalesJpegsWithoutAnAlphaChannel() throws IOException, InterruptedException {
+    Path source = writeImage("res/drawable-hdpi/photo.jpg", 30, 30, BufferedImage.TYPE_INT_RGB);
+    Path destination = Paths.get("res/drawable-mdpi/photo.jpg");
+    Files.createDirectories(tmp.getRoot().toPath().resolve(destination).getParent());
+
+    new ImageIOScaler(Optional.of(cacheDir), EasyMock.createMock(ImageScaler.class))
+        .scale(2.0 / 3.0, source, destination, context);
+
+    BufferedImage scaled = ImageIO.read(tmp.getRoot().toPath().resolve(destination).toFile());
+    assertEquals(20, scaled.getWidth());
+    assertEquals(20, scaled.getHeight());
+    assertFalse(scaled.getColorModel().hasAlpha());
+  }
+
+  @Test
+  public void anUnchangedImageIsCopiedFromTheCache() throws IOException, InterruptedException {
+    Path source = writeImage("res/drawable-xhdpi/icon.png", 40, 30, BufferedImage.TYPE_INT_ARGB);
+    Path first = Paths.get("first.png");
+    Path second = Paths.get("second.png");
+    ImageIOScaler scaler =
+        new ImageIOScaler(Optional.of(cacheDir), EasyMock.createMock(ImageScaler.class));
+
+    scaler.scale(0.5, source, first, context);
+    File[] cachedImages = tmp.getRoot().toPath().resolve(cacheDir).toFile().listFiles();
+    assertEquals(1, cachedImages.length);
+
+    // Replace the cached image, to see that the second scaling copies it.
+    byte[] cachedImage = "Not an image.".getBytes("UTF-8");
+    Files.write(cachedImages[0].toPath(), cachedImage);
+    scaler.scale(0.5, source, second, context);
+    assertArrayEquals(
+        cachedImage,
+        Files.readAllBytes(tmp.getRoot().toPath().resolve(second)));
+
+    // A different factor is a different image.
+    scaler.scale(0.75, source, second, context);
+    assertEquals(2, tmp.getRoot().toPath().resolve(cacheDir).toFile().listFiles().length);
+  }
+
+  @Test
+  public void imagesThatImageIOCannotWriteAreScaledByTheFallback()
+      throws IOException, InterruptedException {
+    Path source = Paths.get("res/drawable-xhdpi/icon.webp");
+    Path destination = Paths.get("res/drawable-mdpi/icon.webp");
+    ImageScaler fallback = EasyMock.createMock(ImageScaler.class);
+    fallback.scale(0.5, source, destination, context);
+    EasyMock.replay(fallback);
+
+    new ImageIOScaler(Optional.of(cacheDir), fallback).scale(0.5, source, destination, context);
+
+    EasyMock.verify(fallback);
+  }
+
+  @Test
+  public void grayscaleAndPaletteImagesKeepTheirType() throws IOException, InterruptedException {
+    ImageIOScaler scaler =
+        new ImageIOScaler(Optional.of(cacheDir), EasyMock.createMock(ImageScaler.class));
+    for (int type : new int[] {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_BYTE_INDEXED}) {
+      Path source = writeImage("res/drawable-xhdpi/image" + type + ".png", 40, 30, type);
+      Path destination = Paths.get("image" + type + ".png");
+
+      scaler.scale(0.5, source, destination, context);
+
+      BufferedImage scaled = ImageIO.read(tmp.getRoot().toPath().resolve(destination).toFile());
+      assertEquals(20, scaled.getWidth());
+      assertEquals(type, scaled.getType());
+    }
+  }
+
+  @Test
+  public void finishScalingDeletesTheCachedImagesThatWereNotUsed()
+      throws IOException, InterruptedException {
+    Path kept = writeImage("res/drawable-xhdpi/kept.png", 40, 30, BufferedImage.TYPE_INT_ARGB);
+    Path removed =
+        writeImage("res/drawable-xhdpi/removed.png", 20, 30, BufferedImage.TYPE_INT_ARGB);
+    ImageScaler fallback = EasyMock.createMock(ImageScaler.class);
+    fallback.finishScaling(context);
+    EasyMock.expectLastCall().times(2);
+    EasyMock.replay(fallback);
+    ImageIOScaler scaler = new ImageIOScaler(Optional.of(cacheDir), fallback);
+
+    scaler.scale(0.5, kept, Paths.get("kept.png"), context);
+    scaler.scale(0.5, removed, Paths.get("removed.png"), context);
+    scaler.finishScaling(context);
+    assertEquals(2, tmp.getRoot().toPath().resolve(cacheDir).toFile().listFiles().length);
+
+    // The next build only scales one of the images.
+    scaler.scale(0.5, kept, Paths.get("kept.png"), context);
+    scaler.finishScaling(context);
+    File[] cachedImages = tmp.getRoot().toPath().resolve(cacheDir).toFile().listFiles();
+    assertEquals(1, cachedImages.length);
+    assertEquals(20, ImageIO.read(cachedImages[0]).getWidth());
+
+    EasyMock.verify(fallback);
+  }
+
+  @Test
+  public void imagesThatOnlyTheFallbackCanScaleAreScaledOnlyIfItIsAvailable()
+      throws InterruptedException {
+    ImageScaler fallback = EasyMock.createMock(ImageScaler.class);
+    EasyMock.expect(fallback.isAvailable(context)).andReturn(false).once();
+    EasyMock.replay(fallback);
+    ImageIOScaler scaler = new ImageIOScaler(Optional.of(cacheDir), fallback);
+
+    assertTrue(scaler.isAvailable(context));
+    assertTrue(scaler.canScale(Paths.get("res/drawable-xhdpi/icon.PNG"), context));
+    assertTrue(scaler.canScale(Paths.get("res/drawable-xhdpi/photo.jpg"), context));
+    assertFalse(scaler.canScale(Paths.get("res/drawable-xhdpi/icon.webp"), context));
+    assertFalse(scaler.canScale(Paths.get("res/drawable-xhdpi/other.webp"), context));
+
+    EasyMock.verify(fallback);
+  }
+
+  private Path writeImage(String path, int width, int height, int type) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, type);
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x80000000);
+      }
+    }
+    Path relativePath = Paths.get(path);
+    File file = tmp.getRoot().toPath().resolve(relativePath).toFile();
+    Files.createDirectories(file.toPath().getParent());
+    String extension = com.google.common.io.Files.getFileExtension(path);
+    assertTrue(ImageIO.write(image, extension.equals("jpg") ? "jpeg" : extension, file));
+    return relativePath;
+  }
+}
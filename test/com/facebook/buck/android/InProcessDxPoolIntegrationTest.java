@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+public class InProcessDxPoolIntegrationTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void theBundledDxIsSafeToRunInProcess() {
+    assertFalse(
+        String.valueOf(InProcessDxPool.getInstance().getReasonNotToRunInProcess().orNull()),
+        InProcessDxPool.getInstance().getReasonNotToRunInProcess().isPresent());
+  }
+
+  @Test
+  public void concurrentRunsEachProduceTheirOwnDex() throws Exception {
+    final InProcessDxPool pool = new InProcessDxPool(/* maxConcurrentRuns */ 2);
+    List<Callable<Integer>> runs = Lists.newArrayList();
+    final List<Path> outputs = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      final Path classes = compile("Class" + i);
+      final Path output = tmp.getRoot().toPath().resolve("classes" + i + ".dex");
+      outputs.add(output);
+      runs.add(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          return pool.run(
+              ImmutableList.of("--output", output.toString(), classes.toString()),
+              new PrintStream(new ByteArrayOutputStream()),
+              new PrintStream(new ByteArrayOutputStream()));
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(runs.size());
+    try {
+      for (Future<Integer> exitCode : executor.invokeAll(runs)) {
+        assertEquals(0, (int) exitCode.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (int i = 0; i < outputs.size(); i++) {
+      String dex = new String(Files.readAllBytes(outputs.get(i)), Charsets.ISO_8859_1);
+      assertTrue(dex.startsWith("dex\n"));
+      assertTrue(dex.contains("LClass" + i + ";"));
+      assertFalse(dex.contains("LClass" + ((i + 1) % outputs.size()) + ";"));
+    }
+  }
+
+  @Test
+  public void errorsGoToTheConsoleOfTheRun() throws Exception {
+    InProcessDxPool pool = new InProcessDxPool(/* maxConcurrentRuns */ 1);
+    ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    File missing = new File(tmp.getRoot(), "missing.jar");
+
+    int exitCode = pool.run(
+        ImmutableList.of(
+            "--output",
+            new File(tmp.getRoot(), "classes.dex").getPath(),
+            missing.getPath()),
+        new PrintStream(new ByteArrayOutputStream()),
+        new PrintStream(stderr));
+
+    assertNotEquals(0, exitCode);
+    assertTrue(
+        stderr.toString(Charsets.UTF_8.name()),
+        stderr.toString(Charsets.UTF_8.name()).contains(missing.getName()));
+  }
+
+  /**
+   * @return a directory with the compiled class, in a version of the class file format that dx
+   *     understands.
+   */
+  private Path compile(String className) throws IOException {
+    Path directory = tmp.newFolder(className).toPath();
+    Path source = directory.resolve(className + ".java");
+    Files.write(
+        source,
+        String.format("public class %s { int get() { return 1; } }", className)
+            .getBytes(Charsets.UTF_8));
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, compiler.run(
+        null,
+        null,
+        new ByteArrayOutputStream(),
+        "-source", "7",
+        "-target", "7",
+        "-d", directory.toString(),
+        source.toString()));
+    Files.delete(source);
+    return directory;
+  }
+}
@@ -18,16 +18,22 @@ package com.facebook.buck.android;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.SortedSetMultimap;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -38,6 +44,10 @@ import java.util.Set;
 import java.util.SortedSet;
 
 public class MergeAndroidResourcesStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testGenerateRDotJavaForMultipleSymbolsFiles() throws IOException {
 
@@ -85,6 +95,63 @@ public class MergeAndroidResourcesStepTest {
     // All good, no need to further test whether we can write the Java file correctly...
   }
 
+  @Test
+  public void testMergeKeepsIdsAndOnlyRewritesChangedPackages() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path aSymbols = Paths.get("a-R.txt");
+    Path bSymbols = Paths.get("b-R.txt");
+    Path cSymbols = Paths.get("c-R.txt");
+    Path outputDir = Paths.get("out");
+    Path ids = Paths.get("ids/ids.txt");
+    filesystem.writeLinesToPath(
+        ImmutableList.of("int id a1 0x7f010001", "int string a2 0x7f020001"), aSymbols);
+    filesystem.writeLinesToPath(ImmutableList.of("int id b1 0x7f010001"), bSymbols);
+    filesystem.writeLinesToPath(ImmutableList.of("int id c1 0x7f010001"), cSymbols);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(filesystem)
+        .build();
+
+    MergeAndroidResourcesStep step = new MergeAndroidResourcesStep(
+        ImmutableMap.of(aSymbols, "com.a", bSymbols, "com.b", cSymbols, "com.c"),
+        outputDir,
+        Optional.of(ids));
+    assertEquals(0, step.execute(context));
+    String aRDotJava = filesystem.readFileIfItExists(Paths.get("out/com.a/R.java")).get();
+    String bRDotJava = filesystem.readFileIfItExists(Paths.get("out/com.b/R.java")).get();
+
+    // A resource is added to the first symbols file, and the last package goes away.
+    filesystem.writeLinesToPath(
+        ImmutableList.of(
+            "int id a0 0x7f010001",
+            "int id a1 0x7f010002",
+            "int string a2 0x7f020001"),
+        aSymbols);
+    filesystem.writeContentsToPath("Not the R.java of the merge.", Paths.get("out/com.b/R.java"));
+    step = new MergeAndroidResourcesStep(
+        ImmutableMap.of(aSymbols, "com.a", bSymbols, "com.b"),
+        outputDir,
+        Optional.of(ids));
+    assertEquals(0, step.execute(context));
+
+    String newARDotJava = filesystem.readFileIfItExists(Paths.get("out/com.a/R.java")).get();
+    assertFalse(aRDotJava.equals(newARDotJava));
+    assertTrue(newARDotJava.contains(getIdLine(aRDotJava, "a1")));
+    assertTrue(newARDotJava.contains(getIdLine(aRDotJava, "a2")));
+    assertEquals(
+        bRDotJava,
+        filesystem.readFileIfItExists(Paths.get("out/com.b/R.java")).get());
+    assertFalse(filesystem.exists(Paths.get("out/com.c")));
+  }
+
+  private static String getIdLine(String rDotJava, String name) {
+    for (String line : rDotJava.split("\n")) {
+      if (line.contains(" " + name + "=")) {
+        return line;
+      }
+    }
+    throw new AssertionError(name + " is not in " + rDotJava);
+  }
+
   @Test
   public void testGenerateRDotJavaForOneSymbolsFile() {
     String symbolsFile = BuckConstant.BIN_DIR +
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.Sha1HashCode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class PreDexedFilesSorterTest {
+
+  private static final long LINEAR_ALLOC_LIMIT = 10000;
+
+  @Test
+  public void dexesAreFilledTightlyAndWithinTheLimit() {
+    // Sizes that a greedy packing in path order needs 4 dexes for, but that fit in 3.
+    List<DexWithClasses> dexFiles = ImmutableList.of(
+        createDexWithClasses("a", 6000),
+        createDexWithClasses("b", 5000),
+        createDexWithClasses("c", 4000),
+        createDexWithClasses("d", 5000),
+        createDexWithClasses("e", 6000),
+        createDexWithClasses("f", 4000));
+
+    ImmutableList<ImmutableList<DexWithClasses>> dexes =
+        PreDexedFilesSorter.packIntoSecondaryDexes(dexFiles, LINEAR_ALLOC_LIMIT);
+
+    assertEquals(3, dexes.size());
+    assertWithinLimit(dexes);
+  }
+
+  @Test
+  public void packingDoesNotDependOnTheOrderOfTheInputs() {
+    List<DexWithClasses> dexFiles = createRandomDexFiles(/* seed */ 1, /* count */ 200);
+    List<DexWithClasses> shuffled = Lists.newArrayList(dexFiles);
+    Collections.shuffle(shuffled, new Random(2));
+
+    assertEquals(
+        PreDexedFilesSorter.packIntoSecondaryDexes(dexFiles, LINEAR_ALLOC_LIMIT),
+        PreDexedFilesSorter.packIntoSecondaryDexes(shuffled, LINEAR_ALLOC_LIMIT));
+  }
+
+  @Test
+  public void aSmallChangeMovesFewDexFiles() {
+    List<DexWithClasses> dexFiles = createRandomDexFiles(/* seed */ 3, /* count */ 200);
+    ImmutableList<ImmutableList<DexWithClasses>> before =
+        PreDexedFilesSorter.packIntoSecondaryDexes(dexFiles, LINEAR_ALLOC_LIMIT);
+    assertWithinLimit(before);
+
+    List<DexWithClasses> changed = Lists.newArrayList(dexFiles);
+    DexWithClasses grown = changed.get(100);
+    changed.set(
+        100,
+        createDexWithClasses(
+            grown.getPathToDexFile().toString(),
+            grown.getSizeEstimate() + 50));
+    ImmutableList<ImmutableList<DexWithClasses>> after =
+        PreDexedFilesSorter.packIntoSecondaryDexes(changed, LINEAR_ALLOC_LIMIT);
+    assertWithinLimit(after);
+
+    Map<Path, Integer> dexIndexesBefore = getDexIndexes(before);
+    Map<Path, Integer> dexIndexesAfter = getDexIndexes(after);
+    int moved = 0;
+    for (Map.Entry<Path, Integer> dexIndex : dexIndexesBefore.entrySet()) {
+      if (!dexIndex.getValue().equals(dexIndexesAfter.get(dexIndex.getKey()))) {
+        moved++;
+      }
+    }
+    assertTrue(
+        String.format("%d of %d dex files moved.", moved, dexFiles.size()),
+        moved <= dexFiles.size() / 10);
+  }
+
+  @Test
+  public void noDexFilesMeansNoSecondaryDexes() {
+    assertTrue(
+        PreDexedFilesSorter.packIntoSecondaryDexes(
+            ImmutableList.<DexWithClasses>of(),
+            LINEAR_ALLOC_LIMIT)
+            .isEmpty());
+  }
+
+  private static void assertWithinLimit(ImmutableList<ImmutableList<DexWithClasses>> dexes) {
+    for (ImmutableList<DexWithClasses> dex : dexes) {
+      assertTrue(!dex.isEmpty());
+      long size = 0;
+      for (DexWithClasses dexWithClasses : dex) {
+        size += dexWithClasses.getSizeEstimate();
+      }
+      assertTrue(size <= LINEAR_ALLOC_LIMIT);
+    }
+  }
+
+  private static Map<Path, Integer> getDexIndexes(
+      ImmutableList<ImmutableList<DexWithClasses>> dexes) {
+    Map<Path, Integer> dexIndexes = Maps.newHashMap();
+    for (int i = 0; i < dexes.size(); i++) {
+      for (DexWithClasses dexWithClasses : dexes.get(i)) {
+        dexIndexes.put(dexWithClasses.getPathToDexFile(), i);
+      }
+    }
+    return dexIndexes;
+  }
+
+  private static List<DexWithClasses> createRandomDexFiles(long seed, int count) {
+    Random random = new Random(seed);
+    List<DexWithClasses> dexFiles = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      dexFiles.add(createDexWithClasses("lib" + i, 100 + random.nextInt(1500)));
+    }
+    return dexFiles;
+  }
+
+  private static DexWithClasses createDexWithClasses(final String name, final int size) {
+    return new DexWithClasses() {
+      @Override
+      public Path getPathToDexFile() {
+        return Paths.get(name);
+      }
+
+      @Override
+      public ImmutableSet<String> getClassNames() {
+        return ImmutableSet.of(name);
+      }
+
+      @Override
+      public Sha1HashCode getClassesHash() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int getSizeEstimate() {
+        return size;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+        return other instanceof DexWithClasses &&
+            getPathToDexFile().equals(((DexWithClasses) other).getPathToDexFile()) &&
+            getSizeEstimate() == ((DexWithClasses) other).getSizeEstimate();
+      }
+
+      @Override
+      public int hashCode() {
+        return name.hashCode();
+      }
+    };
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+public class ProguardMappingIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private Path mappingFile;
+  private Path indexFile;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    mappingFile = Paths.get("mapping.txt");
+    indexFile = tmp.getRoot().toPath().resolve("mapping.txt.index");
+  }
+
+  @Test
+  public void testLoadParsesTheMappingAndSavesTheIndex() throws IOException {
+    writeMapping(
+        "foo.bar.Baz -> foo.bar.a:",
+        "    int field -> a",
+        "    void method() -> b",
+        "",
+        "foo.bar.Baz$Inner -> foo.bar.b:\r",
+        "Unmapped -> Unmapped:");
+
+    ProguardMappingIndex index = ProguardMappingIndex.load(filesystem, mappingFile);
+
+    assertTrue(Files.exists(indexFile));
+    assertEquals("foo/bar/a", index.getObfuscatedName("foo/bar/Baz"));
+    assertEquals("foo/bar/Baz", index.getOriginalName("foo/bar/a"));
+    assertEquals("foo/bar/b", index.getObfuscatedName("foo/bar/Baz$Inner"));
+    assertEquals("foo/bar/Baz$Inner", index.getOriginalName("foo/bar/b"));
+    assertEquals("Unmapped", index.getObfuscatedName("Unmapped"));
+    assertNull(index.getObfuscatedName("foo/bar/a"));
+    assertNull(index.getOriginalName("foo/bar/Baz"));
+    assertNull(index.getObfuscatedName("foo/bar/Ba"));
+    assertNull(index.getObfuscatedName("foo/bar/BazZ"));
+  }
+
+  @Test
+  public void testLoadReusesTheIndexOfTheSameMapping() throws IOException {
+    writeMapping("foo.Bar -> a:");
+    ProguardMappingIndex.load(filesystem, mappingFile);
+
+    // The index of a mapping without foo.Bar, made to look like the index of this mapping.
+    ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+    index.putChar(index.capacity() - 2, 'b');
+    Files.write(indexFile, index.array());
+
+    assertEquals("b", loadIndex().getObfuscatedName("foo/Bar"));
+  }
+
+  @Test
+  public void testLoadRebuildsTheIndexWhenTheMappingChanges() throws IOException {
+    writeMapping("foo.Bar -> a:");
+    assertEquals("a", loadIndex().getObfuscatedName("foo/Bar"));
+
+    writeMapping("foo.Bar -> b:");
+    Path absoluteMappingFile = filesystem.resolve(mappingFile);
+    Files.setLastModifiedTime(
+        absoluteMappingFile,
+        FileTime.fromMillis(Files.getLastModifiedTime(absoluteMappingFile).toMillis() + 2000));
+
+    assertEquals("b", loadIndex().getObfuscatedName("foo/Bar"));
+  }
+
+  @Test
+  public void testFromClassMapping() {
+    ProguardMappingIndex index = ProguardMappingIndex.fromClassMapping(ImmutableMap.of(
+        "foo.Bar", "a",
+        "foo.Baz", "b",
+        "Unmapped", "Unmapped"));
+
+    assertEquals("a", index.getObfuscatedName("foo/Bar"));
+    assertEquals("foo/Baz", index.getOriginalName("b"));
+    assertEquals("Unmapped", index.getOriginalName("Unmapped"));
+    assertNull(index.getOriginalName("c"));
+  }
+
+  @Test
+  public void testParseChunkMatchesReadClassMapping() {
+    List<String> lines = ImmutableList.of(
+        "foo.bar.Baz -> foo.bar.a:",
+        "    int field -> a",
+        "foo.bar.Baz$1 -> foo.bar.b:");
+    byte[] bytes = (lines.get(0) + "\n" + lines.get(1) + "\n" + lines.get(2) + "\n")
+        .getBytes(Charsets.UTF_8);
+
+    assertEquals(
+        ImmutableList.of("foo/bar/Baz", "foo/bar/a", "foo/bar/Baz$1", "foo/bar/b"),
+        ProguardMappingIndex.parseChunk(ByteBuffer.wrap(bytes), 0, bytes.length));
+    assertEquals(
+        ImmutableMap.of("foo.bar.Baz", "foo.bar.a", "foo.bar.Baz$1", "foo.bar.b"),
+        ProguardMapping.readClassMapping(lines));
+  }
+
+  @Test
+  public void testInvalidLine() throws IOException {
+    writeMapping("foo.Bar -> a:", "foo.Bar+ -> b:");
+    try {
+      ProguardMappingIndex.load(filesystem, mappingFile);
+      fail("Should have thrown IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Invalid line in proguard mapping: foo.Bar+ -> b:", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testDuplicateOriginalName() throws IOException {
+    writeMapping("foo.Bar -> a:", "foo.Bar -> b:");
+    try {
+      ProguardMappingIndex.load(filesystem, mappingFile);
+      fail("Should have thrown IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Duplicate class in proguard mapping: foo.Bar", e.getMessage());
+    }
+    assertFalse(Files.exists(indexFile));
+  }
+
+  @Test
+  public void testDuplicateObfuscatedName() throws IOException {
+    writeMapping("foo.Bar -> a:", "foo.Baz -> a:");
+    try {
+      ProguardMappingIndex.load(filesystem, mappingFile);
+      fail("Should have thrown IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Duplicate class in proguard mapping: a", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testLoadLeavesNoTemporaryFiles() throws IOException {
+    writeMapping("foo.Bar -> a:");
+    loadIndex();
+    // Replacing the index with a directory makes the move fail.
+    Files.delete(indexFile);
+    Files.createDirectories(indexFile.resolve("child"));
+    Files.setLastModifiedTime(
+        filesystem.resolve(mappingFile),
+        FileTime.fromMillis(System.currentTimeMillis() + 2000));
+    try {
+      loadIndex();
+      fail("Should have thrown IOException.");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp.getRoot().toPath(), "*.tmp")) {
+      assertFalse(files.iterator().hasNext());
+    }
+  }
+
+  private ProguardMappingIndex loadIndex() throws IOException {
+    return ProguardMappingIndex.load(filesystem, mappingFile);
+  }
+
+  private void writeMapping(String... lines) throws IOException {
+    Files.write(filesystem.resolve(mappingFile), ImmutableList.copyOf(lines), Charsets.UTF_8);
+  }
+}
@@ -20,19 +20,26 @@ import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
 import org.easymock.EasyMock;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class ProguardTranslatorFactoryTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testEnableObfuscation() throws IOException {
     Path proguardConfigFile = Paths.get("the/configuration.txt");
@@ -45,8 +52,8 @@ public class ProguardTranslatorFactoryTest {
     ProjectFilesystem projectFilesystem = EasyMock.createMock(ProjectFilesystem.class);
     EasyMock.expect(projectFilesystem.readLines(proguardConfigFile))
         .andReturn(ImmutableList.<String>of());
-    EasyMock.expect(projectFilesystem.readLines(proguardMappingFile))
-        .andReturn(linesInMappingFile);
+    EasyMock.expect(projectFilesystem.resolve(proguardMappingFile))
+        .andReturn(writeLines(linesInMappingFile));
 
     ExecutionContext context = EasyMock.createMock(ExecutionContext.class);
     EasyMock.expect(context.getProjectFilesystem())
@@ -85,6 +92,12 @@ public class ProguardTranslatorFactoryTest {
     EasyMock.verify(projectFilesystem, context);
   }
 
+  private Path writeLines(List<String> lines) throws IOException {
+    Path file = tmp.newFile().toPath();
+    Files.write(file, lines, Charsets.UTF_8);
+    return file;
+  }
+
   private void checkMapping(
       ProguardTranslatorFactory translatorFactory,
       String original,
@@ -25,6 +25,7 @@ import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.TestSourcePath;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Suppliers;
@@ -47,6 +48,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
@@ -117,7 +119,9 @@ public class SplitZipStepTest {
             Optional.<SourcePath>of(new TestSourcePath("the/manifest.txt")),
             /* primaryDexScenarioFile */ Optional.<SourcePath>absent(),
             /* isPrimaryDexScenarioOverflowAllowed */ false),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        /* pathToDalvikStatsCache */ Optional.<Path>absent(),
+        /* pathToSecondaryDexAssignment */ Optional.<Path>absent());
     List<String> linesInManifestFile = ImmutableList.of(
         "com/google/common/collect/ImmutableSortedSet",
         "  com/google/common/collect/ImmutableSet",
@@ -186,7 +190,9 @@ public class SplitZipStepTest {
             Optional.<SourcePath>of(new TestSourcePath("the/manifest.txt")),
             /* primaryDexScenarioFile */ Optional.<SourcePath>absent(),
             /* isPrimaryDexScenarioOverflowAllowed */ false),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        /* pathToDalvikStatsCache */ Optional.<Path>absent(),
+        /* pathToSecondaryDexAssignment */ Optional.<Path>absent());
     List<String> linesInMappingFile = ImmutableList.of(
         "foo.bar.MappedPrimary -> foo.bar.a:",
         "foo.bar.MappedSecondary -> foo.bar.b:",
@@ -208,8 +214,8 @@ public class SplitZipStepTest {
         .andReturn(linesInManifestFile);
     EasyMock.expect(projectFilesystem.readLines(proguardConfigFile))
         .andReturn(ImmutableList.<String>of());
-    EasyMock.expect(projectFilesystem.readLines(proguardMappingFile))
-        .andReturn(linesInMappingFile);
+    EasyMock.expect(projectFilesystem.resolve(proguardMappingFile))
+        .andReturn(writeLines(linesInMappingFile));
     ExecutionContext context = EasyMock.createMock(ExecutionContext.class);
     EasyMock.expect(context.getProjectFilesystem()).andReturn(projectFilesystem).anyTimes();
     EasyMock.replay(projectFilesystem, context);
@@ -269,7 +275,9 @@ public class SplitZipStepTest {
             /* primaryDexClassesFile */ Optional.<SourcePath>absent(),
             /* primaryDexScenarioFile */ Optional.<SourcePath>absent(),
             /* isPrimaryDexScenarioOverflowAllowed */ false),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        /* pathToDalvikStatsCache */ Optional.<Path>absent(),
+        /* pathToSecondaryDexAssignment */ Optional.<Path>absent());
 
     ProjectFilesystem projectFilesystem = EasyMock.createMock(ProjectFilesystem.class);
     EasyMock.expect(projectFilesystem.readLines(proguardConfigFile))
@@ -296,6 +304,12 @@ public class SplitZipStepTest {
     EasyMock.verify(projectFilesystem, context);
   }
 
+  private Path writeLines(List<String> lines) throws IOException {
+    Path file = tempDir.newFile().toPath();
+    Files.write(file, lines, Charsets.UTF_8);
+    return file;
+  }
+
   @Test
   public void testClassFilePattern() {
     assertTrue(SplitZipStep.CLASS_FILE_PATTERN.matcher(
@@ -622,6 +622,25 @@ public class BuckConfigTest {
     config.getProguardJarOverride();
   }
 
+  @Test
+  public void testGetNumParserThreads() throws IOException {
+    BuckConfig config = createFromText(
+        "[buildfile]",
+        "    parser_threads = 3");
+    assertEquals(3, config.getNumParserThreads());
+
+    BuckConfig emptyConfig = createFromText();
+    assertEquals(Runtime.getRuntime().availableProcessors(), emptyConfig.getNumParserThreads());
+  }
+
+  @Test(expected = HumanReadableException.class)
+  public void testGetNumParserThreadsRejectsNonPositiveValues() throws IOException {
+    BuckConfig config = createFromText(
+        "[buildfile]",
+        "    parser_threads = 0");
+    config.getNumParserThreads();
+  }
+
   @Test
   public void getEnvUsesSuppliedEnvironment() {
     String name = "SOME_ENVIRONMENT_VARIABLE";
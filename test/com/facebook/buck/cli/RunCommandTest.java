@@ -17,14 +17,18 @@
 package com.facebook.buck.cli;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.testutil.TestConsole;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import org.easymock.EasyMockSupport;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Map;
 
 public class RunCommandTest extends EasyMockSupport {
 
@@ -71,4 +75,18 @@ public class RunCommandTest extends EasyMockSupport {
     assertEquals(1, exitCode);
   }
 
+  @Test
+  public void testTargetIsNotBuiltCacheFirst() {
+    BuckConfig buckConfig = new FakeBuckConfig(
+        ImmutableMap.<String, Map<String, String>>of(
+            "build", ImmutableMap.of("cache_first", "true")));
+    RunCommandOptions options = new RunCommandOptions(buckConfig);
+    options.setArguments(ImmutableList.of("//foo:bar"));
+
+    BuildCommandOptions buildCommandOptions = RunCommand.createBuildCommandOptions(options);
+
+    assertTrue(new BuildCommandOptions(buckConfig).isCacheFirst());
+    assertFalse(buildCommandOptions.isCacheFirst());
+    assertEquals(ImmutableList.of("//foo:bar"), buildCommandOptions.getArguments());
+  }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class DalvikAwareZipSplitterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private Set<Path> inFiles;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    inFiles = ImmutableSet.of(
+        writeJar("a.jar", 0, 30),
+        writeJar("b.jar", 30, 60),
+        // A class that is already in a.jar, which only the first copy of is kept.
+        writeJar("c.jar", 10, 11),
+        writeJar("d.jar", 60, 90));
+  }
+
+  @Test
+  public void parallelSplitWritesTheSameZipsAsASingleThread() throws IOException {
+    for (ZipSplitter.DexSplitStrategy strategy : ZipSplitter.DexSplitStrategy.values()) {
+      File sequential = tmp.newFolder("sequential-" + strategy);
+      File parallel = tmp.newFolder("parallel-" + strategy);
+
+      List<File> sequentialZips =
+          split(sequential, strategy, Optional.<Path>absent(), /* numThreads */ 1);
+      List<File> parallelZips =
+          split(parallel, strategy, Optional.<Path>absent(), /* numThreads */ 4);
+
+      assertTrue("The classes should not fit in one secondary zip.", sequentialZips.size() > 2);
+      assertEquals(sequentialZips.size(), parallelZips.size());
+      for (int i = 0; i < sequentialZips.size(); i++) {
+        assertEquals(sequentialZips.get(i).getName(), parallelZips.get(i).getName());
+        assertSameEntries(sequentialZips.get(i), parallelZips.get(i));
+        assertSameReport(sequential, parallel, sequentialZips.get(i).getName());
+      }
+    }
+  }
+
+  @Test
+  public void changedClassesOnlyChangeTheSecondaryZipsTheyAreIn() throws IOException {
+    Path assignment = tmp.getRoot().toPath().resolve("cache/assignment.txt");
+    List<File> firstZips = split(
+        tmp.newFolder("first"),
+        ZipSplitter.DexSplitStrategy.MINIMIZE_PRIMARY_DEX_SIZE,
+        Optional.of(assignment),
+        /* numThreads */ 2);
+    List<File> greedyZips = split(
+        tmp.newFolder("greedy"),
+        ZipSplitter.DexSplitStrategy.MINIMIZE_PRIMARY_DEX_SIZE,
+        Optional.<Path>absent(),
+        /* numThreads */ 2);
+    for (int i = 0; i < greedyZips.size(); i++) {
+      assertSameEntries(greedyZips.get(i), firstZips.get(i));
+    }
+
+    // Class45 changes and Class90 is added, but the other classes stay where they were.
+    inFiles = ImmutableSet.of(
+        writeJar("a.jar", 0, 30),
+        writeJar("b.jar", 30, 45),
+        writeJar("b2.jar", 45, 46, ImmutableList.of("a", "b", "c", "e")),
+        writeJar("b3.jar", 46, 60),
+        writeJar("d.jar", 60, 90),
+        writeJar("e.jar", 90, 91));
+    List<File> secondZips = split(
+        tmp.newFolder("second"),
+        ZipSplitter.DexSplitStrategy.MINIMIZE_PRIMARY_DEX_SIZE,
+        Optional.of(assignment),
+        /* numThreads */ 2);
+
+    assertEquals(firstZips.size(), secondZips.size());
+    for (int i = 1; i < firstZips.size() - 1; i++) {
+      if (getEntryNames(firstZips.get(i)).contains("Class45.class")) {
+        assertEquals(getEntryNames(firstZips.get(i)), getEntryNames(secondZips.get(i)));
+      } else {
+        assertSameEntries(firstZips.get(i), secondZips.get(i));
+      }
+    }
+    List<String> lastEntries = getEntryNames(firstZips.get(firstZips.size() - 1));
+    lastEntries.add("Class90.class");
+    assertEquals(lastEntries, getEntryNames(secondZips.get(secondZips.size() - 1)));
+  }
+
+  /**
+   * @return the primary zip, followed by the secondary zips.
+   */
+  private List<File> split(
+      File outDir,
+      ZipSplitter.DexSplitStrategy strategy,
+      Optional<Path> secondaryDexAssignmentFile,
+      int numThreads) throws IOException {
+    File outPrimary = new File(outDir, "primary.jar");
+    File outSecondaryDir = new File(outDir, "secondary");
+    File reportDir = new File(outDir, "report");
+    assertTrue(outSecondaryDir.mkdirs());
+    assertTrue(reportDir.mkdirs());
+
+    List<File> zips = Lists.newArrayList(outPrimary);
+    zips.addAll(DalvikAwareZipSplitter.splitZip(
+        filesystem,
+        inFiles,
+        outPrimary,
+        outSecondaryDir,
+        "secondary-%d.jar",
+        /* linearAllocLimit */ 4 * 1024,
+        new Predicate<String>() {
+          @Override
+          public boolean apply(String name) {
+            // Like SplitZipStep, put everything that is not a class in the primary zip.
+            return !name.endsWith(".class") || name.startsWith("Class1");
+          }
+        },
+        /* wantedInPrimaryZip */ ImmutableSet.of("Class42.class", "Class7.class", "Missing.class"),
+        strategy,
+        ZipSplitter.CanaryStrategy.INCLUDE_CANARIES,
+        reportDir,
+        /* dalvikStatsCacheFile */ Optional.<Path>absent(),
+        secondaryDexAssignmentFile,
+        numThreads)
+        .execute());
+    return zips;
+  }
+
+  private static void assertSameEntries(File expected, File actual) throws IOException {
+    try (ZipFile expectedZip = new ZipFile(expected); ZipFile actualZip = new ZipFile(actual)) {
+      Enumeration<? extends ZipEntry> expectedEntries = expectedZip.entries();
+      Enumeration<? extends ZipEntry> actualEntries = actualZip.entries();
+      while (expectedEntries.hasMoreElements()) {
+        assertTrue(actualEntries.hasMoreElements());
+        ZipEntry expectedEntry = expectedEntries.nextElement();
+        ZipEntry actualEntry = actualEntries.nextElement();
+        assertEquals(expectedEntry.getName(), actualEntry.getName());
+        assertArrayEquals(
+            ByteStreams.toByteArray(expectedZip.getInputStream(expectedEntry)),
+            ByteStreams.toByteArray(actualZip.getInputStream(actualEntry)));
+      }
+      assertTrue(!actualEntries.hasMoreElements());
+    }
+  }
+
+  private static List<String> getEntryNames(File zip) throws IOException {
+    List<String> names = Lists.newArrayList();
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements(); ) {
+        names.add(entries.nextElement().getName());
+      }
+    }
+    return names;
+  }
+
+  private static void assertSameReport(File expectedDir, File actualDir, String zipName)
+      throws IOException {
+    String reportName = "report/" + zipName + ".txt";
+    assertEquals(
+        new String(Files.readAllBytes(new File(expectedDir, reportName).toPath()), Charsets.UTF_8),
+        new String(Files.readAllBytes(new File(actualDir, reportName).toPath()), Charsets.UTF_8));
+  }
+
+  private Path writeJar(String name, int firstClass, int lastClass) throws IOException {
+    return writeJar(name, firstClass, lastClass, ImmutableList.of("a", "b", "c", "d"));
+  }
+
+  private Path writeJar(
+      String name,
+      int firstClass,
+      int lastClass,
+      ImmutableList<String> methodNames) throws IOException {
+    Path jar = tmp.getRoot().toPath().resolve(name);
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar.toFile()))) {
+      for (int i = firstClass; i < lastClass; i++) {
+        String className = "Class" + i;
+        zip.putNextEntry(new ZipEntry(className + ".class"));
+        zip.write(createClass(className, methodNames));
+        zip.closeEntry();
+      }
+      zip.putNextEntry(new ZipEntry("META-INF/" + name + ".properties"));
+      zip.write("version=1".getBytes(Charsets.UTF_8));
+      zip.closeEntry();
+    }
+    return jar;
+  }
+
+  private static byte[] createClass(String className, ImmutableList<String> methodNames) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(
+        Opcodes.V1_6,
+        Opcodes.ACC_PUBLIC,
+        className,
+        null,
+        "java/lang/Object",
+        null);
+    for (String methodName : methodNames) {
+      MethodVisitor method =
+          writer.visitMethod(Opcodes.ACC_PUBLIC, methodName, "()V", null, null);
+      method.visitCode();
+      method.visitInsn(Opcodes.RETURN);
+      method.visitMaxs(0, 0);
+      method.visitEnd();
+    }
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.java.classes.ClasspathTraversal;
+import com.facebook.buck.java.classes.DefaultClasspathTraverser;
+import com.facebook.buck.java.classes.FileLike;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DalvikStatsCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private Path cacheFile;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    cacheFile = tmp.getRoot().toPath().resolve("cache/stats.bin");
+  }
+
+  @Test
+  public void estimatesAreTheSameAsThoseOfTheTool() throws IOException {
+    Path jar = writeJar("a.jar", ImmutableList.of("A", "B", "C"));
+
+    DalvikStatsCache cache = new DalvikStatsCache();
+    cache.populate(ImmutableSet.of(jar), filesystem, /* numThreads */ 2);
+
+    assertEquals(3, cache.getNumberOfKnownClasses());
+    for (Map.Entry<FileLike, byte[]> entry : readEntries(jar).entrySet()) {
+      DalvikStatsTool.Stats expected =
+          DalvikStatsTool.getEstimate(new ByteArrayInputStream(entry.getValue()));
+      DalvikStatsTool.Stats actual = cache.getStats(entry.getKey());
+      assertEquals(expected.estimatedLinearAllocSize, actual.estimatedLinearAllocSize);
+      assertEquals(expected.methodReferences, actual.methodReferences);
+    }
+  }
+
+  @Test
+  public void savedEstimatesAreLoadedByTheNextBuild() throws IOException {
+    Path jar = writeJar("a.jar", ImmutableList.of("A", "B"));
+    DalvikStatsCache cache = DalvikStatsCache.load(cacheFile);
+    cache.populate(ImmutableSet.of(jar), filesystem, /* numThreads */ 1);
+    cache.save(cacheFile);
+
+    // A class that moved to another jar has the same contents, so only the new one is estimated.
+    Path otherJar = writeJar("b.jar", ImmutableList.of("B", "D"));
+    DalvikStatsCache loaded = DalvikStatsCache.load(cacheFile);
+    assertEquals(2, loaded.getNumberOfKnownClasses());
+    loaded.populate(ImmutableSet.of(otherJar), filesystem, /* numThreads */ 1);
+    assertEquals(3, loaded.getNumberOfKnownClasses());
+
+    for (Map.Entry<FileLike, byte[]> entry : readEntries(otherJar).entrySet()) {
+      DalvikStatsTool.Stats expected =
+          DalvikStatsTool.getEstimate(new ByteArrayInputStream(entry.getValue()));
+      DalvikStatsTool.Stats actual = loaded.getStats(entry.getKey());
+      assertEquals(expected.estimatedLinearAllocSize, actual.estimatedLinearAllocSize);
+      assertEquals(expected.methodReferences, actual.methodReferences);
+    }
+  }
+
+  @Test
+  public void onlyTheEstimatesUsedByABuildAreSaved() throws IOException {
+    DalvikStatsCache cache = new DalvikStatsCache();
+    cache.populate(
+        ImmutableSet.of(writeJar("a.jar", ImmutableList.of("A", "B", "C"))),
+        filesystem,
+        /* numThreads */ 1);
+    cache.save(cacheFile);
+
+    DalvikStatsCache loaded = DalvikStatsCache.load(cacheFile);
+    loaded.populate(
+        ImmutableSet.of(writeJar("b.jar", ImmutableList.of("C"))),
+        filesystem,
+        /* numThreads */ 1);
+    loaded.save(cacheFile);
+
+    assertEquals(1, DalvikStatsCache.load(cacheFile).getNumberOfKnownClasses());
+  }
+
+  @Test
+  public void aCorruptCacheIsIgnored() throws IOException {
+    Files.createDirectories(cacheFile.getParent());
+    Files.write(cacheFile, "Not a cache.".getBytes(Charsets.UTF_8));
+
+    assertEquals(0, DalvikStatsCache.load(cacheFile).getNumberOfKnownClasses());
+    assertEquals(
+        0,
+        DalvikStatsCache.load(tmp.getRoot().toPath().resolve("missing.bin"))
+            .getNumberOfKnownClasses());
+  }
+
+  @Test
+  public void entriesThatAreNotClassesHaveNoEstimate() throws IOException {
+    Path jar = tmp.getRoot().toPath().resolve("resources.jar");
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar.toFile()))) {
+      zip.putNextEntry(new ZipEntry("META-INF/pom.properties"));
+      zip.write("version=1".getBytes(Charsets.UTF_8));
+      zip.closeEntry();
+    }
+
+    DalvikStatsCache cache = new DalvikStatsCache();
+    cache.populate(ImmutableSet.of(jar), filesystem, /* numThreads */ 1);
+
+    assertEquals(0, cache.getNumberOfKnownClasses());
+    for (FileLike entry : readEntries(jar).keySet()) {
+      assertTrue(DalvikStatsTool.Stats.ZERO == cache.getStats(entry));
+    }
+  }
+
+  private Path writeJar(String name, ImmutableList<String> classNames) throws IOException {
+    Path jar = tmp.getRoot().toPath().resolve(name);
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar.toFile()))) {
+      for (String className : classNames) {
+        zip.putNextEntry(new ZipEntry(className + ".class"));
+        zip.write(createClass(className));
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  /**
+   * @return a class whose one method refers to a method of its own, so that its estimate is not
+   *     empty.
+   */
+  private static byte[] createClass(String className) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(
+        Opcodes.V1_6,
+        Opcodes.ACC_PUBLIC,
+        className,
+        null,
+        "java/lang/Object",
+        null);
+    MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "get", "()V", null, null);
+    method.visitCode();
+    method.visitVarInsn(Opcodes.ALOAD, 0);
+    method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, "get", "()V");
+    method.visitInsn(Opcodes.RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private Map<FileLike, byte[]> readEntries(Path jar) throws IOException {
+    final Map<FileLike, byte[]> entries = Maps.newLinkedHashMap();
+    new DefaultClasspathTraverser().traverse(
+        new ClasspathTraversal(ImmutableSet.of(jar), filesystem) {
+          @Override
+          public void visit(FileLike entry) throws IOException {
+            try (InputStream stream = entry.getInput()) {
+              entries.put(entry, ByteStreams.toByteArray(stream));
+            }
+          }
+        });
+    return entries;
+  }
+}
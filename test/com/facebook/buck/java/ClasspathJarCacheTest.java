@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.java.ClasspathJarCache.CachedJar;
+import com.facebook.buck.java.ClasspathJarCache.JarEntryJavaFileObject;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import javax.tools.JavaFileObject;
+
+public class ClasspathJarCacheTest {
+
+  private static final Set<JavaFileObject.Kind> CLASSES =
+      ImmutableSet.of(JavaFileObject.Kind.CLASS);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path createJar(String name, String... entries) throws IOException {
+    Path jar = tmp.getRoot().toPath().resolve(name);
+    Files.deleteIfExists(jar);
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(jar.toFile())) {
+      for (String entry : entries) {
+        zip.putNextEntry(new CustomZipEntry(entry));
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  @Test
+  public void jarIsIndexedOnceByPackage() throws IOException {
+    Path jar = createJar(
+        "lib.jar",
+        "com/example/A.class",
+        "com/example/sub/B.class",
+        "com/example/C.java",
+        "META-INF/MANIFEST.MF");
+    ClasspathJarCache cache = new ClasspathJarCache(/* maxWeight */ 10000);
+
+    CachedJar cachedJar = cache.acquire(jar);
+    assertSame(cachedJar, cache.acquire(jar));
+    assertEquals(1, cache.size());
+
+    JavaFileObject a = Iterables.getOnlyElement(
+        cachedJar.list("com.example", CLASSES, /* recurse */ false));
+    assertEquals("com.example.A", ((JarEntryJavaFileObject) a).getBinaryName());
+    assertTrue(a.isNameCompatible("A", JavaFileObject.Kind.CLASS));
+    assertFalse(a.isNameCompatible("ExampleA", JavaFileObject.Kind.CLASS));
+    assertEquals(2, cachedJar.list("com.example", CLASSES, /* recurse */ true).size());
+    assertEquals(
+        1,
+        cachedJar.list("com.example", ImmutableSet.of(JavaFileObject.Kind.SOURCE), false).size());
+    assertEquals(ImmutableList.of(), cachedJar.list("META-INF", CLASSES, /* recurse */ false));
+  }
+
+  @Test
+  public void rewrittenJarIsReindexed() throws IOException {
+    Path jar = createJar("lib.jar", "com/example/A.class");
+    ClasspathJarCache cache = new ClasspathJarCache(/* maxWeight */ 10000);
+    CachedJar cachedJar = cache.acquire(jar);
+    cachedJar.release();
+
+    createJar("lib.jar", "com/example/A.class", "com/example/B.class");
+    CachedJar reindexedJar = cache.acquire(jar);
+
+    assertNotSame(cachedJar, reindexedJar);
+    assertEquals(2, reindexedJar.list("com.example", CLASSES, /* recurse */ false).size());
+    assertTrue(cachedJar.isClosed());
+  }
+
+  @Test
+  public void evictedJarIsClosedOnceReleased() throws IOException {
+    Path first = createJar("first.jar", "com/example/A.class");
+    Path second = createJar("second.jar", "com/example/B.class");
+    // Room for only one jar.
+    ClasspathJarCache cache = new ClasspathJarCache(ClasspathJarCache.JAR_WEIGHT + 1);
+
+    CachedJar firstJar = cache.acquire(first);
+    CachedJar secondJar = cache.acquire(second);
+    cache.cleanUp();
+
+    assertEquals(1, cache.size());
+    assertFalse("A jar in use should not be closed.", firstJar.isClosed());
+    assertEquals(1, firstJar.list("com.example", CLASSES, /* recurse */ false).size());
+    firstJar.release();
+    assertTrue(firstJar.isClosed());
+    assertFalse(secondJar.isClosed());
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+public class IncrementalJavacIntegrationTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path root;
+  private Path classesDirectory;
+  private Path stateFile;
+
+  @Before
+  public void setUp() {
+    root = tmp.getRoot().toPath();
+    classesDirectory = root.resolve("classes");
+    stateFile = root.resolve("state.json");
+  }
+
+  @Test
+  public void unchangedSourcesAreNotRecompiled() throws IOException {
+    writeSource("p/A", "package p; public class A {}");
+    writeSource("p/B", "package p; public class B { A a; }");
+
+    assertEquals(sources("p/A", "p/B"), build());
+    assertEquals(sources(), build());
+    assertTrue(Files.isRegularFile(classesDirectory.resolve("p/B.class")));
+  }
+
+  @Test
+  public void dependentsAreNotRecompiledWhenOnlyAMethodBodyChanges() throws IOException {
+    writeSource("p/A", "package p; public class A { public int get() { return 1; } }");
+    writeSource("p/B", "package p; public class B { int b = new A().get(); }");
+    build();
+
+    writeSource("p/A", "package p; public class A { public int get() { return 2; } }");
+
+    assertEquals(sources("p/A"), build());
+    assertTrue(Files.isRegularFile(classesDirectory.resolve("p/B.class")));
+  }
+
+  @Test
+  public void dependentsAreRecompiledWhenTheAbiChanges() throws IOException {
+    writeSource("p/A", "package p; public class A { public int get() { return 1; } }");
+    writeSource("p/B", "package p; public class B { int b = new A().get(); }");
+    writeSource("q/C", "package q; public class C {}");
+    build();
+
+    writeSource("p/A", "package p; public class A { public Integer get() { return 1; } }");
+
+    assertEquals(sources("p/A", "p/B"), build());
+  }
+
+  @Test
+  public void usersOfSubclassesAreRecompiledWhenASuperclassChanges() throws IOException {
+    writeSource("p/Base", "package p; public class Base { public void run() {} }");
+    writeSource("p/Sub", "package p; public class Sub extends Base {}");
+    writeSource("q/User", "package q; class User { void go() { new p.Sub().run(); } }");
+    build();
+
+    writeSource("p/Base", "package p; public class Base { public void run(int times) {} }");
+    List<String> errors = Lists.newArrayList();
+
+    assertNotEquals(
+        "User calls a method that Sub no longer inherits.",
+        0,
+        newIncrementalJavac("fingerprint").build(createCompiler(errors)));
+    assertTrue(errors.toString(), errors.toString().contains("User.java"));
+  }
+
+  @Test
+  public void everythingIsRecompiledWhenAConstantChanges() throws IOException {
+    writeSource("p/A", "package p; public class A { public static final int X = 1; }");
+    writeSource("p/B", "package p; public class B { int b = A.X; }");
+    writeSource("q/C", "package q; public class C {}");
+    build();
+
+    writeSource("p/A", "package p; public class A { public static final int X = 2; }");
+
+    assertEquals(sources("p/A", "p/B", "q/C"), build());
+  }
+
+  @Test
+  public void everythingIsRecompiledWhenTheFingerprintChanges() throws IOException {
+    writeSource("p/A", "package p; public class A {}");
+    writeSource("q/C", "package q; public class C {}");
+    build();
+
+    IncrementalJavac javac = newIncrementalJavac("another fingerprint");
+    assertEquals(0, javac.build(createCompiler(Lists.<String>newArrayList())));
+
+    assertEquals(sources("p/A", "q/C"), javac.getCompiledSources());
+  }
+
+  @Test
+  public void classesOfRemovedSourcesAreDeletedAndTheirUsersRecompiled() throws IOException {
+    writeSource("p/A", "package p; public class A { class Inner {} }");
+    writeSource("p/B", "package p; public class B { A a; }");
+    writeSource("q/C", "package q; public class C {}");
+    build();
+
+    Files.delete(root.resolve("src/p/A.java"));
+    List<String> errors = Lists.newArrayList();
+
+    assertNotEquals(0, newIncrementalJavac("fingerprint").build(createCompiler(errors)));
+    assertFalse(Files.exists(classesDirectory.resolve("p/A.class")));
+    assertFalse(Files.exists(classesDirectory.resolve("p/A$Inner.class")));
+    assertTrue(errors.toString(), errors.toString().contains("B.java"));
+  }
+
+  @Test
+  public void sourcesInThePackageOfANewClassAreRecompiled() throws IOException {
+    writeSource("p/A", "package p; public class A {}");
+    writeSource("q/C", "package q; public class C {}");
+    build();
+
+    writeSource("p/New", "package p; public class New {}");
+
+    assertEquals(sources("p/A", "p/New"), build());
+  }
+
+  @Test
+  public void abiKeyOnlyChangesWithTheAbi() throws IOException {
+    writeSource("p/A", "package p; public class A { public int get() { return 1; } }");
+    IncrementalJavac javac = newIncrementalJavac("fingerprint");
+    assertEquals(0, javac.build(createCompiler(Lists.<String>newArrayList())));
+    String abiKey = javac.getAbiKey().getHash();
+
+    writeSource(
+        "p/A",
+        "package p; public class A { public int get() { return 2; } private void helper() {} }");
+    javac = newIncrementalJavac("fingerprint");
+    assertEquals(0, javac.build(createCompiler(Lists.<String>newArrayList())));
+    assertEquals(abiKey, javac.getAbiKey().getHash());
+
+    writeSource("p/A", "package p; public class A { public int get(int i) { return i; } }");
+    javac = newIncrementalJavac("fingerprint");
+    assertEquals(0, javac.build(createCompiler(Lists.<String>newArrayList())));
+    assertNotEquals(abiKey, javac.getAbiKey().getHash());
+  }
+
+  @Test
+  public void everythingIsRecompiledWhenThereAreAnnotationProcessors() throws IOException {
+    writeSource("p/A", "package p; public class A {}");
+    writeSource("q/C", "package q; public class C {}");
+    Path processors = root.resolve("processors");
+    Path services = processors.resolve("META-INF/services/" + Processor.class.getName());
+    Files.createDirectories(services.getParent());
+    Files.write(services, "p.Processor\n".getBytes(Charsets.UTF_8));
+    ImmutableList<Path> classpath = ImmutableList.of(processors);
+    List<String> errors = Lists.newArrayList();
+
+    IncrementalJavac javac = newIncrementalJavac("fingerprint", classpath);
+    assertEquals(0, javac.build(createCompiler(errors)));
+    assertEquals(sources("p/A", "q/C"), javac.getCompiledSources());
+
+    // Whether there are processors is only looked up again when the fingerprint changes.
+    Files.delete(services);
+    javac = newIncrementalJavac("fingerprint", classpath);
+    assertEquals(0, javac.build(createCompiler(errors)));
+    assertEquals(sources("p/A", "q/C"), javac.getCompiledSources());
+
+    javac = newIncrementalJavac("another fingerprint", classpath);
+    assertEquals(0, javac.build(createCompiler(errors)));
+    javac = newIncrementalJavac("another fingerprint", classpath);
+    assertEquals(0, javac.build(createCompiler(errors)));
+    assertEquals(sources(), javac.getCompiledSources());
+  }
+
+  private void writeSource(String className, String source) throws IOException {
+    Path path = root.resolve("src").resolve(className + ".java");
+    Files.createDirectories(path.getParent());
+    Files.write(path, source.getBytes(Charsets.UTF_8));
+  }
+
+  private static ImmutableSortedSet<Path> sources(String... classNames) {
+    ImmutableSortedSet.Builder<Path> sources = ImmutableSortedSet.naturalOrder();
+    for (String className : classNames) {
+      sources.add(Paths.get("src", className + ".java"));
+    }
+    return sources.build();
+  }
+
+  /**
+   * @return the sources that were compiled.
+   */
+  private ImmutableSortedSet<Path> build() throws IOException {
+    IncrementalJavac javac = newIncrementalJavac("fingerprint");
+    List<String> errors = Lists.newArrayList();
+    assertEquals(errors.toString(), 0, javac.build(createCompiler(errors)));
+    return javac.getCompiledSources();
+  }
+
+  private IncrementalJavac newIncrementalJavac(String fingerprint) throws IOException {
+    return newIncrementalJavac(fingerprint, ImmutableList.<Path>of());
+  }
+
+  private IncrementalJavac newIncrementalJavac(String fingerprint, ImmutableList<Path> classpath)
+      throws IOException {
+    final ImmutableSortedMap.Builder<Path, HashCode> sourceHashes =
+        ImmutableSortedMap.naturalOrder();
+    Files.walkFileTree(root.resolve("src"), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        sourceHashes.put(
+            root.relativize(file),
+            Hashing.sha1().hashBytes(Files.readAllBytes(file)));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return new IncrementalJavac(
+        classesDirectory,
+        stateFile,
+        fingerprint,
+        classpath,
+        sourceHashes.build());
+  }
+
+  private IncrementalJavac.Compiler createCompiler(final List<String> errors) {
+    return new IncrementalJavac.Compiler() {
+      @Override
+      public int compile(
+          ImmutableSortedSet<Path> sources,
+          SetMultimap<Path, String> classesOfSources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        fileManager.setLocation(
+            StandardLocation.CLASS_OUTPUT,
+            ImmutableList.of(classesDirectory.toFile()));
+        fileManager.setLocation(
+            StandardLocation.CLASS_PATH,
+            ImmutableList.of(classesDirectory.toFile()));
+
+        List<JavaFileObject> compilationUnits = Lists.newArrayList();
+        Map<URI, Path> sourcesByUri = Maps.newHashMap();
+        for (Path source : sources) {
+          JavaFileObject compilationUnit =
+              fileManager.getJavaFileObjects(root.resolve(source).toFile()).iterator().next();
+          compilationUnits.add(compilationUnit);
+          sourcesByUri.put(compilationUnit.toUri(), source);
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        boolean isSuccess = compiler.getTask(
+            null,
+            IncrementalJavac.recordClassesOfSources(fileManager, sourcesByUri, classesOfSources),
+            diagnostics,
+            null,
+            null,
+            compilationUnits).call();
+        for (Diagnostic<?> diagnostic : diagnostics.getDiagnostics()) {
+          errors.add(diagnostic.toString());
+        }
+        return isSuccess ? 0 : 1;
+      }
+    };
+  }
+}
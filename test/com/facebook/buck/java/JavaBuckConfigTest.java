@@ -19,6 +19,8 @@ package com.facebook.buck.java;
 
 import static com.facebook.buck.java.JavaCompilerEnvironment.TARGETED_JAVA_VERSION;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.cli.BuckConfig;
@@ -130,6 +132,44 @@ public class JavaBuckConfigTest {
     assertEquals(TARGETED_JAVA_VERSION, compilerEnvironment.getTargetLevel());
   }
 
+  @Test
+  public void incrementalCompilationIsOffUnlessEnabledInConfig()
+      throws IOException, InterruptedException {
+    assertFalse(
+        createWithDefaultFilesystem(new StringReader(""))
+            .getJavaCompilerEnvironment(new ProcessExecutor(new TestConsole()))
+            .isIncrementalCompilationEnabled());
+    assertTrue(
+        createWithDefaultFilesystem(new StringReader("[java]\nincremental_compilation = true"))
+            .getJavaCompilerEnvironment(new ProcessExecutor(new TestConsole()))
+            .isIncrementalCompilationEnabled());
+  }
+
+  @Test
+  public void whenJavacWorkersAreSetThenWorkerOptionsAreReturned() throws IOException {
+    JavaBuckConfig config = createWithDefaultFilesystem(new StringReader(Joiner.on('\n').join(
+        "[tools]",
+        "    javac_workers = 4",
+        "    javac_worker_max_heap = 1g")));
+
+    assertEquals(
+        Optional.of(new JavacWorkerOptions(4, 1, Optional.of("1g"))),
+        config.getJavacWorkerOptions());
+    assertEquals(
+        Optional.absent(),
+        createWithDefaultFilesystem(new StringReader("")).getJavacWorkerOptions());
+  }
+
+  @Test(expected = HumanReadableException.class)
+  public void whenJavacWorkersIsNotAPositiveIntegerThenHumanReadableExceptionIsThrown()
+      throws IOException {
+    JavaBuckConfig config = createWithDefaultFilesystem(new StringReader(Joiner.on('\n').join(
+        "[tools]",
+        "    javac_workers = 0")));
+
+    config.getJavacWorkerOptions();
+  }
+
   private JavaBuckConfig createWithDefaultFilesystem(Reader reader)
       throws IOException {
     ProjectFilesystem filesystem = new ProjectFilesystem(temporaryFolder.getRoot());
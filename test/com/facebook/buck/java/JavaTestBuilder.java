@@ -53,6 +53,7 @@ public class JavaTestBuilder {
     private Optional<Path> proguardConfig = Optional.absent();
     private ImmutableSet.Builder<BuildRule> sourcesUnderTest = ImmutableSet.builder();
     private List<String> vmArgs = Lists.newArrayList();
+    private int shards = 1;
 
     public Builder(BuildTarget target) {
       this.target = target;
@@ -78,6 +79,11 @@ public class JavaTestBuilder {
       return this;
     }
 
+    public Builder setShards(int shards) {
+      this.shards = shards;
+      return this;
+    }
+
     public JavaTest build() {
       return build(new BuildRuleResolver());
     }
@@ -98,7 +104,8 @@ public class JavaTestBuilder {
           JavacOptions.DEFAULTS,
           vmArgs,
           sourcesUnderTest.build(),
-          Optional.<Path>absent());
+          Optional.<Path>absent(),
+          shards);
       resolver.addToIndex(test);
       return test;
     }
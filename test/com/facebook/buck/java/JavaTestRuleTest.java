@@ -21,11 +21,14 @@ import static org.junit.Assert.assertEquals;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.TestSourcePath;
+import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.TargetDevice;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 
 import org.junit.Test;
 
@@ -132,6 +135,32 @@ public class JavaTestRuleTest {
     assertEquals(expected, amended);
   }
 
+  @Test
+  public void shouldSplitTestClassesIntoShards() {
+    JavaTest rule = JavaTestBuilder.createBuilder(BuildTargetFactory.newInstance("//example:test"))
+        .setShards(4)
+        .build();
+    ExecutionContext context = TestExecutionContext.newInstance();
+
+    assertEquals(
+        ImmutableList.of(ImmutableSortedSet.of("A"), ImmutableSortedSet.of("B")),
+        rule.getTestClassShards(context, ImmutableSet.of("A", "B")));
+  }
+
+  @Test
+  public void shouldNotSplitTestClassesWhenDebugging() {
+    JavaTest rule = JavaTestBuilder.createBuilder(BuildTargetFactory.newInstance("//example:test"))
+        .setShards(4)
+        .build();
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setDebugEnabled(true)
+        .build();
+
+    assertEquals(
+        ImmutableList.of(ImmutableSortedSet.of("A", "B")),
+        rule.getTestClassShards(context, ImmutableSet.of("A", "B")));
+  }
+
   private JavaTest newRule(List<String> vmArgs) {
     return JavaTestBuilder.createBuilder(BuildTargetFactory.newInstance("//example:test"))
         .setVmArgs(vmArgs)
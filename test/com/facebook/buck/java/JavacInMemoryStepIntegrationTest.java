@@ -17,6 +17,8 @@
 package com.facebook.buck.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -29,10 +31,18 @@ import com.facebook.buck.rules.TestSourcePath;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import org.junit.Before;
@@ -44,6 +54,11 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.tools.ToolProvider;
 
 public class JavacInMemoryStepIntegrationTest {
   @Rule
@@ -128,6 +143,152 @@ public class JavacInMemoryStepIntegrationTest {
     assertEquals("Example.java", Files.toString(srcsListFile, Charsets.UTF_8).trim());
   }
 
+  @Test
+  public void testCompilesAgainstJarsFromClasspathJarCache()
+      throws IOException, InterruptedException {
+    File depJava = tmp.newFile("Dep.java");
+    Files.write("package com.dep; public class Dep {}", depJava, Charsets.UTF_8);
+    File depClasses = tmp.newFolder("dep");
+    assertEquals(
+        0,
+        ToolProvider.getSystemJavaCompiler().run(
+            null, null, null, "-d", depClasses.getPath(), depJava.getPath()));
+    File depJar = tmp.newFile("dep.jar");
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(depJar)) {
+      zip.putNextEntry(new CustomZipEntry("com/dep/Dep.class"));
+      zip.write(java.nio.file.Files.readAllBytes(
+          depClasses.toPath().resolve("com/dep/Dep.class")));
+      zip.closeEntry();
+    }
+    File exampleJava = tmp.newFile("Example.java");
+    Files.write(
+        "package com.example; public class Example extends com.dep.Dep {}",
+        exampleJava,
+        Charsets.UTF_8);
+    tmp.newFolder("out");
+    ClasspathJarCache jarCache = new ClasspathJarCache(/* maxWeight */ 10000);
+
+    for (int i = 0; i < 2; i++) {
+      JavacInMemoryStep javac = new JavacInMemoryStep(
+          Paths.get("out"),
+          ImmutableSet.<SourcePath>of(new TestSourcePath("Example.java")),
+          /* transitiveClasspathEntries */ ImmutableSet.of(Paths.get("dep.jar")),
+          /* declaredClasspathEntries */ ImmutableSet.of(Paths.get("dep.jar")),
+          JavacOptions.builder().build(),
+          /* pathToOutputAbiFile */ Optional.<Path>absent(),
+          Optional.<BuildTarget>absent(),
+          BuildDependencies.FIRST_ORDER_ONLY,
+          Optional.<JavacInMemoryStep.SuggestBuildRules>absent(),
+          /* pathToSrcsList */ Optional.<Path>absent(),
+          /* pathToOutputJar */ Optional.<Path>absent(),
+          /* pathToClassHashes */ Optional.<Path>absent(),
+          /* incrementalStateDirectory */ Optional.<Path>absent(),
+          jarCache);
+      assertEquals(0, javac.execute(createExecutionContext()));
+    }
+
+    assertTrue(new File(tmp.getRoot(), "out/com/example/Example.class").isFile());
+    assertEquals(1, jarCache.size());
+  }
+
+  @Test
+  public void testCompilesIntoOutputJar() throws IOException, InterruptedException {
+    File exampleJava = tmp.newFile("Example.java");
+    Files.write(
+        "package com.example; public class Example { class Inner {} }",
+        exampleJava,
+        Charsets.UTF_8);
+    File out = tmp.newFolder("out");
+    Files.write("resource", new File(out, "data.txt"), Charsets.UTF_8);
+    tmp.newFolder("lib");
+
+    JavacInMemoryStep javac = new JavacInMemoryStep(
+        Paths.get("out"),
+        ImmutableSet.<SourcePath>of(new TestSourcePath("Example.java")),
+        /* transitiveClasspathEntries */ ImmutableSet.<Path>of(),
+        /* declaredClasspathEntries */ ImmutableSet.<Path>of(),
+        JavacOptions.builder().build(),
+        /* pathToOutputAbiFile */ Optional.<Path>absent(),
+        Optional.<BuildTarget>absent(),
+        BuildDependencies.FIRST_ORDER_ONLY,
+        Optional.<JavacInMemoryStep.SuggestBuildRules>absent(),
+        /* pathToSrcsList */ Optional.<Path>absent(),
+        Optional.of(Paths.get("lib/example.jar")),
+        Optional.of(Paths.get("classes.txt")),
+        /* incrementalStateDirectory */ Optional.<Path>absent());
+    assertEquals(0, javac.execute(createExecutionContext()));
+
+    assertFalse(
+        "Classes should not be written to the output directory.",
+        new File(out, "com").exists());
+    ImmutableSortedMap<String, HashCode> classHashes = AccumulateClassNamesStep.parseClassHashes(
+        Files.readLines(new File(tmp.getRoot(), "classes.txt"), Charsets.UTF_8));
+    assertEquals(
+        ImmutableSet.of("com/example/Example", "com/example/Example$Inner"),
+        classHashes.keySet());
+    try (ZipFile jar = new ZipFile(new File(tmp.getRoot(), "lib/example.jar"))) {
+      for (String entry : ImmutableList.of("com/", "com/example/", "data.txt")) {
+        assertNotNull(entry, jar.getEntry(entry));
+      }
+      assertNotNull(jar.getEntry(JarFile.MANIFEST_NAME));
+      ZipEntry example = jar.getEntry("com/example/Example.class");
+      assertEquals(
+          classHashes.get("com/example/Example"),
+          Hashing.sha1().hashBytes(ByteStreams.toByteArray(jar.getInputStream(example))));
+    }
+  }
+
+  @Test
+  public void testCompilesIncrementallyIntoOutputJar() throws IOException, InterruptedException {
+    File exampleJava = tmp.newFile("Example.java");
+    Files.write("public class Example { int get() { return 1; } }", exampleJava, Charsets.UTF_8);
+    Files.write("public class User { int i = new Example().get(); }",
+        tmp.newFile("User.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("out");
+    tmp.newFolder("lib");
+
+    Sha1HashCode firstAbiKey = null;
+    for (int i = 1; i <= 2; i++) {
+      // Only the body of a method changes, so the ABI key should stay the same.
+      Files.write(
+          String.format("public class Example { int get() { return %d; } }", i),
+          exampleJava,
+          Charsets.UTF_8);
+      JavacInMemoryStep javac = new JavacInMemoryStep(
+          Paths.get("out"),
+          ImmutableSet.<SourcePath>of(
+              new TestSourcePath("Example.java"),
+              new TestSourcePath("User.java")),
+          /* transitiveClasspathEntries */ ImmutableSet.<Path>of(),
+          /* declaredClasspathEntries */ ImmutableSet.<Path>of(),
+          JavacOptions.builder().build(),
+          /* pathToOutputAbiFile */ Optional.<Path>absent(),
+          Optional.<BuildTarget>absent(),
+          BuildDependencies.FIRST_ORDER_ONLY,
+          Optional.<JavacInMemoryStep.SuggestBuildRules>absent(),
+          /* pathToSrcsList */ Optional.<Path>absent(),
+          Optional.of(Paths.get("lib/example.jar")),
+          Optional.of(Paths.get("classes.txt")),
+          Optional.of(Paths.get("incremental")));
+      assertEquals(0, javac.execute(createExecutionContext()));
+      assertNotNull(javac.getAbiKey());
+      if (firstAbiKey == null) {
+        firstAbiKey = javac.getAbiKey();
+      } else {
+        assertEquals(firstAbiKey, javac.getAbiKey());
+      }
+
+      ImmutableSortedMap<String, HashCode> classHashes = AccumulateClassNamesStep.parseClassHashes(
+          Files.readLines(new File(tmp.getRoot(), "classes.txt"), Charsets.UTF_8));
+      assertEquals(ImmutableSet.of("Example", "User"), classHashes.keySet());
+      try (ZipFile jar = new ZipFile(new File(tmp.getRoot(), "lib/example.jar"))) {
+        assertNotNull(jar.getEntry("Example.class"));
+        assertNotNull(jar.getEntry("User.class"));
+      }
+    }
+  }
+
   private JavacInMemoryStep createJavac(boolean withSyntaxError) throws IOException {
     File exampleJava = tmp.newFile("Example.java");
     Files.write(Joiner.on('\n').join(
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+public class JavacWorkerPoolIntegrationTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private JavacWorkerPool pool;
+
+  @After
+  public void closePool() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  /**
+   * @return a script that runs {@link JavacWorkerMain}, once {@code prelude} has run.
+   */
+  private File createWorkerScript(String... prelude) throws IOException {
+    File script = tmp.newFile("javac");
+    Files.write(
+        Joiner.on('\n').join(
+            "#!/bin/sh",
+            Joiner.on('\n').join(prelude),
+            String.format(
+                "exec '%s' -cp '%s' %s \"$@\"",
+                Paths.get(System.getProperty("java.home"), "bin", "java"),
+                getAbsoluteClasspath(),
+                JavacWorkerMain.class.getName())),
+        script,
+        Charsets.UTF_8);
+    assertTrue(script.setExecutable(true));
+    return script;
+  }
+
+  /**
+   * @return the classpath of this test, which may have relative entries, for the worker to run in
+   *     another directory.
+   */
+  private static String getAbsoluteClasspath() {
+    ImmutableList.Builder<String> classpath = ImmutableList.builder();
+    for (String entry : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(
+        System.getProperty("java.class.path"))) {
+      classpath.add(new File(entry).getAbsolutePath());
+    }
+    return Joiner.on(File.pathSeparatorChar).join(classpath.build());
+  }
+
+  private JavacWorkerPool createPool(File script) {
+    return new JavacWorkerPool(
+        script.toPath(),
+        new JavacWorkerOptions(
+            /* maxWorkers */ 1,
+            /* maxRequestsPerWorker */ 2,
+            /* maxHeap */ Optional.of("256m")),
+        tmp.getRoot(),
+        ImmutableMap.copyOf(System.getenv()));
+  }
+
+  private ImmutableList<String> compileArgs(String className, String source) throws IOException {
+    File java = tmp.newFile(className + ".java");
+    Files.write(source, java, Charsets.UTF_8);
+    return ImmutableList.of("-d", tmp.getRoot().getPath(), java.getName());
+  }
+
+  @Test
+  public void compilationsAreSentToTheSameWorker() throws IOException, InterruptedException {
+    pool = createPool(createWorkerScript());
+
+    for (String className : ImmutableList.of("A", "B")) {
+      JavacWorker.Response response = pool.compile(
+          compileArgs(className, "public class " + className + " {}"),
+          ImmutableMap.<String, String>of());
+      assertEquals(response.getStderr(), 0, response.getExitCode());
+      assertTrue(new File(tmp.getRoot(), className + ".class").isFile());
+    }
+
+    assertEquals(1, pool.getNumberOfLiveWorkers());
+  }
+
+  @Test
+  public void compilationErrorsAreReported() throws IOException, InterruptedException {
+    pool = createPool(createWorkerScript());
+
+    JavacWorker.Response response = pool.compile(
+        compileArgs("Broken", "public class Broken {"),
+        ImmutableMap.<String, String>of());
+
+    assertNotEquals(0, response.getExitCode());
+    assertTrue(response.getStderr(), response.getStderr().contains("Broken.java"));
+    assertEquals("A failed compilation should not take down the worker.",
+        1,
+        pool.getNumberOfLiveWorkers());
+  }
+
+  @Test
+  public void compilationIsRetriedWhenAWorkerCrashes() throws IOException, InterruptedException {
+    File crashed = new File(tmp.getRoot(), "crashed");
+    pool = createPool(createWorkerScript(
+        String.format("if [ ! -e '%s' ]; then touch '%s'; exit 1; fi", crashed, crashed)));
+
+    JavacWorker.Response response = pool.compile(
+        compileArgs("A", "public class A {}"),
+        ImmutableMap.<String, String>of());
+
+    assertTrue("The first worker should have crashed.", crashed.exists());
+    assertEquals(response.getStderr(), 0, response.getExitCode());
+    assertEquals(1, pool.getNumberOfLiveWorkers());
+  }
+
+  @Test(expected = JavacWorker.CrashedException.class)
+  public void compilationFailsWhenWorkersKeepCrashing() throws IOException, InterruptedException {
+    pool = createPool(createWorkerScript("exit 1"));
+
+    pool.compile(compileArgs("A", "public class A {}"), ImmutableMap.<String, String>of());
+  }
+}
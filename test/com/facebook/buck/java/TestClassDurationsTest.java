@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.test.TestResultSummary;
+import com.facebook.buck.test.result.type.ResultType;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class TestClassDurationsTest {
+
+  @Test
+  public void testShardBalancesTheLongestClassesFirst() {
+    TestClassDurations durations = TestClassDurations.fromMap(ImmutableMap.of(
+        "A", 70L,
+        "B", 40L,
+        "C", 30L,
+        "D", 20L,
+        "E", 10L));
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSortedSet.of("A", "D"),
+            ImmutableSortedSet.of("B", "C", "E")),
+        durations.shard(ImmutableSet.of("A", "B", "C", "D", "E"), 2));
+  }
+
+  @Test
+  public void testUntimedClassesTakeTheAverageTime() {
+    TestClassDurations durations = TestClassDurations.fromMap(ImmutableMap.of(
+        "A", 10L,
+        "B", 50L));
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSortedSet.of("B"),
+            ImmutableSortedSet.of("New"),
+            ImmutableSortedSet.of("A")),
+        durations.shard(ImmutableSet.of("A", "B", "New"), 3));
+  }
+
+  @Test
+  public void testThereAreNoMoreShardsThanClasses() {
+    assertEquals(
+        ImmutableList.of(ImmutableSortedSet.of("A"), ImmutableSortedSet.of("B")),
+        TestClassDurations.empty().shard(ImmutableSet.of("A", "B"), 8));
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path file = Paths.get("buck-out/gen/__java_test_test_durations__");
+    TestClassDurations.save(
+        filesystem,
+        file,
+        ImmutableList.of(summary("Slow", 100L), summary("Fast", 1L)));
+
+    assertEquals(
+        ImmutableList.of(ImmutableSortedSet.of("Slow"), ImmutableSortedSet.of("Fast", "New")),
+        TestClassDurations.load(filesystem, file)
+            .shard(ImmutableSet.of("Fast", "New", "Slow"), 2));
+  }
+
+  @Test
+  public void testLoadIgnoresOtherVersions() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path file = Paths.get("durations");
+    filesystem.writeLinesToPath(ImmutableList.of("0", "100 Slow"), file);
+
+    assertEquals(
+        ImmutableList.of(ImmutableSortedSet.of("Fast"), ImmutableSortedSet.of("Slow")),
+        TestClassDurations.load(filesystem, file).shard(ImmutableSet.of("Fast", "Slow"), 2));
+  }
+
+  private static TestCaseSummary summary(String testCaseName, long time) {
+    return new TestCaseSummary(
+        testCaseName,
+        ImmutableList.of(new TestResultSummary(
+            testCaseName,
+            "test",
+            ResultType.SUCCESS,
+            time,
+            /* message */ null,
+            /* stacktrace */ null,
+            /* stdOut */ null,
+            /* stdErr */ null)));
+  }
+}
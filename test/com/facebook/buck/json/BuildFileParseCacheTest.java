@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.DefaultFileHashCache;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+public class BuildFileParseCacheTest {
+
+  private static final HashCode PARSER_KEY = Hashing.sha1().hashInt(1);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem projectFilesystem;
+  private File buildFile;
+  private File includeFile;
+  private List<Map<String, Object>> rules;
+
+  @Before
+  public void setUp() throws IOException {
+    projectFilesystem = new ProjectFilesystem(tmp.getRoot());
+    tmp.newFolder("java");
+    buildFile = tmp.newFile("java/BUCK");
+    Files.write("java_library(name = 'lib')", buildFile, Charsets.UTF_8);
+    includeFile = tmp.newFile("DEFS");
+    Files.write("FOO = 1", includeFile, Charsets.UTF_8);
+    tmp.newFile("java/Foo.java");
+
+    rules = ImmutableList.<Map<String, Object>>of(
+        ImmutableMap.<String, Object>of(
+            "type", "java_library",
+            "name", "lib",
+            "buck.base_path", "java"),
+        ImmutableMap.<String, Object>of(
+            "__includes",
+            ImmutableList.of(buildFile.getAbsolutePath(), includeFile.getAbsolutePath())));
+  }
+
+  /**
+   * Each call creates a new cache backed by a new {@link DefaultFileHashCache}, as a new run of
+   * Buck would.
+   */
+  private BuildFileParseCache createCache() {
+    return new BuildFileParseCache(
+        projectFilesystem,
+        new DefaultFileHashCache(projectFilesystem, new TestConsole()));
+  }
+
+  private Optional<List<Map<String, Object>>> getCachedRules(HashCode parserKey) {
+    return createCache().get(parserKey, buildFile.toPath());
+  }
+
+  @Test
+  public void whenNothingChangedThenRulesAreReturnedFromTheCache() {
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+
+    assertEquals(Optional.of(rules), getCachedRules(PARSER_KEY));
+  }
+
+  @Test
+  public void whenBuildFileWasNeverCachedThenCacheMisses() {
+    assertFalse(getCachedRules(PARSER_KEY).isPresent());
+  }
+
+  @Test
+  public void whenParserKeyChangesThenCacheMisses() {
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+
+    assertFalse(getCachedRules(Hashing.sha1().hashInt(2)).isPresent());
+  }
+
+  @Test
+  public void whenIncludedFileChangesThenCacheMisses() throws IOException {
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+    Files.write("FOO = 2", includeFile, Charsets.UTF_8);
+
+    assertFalse(getCachedRules(PARSER_KEY).isPresent());
+  }
+
+  @Test
+  public void whenIncludedFileIsDeletedThenCacheMisses() {
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+    assertTrue(includeFile.delete());
+
+    assertFalse(getCachedRules(PARSER_KEY).isPresent());
+  }
+
+  @Test
+  public void whenFileIsAddedToPackageThenCacheMisses() throws IOException {
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+    tmp.newFile("java/Bar.java");
+
+    assertFalse(getCachedRules(PARSER_KEY).isPresent());
+  }
+
+  @Test
+  public void whenFileIsAddedToSubPackageThenRulesAreReturnedFromTheCache() throws IOException {
+    tmp.newFolder("java", "sub");
+    tmp.newFile("java/sub/BUCK");
+    createCache().put(PARSER_KEY, buildFile.toPath(), rules);
+    tmp.newFile("java/sub/Bar.java");
+
+    assertEquals(Optional.of(rules), getCachedRules(PARSER_KEY));
+  }
+
+  @Test
+  public void whenBuildFileIncludesFileOutsideProjectThenRulesAreNotCached() throws IOException {
+    File outsideFile = File.createTempFile("DEFS", null);
+    outsideFile.deleteOnExit();
+    List<Map<String, Object>> rulesWithOutsideInclude = ImmutableList.<Map<String, Object>>of(
+        ImmutableMap.<String, Object>of(
+            "__includes",
+            ImmutableList.of(buildFile.getAbsolutePath(), outsideFile.getAbsolutePath())));
+    createCache().put(PARSER_KEY, buildFile.toPath(), rulesWithOutsideInclude);
+
+    assertFalse(getCachedRules(PARSER_KEY).isPresent());
+  }
+
+  @Test
+  public void parserKeyDependsOnEnvironment() throws IOException {
+    Path buckPy = tmp.newFile("buck.py").toPath();
+    HashCode key = BuildFileParseCache.createParserKey(
+        buckPy,
+        "python",
+        ImmutableList.of("//DEFS"),
+        ImmutableList.of(),
+        ImmutableMap.of("FOO", "1"));
+    HashCode keyWithOtherEnvironment = BuildFileParseCache.createParserKey(
+        buckPy,
+        "python",
+        ImmutableList.of("//DEFS"),
+        ImmutableList.of(),
+        ImmutableMap.of("FOO", "2"));
+
+    assertNotEquals(key, keyWithOtherEnvironment);
+  }
+}
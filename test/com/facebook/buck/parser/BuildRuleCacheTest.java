@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleFactoryParams;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.FakeRuleKeyBuilderFactory;
+import com.facebook.buck.rules.FakeTargetNodeBuilder;
+import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class BuildRuleCacheTest {
+
+  private static TargetNode<ParserTest.FakeDescription.FakeArg> createTargetNode(String target) {
+    return new FakeTargetNodeBuilder<ParserTest.FakeDescription.FakeArg>().build(
+        new ParserTest.FakeDescription(),
+        new BuildRuleFactoryParams(
+            ImmutableMap.<String, Object>of(),
+            new FakeProjectFilesystem(),
+            new BuildTargetParser(new FakeProjectFilesystem()),
+            BuildTargetFactory.newInstance(target),
+            new FakeRuleKeyBuilderFactory()),
+        ImmutableSet.<BuildTarget>of());
+  }
+
+  private static BuildRule createRule(
+      String target,
+      final ImmutableList<Path> inputs,
+      BuildRule... deps) {
+    return new FakeBuildRule(
+        new BuildRuleType("fake"),
+        BuildTargetFactory.newInstance(target),
+        ImmutableSortedSet.copyOf(deps),
+        ImmutableSet.<BuildTargetPattern>of()) {
+      @Override
+      public Iterable<Path> getInputs() {
+        return inputs;
+      }
+    };
+  }
+
+  @Test
+  public void whenNodeAndDepsAreUnchangedThenRuleIsReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule dep = createRule("//java/com/example:dep", ImmutableList.<Path>of());
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), dep);
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    cache.put(node, rule);
+
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    ruleResolver.addToIndex(dep);
+
+    assertEquals(Optional.of(rule), cache.get(node, ruleResolver));
+  }
+
+  @Test
+  public void whenNodeIsRecreatedThenRuleIsNotReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of());
+    cache.put(createTargetNode("//java/com/example:rule"), rule);
+
+    assertFalse(
+        cache.get(createTargetNode("//java/com/example:rule"), new BuildRuleResolver())
+            .isPresent());
+  }
+
+  @Test
+  public void whenDepIsRecreatedThenRuleIsNotReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule dep = createRule("//java/com/example:dep", ImmutableList.<Path>of());
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), dep);
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    cache.put(node, rule);
+
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    ruleResolver.addToIndex(createRule("//java/com/example:dep", ImmutableList.<Path>of()));
+
+    assertFalse(cache.get(node, ruleResolver).isPresent());
+  }
+
+  @Test
+  public void whenRuleIsReusedThenFlavoredDepsAreAddedToResolver() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule dep = createRule("//java/com/example:dep", ImmutableList.<Path>of());
+    BuildRule flavoredDep = createRule(
+        "//java/com/example:rule#flavor",
+        ImmutableList.<Path>of(),
+        dep);
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), flavoredDep);
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    cache.put(node, rule);
+
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    ruleResolver.addToIndex(dep);
+
+    assertEquals(Optional.of(rule), cache.get(node, ruleResolver));
+    assertSame(flavoredDep, ruleResolver.get(flavoredDep.getBuildTarget()));
+  }
+
+  @Test
+  public void whenInputChangesThenRuleIsNotReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    Path input = Paths.get("java/com/example/Example.java");
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.of(input));
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    cache.put(node, rule);
+
+    cache.invalidate(input);
+
+    assertFalse(cache.get(node, new BuildRuleResolver()).isPresent());
+  }
+
+  @Test
+  public void whenFileInPackageChangesThenRuleIsNotReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of());
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    cache.put(node, rule);
+
+    cache.invalidate(Paths.get("java/com/example/res/values/strings.xml"));
+
+    assertFalse(cache.get(node, new BuildRuleResolver()).isPresent());
+  }
+
+  @Test
+  public void whenFileInOtherPackageChangesThenRuleIsReused() {
+    BuildRuleCache cache = new BuildRuleCache();
+    BuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of());
+    TargetNode<?> node = createTargetNode("//java/com/example:rule");
+    BuildRule otherRule = createRule("//java/com/other:rule", ImmutableList.<Path>of());
+    cache.put(node, rule);
+    cache.put(createTargetNode("//java/com/other:rule"), otherRule);
+
+    cache.invalidate(Paths.get("java/com/other/Other.java"));
+
+    assertEquals(Optional.of(rule), cache.get(node, new BuildRuleResolver()));
+  }
+}
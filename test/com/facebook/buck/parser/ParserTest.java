@@ -35,6 +35,7 @@ import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.FakeBuckEventListener;
 import com.facebook.buck.event.TestEventConfigerator;
 import com.facebook.buck.json.BuildFileParseException;
+import com.facebook.buck.json.BuildFileParseCache;
 import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.json.ProjectBuildFileParserFactory;
@@ -72,6 +73,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -91,6 +93,7 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.util.EnumSet;
@@ -214,7 +217,8 @@ public class ParserTest extends EasyMockSupport {
         knownBuildTargets,
         buildFileParserFactory,
         tempFilePatterns,
-        new FakeRuleKeyBuilderFactory());
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 1);
   }
 
   /**
@@ -242,7 +246,9 @@ public class ParserTest extends EasyMockSupport {
         ImmutableMap.copyOf(System.getenv()),
         BuckTestConstant.PYTHON_INTERPRETER,
         tempFilePatterns,
-        new FakeRuleKeyBuilderFactory());
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 1,
+        /* buildFileParseCache */ Optional.<BuildFileParseCache>absent());
 
     parser.parseRawRulesInternal(ruleObjects);
     RawRulePredicate predicate = alwaysTrue();
@@ -1142,6 +1148,86 @@ public class ParserTest extends EasyMockSupport {
     }
   }
 
+  @Test
+  public void whenBuildFilesAreParsedConcurrentlyThenEachBuildFileIsParsedOnce()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    final ImmutableMap<String, List<Map<String, Object>>> rulesByBasePath = ImmutableMap.of(
+        "a", createRawRules("a", "//b:b", "//c:c"),
+        "b", createRawRules("b", "//c:c", "//d:d"),
+        "c", createRawRules("c", "//d:d"),
+        "d", createRawRules("d"));
+    for (String basePath : rulesByBasePath.keySet()) {
+      tempDir.newFolder(basePath);
+      tempDir.newFile(basePath + "/" + BuckConstant.BUILD_RULES_FILE_NAME);
+    }
+    final ConcurrentHashMultiset<String> parsedBasePaths = ConcurrentHashMultiset.create();
+    ProjectBuildFileParserFactory buildFileParserFactory = new ProjectBuildFileParserFactory() {
+      @Override
+      public ProjectBuildFileParser createParser(
+          Iterable<String> commonIncludes,
+          EnumSet<ProjectBuildFileParser.Option> parseOptions,
+          Console console,
+          ImmutableMap<String, String> environment) {
+        return new ProjectBuildFileParser(
+            filesystem,
+            commonIncludes,
+            "python",
+            buildRuleTypes.getAllDescriptions(),
+            parseOptions,
+            console,
+            environment,
+            Optional.<BuildFileParseCache>absent()) {
+          @Override
+          protected List<Map<String, Object>> getAllRulesInternal(Optional<Path> buildFile) {
+            String basePath = buildFile.get().getParent().getFileName().toString();
+            parsedBasePaths.add(basePath);
+            return rulesByBasePath.get(basePath);
+          }
+        };
+      }
+    };
+    Parser parser = new Parser(
+        repository,
+        new TestConsole(),
+        ImmutableMap.copyOf(System.getenv()),
+        ofInstance(new FilesystemBackedBuildFileTree(filesystem)),
+        new BuildTargetParser(filesystem),
+        emptyBuildTargets(),
+        buildFileParserFactory,
+        tempFilePatterns,
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 4);
+
+    ActionGraph graph = parser.parseBuildFilesForTargets(
+        ImmutableList.of(BuildTargetFactory.newInstance("//a:a")),
+        ImmutableList.<String>of(),
+        BuckEventBusFactory.newInstance());
+
+    for (String basePath : rulesByBasePath.keySet()) {
+      assertNotNull(graph.findBuildRuleByTarget(
+          BuildTargetFactory.newInstance("//" + basePath + ":" + basePath)));
+      assertEquals(
+          "Each build file should be parsed exactly once.",
+          1,
+          parsedBasePaths.count(basePath));
+    }
+  }
+
+  private List<Map<String, Object>> createRawRules(String basePath, String... deps) {
+    return ImmutableList.<Map<String, Object>>of(
+        ImmutableMap.<String, Object>of(
+            "type", "java_library",
+            "name", basePath,
+            "deps", ImmutableList.copyOf(deps),
+            "visibility", ImmutableList.of("PUBLIC"),
+            "buck.base_path", basePath),
+        ImmutableMap.<String, Object>of(
+            "__includes",
+            ImmutableList.of(
+                filesystem.resolve(Paths.get(basePath, BuckConstant.BUILD_RULES_FILE_NAME))
+                    .toString())));
+  }
+
   private Map<BuildTarget, TargetNode<?>> emptyBuildTargets() {
     return Maps.newHashMap();
   }
@@ -1247,7 +1333,8 @@ public class ParserTest extends EasyMockSupport {
             buildRuleTypes.getAllDescriptions(),
             EnumSet.noneOf(ProjectBuildFileParser.Option.class),
             new TestConsole(),
-            ImmutableMap.copyOf(System.getenv()));
+            ImmutableMap.copyOf(System.getenv()),
+            Optional.<BuildFileParseCache>absent());
       }
 
       @Override
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.AndroidResourceDescription;
@@ -61,13 +62,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.easymock.Capture;
+import org.easymock.EasyMock;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -204,6 +208,10 @@ public class CachingBuildEngineTest extends EasyMockSupport {
             capture(ruleKeyForRecorder),
             /* ruleKeyWithoutDepsForRecorder */ anyObject(RuleKey.class)))
         .andReturn(buildInfoRecorder);
+    expect(buildInfoRecorder.fetchArtifactForBuildableIntoProject(
+            anyObject(Path.class),
+            eq(artifactCache)))
+        .andReturn(CacheResult.MISS);
     expect(buildInfoRecorder.fetchArtifactForBuildable(
             anyObject(File.class),
             eq(artifactCache)))
@@ -296,6 +304,11 @@ public class CachingBuildEngineTest extends EasyMockSupport {
       public CacheResult fetch(RuleKey ruleKey, File output) {
         throw new RuntimeException("Artifact cache must not be accessed while building the rule.");
       }
+
+      @Override
+      public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+        throw new RuntimeException("Artifact cache must not be accessed while building the rule.");
+      }
     };
 
     BuckEventBus eventBus = BuckEventBusFactory.newInstance();
@@ -444,6 +457,10 @@ public class CachingBuildEngineTest extends EasyMockSupport {
            /* ruleKeyWithoutDeps */ anyObject(RuleKey.class)))
         .andReturn(buildInfoRecorder);
 
+    expect(buildInfoRecorder.fetchArtifactForBuildableIntoProject(
+            anyObject(Path.class),
+            eq(artifactCache)))
+        .andReturn(CacheResult.MISS);
     expect(buildInfoRecorder.fetchArtifactForBuildable(anyObject(File.class), eq(artifactCache)))
         .andReturn(CacheResult.MISS);
 
@@ -518,6 +535,8 @@ public class CachingBuildEngineTest extends EasyMockSupport {
     Map<String, String> desiredZipEntries = ImmutableMap.of(
         "buck-out/gen/src/com/facebook/orca/orca.jar",
         "Imagine this is the contents of a valid JAR file.");
+    expect(artifactCache.fetchInto(eq(buildRule.getRuleKey()), anyObject(Path.class)))
+        .andReturn(CacheResult.MISS);
     expect(
         artifactCache.fetch(
             eq(buildRule.getRuleKey()),
@@ -554,6 +573,78 @@ public class CachingBuildEngineTest extends EasyMockSupport {
         new File(tmp.getRoot(), "buck-out/gen/src/com/facebook/orca/orca.jar").isFile());
   }
 
+  @Test
+  public void testCacheFirstBuildDoesNotBuildDepsOfRuleFetchedFromCache()
+      throws InterruptedException, ExecutionException, IOException {
+    FakeBuildRule dep = new FakeBuildRule(
+        JavaLibraryDescription.TYPE,
+        BuildTargetFactory.newInstance("//src/com/facebook/orca:dep"));
+    dep.setRuleKey(new RuleKey("19d2558a6bd3a34fb3f95412de9da27ed32fe208"));
+    Step step = new AbstractExecutionStep("exploding step") {
+      @Override
+      public int execute(ExecutionContext context) {
+        throw new UnsupportedOperationException("build step should not be executed");
+      }
+    };
+    BuildRule buildRule = createRule(
+        /* deps */ ImmutableSet.<BuildRule>of(dep),
+        ImmutableList.<Path>of(),
+        ImmutableList.of(step),
+        /* pathToOutputFile */ null);
+
+    ProjectFilesystem projectFilesystem = createMock(ProjectFilesystem.class);
+    expect(projectFilesystem
+        .readFileIfItExists(
+            Paths.get("buck-out/bin/src/com/facebook/orca/.orca/metadata/RULE_KEY")))
+        .andReturn(Optional.<String>absent());
+    expect(projectFilesystem.getRootPath()).andReturn(tmp.getRoot().toPath());
+
+    // The output of the requested rule is fetched in a single batch.
+    ArtifactCache artifactCache = createMock(ArtifactCache.class);
+    final RuleKey ruleKey = buildRule.getRuleKey();
+    final CaptureThatWritesAZipFile zipFile = new CaptureThatWritesAZipFile(ImmutableMap.of(
+        "buck-out/gen/src/com/facebook/orca/orca.jar",
+        "Imagine this is the contents of a valid JAR file."));
+    expect(artifactCache.fetchInto(eq(ruleKey), anyObject(Path.class)))
+        .andReturn(CacheResult.MISS);
+    expect(artifactCache.multiFetch(EasyMock.<ImmutableMap<RuleKey, File>>anyObject()))
+        .andAnswer(new IAnswer<ImmutableMap<RuleKey, CacheResult>>() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public ImmutableMap<RuleKey, CacheResult> answer() {
+            Map<RuleKey, File> files = (Map<RuleKey, File>) EasyMock.getCurrentArguments()[0];
+            zipFile.setValue(files.get(ruleKey));
+            return ImmutableMap.of(ruleKey, CacheResult.DIR_HIT);
+          }
+        });
+
+    BuckEventBus buckEventBus = BuckEventBusFactory.newInstance();
+    BuildContext buildContext = BuildContext.builder()
+        .setActionGraph(RuleMap.createGraphFromSingleRule(buildRule))
+        .setStepRunner(createSameThreadStepRunner())
+        .setProjectFilesystem(projectFilesystem)
+        .setArtifactCache(artifactCache)
+        .setJavaPackageFinder(createMock(JavaPackageFinder.class))
+        .setEventBus(buckEventBus)
+        .setCacheFirst(true)
+        .build();
+
+    replayAll();
+    CachingBuildEngine cachingBuildEngine = new CachingBuildEngine();
+    List<BuildRuleSuccess> results = cachingBuildEngine.buildAll(
+        buildContext,
+        ImmutableList.of(buildRule)).get();
+    verifyAll();
+
+    assertEquals(
+        BuildRuleSuccess.Type.FETCHED_FROM_CACHE,
+        Iterables.getOnlyElement(results).getType());
+    assertNull(
+        "The dep should not be built when the requested rule is fetched from the cache.",
+        cachingBuildEngine.getBuildRuleResult(dep.getBuildTarget()));
+    assertTrue(new File(tmp.getRoot(), "buck-out/gen/src/com/facebook/orca/orca.jar").isFile());
+  }
+
 
   // TODO(mbolin): Test that when the success files match, nothing is built and nothing is written
   // back to the cache.
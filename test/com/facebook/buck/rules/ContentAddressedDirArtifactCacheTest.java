@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.MorePosixFilePermissions;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.Unzip;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+public class ContentAddressedDirArtifactCacheTest {
+
+  private static final RuleKey RULE_KEY_X = new RuleKey("0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a");
+  private static final RuleKey RULE_KEY_Y = new RuleKey("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+  private static final String JAR = "buck-out/gen/java/com/example/lib.jar";
+  private static final String RULE_KEY_METADATA =
+      "buck-out/bin/java/com/example/.lib/metadata/RULE_KEY";
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private Path projectRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = tmpDir.newFolder("cache");
+    projectRoot = tmpDir.newFolder("project").toPath();
+  }
+
+  private File createZip(String name, Map<String, String> entries) throws IOException {
+    File zipFile = new File(tmpDir.getRoot(), name);
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(zipFile)) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        zip.putNextEntry(new CustomZipEntry(entry.getKey()));
+        zip.write(entry.getValue().getBytes(Charsets.UTF_8));
+        zip.closeEntry();
+      }
+    }
+    return zipFile;
+  }
+
+  private String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), Charsets.UTF_8);
+  }
+
+  @Test
+  public void identicalOutputsOfDifferentRulesAreStoredOnce() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+
+    cache.store(RULE_KEY_X, createZip("x.zip", ImmutableMap.of(JAR, "jar", "a.txt", "a")));
+    cache.store(RULE_KEY_Y, createZip("y.zip", ImmutableMap.of(JAR, "jar", "b.txt", "b")));
+
+    assertEquals(3, cache.getBlobs().size());
+    assertEquals(
+        ImmutableSet.of(RULE_KEY_X, RULE_KEY_Y),
+        cache.containsAll(ImmutableSet.of(RULE_KEY_X, RULE_KEY_Y)));
+  }
+
+  @Test
+  public void fetchIntoCopiesOutputs() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    cache.store(
+        RULE_KEY_X,
+        createZip("x.zip", ImmutableMap.of(JAR, "jar", RULE_KEY_METADATA, RULE_KEY_X.toString())));
+
+    assertEquals(CacheResult.DIR_HIT, cache.fetchInto(RULE_KEY_X, projectRoot));
+
+    Path jar = projectRoot.resolve(JAR);
+    Path metadata = projectRoot.resolve(RULE_KEY_METADATA);
+    assertEquals("jar", read(jar));
+    assertEquals(RULE_KEY_X.toString(), read(metadata));
+    assertEquals(1, Files.getAttribute(jar, "unix:nlink"));
+    assertEquals(1, Files.getAttribute(metadata, "unix:nlink"));
+    assertEquals(CacheResult.MISS, cache.fetchInto(RULE_KEY_Y, projectRoot));
+
+    // Writing to an output in place does not change what is in the cache.
+    Files.write(jar, "changed".getBytes(Charsets.UTF_8));
+    assertEquals(CacheResult.DIR_HIT, cache.fetchInto(RULE_KEY_X, projectRoot));
+    assertEquals("jar", read(jar));
+  }
+
+  @Test
+  public void fetchIntoRestoresTheExecutableBit() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    File zipFile = new File(tmpDir.getRoot(), "x.zip");
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(zipFile)) {
+      CustomZipEntry zipEntry = new CustomZipEntry("buck-out/gen/run.sh");
+      zipEntry.setExternalAttributes(MorePosixFilePermissions.toMode(
+          EnumSet.of(PosixFilePermission.OWNER_EXECUTE)) << 16);
+      zip.putNextEntry(zipEntry);
+      zip.write("#!/bin/sh".getBytes(Charsets.UTF_8));
+      zip.closeEntry();
+      zip.putNextEntry(new CustomZipEntry(JAR));
+      zip.write("jar".getBytes(Charsets.UTF_8));
+      zip.closeEntry();
+    }
+    cache.store(RULE_KEY_X, zipFile);
+
+    assertEquals(CacheResult.DIR_HIT, cache.fetchInto(RULE_KEY_X, projectRoot));
+
+    assertTrue(Files.isExecutable(projectRoot.resolve("buck-out/gen/run.sh")));
+    assertFalse(Files.isExecutable(projectRoot.resolve(JAR)));
+    assertTrue(Files.isWritable(projectRoot.resolve(JAR)));
+  }
+
+  @Test
+  public void fetchWritesZipOfStoredOutputs() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    cache.store(RULE_KEY_X, createZip("x.zip", ImmutableMap.of(JAR, "jar")));
+
+    File fetchedZip = new File(tmpDir.getRoot(), "fetched.zip");
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(RULE_KEY_X, fetchedZip));
+    Unzip.extractZipFile(
+        fetchedZip.getAbsolutePath(),
+        projectRoot.toString(),
+        /* overwriteExistingFiles */ true);
+
+    assertEquals("jar", read(projectRoot.resolve(JAR)));
+  }
+
+  @Test
+  public void buildFinishedEvictsLeastRecentlyAccessedBlobsPastHighWaterMark()
+      throws IOException {
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    final List<ArtifactCacheEvictionEvent> events = Lists.newArrayList();
+    eventBus.register(new Object() {
+      @Subscribe
+      public void evicted(ArtifactCacheEvictionEvent event) {
+        events.add(event);
+      }
+    });
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(4L),
+        /* highWaterMarkBytes */ Optional.of(4L),
+        eventBus);
+    cache.store(RULE_KEY_X, createZip("x.zip", ImmutableMap.of(JAR, "jar", "a.txt", "a")));
+    cache.store(RULE_KEY_Y, createZip("y.zip", ImmutableMap.of(JAR, "jar", "b.txt", "b")));
+
+    // The blobs of both rules take 5 bytes, so the blob of a.txt, which was accessed least
+    // recently, is evicted, along with the manifest of the rule that lists it.
+    cache.buildFinished(BuildEvent.finished(ImmutableList.<BuildTarget>of(), /* exitCode */ 0));
+    cache.close();
+
+    assertEquals(2, cache.getBlobs().size());
+    assertEquals(
+        ImmutableSet.of(RULE_KEY_Y),
+        cache.containsAll(ImmutableSet.of(RULE_KEY_X, RULE_KEY_Y)));
+    assertEquals(1, Iterables.getOnlyElement(events).getBytesEvicted());
+  }
+
+  @Test
+  public void evictionDeletesOnlyTheManifestsRecordedAsListingEvictedBlobs() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(4L));
+    cache.store(RULE_KEY_X, createZip("x.zip", ImmutableMap.of(JAR, "jar", "a.txt", "a")));
+    cache.store(RULE_KEY_Y, createZip("y.zip", ImmutableMap.of(JAR, "jar", "b.txt", "b")));
+    Path manifests = cacheDir.toPath().resolve(ContentAddressedDirArtifactCache.MANIFESTS_DIR);
+    // The manifests directory is not listed, so a manifest that the index does not know about is
+    // left alone, and a malformed one does not stop the eviction.
+    RuleKey unrecorded = new RuleKey("0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c");
+    Files.copy(manifests.resolve(RULE_KEY_X.toString()), manifests.resolve(unrecorded.toString()));
+    Files.write(manifests.resolve(RULE_KEY_X.toString()), "malformed".getBytes(Charsets.UTF_8));
+
+    assertEquals(1, cache.evictLeastRecentlyAccessed());
+
+    assertEquals(
+        ImmutableSet.of(RULE_KEY_Y, unrecorded),
+        cache.containsAll(ImmutableSet.of(RULE_KEY_X, RULE_KEY_Y, unrecorded)));
+    // It is deleted when it is next read instead.
+    assertEquals(CacheResult.MISS, cache.fetchInto(unrecorded, projectRoot));
+    assertTrue(cache.containsAll(ImmutableSet.of(unrecorded)).isEmpty());
+    cache.close();
+  }
+
+  @Test
+  public void manifestWithEvictedBlobIsAMiss() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    cache.store(RULE_KEY_X, createZip("x.zip", ImmutableMap.of(JAR, "jar")));
+    for (Path blob : cache.getBlobs()) {
+      Files.delete(blob);
+    }
+
+    assertEquals(CacheResult.MISS, cache.fetchInto(RULE_KEY_X, projectRoot));
+    assertFalse(Files.exists(projectRoot.resolve(JAR)));
+    assertTrue(cache.containsAll(ImmutableSet.of(RULE_KEY_X)).isEmpty());
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+public class DirArtifactCacheIndexTest {
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = tmpDir.newFolder().toPath();
+  }
+
+  @Test
+  public void journalIsReplayedWhenLoaded() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir);
+    index.stored("a", 10, 1000);
+    index.stored("b", 20, 2000);
+    index.stored("c", 30, 3000);
+    index.accessed("a", 4000);
+    index.evicted("b");
+    index.close();
+    // A line cut short by a process killed while appending it is ignored.
+    Files.write(
+        cacheDir.resolve(DirArtifactCacheIndex.INDEX_FILE_NAME),
+        "S d 4".getBytes(Charsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    index = DirArtifactCacheIndex.load(cacheDir);
+
+    assertEquals(2, index.size());
+    assertEquals(40, index.getTotalSizeBytes());
+    assertEquals(ImmutableList.of("c", "a"), index.getEntriesToEvict(0));
+    assertEquals(ImmutableList.of("c"), index.getEntriesToEvict(10));
+  }
+
+  @Test
+  public void rebuildReconcilesIndexWithCacheDirectory() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir);
+    Files.write(cacheDir.resolve("a"), "aa".getBytes(Charsets.UTF_8));
+    index.stored("a", 2, Long.MAX_VALUE);
+    index.stored("deleted", 5, 0);
+    Path unindexed = cacheDir.resolve("unindexed");
+    Files.write(unindexed, "u".getBytes(Charsets.UTF_8));
+    Files.setAttribute(unindexed, "lastAccessTime", FileTime.fromMillis(0));
+    Files.write(cacheDir.resolve("partial.tmp"), "t".getBytes(Charsets.UTF_8));
+
+    index.rebuild();
+
+    assertEquals(3, index.getTotalSizeBytes());
+    assertEquals(ImmutableList.of("unindexed", "a"), index.getEntriesToEvict(0));
+    assertFalse(index.needsCompaction());
+    index.close();
+    assertTrue(
+        DirArtifactCacheIndex.isIndexFile(DirArtifactCacheIndex.INDEX_FILE_NAME + ".tmp"));
+    assertEquals(
+        2,
+        Files.readAllLines(
+            cacheDir.resolve(DirArtifactCacheIndex.INDEX_FILE_NAME),
+            Charsets.UTF_8).size());
+  }
+
+  @Test
+  public void linesAppendedAfterAnotherIndexRebuildsAreKept() throws IOException {
+    Files.write(cacheDir.resolve("a"), "a".getBytes(Charsets.UTF_8));
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir);
+    DirArtifactCacheIndex otherIndex = DirArtifactCacheIndex.load(cacheDir);
+    index.stored("b", 2, 2000);
+
+    // Another process compacts the journal, and this one keeps appending to it.
+    otherIndex.rebuild();
+    index.stored("c", 3, 3000);
+    index.close();
+    otherIndex.close();
+
+    assertEquals(4, DirArtifactCacheIndex.load(cacheDir).getTotalSizeBytes());
+  }
+
+  @Test
+  public void referrersAreKeptByReplayAndRebuild() throws IOException {
+    Files.write(cacheDir.resolve("a"), "a".getBytes(Charsets.UTF_8));
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir);
+    index.referencedBy(ImmutableList.of("a", "unknown"), "m1");
+    index.referencedBy(ImmutableList.of("a"), "m2");
+    assertEquals(ImmutableSet.of("m1", "m2"), index.getReferrers("a"));
+    assertEquals(ImmutableSet.of(), index.getReferrers("unknown"));
+    index.close();
+
+    index = DirArtifactCacheIndex.load(cacheDir);
+    assertEquals(ImmutableSet.of("m1", "m2"), index.getReferrers("a"));
+    index.rebuild();
+    assertEquals(ImmutableSet.of("m1", "m2"), index.getReferrers("a"));
+    assertFalse(index.needsCompaction());
+
+    index.evicted("a");
+    assertEquals(ImmutableSet.of(), index.getReferrers("a"));
+    index.close();
+  }
+
+  @Test
+  public void rebuildFindsNestedEntries() throws IOException {
+    Files.createDirectories(cacheDir.resolve("ab"));
+    Files.write(cacheDir.resolve("ab/abc"), "abc".getBytes(Charsets.UTF_8));
+    Files.write(cacheDir.resolve("blob.tmp"), "t".getBytes(Charsets.UTF_8));
+
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(cacheDir, /* entryDepth */ 2);
+
+    assertEquals(ImmutableList.of("ab/abc"), index.getEntriesToEvict(0));
+    index.close();
+  }
+}
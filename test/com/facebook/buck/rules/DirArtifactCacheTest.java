@@ -20,6 +20,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.NullFileHashCache;
@@ -27,7 +29,11 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.io.Files;
 
 import org.junit.Rule;
@@ -38,6 +44,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.List;
 
 public class DirArtifactCacheTest {
   @Rule
@@ -99,6 +106,39 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleX, new BuildRuleForTest(fileX));
   }
 
+  @Test
+  public void testCacheContainsAllAndMultiFetch() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+    File fileY = tmpDir.newFile("y");
+
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+
+    Files.write("x", fileX, Charsets.UTF_8);
+    Files.write("y", fileY, Charsets.UTF_8);
+    RuleKey ruleKeyX = RuleKey.builder(new BuildRuleForTest(fileX), fileHashCache)
+        .build()
+        .getTotalRuleKey();
+    RuleKey ruleKeyY = RuleKey.builder(new BuildRuleForTest(fileY), fileHashCache)
+        .build()
+        .getTotalRuleKey();
+
+    dirArtifactCache.store(ruleKeyX, fileX);
+
+    assertEquals(
+        ImmutableSet.of(ruleKeyX),
+        dirArtifactCache.containsAll(ImmutableSet.of(ruleKeyX, ruleKeyY)));
+
+    assertTrue(fileX.delete());
+    assertEquals(
+        ImmutableMap.of(ruleKeyX, CacheResult.DIR_HIT, ruleKeyY, CacheResult.MISS),
+        dirArtifactCache.multiFetch(ImmutableMap.of(ruleKeyX, fileX, ruleKeyY, fileY)));
+    assertEquals("x", Files.toString(fileX, Charsets.UTF_8));
+  }
+
   @Test
   public void testCacheStoreOverwrite() throws IOException {
     File cacheDir = tmpDir.newFolder();
@@ -167,11 +207,11 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleY, new BuildRuleForTest(fileY));
     assertEquals(inputRuleZ, new BuildRuleForTest(fileZ));
 
-    assertEquals(3, cacheDir.listFiles().length);
+    assertEquals(3, listEntries(cacheDir).size());
 
     dirArtifactCache.deleteOldFiles();
 
-    assertEquals(0, cacheDir.listFiles().length);
+    assertEquals(0, listEntries(cacheDir).size());
   }
 
   @Test
@@ -293,11 +333,111 @@ public class DirArtifactCacheTest {
     java.nio.file.Files.setAttribute(fileY.toPath(), "lastAccessTime", FileTime.fromMillis(1000));
     java.nio.file.Files.setAttribute(fileZ.toPath(), "lastAccessTime", FileTime.fromMillis(2000));
 
-    assertEquals(4, cacheDir.listFiles().length);
+    assertEquals(4, listEntries(cacheDir).size());
 
     dirArtifactCache.deleteOldFiles();
 
-    assertEquals(ImmutableSet.of(fileZ, fileW), ImmutableSet.copyOf(cacheDir.listFiles()));
+    assertEquals(ImmutableSet.of(fileZ, fileW), listEntries(cacheDir));
+  }
+
+  @Test
+  public void testBuildFinishedEvictsLeastRecentlyAccessedPastHighWaterMark() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileW = tmpDir.newFile("w");
+    File fileX = tmpDir.newFile("x");
+    File fileY = tmpDir.newFile("y");
+    File fileZ = tmpDir.newFile("z");
+    Files.write("w", fileW, Charsets.UTF_8);
+    Files.write("x", fileX, Charsets.UTF_8);
+    Files.write("y", fileY, Charsets.UTF_8);
+    Files.write("z", fileZ, Charsets.UTF_8);
+    RuleKey ruleKeyW = new RuleKey("0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a");
+    RuleKey ruleKeyX = new RuleKey("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+    RuleKey ruleKeyY = new RuleKey("0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c0c");
+    RuleKey ruleKeyZ = new RuleKey("0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d0d");
+    BuildEvent.Finished finished =
+        BuildEvent.finished(ImmutableList.<BuildTarget>of(), /* exitCode */ 0);
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    EvictionListener evictionListener = new EvictionListener();
+    eventBus.register(evictionListener);
+
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(2L),
+        /* highWaterMarkBytes */ Optional.of(3L),
+        eventBus);
+    dirArtifactCache.store(ruleKeyX, fileX);
+    dirArtifactCache.store(ruleKeyY, fileY);
+    dirArtifactCache.store(ruleKeyZ, fileZ);
+    assertEquals(CacheResult.DIR_HIT, dirArtifactCache.fetch(ruleKeyX, fileX));
+
+    // At the high-water mark, nothing is evicted.
+    dirArtifactCache.buildFinished(finished);
+    dirArtifactCache.close();
+    assertEquals(3, listEntries(cacheDir).size());
+    assertTrue(evictionListener.events.isEmpty());
+
+    // The index is reloaded from disk, so the fetch of X is still its most recent access.
+    dirArtifactCache = new DirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(2L),
+        /* highWaterMarkBytes */ Optional.of(3L),
+        eventBus);
+    dirArtifactCache.store(ruleKeyW, fileW);
+    dirArtifactCache.buildFinished(finished);
+    dirArtifactCache.close();
+
+    assertEquals(
+        ImmutableSet.of(
+            new File(cacheDir, ruleKeyX.toString()),
+            new File(cacheDir, ruleKeyW.toString())),
+        listEntries(cacheDir));
+    ArtifactCacheEvictionEvent event = Iterables.getOnlyElement(evictionListener.events);
+    assertEquals(2, event.getBytesEvicted());
+    assertEquals(2, event.getBytesRemaining());
+  }
+
+  @Test
+  public void testEvictionDoesNotRescanCacheDirectory() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+    Files.write("x", fileX, Charsets.UTF_8);
+    RuleKey ruleKeyX = new RuleKey("0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a0a");
+
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(0L));
+    dirArtifactCache.store(ruleKeyX, fileX);
+    File unindexedEntry = new File(cacheDir, "unindexed");
+    Files.write("y", unindexedEntry, Charsets.UTF_8);
+
+    assertEquals(1L, dirArtifactCache.evictLeastRecentlyAccessed());
+    assertEquals(ImmutableSet.of(unindexedEntry), listEntries(cacheDir));
+  }
+
+  private static class EvictionListener {
+    private final List<ArtifactCacheEvictionEvent> events = Lists.newArrayList();
+
+    @Subscribe
+    public void evicted(ArtifactCacheEvictionEvent event) {
+      events.add(event);
+    }
+  }
+
+  /**
+   * @return the files in {@code cacheDir}, other than those of its {@link DirArtifactCacheIndex}.
+   */
+  private static ImmutableSet<File> listEntries(File cacheDir) {
+    ImmutableSet.Builder<File> entries = ImmutableSet.builder();
+    for (File file : cacheDir.listFiles()) {
+      if (!DirArtifactCacheIndex.isIndexFile(file.getName())) {
+        entries.add(file);
+      }
+    }
+    return entries.build();
   }
 
   private static class BuildRuleForTest extends FakeBuildRule {
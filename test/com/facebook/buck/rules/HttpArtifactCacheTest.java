@@ -16,31 +16,50 @@
 
 package com.facebook.buck.rules;
 
+import static com.google.common.io.ByteStreams.nullOutputStream;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.util.ProjectFilesystem;
-import static com.google.common.io.ByteStreams.nullOutputStream;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-
-import static org.easymock.EasyMock.createMock;
-import static org.easymock.EasyMock.createNiceMock;
-import static org.easymock.EasyMock.expect;
-import static org.easymock.EasyMock.replay;
-import static org.easymock.EasyMock.verify;
-import static org.junit.Assert.assertEquals;
-import org.junit.Before;
-import org.junit.Test;
+import java.util.Collections;
+import java.util.List;
 
 public class HttpArtifactCacheTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private HttpArtifactCache cache;
   private HttpURLConnection connection;
   private ProjectFilesystem projectFilesystem;
@@ -55,7 +74,7 @@ public class HttpArtifactCacheTest {
   }
 
   @Test
-  public void testFetchNotFound() throws IOException {
+  public void testFetchNotFound() throws IOException, InterruptedException {
     expect(connection.getResponseCode()).andReturn(HttpURLConnection.HTTP_NOT_FOUND);
     replay(connection);
     assertEquals(cache.fetch(new RuleKey("00000000000000000000000000000000"),
@@ -65,7 +84,7 @@ public class HttpArtifactCacheTest {
   }
 
   @Test
-  public void testFetchOK() throws IOException {
+  public void testFetchOK() throws IOException, InterruptedException {
     expect(connection.getResponseCode()).andReturn(HttpURLConnection.HTTP_OK);
     InputStream is = new ByteArrayInputStream("test".getBytes());
     expect(connection.getInputStream()).andReturn(is);
@@ -88,22 +107,136 @@ public class HttpArtifactCacheTest {
     connection.setRequestMethod("POST");
     expect(connection.getOutputStream()).andReturn(nullOutputStream());
     File file = File.createTempFile("000", "");
-    InputStream is = new ByteArrayInputStream("test".getBytes());
-    expect(projectFilesystem.newFileInputStream(file.toPath())).andReturn(is);
     expect(connection.getResponseCode()).andReturn(HttpURLConnection.HTTP_ACCEPTED);
     replay(connection);
     replay(projectFilesystem);
     cache.store(new RuleKey("00000000000000000000000000000000"), file);
+    // Artifacts are uploaded in the background until the cache is closed.
+    cache.close();
     verify(connection);
     verify(projectFilesystem);
   }
 
+  /**
+   * Starts an in-process HTTP server that stands in for the cache server.
+   */
+  private static HttpServer startServer(String path, HttpHandler handler) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(path, handler);
+    server.start();
+    return server;
+  }
+
+  /**
+   * Starts a server that serves {@code "artifact"} as the artifact of {@code ruleKey}.
+   */
+  private static HttpServer startArtifactServer(final RuleKey ruleKey) throws IOException {
+    return startServer("/artifact/key/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] artifact = "artifact".getBytes(StandardCharsets.UTF_8);
+        if (!exchange.getRequestURI().getPath().endsWith(ruleKey.toString())) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+        } else if (exchange.getRequestMethod().equals("HEAD")) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        } else {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, artifact.length);
+          exchange.getResponseBody().write(artifact);
+        }
+        exchange.close();
+      }
+    });
+  }
+
+  private HttpArtifactCache createCacheForServer(HttpServer server) {
+    return new HttpArtifactCache(
+        "localhost",
+        server.getAddress().getPort(),
+        10,
+        true,
+        2,
+        new ProjectFilesystem(tmp.getRoot()),
+        buckEventBus);
+  }
+
+  @Test
+  public void testFetchFromServerWritesArtifactToFile() throws IOException, InterruptedException {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    HttpServer server = startArtifactServer(ruleKey);
+    try {
+      HttpArtifactCache httpCache = createCacheForServer(server);
+      File file = new File(tmp.getRoot(), "fetched/artifact.zip");
+
+      assertEquals(CacheResult.HTTP_HIT, httpCache.fetch(ruleKey, file));
+      assertEquals("artifact", Files.toString(file, StandardCharsets.UTF_8));
+      assertEquals(
+          CacheResult.MISS,
+          httpCache.fetch(new RuleKey("11111111111111111111111111111111"), file));
+      httpCache.close();
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testContainsAllAndMultiFetchFromServer() throws IOException, InterruptedException {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey missingRuleKey = new RuleKey("11111111111111111111111111111111");
+    HttpServer server = startArtifactServer(ruleKey);
+    try {
+      HttpArtifactCache httpCache = createCacheForServer(server);
+      File file = new File(tmp.getRoot(), "artifact.zip");
+      File missingFile = new File(tmp.getRoot(), "missing.zip");
+
+      assertEquals(
+          ImmutableSet.of(ruleKey),
+          httpCache.containsAll(ImmutableSet.of(ruleKey, missingRuleKey)));
+      assertEquals(
+          ImmutableMap.of(ruleKey, CacheResult.HTTP_HIT, missingRuleKey, CacheResult.MISS),
+          httpCache.multiFetch(ImmutableMap.of(ruleKey, file, missingRuleKey, missingFile)));
+      assertEquals("artifact", Files.toString(file, StandardCharsets.UTF_8));
+      httpCache.close();
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testStoreToServerIsCompleteOnClose() throws IOException {
+    final List<String> requests = Collections.synchronizedList(Lists.<String>newArrayList());
+    HttpServer server = startServer("/artifact/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.add(
+            new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_ACCEPTED, -1);
+        exchange.close();
+      }
+    });
+    try {
+      HttpArtifactCache httpCache = createCacheForServer(server);
+      File file = tmp.newFile("artifact.zip");
+      Files.write("artifact", file, StandardCharsets.UTF_8);
+
+      httpCache.store(new RuleKey("00000000000000000000000000000000"), file);
+      // Callers delete the artifact as soon as it has been stored.
+      assertTrue(file.delete());
+      httpCache.close();
+
+      assertEquals(1, requests.size());
+      assertTrue(requests.get(0).contains("00000000000000000000000000000000"));
+      assertTrue(requests.get(0).contains("\r\n\r\nartifact\r\n"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
   class FakeHttpArtifactCache extends HttpArtifactCache {
     private HttpURLConnection connectionMock;
 
     FakeHttpArtifactCache(HttpURLConnection connectionMock, ProjectFilesystem projectFilesystem,
         BuckEventBus buckEventBus) {
-      super("localhost", 5551, 1, true, projectFilesystem, buckEventBus);
+      super("localhost", 5551, 1, true, 1, projectFilesystem, buckEventBus);
       this.connectionMock = connectionMock;
     }
 
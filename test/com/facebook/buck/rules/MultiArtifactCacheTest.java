@@ -19,11 +19,15 @@ package com.facebook.buck.rules;
 import static org.junit.Assert.assertEquals;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -44,6 +48,28 @@ public class MultiArtifactCacheTest {
       return ruleKey.equals(storeKey) ? CacheResult.LOCAL_KEY_UNCHANGED_HIT : CacheResult.MISS;
     }
 
+    @Override
+    public CacheResult fetchInto(RuleKey ruleKey, Path projectRoot) {
+      return fetch(ruleKey, dummyFile);
+    }
+
+    @Override
+    public ImmutableSet<RuleKey> containsAll(ImmutableSet<RuleKey> ruleKeys) {
+      return ruleKeys.contains(storeKey) ? ImmutableSet.of(storeKey) : ImmutableSet.<RuleKey>of();
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(
+        ImmutableMap<RuleKey, File> ruleKeysToOutputs) {
+      ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+      for (Map.Entry<RuleKey, File> ruleKeyAndOutput : ruleKeysToOutputs.entrySet()) {
+        results.put(
+            ruleKeyAndOutput.getKey(),
+            fetch(ruleKeyAndOutput.getKey(), ruleKeyAndOutput.getValue()));
+      }
+      return results.build();
+    }
+
     @Override
     public void store(RuleKey ruleKey, File output) {
       storeKey = ruleKey;
@@ -106,4 +132,47 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void testCacheContainsAll() throws InterruptedException, IOException {
+    RuleKey otherRuleKey = new RuleKey("0000000000000000000000000000000000000000");
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+        dummyArtifactCache1,
+        dummyArtifactCache2));
+
+    dummyArtifactCache1.store(dummyRuleKey, dummyFile);
+    dummyArtifactCache2.store(otherRuleKey, dummyFile);
+
+    assertEquals(
+        ImmutableSet.of(dummyRuleKey, otherRuleKey),
+        multiArtifactCache.containsAll(ImmutableSet.of(dummyRuleKey, otherRuleKey)));
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void testCacheMultiFetch() throws InterruptedException, IOException {
+    RuleKey missingRuleKey = new RuleKey("0000000000000000000000000000000000000000");
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+        dummyArtifactCache1,
+        dummyArtifactCache2));
+
+    dummyArtifactCache2.store(dummyRuleKey, dummyFile);
+
+    assertEquals(
+        ImmutableMap.of(
+            dummyRuleKey, CacheResult.LOCAL_KEY_UNCHANGED_HIT,
+            missingRuleKey, CacheResult.MISS),
+        multiArtifactCache.multiFetch(
+            ImmutableMap.of(dummyRuleKey, dummyFile, missingRuleKey, dummyFile)));
+    assertEquals("MultiArtifactCache.multiFetch() should store hits to earlier ArtifactCaches",
+        dummyRuleKey,
+        dummyArtifactCache1.storeKey);
+
+    multiArtifactCache.close();
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.util.FileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+public class RuleKeyCalculatorTest {
+
+  /**
+   * Records the paths that were hashed.
+   */
+  private static class RecordingFileHashCache implements FileHashCache {
+    private final Set<Path> hashedPaths = Sets.newConcurrentHashSet();
+
+    @Override
+    public boolean contains(Path path) {
+      return hashedPaths.contains(path);
+    }
+
+    @Override
+    public HashCode get(Path path) {
+      hashedPaths.add(path);
+      return HashCode.fromInt(path.hashCode());
+    }
+  }
+
+  private static FakeBuildRule createRule(
+      String target,
+      final ImmutableList<Path> inputs,
+      BuildRule... deps) {
+    BuildTarget buildTarget = BuildTargetFactory.newInstance(target);
+    FakeBuildRule rule = new FakeBuildRule(
+        new BuildRuleType("fake"),
+        buildTarget,
+        ImmutableSortedSet.copyOf(deps),
+        ImmutableSet.<BuildTargetPattern>of()) {
+      @Override
+      public Iterable<Path> getInputs() {
+        return inputs;
+      }
+    };
+    rule.setRuleKey(new RuleKey(HashCode.fromInt(buildTarget.hashCode()).toString()));
+    return rule;
+  }
+
+  @Test
+  public void keysOfRuleAndDepsAreCalculated() throws ExecutionException, InterruptedException {
+    FakeBuildRule dep = createRule("//java/com/example:dep", ImmutableList.<Path>of());
+    FakeBuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), dep);
+    RuleKeyCalculator calculator = new RuleKeyCalculator(
+        MoreExecutors.sameThreadExecutor(),
+        new RecordingFileHashCache());
+
+    List<RuleKey> keys = calculator.calculate(ImmutableList.of(rule, dep)).get();
+
+    assertEquals(ImmutableList.of(rule.getRuleKey(), dep.getRuleKey()), keys);
+  }
+
+  @Test
+  public void keyOfEachRuleIsCalculatedOnce() {
+    FakeBuildRule dep = createRule("//java/com/example:dep", ImmutableList.<Path>of());
+    FakeBuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), dep);
+    RuleKeyCalculator calculator = new RuleKeyCalculator(
+        MoreExecutors.sameThreadExecutor(),
+        new RecordingFileHashCache());
+
+    calculator.calculate(rule);
+    ListenableFuture<RuleKey> depKey = calculator.calculate(dep);
+
+    assertSame(depKey, calculator.calculate(dep));
+  }
+
+  @Test
+  public void allInputsAreHashed() throws ExecutionException, InterruptedException {
+    ImmutableList.Builder<Path> inputs = ImmutableList.builder();
+    for (int i = 0; i < RuleKeyCalculator.INPUT_BATCH_SIZE * 2 + 1; i++) {
+      inputs.add(Paths.get("java/com/example/Source" + i + ".java"));
+    }
+    FakeBuildRule rule = createRule("//java/com/example:rule", inputs.build());
+    RecordingFileHashCache fileHashCache = new RecordingFileHashCache();
+    RuleKeyCalculator calculator = new RuleKeyCalculator(
+        MoreExecutors.sameThreadExecutor(),
+        fileHashCache);
+
+    calculator.calculate(rule).get();
+
+    assertEquals(ImmutableSet.copyOf(inputs.build()), fileHashCache.hashedPaths);
+  }
+
+  @Test
+  public void failureToCalculateKeyOfDepIsPropagated() throws InterruptedException {
+    FakeBuildRule dep = new FakeBuildRule(
+        new BuildRuleType("fake"),
+        BuildTargetFactory.newInstance("//java/com/example:dep"));
+    FakeBuildRule rule = createRule("//java/com/example:rule", ImmutableList.<Path>of(), dep);
+    RuleKeyCalculator calculator = new RuleKeyCalculator(
+        MoreExecutors.sameThreadExecutor(),
+        new RecordingFileHashCache());
+
+    try {
+      calculator.calculate(rule).get();
+      fail("The RuleKey of the dep should fail to be calculated.");
+    } catch (ExecutionException e) {
+      // FakeBuildRule throws if its RuleKey has not been set.
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelStepTest {
+
+  @Test
+  public void testStepsRunAtTheSameTime() throws InterruptedException {
+    // Neither step can finish until both of them have started.
+    final CountDownLatch started = new CountDownLatch(2);
+    Step first = new AwaitingStep(started);
+    Step second = new AwaitingStep(started);
+
+    ParallelStep step = new ParallelStep(ImmutableList.of(first, second));
+
+    assertEquals(0, step.execute(TestExecutionContext.newInstance()));
+  }
+
+  @Test
+  public void testFailingStepFailsTheWholeStep() throws InterruptedException {
+    ParallelStep step = new ParallelStep(ImmutableList.of(
+        new FakeStep("pass", "passing step", 0),
+        new FakeStep("fail", "failing step", 3)));
+
+    assertEquals(3, step.execute(TestExecutionContext.newInstance()));
+    assertEquals("pass_&_fail", step.getShortName());
+  }
+
+  private static class AwaitingStep implements Step {
+
+    private final CountDownLatch started;
+
+    public AwaitingStep(CountDownLatch started) {
+      this.started = started;
+    }
+
+    @Override
+    public String getShortName() {
+      return "await";
+    }
+
+    @Override
+    public String getDescription(ExecutionContext context) {
+      return "await";
+    }
+
+    @Override
+    public int execute(ExecutionContext context) throws InterruptedException {
+      started.countDown();
+      return started.await(10, TimeUnit.SECONDS) ? 0 : 1;
+    }
+  }
+}
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.io.Files;
@@ -37,6 +38,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
 
 public class DefaultFileHashCacheTest {
 
@@ -124,4 +126,50 @@ public class DefaultFileHashCacheTest {
     cache.get(Paths.get(ignoredFile));
     assertFalse("Cache should not contain path.", cache.contains(inputFile.toPath()));
   }
+
+  @Test
+  public void whenFileIsUnchangedThenHashIsReadFromIndex() throws IOException {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    File inputFile = tmp.newFile("SomeClass.java");
+    Files.write("class SomeClass {}".getBytes(Charsets.US_ASCII), inputFile);
+    assertTrue(inputFile.setLastModified(System.currentTimeMillis() - 60000));
+    Path path = Paths.get("SomeClass.java");
+
+    // Record a hash that differs from the file's contents, to show that the file is not reread.
+    HashCode indexedHash = HashCode.fromInt(42);
+    FileHashIndex fileHashIndex = FileHashIndex.load(projectFilesystem);
+    fileHashIndex.put(
+        path,
+        java.nio.file.Files.readAttributes(inputFile.toPath(), BasicFileAttributes.class),
+        System.currentTimeMillis(),
+        indexedHash);
+    DefaultFileHashCache cache = new DefaultFileHashCache(
+        projectFilesystem,
+        new TestConsole(),
+        Optional.of(fileHashIndex));
+
+    assertEquals(indexedHash, cache.get(path));
+  }
+
+  @Test
+  public void whenFileIsHashedThenHashIsSavedToIndex() throws IOException {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    File inputFile = tmp.newFile("SomeClass.java");
+    Files.write("class SomeClass {}".getBytes(Charsets.US_ASCII), inputFile);
+    assertTrue(inputFile.setLastModified(System.currentTimeMillis() - 60000));
+    Path path = Paths.get("SomeClass.java");
+    DefaultFileHashCache cache = new DefaultFileHashCache(
+        projectFilesystem,
+        new TestConsole(),
+        Optional.of(FileHashIndex.load(projectFilesystem)));
+    HashCode hash = cache.get(path);
+    cache.saveIndex();
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertEquals(
+        Optional.of(hash),
+        loadedIndex.get(
+            path,
+            java.nio.file.Files.readAttributes(inputFile.toPath(), BasicFileAttributes.class)));
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class FileHashIndexTest {
+
+  private static final HashCode SHA1 = Hashing.sha1().hashInt(42);
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem projectFilesystem;
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    projectFilesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    path = Paths.get("SomeClass.java");
+    writeFile("class SomeClass {}", /* ageMillis */ 60000);
+  }
+
+  private void writeFile(String contents, long ageMillis) throws IOException {
+    Path absolutePath = projectFilesystem.resolve(path);
+    Files.write(absolutePath, contents.getBytes(Charsets.UTF_8));
+    Files.setLastModifiedTime(
+        absolutePath,
+        FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+  }
+
+  private BasicFileAttributes readAttributes() throws IOException {
+    return Files.readAttributes(projectFilesystem.resolve(path), BasicFileAttributes.class);
+  }
+
+  @Test
+  public void whenIndexIsSavedThenLoadedIndexContainsHash() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    index.save();
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertEquals(Optional.of(SHA1), loadedIndex.get(path, readAttributes()));
+  }
+
+  @Test
+  public void whenFileChangesThenIndexDoesNotReturnHash() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    index.save();
+    writeFile("class SomeClass { int field; }", /* ageMillis */ 60000);
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertFalse(loadedIndex.get(path, readAttributes()).isPresent());
+  }
+
+  @Test
+  public void whenFileWasModifiedJustBeforeHashingThenHashIsNotRecorded() throws IOException {
+    writeFile("class SomeClass {}", /* ageMillis */ 0);
+    BasicFileAttributes attributes = readAttributes();
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, attributes, attributes.lastModifiedTime().to(TimeUnit.MILLISECONDS), SHA1);
+
+    assertFalse(index.get(path, attributes).isPresent());
+  }
+
+  @Test
+  public void whenPathIsInvalidatedThenIndexDoesNotReturnHash() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    index.invalidate(path);
+
+    assertFalse(index.get(path, readAttributes()).isPresent());
+  }
+
+  @Test
+  public void whenIndexIsCorruptThenLoadedIndexIsEmpty() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    index.save();
+    Path indexPath = projectFilesystem.resolve(FileHashIndex.INDEX_PATH);
+    byte[] contents = Files.readAllBytes(indexPath);
+    Files.write(indexPath, Arrays.copyOf(contents, contents.length - 1));
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertFalse(loadedIndex.get(path, readAttributes()).isPresent());
+  }
+
+  @Test
+  public void whenFileIsDeletedThenSavedIndexDropsIt() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    BasicFileAttributes attributes = readAttributes();
+    Files.delete(projectFilesystem.resolve(path));
+    index.save();
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertFalse(loadedIndex.get(path, attributes).isPresent());
+  }
+
+  @Test
+  public void whenSaveFailsThenNextSaveWritesIndex() throws IOException {
+    FileHashIndex index = FileHashIndex.load(projectFilesystem);
+    index.put(path, readAttributes(), System.currentTimeMillis(), SHA1);
+    // A file where the index directory should be makes the save fail.
+    Path indexDirectory = projectFilesystem.resolve(FileHashIndex.INDEX_PATH).getParent();
+    Files.write(indexDirectory, new byte[0]);
+    try {
+      index.save();
+      fail("Saving the index into a file should fail.");
+    } catch (IOException e) {
+      // Expected.
+    }
+    Files.delete(indexDirectory);
+    index.save();
+
+    FileHashIndex loadedIndex = FileHashIndex.load(projectFilesystem);
+    assertEquals(Optional.of(SHA1), loadedIndex.get(path, readAttributes()));
+  }
+}
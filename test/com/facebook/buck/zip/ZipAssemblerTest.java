@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.timing.FakeClock;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ZipAssemblerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutorService executor;
+  private File output;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newFixedThreadPool(4);
+    output = tmp.newFile("output.zip");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private ZipAssembler newAssembler(int maxPendingEntries) throws IOException {
+    return new ZipAssembler(
+        new FakeClock(0),
+        new FileOutputStream(output),
+        executor,
+        maxPendingEntries);
+  }
+
+  @Test
+  public void newEntriesAreWrittenInTheOrderTheyWereAdded() throws IOException {
+    List<String> names = Lists.newArrayList();
+    try (ZipAssembler assembler = newAssembler(/* maxPendingEntries */ 3)) {
+      for (int i = 0; i < 20; i++) {
+        String name = "file" + i + ".txt";
+        names.add(name);
+        assembler.addEntry(new ZipEntry(name), ByteSource.wrap(contentsOf(name)));
+      }
+    }
+
+    List<String> readNames = Lists.newArrayList();
+    try (ZipInputStream zip = new ZipInputStream(new FileInputStream(output))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        readNames.add(entry.getName());
+        assertArrayEquals(contentsOf(entry.getName()), ByteStreams.toByteArray(zip));
+      }
+    }
+    assertEquals(names, readNames);
+  }
+
+  @Test
+  public void storedAndDeflatedEntriesCanBeReadBack() throws IOException {
+    CustomZipEntry stored = new CustomZipEntry("stored.txt");
+    stored.setCompressionLevel(Deflater.NO_COMPRESSION);
+    CustomZipEntry deflated = new CustomZipEntry("deflated.txt");
+    deflated.setCompressionLevel(Deflater.BEST_COMPRESSION);
+    try (ZipAssembler assembler = newAssembler(/* maxPendingEntries */ 8)) {
+      assembler.addEntry(stored, ByteSource.wrap(contentsOf("stored.txt")));
+      assembler.addEntry(deflated, ByteSource.wrap(contentsOf("deflated.txt")));
+      assembler.addEntry(new ZipEntry("empty/"), ByteSource.empty());
+    }
+
+    try (ZipFile zip = new ZipFile(output)) {
+      ZipEntry entry = zip.getEntry("stored.txt");
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(
+          contentsOf("stored.txt"),
+          ByteStreams.toByteArray(zip.getInputStream(entry)));
+
+      entry = zip.getEntry("deflated.txt");
+      assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+      assertArrayEquals(
+          contentsOf("deflated.txt"),
+          ByteStreams.toByteArray(zip.getInputStream(entry)));
+
+      assertTrue(zip.getEntry("empty/").isDirectory());
+    }
+  }
+
+  @Test
+  public void rawEntriesAreCopiedWithoutBeingRecompressed() throws IOException {
+    File input = tmp.newFile("input.zip");
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(input))) {
+      zip.setLevel(Deflater.BEST_SPEED);
+      zip.putNextEntry(new ZipEntry("a.txt"));
+      zip.write(contentsOf("a.txt"));
+      zip.closeEntry();
+      ZipEntry stored = new ZipEntry("b.txt");
+      byte[] contents = contentsOf("b.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(contents.length);
+      stored.setCrc(Hashing.crc32().hashBytes(contents).padToLong());
+      zip.putNextEntry(stored);
+      zip.write(contents);
+      zip.closeEntry();
+    }
+
+    Optional<RawZipFile> rawZip = RawZipFile.open(input.toPath());
+    assertTrue(rawZip.isPresent());
+    try (RawZipFile zip = rawZip.get()) {
+      try (ZipAssembler assembler = newAssembler(/* maxPendingEntries */ 1)) {
+        assembler.addEntry(new ZipEntry("first.txt"), ByteSource.wrap(contentsOf("first.txt")));
+        for (RawZipFile.Entry entry : zip.getEntries()) {
+          assembler.addRawEntry(zip, entry);
+        }
+      }
+    }
+
+    try (ZipFile original = new ZipFile(input); ZipFile copy = new ZipFile(output)) {
+      List<String> names = Lists.newArrayList();
+      for (Enumeration<? extends ZipEntry> entries = copy.entries(); entries.hasMoreElements(); ) {
+        names.add(entries.nextElement().getName());
+      }
+      assertEquals(ImmutableList.of("first.txt", "a.txt", "b.txt"), names);
+
+      for (String name : ImmutableList.of("a.txt", "b.txt")) {
+        ZipEntry originalEntry = original.getEntry(name);
+        ZipEntry copiedEntry = copy.getEntry(name);
+        assertEquals(originalEntry.getMethod(), copiedEntry.getMethod());
+        assertEquals(
+            "The compressed data should be copied as it is.",
+            originalEntry.getCompressedSize(),
+            copiedEntry.getCompressedSize());
+        assertEquals(originalEntry.getCrc(), copiedEntry.getCrc());
+        assertEquals(originalEntry.getTime(), copiedEntry.getTime());
+        assertArrayEquals(
+            contentsOf(name),
+            ByteStreams.toByteArray(copy.getInputStream(copiedEntry)));
+      }
+    }
+  }
+
+  @Test
+  public void theDataOfStoredEntriesIsAligned() throws IOException {
+    try (ZipAssembler assembler = new ZipAssembler(
+        new FakeClock(0),
+        new FileOutputStream(output),
+        executor,
+        /* maxPendingEntries */ 8,
+        /* storedEntryAlignment */ 4)) {
+      for (String name : ImmutableList.of("a", "bc.txt", "deflated.txt", "def.png", "g.arsc")) {
+        CustomZipEntry entry = new CustomZipEntry(name);
+        if (!name.equals("deflated.txt")) {
+          entry.setCompressionLevel(Deflater.NO_COMPRESSION);
+        }
+        assembler.addEntry(entry, ByteSource.wrap(Arrays.copyOf(contentsOf(name), name.length())));
+      }
+    }
+
+    // Walk the local file headers, which follow one another from the start of the zip.
+    ByteBuffer zip = ByteBuffer.wrap(Files.readAllBytes(output.toPath()))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int offset = 0;
+    int storedEntries = 0;
+    while (zip.getInt(offset) == ZipEntry.LOCSIG) {
+      int method = zip.getShort(offset + 8);
+      int compressedSize = zip.getInt(offset + 18);
+      int dataOffset = offset + 30 + zip.getShort(offset + 26) + zip.getShort(offset + 28);
+      if (method == ZipEntry.STORED) {
+        assertEquals(0, dataOffset % 4);
+        storedEntries++;
+      }
+      offset = dataOffset + compressedSize;
+    }
+    assertEquals(4, storedEntries);
+
+    try (ZipFile copy = new ZipFile(output)) {
+      ZipEntry entry = copy.getEntry("def.png");
+      assertArrayEquals(
+          Arrays.copyOf(contentsOf("def.png"), "def.png".length()),
+          ByteStreams.toByteArray(copy.getInputStream(entry)));
+    }
+  }
+
+  @Test
+  public void filesThatAreNotZipsAreNotOpened() throws IOException {
+    File notAZip = tmp.newFile("not-a.zip");
+    Files.write(notAZip.toPath(), "Not a zip.".getBytes(UTF_8));
+
+    assertFalse(RawZipFile.open(notAZip.toPath()).isPresent());
+  }
+
+  @Test
+  public void anEmptyZipHasNoEntries() throws IOException {
+    newAssembler(/* maxPendingEntries */ 1).close();
+
+    try (RawZipFile zip = RawZipFile.open(output.toPath()).get()) {
+      assertTrue(zip.getEntries().isEmpty());
+    }
+  }
+
+  private static byte[] contentsOf(String name) {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      contents.append(name).append(' ').append(i).append('\n');
+    }
+    return contents.toString().getBytes(UTF_8);
+  }
+}